@@ -9,7 +9,9 @@ import java.net.UnknownHostException;
 import java.util.Vector;
 
 import chat.Failure;
+import chat.SocketProfile;
 import chat.UserOutputType;
+import chat.WireProtocol;
 import chat.client.ChatClient;
 import widgets.AbstractClientFrame;
 import widgets.ClientFrame;
@@ -57,6 +59,23 @@ public class RunChatClient extends AbstractRunChat
 	 */
 	private int guiVersion;
 
+	/**
+	 * Le protocole à demander au serveur
+	 */
+	private WireProtocol protocol;
+
+	/**
+	 * Le profil de réglage de la socket vers le serveur
+	 */
+	private SocketProfile socketProfile;
+
+	/**
+	 * Nombre de messages que le serveur peut envoyer au client avant que
+	 * celui-ci ne renouvelle son crédit (0 pour ne pas utiliser le contrôle
+	 * de flux)
+	 */
+	private int creditWindow;
+
 	/**
 	 * Ensemble des threads des clients.
 	 * Il faudra attendre la fin de ces threads pour terminer l'exécution
@@ -108,12 +127,18 @@ public class RunChatClient extends AbstractRunChat
 		host = null;
 		name = null;
 		gui = false;
+		protocol = WireProtocol.OBJECT;
+		socketProfile = SocketProfile.DEFAULT;
+		creditWindow = 0;
 
 		/*
 		 * parsing des arguments spécifique au client
 		 * -h | --host : nom ou adresse IP du serveur
 		 * -n | --name : nom d'utilisateur
 		 * -g | --gui : pour lancer le client GUI
+		 * -b | --binary : pour demander le protocole binaire au serveur
+		 * --socket-profile : réglages de la socket (latency, throughput)
+		 * --credit : crédit de messages accordé au serveur
 		 */
 		for (int i = 0; i < args.length; i++)
 		{
@@ -143,6 +168,47 @@ public class RunChatClient extends AbstractRunChat
 					logger.warning("Setting user name to: nothing, invalid value");
 				}
 			}
+			else if (args[i].equals("--binary") || args[i].equals("-b"))
+			{
+				protocol = WireProtocol.BINARY;
+				logger.fine("Setting protocol to " + protocol);
+			}
+			else if (args[i].equals("--socket-profile"))
+			{
+				SocketProfile profile = null;
+				if (i < (args.length - 1))
+				{
+					profile = SocketProfile.fromString(args[++i]);
+				}
+				if (profile != null)
+				{
+					socketProfile = profile;
+					logger.fine("Setting socket profile to " + socketProfile);
+				}
+				else
+				{
+					logger.warning("invalid socket profile value");
+				}
+			}
+			else if (args[i].equals("--credit"))
+			{
+				if (i < (args.length - 1))
+				{
+					try
+					{
+						creditWindow = Math.max(0, Integer.parseInt(args[++i]));
+						logger.fine("Setting credit window to " + creditWindow);
+					}
+					catch (NumberFormatException e)
+					{
+						logger.warning("invalid credit window value");
+					}
+				}
+				else
+				{
+					logger.warning("invalid credit window value");
+				}
+			}
 			if (args[i].equals("--gui") || args[i].equals("-g"))
 			{
 				gui = true;
@@ -348,6 +414,9 @@ public class RunChatClient extends AbstractRunChat
 		                                   userIn,		// entrées utilisateur
 		                                   userOut,		// sorties utilisateur
 		                                   outType,		// Type sortie utilisateur
+		                                   protocol,	// protocole demandé
+		                                   socketProfile,	// réglages socket
+		                                   creditWindow,	// crédit de messages
 		                                   commonRun,	// commonRun avec le GUI
 		                                   logger);		// parent logger
 		if (client.isReady())
@@ -390,6 +459,13 @@ public class RunChatClient extends AbstractRunChat
 	 * <li>--verbose : set verbose on</li>
 	 * <li>--gui <1 or 2>: use graphical interface rather than console interface
 	 * </li>
+	 * <li>--binary : request the length-prefixed binary protocol from the
+	 * server (falls back to the object protocol with older servers)</li>
+	 * <li>--socket-profile <default|latency|throughput> : socket options
+	 * used for the connection to the server</li>
+	 * <li>--credit <messages> : flow control window, the server sends at most
+	 * this number of messages before the client renews its credit (slow GUI
+	 * clients), 0 (default) disables flow control</li>
 	 * </ul>
 	 */
 	public static void main(String[] args)
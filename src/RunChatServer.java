@@ -1,8 +1,12 @@
 import java.io.IOException;
-import java.net.SocketException;
 
 import chat.Failure;
+import chat.SocketProfile;
 import chat.server.ChatServer;
+import chat.server.NioChatServer;
+import chat.server.OverflowPolicy;
+import chat.server.ServerSettings;
+import chat.server.ThrottlePolicy;
 
 /**
  * Classe/programme qui lance un serveur de chat
@@ -10,12 +14,6 @@ import chat.server.ChatServer;
  */
 public class RunChatServer extends AbstractRunChat
 {
-	/**
-	 * Time out de la server socket avant qu'elle ne recommence à attendre
-	 * des connections des éventuels clients
-	 */
-	private int timeout;
-
 	/**
 	 * Flag permettant (ou pas) de quitter le serveur lorsque le dernier
 	 * client se délogue
@@ -23,9 +21,17 @@ public class RunChatServer extends AbstractRunChat
 	private boolean quitOnLastclient;
 
 	/**
-	 * Default time out to wait for client connection : 5 seconds
+	 * Flag permettant d'utiliser le serveur non bloquant
+	 * ({@link NioChatServer}) plutôt que le serveur à un thread par client
+	 * ({@link ChatServer})
+	 */
+	private boolean nio;
+
+	/**
+	 * Réglages communs aux deux serveurs (threads virtuels, nombre de
+	 * reactors, délai de présentation des clients, ...)
 	 */
-	public static final int DEFAULTTIMEOUT = 5000;
+	private ServerSettings settings;
 
 	/**
 	 * Constructeur d'un lanceur de serveur d'après les arguments du programme
@@ -48,8 +54,9 @@ public class RunChatServer extends AbstractRunChat
 		/*
 		 * On met d'abord les attributs locaux à leur valeur par défaut
 		 */
-		timeout = DEFAULTTIMEOUT;
 		quitOnLastclient = true;
+		nio = false;
+		settings = new ServerSettings();
 
 		/*
 		 * parsing des arguments communs aux clients et serveur
@@ -60,36 +67,608 @@ public class RunChatServer extends AbstractRunChat
 
 		/*
 		 * parsing des arguments spécifique au  serveur
-		 * 	-t | --timeout : timeout d'attente de la server socket
+		 * 	--nio : utilisation du serveur non bloquant
+		 * 	--virtual-threads : un thread virtuel par client
+		 * 	-r | --reactors : nombre de reactors du serveur non bloquant
+		 * 	--handshake-timeout : délai de présentation des clients
+		 * 	--queue-capacity : nombre max de messages en attente par client
+		 * 	--overflow : politique de débordement des files de sortie
+		 * 	--reset-messages : nb max de messages entre deux remises à zéro
+		 * 	--reset-bytes : nb max d'octets entre deux remises à zéro
+		 * 	--batch-frames : nb max de trames par écriture groupée
+		 * 	--batch-delay : délai max (µs) d'attente d'un lot incomplet
+		 * 	--coalesce-window : fenêtre (µs) de regroupement des diffusions
+		 * 	--coalesce-messages : nb max de messages d'une diffusion groupée
+		 * 	--socket-profile : réglages des sockets (latency, throughput)
+		 * 	--backlog : nb max de connections en attente d'acceptation
+		 * 	--auto-tune : ajustement des tampons d'émission au débit
+		 * 	--buffer-pool : taille (octets) du pool de tampons (0 : pas de pool)
+		 * 	--history : nb max de messages conservés dans l'historique
+		 * 	--history-bytes : taille max (octets) des messages de l'historique
+		 * 	--log-dir : répertoire du journal persistant des messages
+		 * 	--log-segment-size : taille (octets) des segments du journal
+		 * 	--log-retention : age max (s) des messages du journal
+		 * 	--log-retention-bytes : taille max (octets) du journal
+		 * 	--log-capacity : nb max de lots en attente d'écriture au journal
+		 * 	--ring-size : nb de cases de l'anneau du séquenceur des diffusions
+		 * 	--fanout-shards : nb de groupes distribuant les diffusions
+		 * 	--fanout-threshold : nb de clients à partir duquel ils le font
+		 * 	--process-threads : nb de threads de l'étage de traitement
+		 * 	--stage-capacity : nb max de tâches en attente par thread d'étage
+		 * 	--shutdown-timeout : délai (ms) de fin des connections à l'arrêt
+		 * 	--max-connections : nb max de connections simultanées
+		 * 	--max-per-address : nb max de connections depuis une même adresse
+		 * 	--accept-rate : nb max de connections acceptées par seconde
+		 * 	--rate-messages : nb max de messages par seconde par client
+		 * 	--rate-bytes : nb max d'octets par seconde par client
+		 * 	--throttle : politique de dépassement du débit (delay, drop, kick)
 		 */
 		for (int i=0; i < args.length; i++)
 		{
-			if (args[i].equals("--timeout") || args[i].equals("-t"))
+			if (args[i].equals("--quit") || args[i].equals("-q"))
+			{
+				quitOnLastclient = true;
+				logger.info("Setting quit on last client to true");
+			}
+			if (args[i].equals("--noquit") || args[i].equals("-n"))
+			{
+				quitOnLastclient = false;
+				logger.info("Setting quit on last client to false");
+			}
+			if (args[i].equals("--nio"))
+			{
+				nio = true;
+				logger.info("Setting non blocking server on");
+			}
+			if (args[i].equals("--virtual-threads"))
+			{
+				settings.setVirtualThreads(true);
+				logger.info("Setting virtual threads on");
+			}
+			if (args[i].equals("--reactors") || args[i].equals("-r"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer reactorsInteger = readInt(args[++i]);
+					if (reactorsInteger != null)
+					{
+						settings.setReactors(reactorsInteger.intValue());
+					}
+					logger.info("Setting reactors to " + settings.getReactors());
+				}
+				else
+				{
+					logger.warning("invalid reactors value");
+				}
+			}
+			if (args[i].equals("--handshake-timeout"))
 			{
 				if (i < (args.length - 1))
 				{
-					// parse next arg for in port value
 					Integer timeInteger = readInt(args[++i]);
 					if (timeInteger != null)
 					{
-						timeout = timeInteger.intValue();
+						settings.setHandshakeTimeout(timeInteger.intValue());
 					}
-					logger.info("Setting timeout to " + timeout);
+					logger.info("Setting handshake timeout to "
+					    + settings.getHandshakeTimeout());
 				}
 				else
 				{
-					logger.warning("invalid timeout value");
+					logger.warning("invalid handshake timeout value");
 				}
 			}
-			if (args[i].equals("--quit") || args[i].equals("-q"))
+			if (args[i].equals("--queue-capacity"))
 			{
-				quitOnLastclient = true;
-				logger.info("Setting quit on last client to true");
+				if (i < (args.length - 1))
+				{
+					Integer capacityInteger = readInt(args[++i]);
+					if (capacityInteger != null)
+					{
+						settings.setOutboundCapacity(capacityInteger.intValue());
+					}
+					logger.info("Setting output queue capacity to "
+					    + settings.getOutboundCapacity());
+				}
+				else
+				{
+					logger.warning("invalid queue capacity value");
+				}
 			}
-			if (args[i].equals("--noquit") || args[i].equals("-n"))
+			if (args[i].equals("--overflow"))
 			{
-				quitOnLastclient = false;
-				logger.info("Setting quit on last client to false");
+				OverflowPolicy policy = null;
+				if (i < (args.length - 1))
+				{
+					policy = OverflowPolicy.fromString(args[++i]);
+				}
+				if (policy != null)
+				{
+					settings.setOverflowPolicy(policy);
+					logger.info("Setting overflow policy to " + policy);
+				}
+				else
+				{
+					logger.warning("invalid overflow policy, expecting "
+					    + "drop-oldest, drop-newest or disconnect");
+				}
+			}
+			if (args[i].equals("--reset-messages"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer messagesInteger = readInt(args[++i]);
+					if (messagesInteger != null)
+					{
+						settings.setResetMessages(messagesInteger.intValue());
+					}
+					logger.info("Setting reset messages to "
+					    + settings.getResetMessages());
+				}
+				else
+				{
+					logger.warning("invalid reset messages value");
+				}
+			}
+			if (args[i].equals("--reset-bytes"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer bytesInteger = readInt(args[++i]);
+					if (bytesInteger != null)
+					{
+						settings.setResetBytes(bytesInteger.intValue());
+					}
+					logger.info("Setting reset bytes to "
+					    + settings.getResetBytes());
+				}
+				else
+				{
+					logger.warning("invalid reset bytes value");
+				}
+			}
+			if (args[i].equals("--batch-frames"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer framesInteger = readInt(args[++i]);
+					if (framesInteger != null)
+					{
+						settings.setBatchFrames(framesInteger.intValue());
+					}
+					logger.info("Setting batch frames to "
+					    + settings.getBatchFrames());
+				}
+				else
+				{
+					logger.warning("invalid batch frames value");
+				}
+			}
+			if (args[i].equals("--batch-delay"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer delayInteger = readInt(args[++i]);
+					if (delayInteger != null)
+					{
+						settings.setBatchDelay(delayInteger.intValue());
+					}
+					logger.info("Setting batch delay to "
+					    + settings.getBatchDelay() + " µs");
+				}
+				else
+				{
+					logger.warning("invalid batch delay value");
+				}
+			}
+			if (args[i].equals("--coalesce-window"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer windowInteger = readInt(args[++i]);
+					if (windowInteger != null)
+					{
+						settings.setCoalesceWindow(windowInteger.intValue());
+					}
+					logger.info("Setting coalesce window to "
+					    + settings.getCoalesceWindow() + " µs");
+				}
+				else
+				{
+					logger.warning("invalid coalesce window value");
+				}
+			}
+			if (args[i].equals("--coalesce-messages"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer messagesInteger = readInt(args[++i]);
+					if (messagesInteger != null)
+					{
+						settings.setCoalesceMessages(messagesInteger.intValue());
+					}
+					logger.info("Setting coalesce messages to "
+					    + settings.getCoalesceMessages());
+				}
+				else
+				{
+					logger.warning("invalid coalesce messages value");
+				}
+			}
+			if (args[i].equals("--socket-profile"))
+			{
+				SocketProfile profile = null;
+				if (i < (args.length - 1))
+				{
+					profile = SocketProfile.fromString(args[++i]);
+				}
+				if (profile != null)
+				{
+					settings.setSocketProfile(profile);
+					logger.info("Setting socket profile to " + profile);
+				}
+				else
+				{
+					logger.warning("invalid socket profile value");
+				}
+			}
+			if (args[i].equals("--backlog"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer backlogInteger = readInt(args[++i]);
+					if (backlogInteger != null)
+					{
+						settings.setBacklog(backlogInteger.intValue());
+					}
+					logger.info("Setting backlog to " + settings.getBacklog());
+				}
+				else
+				{
+					logger.warning("invalid backlog value");
+				}
+			}
+			if (args[i].equals("--auto-tune"))
+			{
+				settings.setAutoTune(true);
+				logger.info("Setting send buffers auto tuning on");
+			}
+			if (args[i].equals("--buffer-pool"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer sizeInteger = readInt(args[++i]);
+					if (sizeInteger != null)
+					{
+						settings.setBufferPoolSize(sizeInteger.intValue());
+					}
+					logger.info("Setting buffer pool size to "
+					    + settings.getBufferPoolSize());
+				}
+				else
+				{
+					logger.warning("invalid buffer pool size value");
+				}
+			}
+			if (args[i].equals("--history"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer sizeInteger = readInt(args[++i]);
+					if (sizeInteger != null)
+					{
+						settings.setHistorySize(sizeInteger.intValue());
+					}
+					logger.info("Setting history size to "
+					    + settings.getHistorySize());
+				}
+				else
+				{
+					logger.warning("invalid history size value");
+				}
+			}
+			if (args[i].equals("--history-bytes"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer bytesInteger = readInt(args[++i]);
+					if (bytesInteger != null)
+					{
+						settings.setHistoryBytes(bytesInteger.intValue());
+					}
+					logger.info("Setting history bytes to "
+					    + settings.getHistoryBytes());
+				}
+				else
+				{
+					logger.warning("invalid history bytes value");
+				}
+			}
+			if (args[i].equals("--log-dir"))
+			{
+				if (i < (args.length - 1))
+				{
+					settings.setLogDirectory(args[++i]);
+					logger.info("Setting log directory to "
+					    + settings.getLogDirectory());
+				}
+				else
+				{
+					logger.warning("invalid log directory value");
+				}
+			}
+			if (args[i].equals("--log-segment-size"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer sizeInteger = readInt(args[++i]);
+					if (sizeInteger != null)
+					{
+						settings.setLogSegmentSize(sizeInteger.intValue());
+					}
+					logger.info("Setting log segment size to "
+					    + settings.getLogSegmentSize());
+				}
+				else
+				{
+					logger.warning("invalid log segment size value");
+				}
+			}
+			if (args[i].equals("--log-retention"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer timeInteger = readInt(args[++i]);
+					if (timeInteger != null)
+					{
+						settings.setLogRetention(timeInteger.intValue());
+					}
+					logger.info("Setting log retention to "
+					    + settings.getLogRetention());
+				}
+				else
+				{
+					logger.warning("invalid log retention value");
+				}
+			}
+			if (args[i].equals("--log-retention-bytes"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer bytesInteger = readInt(args[++i]);
+					if (bytesInteger != null)
+					{
+						settings.setLogRetentionBytes(bytesInteger.intValue());
+					}
+					logger.info("Setting log retention bytes to "
+					    + settings.getLogRetentionBytes());
+				}
+				else
+				{
+					logger.warning("invalid log retention bytes value");
+				}
+			}
+			if (args[i].equals("--log-capacity"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer capacityInteger = readInt(args[++i]);
+					if (capacityInteger != null)
+					{
+						settings.setLogCapacity(capacityInteger.intValue());
+					}
+					logger.info("Setting log capacity to "
+					    + settings.getLogCapacity());
+				}
+				else
+				{
+					logger.warning("invalid log capacity value");
+				}
+			}
+			if (args[i].equals("--ring-size"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer sizeInteger = readInt(args[++i]);
+					if (sizeInteger != null)
+					{
+						settings.setSequencerSize(sizeInteger.intValue());
+					}
+					logger.info("Setting sequencer ring size to "
+					    + settings.getSequencerSize());
+				}
+				else
+				{
+					logger.warning("invalid sequencer ring size value");
+				}
+			}
+			if (args[i].equals("--fanout-shards"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer shardsInteger = readInt(args[++i]);
+					if (shardsInteger != null)
+					{
+						settings.setFanOutShards(shardsInteger.intValue());
+					}
+					logger.info("Setting fan-out shards to "
+					    + settings.getFanOutShards());
+				}
+				else
+				{
+					logger.warning("invalid fan-out shards value");
+				}
+			}
+			if (args[i].equals("--fanout-threshold"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer thresholdInteger = readInt(args[++i]);
+					if (thresholdInteger != null)
+					{
+						settings.setFanOutThreshold(thresholdInteger.intValue());
+					}
+					logger.info("Setting fan-out threshold to "
+					    + settings.getFanOutThreshold());
+				}
+				else
+				{
+					logger.warning("invalid fan-out threshold value");
+				}
+			}
+			if (args[i].equals("--process-threads"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer threadsInteger = readInt(args[++i]);
+					if (threadsInteger != null)
+					{
+						settings.setProcessThreads(threadsInteger.intValue());
+					}
+					logger.info("Setting process stage threads to "
+					    + settings.getProcessThreads());
+				}
+				else
+				{
+					logger.warning("invalid process stage threads value");
+				}
+			}
+			if (args[i].equals("--stage-capacity"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer capacityInteger = readInt(args[++i]);
+					if (capacityInteger != null)
+					{
+						settings.setStageCapacity(capacityInteger.intValue());
+					}
+					logger.info("Setting stage capacity to "
+					    + settings.getStageCapacity());
+				}
+				else
+				{
+					logger.warning("invalid stage capacity value");
+				}
+			}
+			if (args[i].equals("--shutdown-timeout"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer timeoutInteger = readInt(args[++i]);
+					if (timeoutInteger != null)
+					{
+						settings.setShutdownTimeout(timeoutInteger.intValue());
+					}
+					logger.info("Setting shutdown timeout to "
+					    + settings.getShutdownTimeout());
+				}
+				else
+				{
+					logger.warning("invalid shutdown timeout value");
+				}
+			}
+			if (args[i].equals("--max-connections"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer limitInteger = readInt(args[++i]);
+					if (limitInteger != null)
+					{
+						settings.setMaxConnections(limitInteger.intValue());
+					}
+					logger.info("Setting max connections to "
+					    + settings.getMaxConnections());
+				}
+				else
+				{
+					logger.warning("invalid max connections value");
+				}
+			}
+			if (args[i].equals("--max-per-address"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer limitInteger = readInt(args[++i]);
+					if (limitInteger != null)
+					{
+						settings.setMaxConnectionsPerAddress(limitInteger.intValue());
+					}
+					logger.info("Setting max connections per address to "
+					    + settings.getMaxConnectionsPerAddress());
+				}
+				else
+				{
+					logger.warning("invalid max connections per address value");
+				}
+			}
+			if (args[i].equals("--accept-rate"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer limitInteger = readInt(args[++i]);
+					if (limitInteger != null)
+					{
+						settings.setAcceptRate(limitInteger.intValue());
+					}
+					logger.info("Setting accept rate to "
+					    + settings.getAcceptRate());
+				}
+				else
+				{
+					logger.warning("invalid accept rate value");
+				}
+			}
+			if (args[i].equals("--rate-messages"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer rateInteger = readInt(args[++i]);
+					if (rateInteger != null)
+					{
+						settings.setRateMessages(rateInteger.intValue());
+					}
+					logger.info("Setting client message rate to "
+					    + settings.getRateMessages());
+				}
+				else
+				{
+					logger.warning("invalid client message rate value");
+				}
+			}
+			if (args[i].equals("--rate-bytes"))
+			{
+				if (i < (args.length - 1))
+				{
+					Integer rateInteger = readInt(args[++i]);
+					if (rateInteger != null)
+					{
+						settings.setRateBytes(rateInteger.intValue());
+					}
+					logger.info("Setting client byte rate to "
+					    + settings.getRateBytes());
+				}
+				else
+				{
+					logger.warning("invalid client byte rate value");
+				}
+			}
+			if (args[i].equals("--throttle"))
+			{
+				ThrottlePolicy policy = null;
+				if (i < (args.length - 1))
+				{
+					policy = ThrottlePolicy.fromString(args[++i]);
+				}
+				if (policy != null)
+				{
+					settings.setThrottlePolicy(policy);
+					logger.info("Setting throttle policy to " + policy);
+				}
+				else
+				{
+					logger.warning("invalid throttle policy, expecting "
+					    + "delay, drop or kick");
+				}
 			}
 		}
 	}
@@ -104,19 +683,23 @@ public class RunChatServer extends AbstractRunChat
 		 * Create and Launch server on local ip adress with port number and verbose
 		 * status
 		 */
-		logger.info("Creating server on port " + port + " with timeout "
-				+ timeout + " ms and verbose " + (verbose ? "on" : "off"));
+		logger.info("Creating server on port " + port + " with verbose "
+				+ (verbose ? "on" : "off"));
 
-		ChatServer server = null;
+		Runnable server = null;
 		try
 		{
-			server = new ChatServer(port, timeout, quitOnLastclient, logger);
-		}
-		catch (SocketException se)
-		{
-			logger.severe(Failure.SET_SERVER_SOCKET_TIMEOUT + ", abort ...");
-			logger.severe(se.getLocalizedMessage());
-			System.exit(Failure.SET_SERVER_SOCKET_TIMEOUT.toInteger());
+			if (nio)
+			{
+				server = new NioChatServer(port, quitOnLastclient, settings, logger);
+			}
+			else
+			{
+				server = new ChatServer(port,
+				                        quitOnLastclient,
+				                        settings,
+				                        logger);
+			}
 		}
 		catch (IOException e)
 		{
@@ -152,7 +735,79 @@ public class RunChatServer extends AbstractRunChat
 	 * <ul>
 	 * 	<li>--port <port number> : set host connection port</li>
 	 * 	<li>--verbose : set verbose on</li>
-	 * 	<li>--timeout <timeout in ms> : server socket waiting time out</li>
+	 * 	<li>--nio : use the non blocking (selector based) server</li>
+	 * 	<li>--virtual-threads : handle each client in a virtual thread</li>
+	 * 	<li>--reactors <number> : number of I/O loops of the non blocking
+	 * 	server (defaults to the number of processors)</li>
+	 * 	<li>--handshake-timeout <timeout in ms> : delay for a client to send
+	 * 	its name before being disconnected (0 for no delay)</li>
+	 * 	<li>--queue-capacity <number> : maximum number of messages waiting to
+	 * 	be written to a client</li>
+	 * 	<li>--overflow <drop-oldest|drop-newest|disconnect> : what to do when
+	 * 	a client's output queue is full</li>
+	 * 	<li>--reset-messages <number> : reset the shared object stream (and
+	 * 	release the messages it references) every n messages (0 for never)</li>
+	 * 	<li>--reset-bytes <number> : reset the shared object stream every n
+	 * 	encoded bytes (0 for never)</li>
+	 * 	<li>--batch-frames <number> : maximum number of frames written to a
+	 * 	client in a single gathering write</li>
+	 * 	<li>--batch-delay <delay in µs> : how long a client writer waits for
+	 * 	more frames before writing an incomplete batch (0 for no wait)</li>
+	 * 	<li>--coalesce-window <delay in µs> : messages broadcast within this
+	 * 	window are sent to clients as a single frame (0 to disable)</li>
+	 * 	<li>--coalesce-messages <number> : maximum number of messages in a
+	 * 	single coalesced broadcast</li>
+	 * 	<li>--socket-profile <default|latency|throughput> : socket options
+	 * 	(TCP_NODELAY, buffer sizes, keepalive) and default accept backlog</li>
+	 * 	<li>--backlog <number> : maximum number of pending connections
+	 * 	(overrides the socket profile's backlog)</li>
+	 * 	<li>--auto-tune : size each connection's send buffer from its
+	 * 	observed throughput</li>
+	 * 	<li>--buffer-pool <bytes> : maximum off-heap memory of the pooled
+	 * 	I/O buffers (0 to disable pooling)</li>
+	 * 	<li>--history <number> : maximum number of broadcast messages kept
+	 * 	for the history command and, on the threaded server, replayed to
+	 * 	each client when it joins (0 to disable)</li>
+	 * 	<li>--history-bytes <bytes> : maximum total size of the encoded
+	 * 	messages kept for replay on the threaded server (0 for no limit)</li>
+	 * 	<li>--log-dir <directory> : append every message broadcast by the
+	 * 	threaded server to a persistent log of memory-mapped segment files
+	 * 	in this directory; the history is reloaded from it on restart</li>
+	 * 	<li>--log-segment-size <bytes> : size of each log segment file</li>
+	 * 	<li>--log-retention <seconds> : delete log segments whose messages
+	 * 	are older than this (0 for no limit)</li>
+	 * 	<li>--log-retention-bytes <bytes> : delete the oldest log segments
+	 * 	while the log is larger than this (0 for no limit)</li>
+	 * 	<li>--log-capacity <number> : maximum number of broadcasts waiting
+	 * 	to be written to the log, further ones are not logged</li>
+	 * 	<li>--ring-size <number> : number of slots of the threaded server's
+	 * 	broadcast sequencer ring (rounded up to a power of 2)</li>
+	 * 	<li>--fanout-shards <number> : number of worker threads sharing the
+	 * 	delivery of broadcasts to the threaded server's clients (1 to always
+	 * 	deliver from the sequencer thread, default: number of cores)</li>
+	 * 	<li>--fanout-threshold <number> : number of clients from which
+	 * 	broadcasts are delivered by the shards</li>
+	 * 	<li>--process-threads <number> : number of threads of the threaded
+	 * 	server's process stage, which runs commands and publishes broadcasts
+	 * 	(0 to process frames on the reading threads, default: number of
+	 * 	cores)</li>
+	 * 	<li>--stage-capacity <number> : maximum number of tasks waiting for
+	 * 	each thread of a pipeline stage (readers block when it is full)</li>
+	 * 	<li>--shutdown-timeout <delay in ms> : how long the threaded server
+	 * 	waits for its connections to terminate when it stops</li>
+	 * 	<li>--max-connections <number> : maximum number of simultaneous
+	 * 	connections, further ones are refused right after accept (0 for no
+	 * 	limit)</li>
+	 * 	<li>--max-per-address <number> : maximum number of simultaneous
+	 * 	connections from a single address (0 for no limit)</li>
+	 * 	<li>--accept-rate <number> : maximum number of connections accepted
+	 * 	per second (0 for no limit)</li>
+	 * 	<li>--rate-messages <number> : maximum number of messages per second
+	 * 	sent by each client (0 for no limit)</li>
+	 * 	<li>--rate-bytes <number> : maximum number of content bytes per
+	 * 	second sent by each client (0 for no limit)</li>
+	 * 	<li>--throttle <delay|drop|kick> : what to do with a client exceeding
+	 * 	its rate: stop reading it for a while, drop its message or ban it</li>
 	 * </ul>
 	 */
 	public static void main(String[] args)
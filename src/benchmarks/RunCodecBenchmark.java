@@ -0,0 +1,289 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import chat.Frame;
+import chat.FrameType;
+import chat.MessageCodec;
+import chat.WireProtocol;
+import chat.server.FrameEncoder;
+import chat.server.MessageFrame;
+import models.Message;
+
+/**
+ * Comparaison de la sérialisation Java des {@link Message} et du codec
+ * binaire ({@link MessageCodec}) : taille d'un message sur le réseau et
+ * temps d'encodage et de décodage d'un message. Trois encodages sont
+ * comparés :
+ * <ul>
+ * <li>serial/new : un flux objet par message (ce que coûte un message
+ * isolé, descripteurs de classes compris)</li>
+ * <li>serial/shared : un flux objet partagé par tous les messages (ce
+ * qu'utilise le serveur pour ses clients objet, voir {@link FrameEncoder})
+ * </li>
+ * <li>binary : le codec binaire</li>
+ * </ul>
+ * Chaque mesure suit la démarche d'un harnais de micro-benchmark (comme JMH)
+ * : plusieurs itérations de chauffe (pour laisser le JIT compiler le code
+ * mesuré) sont suivies d'itérations de mesure d'une durée fixe, dont on
+ * affiche la moyenne et l'écart type. Le résultat de chaque opération est
+ * consommé afin que le JIT ne puisse pas l'éliminer.
+ * Usage : RunCodecBenchmark [taille du contenu] [durée d'une itération (ms)]
+ *
+ * @author davidroussel
+ */
+public class RunCodecBenchmark
+{
+	/**
+	 * Taille par défaut (en caractères) du contenu des messages
+	 */
+	public static final int DEFAULTCONTENTSIZE = 64;
+
+	/**
+	 * Durée par défaut (en ms) d'une itération
+	 */
+	public static final int DEFAULTITERATIONTIME = 500;
+
+	/**
+	 * Nombre d'itérations de chauffe
+	 */
+	public static final int WARMUPITERATIONS = 5;
+
+	/**
+	 * Nombre d'itérations de mesure
+	 */
+	public static final int MEASUREITERATIONS = 5;
+
+	/**
+	 * Nombre d'opérations entre deux consultations de l'horloge
+	 */
+	private static final int BATCH = 1000;
+
+	/**
+	 * Nombre de messages différents utilisés pour les mesures
+	 */
+	private static final int NBMESSAGES = 1024;
+
+	/**
+	 * Opération mesurée
+	 */
+	private interface Operation
+	{
+		/**
+		 * Exécution de l'opération
+		 * @param i le numéro de l'opération
+		 * @return une valeur dépendant du résultat de l'opération
+		 * @throws Exception si l'opération échoue
+		 */
+		long run(int i) throws Exception;
+	}
+
+	/**
+	 * Valeur accumulant les résultats des opérations mesurées (afin que le
+	 * JIT ne les élimine pas)
+	 */
+	private static long sink = 0;
+
+	/**
+	 * Mesure du temps moyen d'une opération
+	 * @param name le nom de la mesure
+	 * @param bytes la taille d'un message avec cet encodage
+	 * @param iterationTime la durée (en ms) d'une itération
+	 * @param operation l'opération à mesurer
+	 * @throws Exception si l'opération échoue
+	 */
+	private static void measure(String name,
+	                            double bytes,
+	                            int iterationTime,
+	                            Operation operation)
+	    throws Exception
+	{
+		for (int i = 0; i < WARMUPITERATIONS; i++)
+		{
+			iteration(iterationTime, operation);
+		}
+		double[] results = new double[MEASUREITERATIONS];
+		double mean = 0;
+		for (int i = 0; i < MEASUREITERATIONS; i++)
+		{
+			results[i] = iteration(iterationTime, operation);
+			mean += results[i];
+		}
+		mean /= MEASUREITERATIONS;
+		double variance = 0;
+		for (double r : results)
+		{
+			variance += (r - mean) * (r - mean);
+		}
+		double error = Math.sqrt(variance / (MEASUREITERATIONS - 1));
+		System.out.printf("%-24s %10.1f %12.1f %10.1f%n",
+		                  name,
+		                  bytes,
+		                  mean,
+		                  error);
+	}
+
+	/**
+	 * Une itération de mesure
+	 * @param iterationTime la durée (en ms) de l'itération
+	 * @param operation l'opération à mesurer
+	 * @return le temps moyen (en ns) d'une opération
+	 * @throws Exception si l'opération échoue
+	 */
+	private static double iteration(int iterationTime, Operation operation)
+	    throws Exception
+	{
+		long deadline = System.nanoTime() + (iterationTime * 1000000L);
+		long start = System.nanoTime();
+		long end;
+		long operations = 0;
+		do
+		{
+			for (int i = 0; i < BATCH; i++)
+			{
+				sink += operation.run((int) operations++);
+			}
+			end = System.nanoTime();
+		}
+		while (end < deadline);
+		return (double) (end - start) / operations;
+	}
+
+	/**
+	 * Sérialisation d'un message dans son propre flux objet
+	 * @param message le message à sérialiser
+	 * @return les octets du flux objet (entête comprise)
+	 * @throws IOException si la sérialisation échoue
+	 */
+	private static byte[] serialize(Message message) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(message);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Programme principal
+	 * @param args [taille du contenu] [durée d'une itération (ms)]
+	 * @throws Exception si une erreur intervient pendant les mesures
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int contentSize = (args.length > 0 ? Integer.parseInt(args[0]) : DEFAULTCONTENTSIZE);
+		int iterationTime = (args.length > 1 ? Integer.parseInt(args[1]) : DEFAULTITERATIONTIME);
+
+		// Messages à encoder
+		final Message[] messages = new Message[NBMESSAGES];
+		long now = new Date().getTime();
+		for (int i = 0; i < NBMESSAGES; i++)
+		{
+			StringBuilder content = new StringBuilder("message " + i + " ");
+			while (content.length() < contentSize)
+			{
+				content.append((char) ('a' + (content.length() % 26)));
+			}
+			content.setLength(contentSize);
+			messages[i] = new Message(new Date(now + i),
+			                          content.toString(),
+			                          "client" + (i % 100));
+		}
+
+		// Messages encodés à décoder et tailles moyennes
+		final byte[][] serialized = new byte[NBMESSAGES][];
+		final byte[][] binary = new byte[NBMESSAGES][];
+		ByteArrayOutputStream sharedBytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream binaryBytes = new ByteArrayOutputStream();
+		sharedBytes.write(MessageFrame.STREAMHEADER);
+		FrameEncoder sharedEncoder = new FrameEncoder();
+		double serializedSize = 0;
+		double sharedSize = 0;
+		double binarySize = 0;
+		for (int i = 0; i < NBMESSAGES; i++)
+		{
+			serialized[i] = serialize(messages[i]);
+			serializedSize += serialized[i].length;
+			MessageFrame frame = sharedEncoder.encode(messages[i]);
+			frame.writeTo(sharedBytes, WireProtocol.OBJECT);
+			if (i > 0)
+			{
+				// la première trame contient les descripteurs de classes
+				sharedSize += frame.length(WireProtocol.OBJECT);
+			}
+			binary[i] = MessageCodec.encode(FrameType.MESSAGE, messages[i]);
+			binaryBytes.write(binary[i]);
+			binarySize += binary[i].length;
+		}
+		serializedSize /= NBMESSAGES;
+		sharedSize /= (NBMESSAGES - 1);
+		binarySize /= NBMESSAGES;
+		final byte[] sharedStream = sharedBytes.toByteArray();
+		final byte[] binaryStream = binaryBytes.toByteArray();
+
+		System.out.println("content size = " + contentSize + " chars, "
+		    + WARMUPITERATIONS + " warmup + " + MEASUREITERATIONS
+		    + " measurement iterations of " + iterationTime + " ms");
+		System.out.printf("%-24s %10s %12s %10s%n",
+		                  "benchmark",
+		                  "bytes/msg",
+		                  "ns/op",
+		                  "error");
+
+		measure("encode serial/new", serializedSize, iterationTime,
+		        (int i) -> serialize(messages[i % NBMESSAGES]).length);
+
+		final FrameEncoder encoder = new FrameEncoder();
+		measure("encode serial/shared", sharedSize, iterationTime,
+		        (int i) -> encoder.encode(messages[i % NBMESSAGES])
+		                       .length(WireProtocol.OBJECT));
+
+		measure("encode binary", binarySize, iterationTime,
+		        (int i) -> MessageCodec.encode(FrameType.MESSAGE,
+		                                       messages[i % NBMESSAGES]).length);
+
+		measure("decode serial/new", serializedSize, iterationTime,
+		        (int i) -> {
+			        ObjectInputStream in = new ObjectInputStream(
+			            new ByteArrayInputStream(serialized[i % NBMESSAGES]));
+			        return ((Message) in.readObject()).getDate().getTime();
+		        });
+
+		/*
+		 * Le flux partagé doit être relu depuis son début : un nouveau flux
+		 * objet est créé tous les NBMESSAGES messages
+		 */
+		final ObjectInputStream[] sharedIn = new ObjectInputStream[1];
+		measure("decode serial/shared", sharedSize, iterationTime,
+		        (int i) -> {
+			        if ((i % NBMESSAGES) == 0)
+			        {
+				        sharedIn[0] = new ObjectInputStream(
+				            new ByteArrayInputStream(sharedStream));
+			        }
+			        return ((Message) sharedIn[0].readObject()).getDate().getTime();
+		        });
+
+		final ByteBuffer binaryIn = ByteBuffer.wrap(binaryStream);
+		measure("decode binary", binarySize, iterationTime,
+		        (int i) -> {
+			        if ((i % NBMESSAGES) == 0)
+			        {
+				        binaryIn.rewind();
+			        }
+			        Frame frame = MessageCodec.decode(binaryIn);
+			        return frame.getMessage().getDate().getTime();
+		        });
+
+		if (sink == 42)
+		{
+			System.out.println();
+		}
+	}
+}
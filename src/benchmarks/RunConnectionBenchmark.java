@@ -0,0 +1,179 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import chat.Vocabulary;
+import chat.server.ChatServer;
+import chat.server.ServerSettings;
+import logger.LoggerFactory;
+
+/**
+ * Comparaison du {@link ChatServer} lorsque les clients sont traités par des
+ * threads classiques ou par des threads virtuels. Pour chacun des modes on
+ * mesure :
+ * <ul>
+ * <li>le temps nécessaire pour connecter l'ensemble des clients</li>
+ * <li>le nombre de threads classiques de la JVM et la mémoire utilisée une
+ * fois tous les clients connectés</li>
+ * <li>le temps nécessaire pour qu'un message soit reçu par tous les
+ * clients</li>
+ * </ul>
+ * Usage : RunConnectionBenchmark [nombre de clients] [port]
+ *
+ * @author davidroussel
+ */
+public class RunConnectionBenchmark
+{
+	/**
+	 * Nombre de clients par défaut
+	 */
+	public static final int DEFAULTCLIENTS = 1000;
+
+	/**
+	 * Port de base par défaut (chaque mode utilise son propre port)
+	 */
+	public static final int DEFAULTPORT = 1494;
+
+	/**
+	 * Un client de test : sa socket, son flux de sortie texte et son flux
+	 * d'entrée objet
+	 */
+	private static class TestClient
+	{
+		/**
+		 * La socket du client
+		 */
+		private final Socket socket;
+
+		/**
+		 * Flux de sortie texte vers le serveur
+		 */
+		private final PrintWriter out;
+
+		/**
+		 * Flux d'entrée objet depuis le serveur
+		 */
+		private final ObjectInputStream in;
+
+		/**
+		 * Connection d'un client au serveur. Le constructeur ne rend la main
+		 * qu'une fois que le serveur a créé le flux objet vers ce client
+		 * (c'est à dire une fois le client enregistré).
+		 * @param port le port du serveur
+		 * @param name le nom du client
+		 * @throws IOException si la connection échoue
+		 */
+		public TestClient(int port, String name) throws IOException
+		{
+			socket = new Socket("localhost", port);
+			out = new PrintWriter(socket.getOutputStream(), true);
+			out.println(name);
+			in = new ObjectInputStream(socket.getInputStream());
+		}
+
+		/**
+		 * Fermeture du client
+		 */
+		public void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// rien à faire
+			}
+		}
+	}
+
+	/**
+	 * Mesure d'un mode du serveur
+	 * @param virtualThreads le mode à mesurer
+	 * @param nbClients le nombre de clients à connecter
+	 * @param port le port à utiliser
+	 * @param logger le logger du serveur
+	 * @throws Exception si une erreur intervient pendant la mesure
+	 */
+	private static void measure(boolean virtualThreads,
+	                            int nbClients,
+	                            int port,
+	                            Logger logger)
+	    throws Exception
+	{
+		ServerSettings settings = new ServerSettings();
+		settings.setVirtualThreads(virtualThreads);
+		ChatServer server =
+		    new ChatServer(port, true, settings, logger);
+		Thread serverThread = new Thread(server);
+		serverThread.start();
+
+		List<TestClient> clients = new ArrayList<TestClient>(nbClients);
+		long start = System.nanoTime();
+		for (int i = 0; i < nbClients; i++)
+		{
+			clients.add(new TestClient(port, "client" + i));
+		}
+		long connectTime = System.nanoTime() - start;
+
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		long usedMemory = runtime.totalMemory() - runtime.freeMemory();
+		int platformThreads =
+		    ManagementFactory.getThreadMXBean().getThreadCount();
+
+		start = System.nanoTime();
+		clients.get(0).out.println("ping");
+		for (TestClient c : clients)
+		{
+			c.in.readObject();
+		}
+		long broadcastTime = System.nanoTime() - start;
+
+		System.out.printf("%-9s %8d %12.1f %10d %12d %14.2f%n",
+		                  (virtualThreads ? "virtual" : "platform"),
+		                  nbClients,
+		                  connectTime / 1e6,
+		                  platformThreads,
+		                  usedMemory / 1024,
+		                  broadcastTime / 1e6);
+
+		clients.get(0).out.println(Vocabulary.killCmd);
+		for (TestClient c : clients)
+		{
+			c.close();
+		}
+		serverThread.join();
+	}
+
+	/**
+	 * Programme principal
+	 * @param args [nombre de clients] [port]
+	 * @throws Exception si une erreur intervient pendant les mesures
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int nbClients = (args.length > 0 ? Integer.parseInt(args[0]) : DEFAULTCLIENTS);
+		int port = (args.length > 1 ? Integer.parseInt(args[1]) : DEFAULTPORT);
+		Logger logger = LoggerFactory.getConsoleLogger(RunConnectionBenchmark.class,
+		                                               Level.WARNING);
+
+		System.out.printf("%-9s %8s %12s %10s %12s %14s%n",
+		                  "mode",
+		                  "clients",
+		                  "connect(ms)",
+		                  "threads",
+		                  "heap(KiB)",
+		                  "broadcast(ms)");
+		measure(false, nbClients, port, logger);
+		measure(true, nbClients, port + 1, logger);
+	}
+}
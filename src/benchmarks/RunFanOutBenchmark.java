@@ -0,0 +1,237 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import chat.Vocabulary;
+import chat.server.NioChatServer;
+import chat.server.ServerSettings;
+import logger.LoggerFactory;
+
+/**
+ * Mesure du débit de diffusion du {@link NioChatServer} en fonction de son
+ * nombre de reactors. Un ensemble de clients se connecte au serveur, une
+ * partie d'entre eux envoie des messages en parallèle et l'on mesure le temps
+ * nécessaire pour que chaque client ait reçu l'ensemble des messages. Le
+ * débit est exprimé en nombre de messages délivrés par seconde (un message
+ * envoyé à N clients compte pour N messages délivrés). Le nombre moyen
+ * d'écritures par message délivré indique l'efficacité des écritures
+ * groupées du serveur (voir {@link ServerSettings#getBatchFrames()}).
+ * Usage : RunFanOutBenchmark [clients] [émetteurs] [messages par émetteur]
+ * [port]
+ *
+ * @author davidroussel
+ */
+public class RunFanOutBenchmark
+{
+	/**
+	 * Nombre de clients par défaut
+	 */
+	public static final int DEFAULTCLIENTS = 200;
+
+	/**
+	 * Nombre d'émetteurs par défaut
+	 */
+	public static final int DEFAULTSENDERS = 8;
+
+	/**
+	 * Nombre de messages par émetteur par défaut
+	 */
+	public static final int DEFAULTMESSAGES = 500;
+
+	/**
+	 * Port de base par défaut (chaque mesure utilise son propre port)
+	 */
+	public static final int DEFAULTPORT = 1594;
+
+	/**
+	 * Un client de test lisant dans son propre thread les messages du
+	 * serveur jusqu'à en avoir reçu un nombre donné.
+	 */
+	private static class TestClient implements Runnable
+	{
+		/**
+		 * La socket du client
+		 */
+		private final Socket socket;
+
+		/**
+		 * Flux de sortie texte vers le serveur
+		 */
+		private final PrintWriter out;
+
+		/**
+		 * Flux d'entrée objet depuis le serveur
+		 */
+		private final ObjectInputStream in;
+
+		/**
+		 * Nombre de messages à recevoir
+		 */
+		private final int expected;
+
+		/**
+		 * Décompte des clients ayant reçu tous leurs messages
+		 */
+		private final CountDownLatch done;
+
+		/**
+		 * Connection d'un client au serveur
+		 * @param port le port du serveur
+		 * @param name le nom du client
+		 * @param expected le nombre de messages à recevoir
+		 * @param done décompte des clients ayant reçu tous leurs messages
+		 * @throws IOException si la connection échoue
+		 */
+		public TestClient(int port, String name, int expected, CountDownLatch done)
+		    throws IOException
+		{
+			socket = new Socket("localhost", port);
+			out = new PrintWriter(socket.getOutputStream(), true);
+			out.println(name);
+			in = new ObjectInputStream(socket.getInputStream());
+			this.expected = expected;
+			this.done = done;
+		}
+
+		/**
+		 * Lecture des messages du serveur
+		 */
+		@Override
+		public void run()
+		{
+			try
+			{
+				for (int i = 0; i < expected; i++)
+				{
+					in.readObject();
+				}
+			}
+			catch (IOException | ClassNotFoundException e)
+			{
+				System.err.println("TestClient: " + e.getLocalizedMessage());
+			}
+			done.countDown();
+		}
+
+		/**
+		 * Fermeture du client
+		 */
+		public void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// rien à faire
+			}
+		}
+	}
+
+	/**
+	 * Mesure du débit de diffusion pour un nombre de reactors donné
+	 * @param nbReactors le nombre de reactors du serveur
+	 * @param nbClients le nombre de clients
+	 * @param nbSenders le nombre de clients émetteurs
+	 * @param nbMessages le nombre de messages envoyés par chaque émetteur
+	 * @param port le port du serveur
+	 * @param logger le logger du serveur
+	 * @throws Exception si une erreur intervient pendant la mesure
+	 */
+	private static void measure(int nbReactors,
+	                            int nbClients,
+	                            int nbSenders,
+	                            int nbMessages,
+	                            int port,
+	                            Logger logger)
+	    throws Exception
+	{
+		ServerSettings settings = new ServerSettings();
+		settings.setReactors(nbReactors);
+		NioChatServer server = new NioChatServer(port, true, settings, logger);
+		Thread serverThread = new Thread(server);
+		serverThread.start();
+
+		int expected = nbSenders * nbMessages;
+		CountDownLatch done = new CountDownLatch(nbClients);
+		List<TestClient> clients = new ArrayList<TestClient>(nbClients);
+		for (int i = 0; i < nbClients; i++)
+		{
+			clients.add(new TestClient(port, "client" + i, expected, done));
+		}
+		for (TestClient c : clients)
+		{
+			new Thread(c).start();
+		}
+
+		long start = System.nanoTime();
+		Thread[] senders = new Thread[nbSenders];
+		for (int i = 0; i < nbSenders; i++)
+		{
+			final PrintWriter out = clients.get(i).out;
+			senders[i] = new Thread(() -> {
+				for (int m = 0; m < nbMessages; m++)
+				{
+					out.println("message " + m);
+				}
+			});
+			senders[i].start();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		double delivered = (double) expected * nbClients;
+		System.out.printf("%8d %8d %10d %12.1f %16.0f %12.3f%n",
+		                  nbReactors,
+		                  nbClients,
+		                  expected,
+		                  elapsed / 1e6,
+		                  delivered / (elapsed / 1e9),
+		                  server.getWrites() / delivered);
+
+		clients.get(0).out.println(Vocabulary.killCmd);
+		serverThread.join();
+		for (TestClient c : clients)
+		{
+			c.close();
+		}
+	}
+
+	/**
+	 * Programme principal : mesure pour 1, 2, 4, ... reactors jusqu'au nombre
+	 * de processeurs disponibles
+	 * @param args [clients] [émetteurs] [messages par émetteur] [port]
+	 * @throws Exception si une erreur intervient pendant les mesures
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int nbClients = (args.length > 0 ? Integer.parseInt(args[0]) : DEFAULTCLIENTS);
+		int nbSenders = (args.length > 1 ? Integer.parseInt(args[1]) : DEFAULTSENDERS);
+		int nbMessages = (args.length > 2 ? Integer.parseInt(args[2]) : DEFAULTMESSAGES);
+		int port = (args.length > 3 ? Integer.parseInt(args[3]) : DEFAULTPORT);
+		Logger logger = LoggerFactory.getConsoleLogger(RunFanOutBenchmark.class,
+		                                               Level.WARNING);
+
+		System.out.printf("%8s %8s %10s %12s %16s %12s%n",
+		                  "reactors",
+		                  "clients",
+		                  "messages",
+		                  "time(ms)",
+		                  "delivered/s",
+		                  "writes/msg");
+		int processors = Runtime.getRuntime().availableProcessors();
+		for (int r = 1; r <= processors; r *= 2)
+		{
+			measure(r, nbClients, nbSenders, nbMessages, port++, logger);
+		}
+	}
+}
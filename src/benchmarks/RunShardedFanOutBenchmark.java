@@ -0,0 +1,266 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Phaser;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import chat.Vocabulary;
+import chat.server.ChatServer;
+import chat.server.ServerSettings;
+import chat.server.ShardedFanOut;
+import logger.LoggerFactory;
+
+/**
+ * Mesure de la latence de diffusion du {@link ChatServer} en fonction du
+ * nombre de destinataires et du nombre de groupes distribuant les trames
+ * diffusées (voir {@link ShardedFanOut}). Pour chaque combinaison, un
+ * serveur est lancé avec la répartition toujours active (seuil à 0, sauf
+ * pour un seul groupe qui correspond à la distribution directe), les
+ * clients s'y connectent puis l'un d'eux diffuse des messages un par un :
+ * la latence d'un message est le temps écoulé entre son envoi et sa
+ * réception par le dernier des clients. On affiche la moyenne, la médiane et
+ * le 99e centile de ces latences, après quelques messages de chauffe.
+ * Usage : RunShardedFanOutBenchmark [destinataires,...] [messages] [port]
+ *
+ * @author davidroussel
+ */
+public class RunShardedFanOutBenchmark
+{
+	/**
+	 * Nombres de destinataires par défaut
+	 */
+	public static final int[] DEFAULTRECIPIENTS = {16, 128, 1024};
+
+	/**
+	 * Nombres de groupes mesurés
+	 */
+	public static final int[] SHARDS = {1, 4, 16};
+
+	/**
+	 * Nombre de messages mesurés par défaut
+	 */
+	public static final int DEFAULTMESSAGES = 200;
+
+	/**
+	 * Nombre de messages de chauffe
+	 */
+	public static final int WARMUPMESSAGES = 20;
+
+	/**
+	 * Port de base par défaut (chaque mesure utilise son propre port)
+	 */
+	public static final int DEFAULTPORT = 1694;
+
+	/**
+	 * Sortie des résultats : la sortie standard est détournée pendant les
+	 * mesures afin que l'écho des messages reçus par le serveur ne se mêle
+	 * pas au tableau (ni n'en fausse les temps)
+	 */
+	private static final PrintStream console = System.out;
+
+	/**
+	 * Un client de test lisant dans son propre thread les messages du
+	 * serveur et signalant la réception de chacun d'eux.
+	 */
+	private static class TestClient implements Runnable
+	{
+		/**
+		 * La socket du client
+		 */
+		private final Socket socket;
+
+		/**
+		 * Flux de sortie texte vers le serveur
+		 */
+		private final PrintWriter out;
+
+		/**
+		 * Flux d'entrée objet depuis le serveur
+		 */
+		private final ObjectInputStream in;
+
+		/**
+		 * Nombre de messages à recevoir
+		 */
+		private final int expected;
+
+		/**
+		 * Barrière franchie lorsque tous les clients ont reçu un message
+		 */
+		private final Phaser received;
+
+		/**
+		 * Connection d'un client au serveur. Le constructeur ne rend la main
+		 * qu'une fois que le serveur a créé le flux objet vers ce client
+		 * (c'est à dire une fois le client enregistré).
+		 * @param port le port du serveur
+		 * @param name le nom du client
+		 * @param expected le nombre de messages à recevoir
+		 * @param received barrière franchie lorsque tous les clients ont
+		 * reçu un message
+		 * @throws IOException si la connection échoue
+		 */
+		public TestClient(int port, String name, int expected, Phaser received)
+		    throws IOException
+		{
+			socket = new Socket("localhost", port);
+			out = new PrintWriter(socket.getOutputStream(), true);
+			out.println(name);
+			in = new ObjectInputStream(socket.getInputStream());
+			this.expected = expected;
+			this.received = received;
+		}
+
+		/**
+		 * Lecture des messages du serveur
+		 */
+		@Override
+		public void run()
+		{
+			try
+			{
+				for (int i = 0; i < expected; i++)
+				{
+					in.readObject();
+					received.arrive();
+				}
+			}
+			catch (IOException | ClassNotFoundException e)
+			{
+				System.err.println("TestClient: " + e.getLocalizedMessage());
+			}
+			received.arriveAndDeregister();
+		}
+
+		/**
+		 * Fermeture du client
+		 */
+		public void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// rien à faire
+			}
+		}
+	}
+
+	/**
+	 * Mesure de la latence de diffusion pour un nombre de destinataires et
+	 * un nombre de groupes donnés
+	 * @param nbShards le nombre de groupes (1 pour la distribution directe)
+	 * @param nbClients le nombre de clients destinataires
+	 * @param nbMessages le nombre de messages mesurés
+	 * @param port le port du serveur
+	 * @param logger le logger du serveur
+	 * @throws Exception si une erreur intervient pendant la mesure
+	 */
+	private static void measure(int nbShards,
+	                            int nbClients,
+	                            int nbMessages,
+	                            int port,
+	                            Logger logger)
+	    throws Exception
+	{
+		ServerSettings settings = new ServerSettings();
+		settings.setFanOutShards(nbShards);
+		settings.setFanOutThreshold(0);
+		ChatServer server = new ChatServer(port, true, settings, logger);
+		Thread serverThread = new Thread(server);
+		serverThread.start();
+
+		int expected = WARMUPMESSAGES + nbMessages;
+		Phaser received = new Phaser(nbClients);
+		List<TestClient> clients = new ArrayList<TestClient>(nbClients);
+		for (int i = 0; i < nbClients; i++)
+		{
+			clients.add(new TestClient(port, "client" + i, expected, received));
+		}
+		for (TestClient c : clients)
+		{
+			new Thread(c).start();
+		}
+
+		PrintWriter sender = clients.get(0).out;
+		long[] latencies = new long[nbMessages];
+		for (int m = 0; m < expected; m++)
+		{
+			int phase = received.getPhase();
+			long start = System.nanoTime();
+			sender.println("message " + m);
+			received.awaitAdvance(phase);
+			if (m >= WARMUPMESSAGES)
+			{
+				latencies[m - WARMUPMESSAGES] = System.nanoTime() - start;
+			}
+		}
+
+		Arrays.sort(latencies);
+		long total = 0;
+		for (long latency : latencies)
+		{
+			total += latency;
+		}
+		console.printf("%8d %8d %12.3f %12.3f %12.3f%n",
+		                  nbShards,
+		                  nbClients,
+		                  (total / (double) nbMessages) / 1e6,
+		                  latencies[nbMessages / 2] / 1e6,
+		                  latencies[(int) (nbMessages * 0.99)] / 1e6);
+
+		sender.println(Vocabulary.killCmd);
+		for (TestClient c : clients)
+		{
+			c.close();
+		}
+		serverThread.join();
+	}
+
+	/**
+	 * Programme principal : mesure pour chaque nombre de destinataires avec
+	 * 1, 4 et 16 groupes
+	 * @param args [destinataires,...] [messages] [port]
+	 * @throws Exception si une erreur intervient pendant les mesures
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int[] recipients = DEFAULTRECIPIENTS;
+		if (args.length > 0)
+		{
+			recipients = Arrays.stream(args[0].split(","))
+			    .mapToInt(Integer::parseInt)
+			    .toArray();
+		}
+		int nbMessages = (args.length > 1 ? Integer.parseInt(args[1]) : DEFAULTMESSAGES);
+		int port = (args.length > 2 ? Integer.parseInt(args[2]) : DEFAULTPORT);
+		Logger logger = LoggerFactory.getConsoleLogger(RunShardedFanOutBenchmark.class,
+		                                               Level.WARNING);
+
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		console.printf("%8s %8s %12s %12s %12s%n",
+		                  "shards",
+		                  "clients",
+		                  "mean(ms)",
+		                  "median(ms)",
+		                  "p99(ms)");
+		for (int nbClients : recipients)
+		{
+			for (int nbShards : SHARDS)
+			{
+				measure(nbShards, nbClients, nbMessages, port++, logger);
+			}
+		}
+	}
+}
@@ -0,0 +1,8 @@
+/**
+ * Package contenant des programmes de mesure de performances des différents
+ * modes du serveur de chat. Chaque programme lance lui même le ou les
+ * serveurs à comparer ainsi que les clients de test et affiche ses mesures
+ * dans la console.
+ * @author davidroussel
+ */
+package benchmarks;
@@ -0,0 +1,257 @@
+package chat;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import models.Message;
+
+/**
+ * Trame échangée entre un client et le serveur : un {@link Message}
+ * accompagné de son {@link FrameType}. Les trames sont transmises telles
+ * quelles avec le protocole binaire (voir {@link MessageCodec}) et
+ * construites à partir des lignes de texte reçues avec le protocole texte
+ * ({@link #fromLine(String)}). Une trame de type {@link FrameType#BATCH}
+ * contient plusieurs messages (voir {@link #getMessages()}).
+ *
+ * @author davidroussel
+ */
+public final class Frame
+{
+	/**
+	 * Le type de la trame
+	 */
+	private final FrameType type;
+
+	/**
+	 * Les messages contenus dans la trame (un seul sauf pour un lot)
+	 */
+	private final List<Message> messages;
+
+	/**
+	 * Constructeur d'une trame
+	 * @param type le type de la trame
+	 * @param message le message contenu dans la trame
+	 */
+	public Frame(FrameType type, Message message)
+	{
+		this.type = type;
+		messages = Collections.singletonList(message);
+	}
+
+	/**
+	 * Constructeur d'une trame contenant un lot de messages
+	 * @param messages les messages du lot (au moins un)
+	 */
+	public Frame(List<Message> messages)
+	{
+		type = FrameType.BATCH;
+		this.messages = Collections.unmodifiableList(messages);
+	}
+
+	/**
+	 * Construction de la trame correspondant à une ligne de texte. Une ligne
+	 * commençant par le {@link Vocabulary#commandPrefix} ou formée d'une
+	 * commande historique du {@link Vocabulary} ("bye", "kill" ou
+	 * "kick <username>") est une trame de contrôle, toute autre ligne est un
+	 * message ordinaire (même si elle commence par le texte d'une commande,
+	 * comme "byebye" ou "killer").
+	 * @param line la ligne de texte
+	 * @return la trame correspondant à la ligne (sans auteur)
+	 */
+	public static Frame fromLine(String line)
+	{
+		if (line.startsWith(Vocabulary.commandPrefix))
+		{
+			return new Frame(FrameType.CONTROL, new Message(line));
+		}
+		for (String command : Vocabulary.commands)
+		{
+			int size = command.length();
+			if (line.regionMatches(true, 0, command, 0, size) &&
+			    ((line.length() == size) ||
+			     (takesArgument(command) && (line.charAt(size) == ' '))))
+			{
+				return new Frame(FrameType.CONTROL, new Message(line));
+			}
+		}
+		return new Frame(FrameType.MESSAGE, new Message(line));
+	}
+
+	/**
+	 * Construction de la trame correspondant à une ligne de texte reçue
+	 * (sans son saut de ligne), sans décoder la ligne lorsqu'il s'agit d'un
+	 * message ordinaire : les commandes sont reconnues en comparant les
+	 * premiers octets de la ligne au {@link Vocabulary} (voir
+	 * {@link #fromLine(String)}) et le contenu d'un message ordinaire est
+	 * conservé en UTF-8 (voir
+	 * {@link Message#fromUtf8(java.util.Date, byte[], String)}) si la ligne
+	 * est en UTF-8 ou en ASCII. Seules les commandes (et les lignes dans un
+	 * autre jeu de caractères) sont décodées.
+	 * @param line les octets de la ligne
+	 * @param length le nombre d'octets de la ligne
+	 * @param charset le jeu de caractères de la ligne
+	 * @return la trame correspondant à la ligne (sans auteur)
+	 */
+	public static Frame fromLine(byte[] line, int length, Charset charset)
+	{
+		if (isCommand(line, length))
+		{
+			return new Frame(FrameType.CONTROL,
+			                 new Message(new String(line, 0, length, charset)));
+		}
+		if (StandardCharsets.UTF_8.equals(charset) || isAscii(line, length))
+		{
+			return new Frame(FrameType.MESSAGE,
+			                 Message.fromUtf8(null,
+			                                  Arrays.copyOf(line, length),
+			                                  null));
+		}
+		return new Frame(FrameType.MESSAGE,
+		                 new Message(new String(line, 0, length, charset)));
+	}
+
+	/**
+	 * Indique si une ligne (en ASCII) est une commande : elle commence par le
+	 * {@link Vocabulary#commandPrefix} ou elle est formée d'une commande
+	 * historique, sans tenir compte de la casse
+	 * @param line les octets de la ligne
+	 * @param length le nombre d'octets de la ligne
+	 * @return true si la ligne est une commande
+	 */
+	private static boolean isCommand(byte[] line, int length)
+	{
+		if (startsWith(line, length, Vocabulary.commandPrefix))
+		{
+			return true;
+		}
+		for (String command : Vocabulary.commands)
+		{
+			int size = command.length();
+			if (startsWith(line, length, command) &&
+			    ((length == size) ||
+			     (takesArgument(command) && (line[size] == ' '))))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Indique si une commande historique est suivie d'un argument
+	 * @param command la commande historique
+	 * @return true pour {@link Vocabulary#kickCmd} (suivie du nom du client)
+	 */
+	private static boolean takesArgument(String command)
+	{
+		return command.equals(Vocabulary.kickCmd);
+	}
+
+	/**
+	 * Indique si une ligne commence par un mot (en ASCII), sans tenir
+	 * compte de la casse
+	 * @param line les octets de la ligne
+	 * @param length le nombre d'octets de la ligne
+	 * @param command le mot
+	 * @return true si la ligne commence par le mot
+	 */
+	private static boolean startsWith(byte[] line, int length, String command)
+	{
+		int size = command.length();
+		if (length < size)
+		{
+			return false;
+		}
+		for (int i = 0; i < size; i++)
+		{
+			int b = line[i];
+			if ((b >= 'A') && (b <= 'Z'))
+			{
+				b += 'a' - 'A';
+			}
+			if (b != command.charAt(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Indique si une ligne ne contient que des caractères ASCII (et peut donc
+	 * être considérée comme encodée en UTF-8 quel que soit son jeu de
+	 * caractères)
+	 * @param line les octets de la ligne
+	 * @param length le nombre d'octets de la ligne
+	 * @return true si tous les octets de la ligne sont inférieurs à 0x80
+	 */
+	private static boolean isAscii(byte[] line, int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			if (line[i] < 0)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Accesseur en lecture du type de la trame
+	 * @return le type de la trame
+	 */
+	public FrameType getType()
+	{
+		return type;
+	}
+
+	/**
+	 * Indique s'il s'agit d'une trame de contrôle
+	 * @return true si la trame est de type {@link FrameType#CONTROL}
+	 */
+	public boolean isControl()
+	{
+		return type == FrameType.CONTROL;
+	}
+
+	/**
+	 * Indique s'il s'agit d'un lot de messages
+	 * @return true si la trame est de type {@link FrameType#BATCH}
+	 */
+	public boolean isBatch()
+	{
+		return type == FrameType.BATCH;
+	}
+
+	/**
+	 * Accesseur en lecture du message contenu dans la trame
+	 * @return le message de la trame (le premier message d'un lot)
+	 */
+	public Message getMessage()
+	{
+		return messages.get(0);
+	}
+
+	/**
+	 * Accesseur en lecture des messages contenus dans la trame
+	 * @return les messages de la trame dans leur ordre de diffusion
+	 */
+	public List<Message> getMessages()
+	{
+		return messages;
+	}
+
+	/**
+	 * Accesseur en lecture du contenu du message de la trame
+	 * @return le contenu du message de la trame (du premier message d'un
+	 * lot)
+	 */
+	public String getContent()
+	{
+		return getMessage().getContent();
+	}
+}
@@ -0,0 +1,62 @@
+package chat;
+
+/**
+ * Les différents types de trames du protocole binaire
+ * ({@link WireProtocol#BINARY}). Le type d'une trame est codé sur un octet
+ * (voir {@link MessageCodec}).
+ *
+ * @author davidroussel
+ */
+public enum FrameType
+{
+	/**
+	 * Message ordinaire : texte d'un utilisateur ou message diffusé par le
+	 * serveur
+	 */
+	MESSAGE,
+	/**
+	 * Message de contrôle : commande d'un client (voir {@link Vocabulary}),
+	 * acceptation ou refus d'un client par le serveur
+	 */
+	CONTROL,
+	/**
+	 * Lot de messages diffusés par le serveur pendant une même fenêtre de
+	 * regroupement (voir {@link MessageCodec#encodeBatch(java.util.List)})
+	 */
+	BATCH;
+
+	/**
+	 * Code du type de trame tel qu'il est écrit dans une trame
+	 * @return le code du type de trame
+	 * <ul>
+	 * 	<li>MESSAGE = 1</li>
+	 * 	<li>CONTROL = 2</li>
+	 * 	<li>BATCH = 3</li>
+	 * </ul>
+	 */
+	public byte toByte()
+	{
+		return (byte) (ordinal() + 1);
+	}
+
+	/**
+	 * Type de trame correspondant à un code lu dans une trame
+	 * @param code le code lu
+	 * @return le type de trame correspondant ou bien null si ce code ne
+	 * correspond à aucun type de trame
+	 */
+	public static FrameType fromByte(byte code)
+	{
+		switch (code)
+		{
+			case 1:
+				return MESSAGE;
+			case 2:
+				return CONTROL;
+			case 3:
+				return BATCH;
+			default:
+				return null;
+		}
+	}
+}
@@ -0,0 +1,647 @@
+package chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import models.Message;
+
+/**
+ * Codec des trames du protocole binaire ({@link WireProtocol#BINARY}).
+ * Chaque trame est précédée de sa longueur, ce qui permet de la lire d'un
+ * seul bloc et de transmettre des messages sur plusieurs lignes :
+ * <ul>
+ * <li>longueur (int) : nombre d'octets de la trame qui suivent</li>
+ * <li>type (byte) : voir {@link FrameType#toByte()}</li>
+ * <li>date (long) : date du message en ms depuis le 1er janvier 1970</li>
+ * <li>longueur de l'auteur (int) suivie de l'auteur en UTF-8, une longueur
+ * de -1 indiquant un message sans auteur</li>
+ * <li>longueur du contenu (int) suivie du contenu en UTF-8</li>
+ * </ul>
+ * Un lot de messages ({@link FrameType#BATCH}) regroupe plusieurs messages
+ * diffusés dans une seule trame, en évitant de répéter ce que ces messages
+ * ont en commun :
+ * <ul>
+ * <li>longueur (int) et type (byte) comme ci-dessus</li>
+ * <li>date de référence (long) : date du premier message du lot</li>
+ * <li>nombre de messages (varint)</li>
+ * <li>pour chaque message :
+ * <ul>
+ * <li>écart (varint zigzag) entre sa date et celle du message précédent (ou
+ * la date de référence pour le premier message)</li>
+ * <li>auteur (varint) : 0 pour un message sans auteur, i (1 &le; i &le; n)
+ * pour le i<sup>ème</sup> auteur déjà rencontré dans le lot, n + 1 pour un
+ * nouvel auteur dont la longueur (varint) et les octets en UTF-8 suivent</li>
+ * <li>longueur du contenu (varint) suivie du contenu en UTF-8</li>
+ * </ul>
+ * </li>
+ * </ul>
+ * Les varints sont des entiers écrits par groupes de 7 bits, des bits de
+ * poids faible aux bits de poids fort, le bit de poids fort de chaque octet
+ * indiquant qu'un autre octet suit.
+ * Tous les autres entiers sont écrits en big endian (comme avec un
+ * {@link java.io.DataOutputStream}). Contrairement aux trames sérialisées
+ * chaque trame (y compris un lot) est autonome : elle peut être lue
+ * indépendamment des trames précédentes.
+ * Le contenu des messages décodés est conservé tel que reçu, en UTF-8 (voir
+ * {@link Message#fromUtf8(java.util.Date, byte[], String)}) : il n'est
+ * décodé que s'il est demandé et un message relayé est réencodé en
+ * recopiant simplement ces octets.
+ *
+ * @author davidroussel
+ */
+public final class MessageCodec
+{
+	/**
+	 * Taille (en octets) de la longueur placée devant chaque trame
+	 */
+	public final static int LENGTHSIZE = Integer.BYTES;
+
+	/**
+	 * Taille (en octets) de la partie fixe d'une trame (type, date et
+	 * longueurs de l'auteur et du contenu)
+	 */
+	public final static int FIXEDSIZE = 1 + Long.BYTES + (2 * Integer.BYTES);
+
+	/**
+	 * Taille minimum (en octets) d'une trame : celle d'un lot d'un seul
+	 * message (type, date de référence et nombre de messages)
+	 */
+	public final static int MINFRAMESIZE = 1 + Long.BYTES + 1;
+
+	/**
+	 * Taille maximum (en octets) d'une trame. Une longueur plus grande
+	 * indique un flux corrompu (ou un client qui n'utilise pas ce protocole)
+	 */
+	public final static int MAXFRAMESIZE = 1 << 20;
+
+	/**
+	 * Taille maximum (en octets) de l'entête d'un lot : type, date de
+	 * référence et nombre de messages (voir {@link #encodeBatch(List)}).
+	 * Dans un lot, un message dont la trame est valide (voir
+	 * {@link #fits(Message)}) n'occupe jamais plus de
+	 * {@link #length(Message)} octets : un lot occupe donc au plus cet entête
+	 * et la somme des tailles des trames de ses messages.
+	 */
+	public final static int BATCHHEADERSIZE = 1 + Long.BYTES + 5;
+
+	/**
+	 * Pas d'instances
+	 */
+	private MessageCodec()
+	{
+	}
+
+	/**
+	 * Encodage d'une trame
+	 * @param frame la trame à encoder
+	 * @return les octets de la trame (longueur comprise)
+	 */
+	public static byte[] encode(Frame frame)
+	{
+		if (frame.isBatch())
+		{
+			return encodeBatch(frame.getMessages());
+		}
+		return encode(frame.getType(), frame.getMessage());
+	}
+
+	/**
+	 * Encodage d'un message dans une trame
+	 * @param type le type de la trame
+	 * @param message le message à encoder
+	 * @return les octets de la trame (longueur comprise)
+	 */
+	public static byte[] encode(FrameType type, Message message)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length(message));
+		encode(type, message, buffer);
+		return buffer.array();
+	}
+
+	/**
+	 * Taille de la trame d'un message
+	 * @param message le message à encoder
+	 * @return le nombre d'octets de la trame du message (longueur comprise)
+	 */
+	public static int length(Message message)
+	{
+		return LENGTHSIZE + FIXEDSIZE
+		    + (message.hasAuthor() ? utf8Length(message.getAuthor()) : 0)
+		    + contentLength(message);
+	}
+
+	/**
+	 * Indique si la trame d'un message respecte la taille maximum d'une
+	 * trame ({@link #MAXFRAMESIZE}) : une trame plus grande serait rejetée
+	 * par son destinataire
+	 * @param message le message à encoder
+	 * @return true si le message peut être encodé dans une trame valide
+	 */
+	public static boolean fits(Message message)
+	{
+		return (length(message) - LENGTHSIZE) <= MAXFRAMESIZE;
+	}
+
+	/**
+	 * Nombre maximum d'octets (en UTF-8) du contenu d'un message pour que
+	 * sa trame respecte la taille maximum d'une trame
+	 * ({@link #MAXFRAMESIZE})
+	 * @param author l'auteur du message ou bien null s'il n'en a pas
+	 * @return le nombre maximum d'octets du contenu
+	 */
+	public static int maxContentLength(String author)
+	{
+		return MAXFRAMESIZE - FIXEDSIZE
+		    - (author != null ? utf8Length(author) : 0);
+	}
+
+	/**
+	 * Encodage d'un message dans une trame écrite directement dans un tampon,
+	 * sans tableau d'octets intermédiaire (voir
+	 * {@link chat.server.BufferPool})
+	 * @param type le type de la trame
+	 * @param message le message à encoder
+	 * @param buffer le tampon dans lequel écrire la trame, qui doit pouvoir
+	 * contenir au moins {@link #length(Message)} octets
+	 */
+	public static void encode(FrameType type, Message message, ByteBuffer buffer)
+	{
+		String author = (message.hasAuthor() ? message.getAuthor() : null);
+		int authorLength = (author != null ? utf8Length(author) : 0);
+		int contentLength = contentLength(message);
+
+		buffer.putInt(FIXEDSIZE + authorLength + contentLength);
+		buffer.put(type.toByte());
+		buffer.putLong(message.getDate().getTime());
+		if (author != null)
+		{
+			buffer.putInt(authorLength);
+			putUtf8(buffer, author);
+		}
+		else
+		{
+			buffer.putInt(-1);
+		}
+		buffer.putInt(contentLength);
+		byte[] encodedContent = message.getEncodedContent();
+		if (encodedContent != null)
+		{
+			// contenu relayé tel que reçu
+			buffer.put(encodedContent);
+		}
+		else
+		{
+			putUtf8(buffer, message.getContent());
+		}
+	}
+
+	/**
+	 * Nombre d'octets du contenu d'un message encodé en UTF-8
+	 * @param message le message
+	 * @return le nombre d'octets du contenu encodé
+	 */
+	public static int contentLength(Message message)
+	{
+		byte[] encodedContent = message.getEncodedContent();
+		return (encodedContent != null ? encodedContent.length
+		    : utf8Length(message.getContent()));
+	}
+
+	/**
+	 * Nombre d'octets d'une chaîne encodée en UTF-8 (un caractère de
+	 * substitution mal formé est remplacé par '?', comme avec
+	 * {@link String#getBytes(java.nio.charset.Charset)})
+	 * @param text la chaîne
+	 * @return le nombre d'octets de la chaîne encodée
+	 */
+	private static int utf8Length(String text)
+	{
+		int length = 0;
+		int size = text.length();
+		for (int i = 0; i < size; i++)
+		{
+			char c = text.charAt(i);
+			if (c < 0x80)
+			{
+				length++;
+			}
+			else if (c < 0x800)
+			{
+				length += 2;
+			}
+			else if (Character.isHighSurrogate(c) && ((i + 1) < size)
+			    && Character.isLowSurrogate(text.charAt(i + 1)))
+			{
+				length += 4;
+				i++;
+			}
+			else if (Character.isSurrogate(c))
+			{
+				length++;
+			}
+			else
+			{
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Ecriture d'une chaîne encodée en UTF-8 dans un tampon (voir
+	 * {@link #utf8Length(String)})
+	 * @param buffer le tampon dans lequel écrire
+	 * @param text la chaîne à écrire
+	 */
+	private static void putUtf8(ByteBuffer buffer, String text)
+	{
+		int size = text.length();
+		for (int i = 0; i < size; i++)
+		{
+			char c = text.charAt(i);
+			if (c < 0x80)
+			{
+				buffer.put((byte) c);
+			}
+			else if (c < 0x800)
+			{
+				buffer.put((byte) (0xC0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+			else if (Character.isHighSurrogate(c) && ((i + 1) < size)
+			    && Character.isLowSurrogate(text.charAt(i + 1)))
+			{
+				int code = Character.toCodePoint(c, text.charAt(++i));
+				buffer.put((byte) (0xF0 | (code >> 18)));
+				buffer.put((byte) (0x80 | ((code >> 12) & 0x3F)));
+				buffer.put((byte) (0x80 | ((code >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (code & 0x3F)));
+			}
+			else if (Character.isSurrogate(c))
+			{
+				buffer.put((byte) '?');
+			}
+			else
+			{
+				buffer.put((byte) (0xE0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buffer.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * Encodage d'un lot de messages dans une seule trame
+	 * ({@link FrameType#BATCH})
+	 * @param messages les messages du lot (au moins un)
+	 * @return les octets de la trame (longueur comprise)
+	 */
+	public static byte[] encodeBatch(List<Message> messages)
+	{
+		ByteArrayOutputStream out =
+		    new ByteArrayOutputStream(LENGTHSIZE + (64 * messages.size()));
+		// longueur de la trame, complétée une fois la trame encodée
+		for (int i = 0; i < LENGTHSIZE; i++)
+		{
+			out.write(0);
+		}
+		out.write(FrameType.BATCH.toByte());
+		long previous = messages.get(0).getDate().getTime();
+		for (int shift = Long.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE)
+		{
+			out.write((int) (previous >>> shift));
+		}
+		putVarint(out, messages.size());
+
+		HashMap<String, Integer> authors = new HashMap<String, Integer>();
+		for (Message message : messages)
+		{
+			long time = message.getDate().getTime();
+			long delta = time - previous;
+			putVarint(out, (delta << 1) ^ (delta >> (Long.SIZE - 1)));
+			previous = time;
+
+			if (!message.hasAuthor())
+			{
+				putVarint(out, 0);
+			}
+			else
+			{
+				String author = message.getAuthor();
+				Integer index = authors.get(author);
+				if (index != null)
+				{
+					putVarint(out, index.intValue() + 1);
+				}
+				else
+				{
+					putVarint(out, authors.size() + 1);
+					authors.put(author, Integer.valueOf(authors.size()));
+					putBytes(out, author.getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			byte[] encodedContent = message.getEncodedContent();
+			putBytes(out, (encodedContent != null ? encodedContent
+			    : message.getContent().getBytes(StandardCharsets.UTF_8)));
+		}
+
+		byte[] frame = out.toByteArray();
+		ByteBuffer.wrap(frame).putInt(frame.length - LENGTHSIZE);
+		return frame;
+	}
+
+	/**
+	 * Ecriture d'un varint
+	 * @param out le flux sur lequel écrire
+	 * @param value la valeur à écrire (considérée comme non signée)
+	 */
+	private static void putVarint(ByteArrayOutputStream out, long value)
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Ecriture d'octets précédés de leur longueur (varint)
+	 * @param out le flux sur lequel écrire
+	 * @param bytes les octets à écrire
+	 */
+	private static void putBytes(ByteArrayOutputStream out, byte[] bytes)
+	{
+		putVarint(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Lecture bloquante de la prochaine trame d'un flux
+	 * @param in le flux à lire
+	 * @return la trame lue ou bien null si le flux s'est terminé avant le
+	 * début d'une trame
+	 * @throws ProtocolException si la trame est invalide
+	 * @throws IOException si la lecture échoue ou si le flux se termine au
+	 * milieu d'une trame
+	 */
+	public static Frame read(DataInputStream in) throws IOException
+	{
+		int first = in.read();
+		if (first < 0)
+		{
+			return null;
+		}
+		int length = (first << 24) | (in.readUnsignedByte() << 16)
+		    | (in.readUnsignedShort());
+		checkLength(length);
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return decodeBody(ByteBuffer.wrap(body));
+	}
+
+	/**
+	 * Décodage non bloquant de la prochaine trame d'un tampon. Si le tampon
+	 * ne contient pas de trame complète sa position est inchangée.
+	 * @param buffer le tampon (en mode lecture) contenant les octets reçus
+	 * @return la trame décodée ou bien null si le tampon ne contient pas
+	 * encore de trame complète
+	 * @throws ProtocolException si la trame est invalide
+	 */
+	public static Frame decode(ByteBuffer buffer) throws ProtocolException
+	{
+		if (buffer.remaining() < LENGTHSIZE)
+		{
+			return null;
+		}
+		int start = buffer.position();
+		int length = buffer.getInt(start);
+		checkLength(length);
+		if (buffer.remaining() < (LENGTHSIZE + length))
+		{
+			return null;
+		}
+		ByteBuffer body = buffer.duplicate();
+		body.position(start + LENGTHSIZE);
+		body.limit(start + LENGTHSIZE + length);
+		buffer.position(start + LENGTHSIZE + length);
+		return decodeBody(body);
+	}
+
+	/**
+	 * Vérification de la longueur d'une trame
+	 * @param length la longueur lue
+	 * @throws ProtocolException si la longueur n'est pas celle d'une trame
+	 * valide
+	 */
+	private static void checkLength(int length) throws ProtocolException
+	{
+		if ((length < MINFRAMESIZE) || (length > MAXFRAMESIZE))
+		{
+			throw new ProtocolException("MessageCodec: invalid frame length "
+			    + length);
+		}
+	}
+
+	/**
+	 * Décodage du corps d'une trame (ce qui suit sa longueur)
+	 * @param body le corps de la trame
+	 * @return la trame décodée
+	 * @throws ProtocolException si le corps de la trame est invalide
+	 */
+	private static Frame decodeBody(ByteBuffer body) throws ProtocolException
+	{
+		try
+		{
+			FrameType type = FrameType.fromByte(body.get());
+			if (type == null)
+			{
+				throw new ProtocolException("MessageCodec: invalid frame type");
+			}
+			Frame frame;
+			if (type == FrameType.BATCH)
+			{
+				frame = decodeBatch(body);
+			}
+			else
+			{
+				Date date = new Date(body.getLong());
+				String author = getString(body, true);
+				byte[] content = getBytes(body);
+				frame = new Frame(type, Message.fromUtf8(date, content, author));
+			}
+			if (body.hasRemaining())
+			{
+				throw new ProtocolException("MessageCodec: "
+				    + body.remaining() + " trailing bytes in frame");
+			}
+			return frame;
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new ProtocolException("MessageCodec: truncated frame");
+		}
+	}
+
+	/**
+	 * Décodage des messages d'un lot (ce qui suit le type de la trame)
+	 * @param body le corps de la trame
+	 * @return la trame contenant les messages du lot
+	 * @throws ProtocolException si le lot est invalide
+	 */
+	private static Frame decodeBatch(ByteBuffer body) throws ProtocolException
+	{
+		long time = body.getLong();
+		long count = getVarint(body);
+		// chaque message occupe au moins 3 octets
+		if ((count < 1) || (count > body.remaining()))
+		{
+			throw new ProtocolException("MessageCodec: invalid batch size "
+			    + count);
+		}
+		ArrayList<String> authors = new ArrayList<String>();
+		ArrayList<Message> messages = new ArrayList<Message>((int) count);
+		for (int i = 0; i < count; i++)
+		{
+			long delta = getVarint(body);
+			time += (delta >>> 1) ^ -(delta & 1);
+
+			long index = getVarint(body);
+			String author;
+			if (index == 0)
+			{
+				author = null;
+			}
+			else if (index <= authors.size())
+			{
+				author = authors.get((int) index - 1);
+			}
+			else if (index == (authors.size() + 1))
+			{
+				author = getVarString(body);
+				authors.add(author);
+			}
+			else
+			{
+				throw new ProtocolException("MessageCodec: invalid author "
+				    + index + " in batch");
+			}
+			messages.add(new Message(new Date(time), getVarString(body), author));
+		}
+		return new Frame(messages);
+	}
+
+	/**
+	 * Lecture d'un varint
+	 * @param body le corps de la trame
+	 * @return la valeur lue (non signée)
+	 * @throws ProtocolException si le varint dépasse 64 bits
+	 */
+	private static long getVarint(ByteBuffer body) throws ProtocolException
+	{
+		long value = 0;
+		for (int shift = 0; shift < Long.SIZE; shift += 7)
+		{
+			byte b = body.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new ProtocolException("MessageCodec: invalid varint");
+	}
+
+	/**
+	 * Lecture d'une chaîne précédée de sa longueur (varint)
+	 * @param body le corps de la trame
+	 * @return la chaîne lue
+	 * @throws ProtocolException si la longueur est invalide
+	 */
+	private static String getVarString(ByteBuffer body)
+	    throws ProtocolException
+	{
+		long length = getVarint(body);
+		if (length > body.remaining())
+		{
+			throw new ProtocolException("MessageCodec: invalid string length "
+			    + length);
+		}
+		return getString(body, (int) length);
+	}
+
+	/**
+	 * Lecture d'une chaîne précédée de sa longueur
+	 * @param body le corps de la trame
+	 * @param optional indique si la chaîne peut être absente (longueur -1)
+	 * @return la chaîne lue ou bien null si elle est absente
+	 * @throws ProtocolException si la longueur est invalide
+	 */
+	private static String getString(ByteBuffer body, boolean optional)
+	    throws ProtocolException
+	{
+		int length = body.getInt();
+		if ((length == -1) && optional)
+		{
+			return null;
+		}
+		if ((length < 0) || (length > body.remaining()))
+		{
+			throw new ProtocolException("MessageCodec: invalid string length "
+			    + length);
+		}
+		return getString(body, length);
+	}
+
+	/**
+	 * Lecture des octets d'une chaîne en UTF-8 précédée de sa longueur, sans
+	 * la décoder
+	 * @param body le corps de la trame
+	 * @return les octets de la chaîne
+	 * @throws ProtocolException si la longueur est invalide
+	 */
+	private static byte[] getBytes(ByteBuffer body) throws ProtocolException
+	{
+		int length = body.getInt();
+		if ((length < 0) || (length > body.remaining()))
+		{
+			throw new ProtocolException("MessageCodec: invalid string length "
+			    + length);
+		}
+		byte[] bytes = new byte[length];
+		body.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Lecture d'une chaîne en UTF-8 dont la longueur est connue
+	 * @param body le corps de la trame
+	 * @param length le nombre d'octets de la chaîne (au plus le nombre
+	 * d'octets restants)
+	 * @return la chaîne lue
+	 */
+	private static String getString(ByteBuffer body, int length)
+	{
+		if (!body.hasArray())
+		{
+			byte[] bytes = new byte[length];
+			body.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+		String value = new String(body.array(),
+		                          body.arrayOffset() + body.position(),
+		                          length,
+		                          StandardCharsets.UTF_8);
+		body.position(body.position() + length);
+		return value;
+	}
+}
@@ -0,0 +1,211 @@
+package chat;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Profils de réglage des sockets utilisés par les clients et les serveurs de
+ * chat. Un profil regroupe les options appliquées à chaque socket
+ * (TCP_NODELAY, SO_KEEPALIVE, tailles des tampons d'émission et de
+ * réception du noyau) ainsi que la taille de la file des connections en
+ * attente d'acceptation (backlog) d'une socket serveur.
+ * <ul>
+ * <li>{@link #DEFAULT} conserve les réglages du système (et le backlog de 50
+ * de {@link ServerSocket})</li>
+ * <li>{@link #LATENCY} privilégie la latence des échanges interactifs :
+ * l'algorithme de Nagle est désactivé et les tampons restent petits afin
+ * que les messages ne s'accumulent pas dans le noyau</li>
+ * <li>{@link #THROUGHPUT} privilégie le débit des diffusions vers de nombreux
+ * clients : l'algorithme de Nagle regroupe les petites écritures et les
+ * tampons sont grands</li>
+ * </ul>
+ * Les deux derniers profils utilisent un backlog suffisant pour qu'un afflux
+ * de connections (login storm) ne soit pas rejeté par le noyau avant que le
+ * serveur n'ait eu le temps de les accepter.
+ *
+ * @author davidroussel
+ */
+public enum SocketProfile
+{
+	/**
+	 * Réglages du système
+	 */
+	DEFAULT(false, 0, 0, false, 50),
+	/**
+	 * Réglages privilégiant la latence
+	 */
+	LATENCY(true, 64 * 1024, 64 * 1024, true, 1024),
+	/**
+	 * Réglages privilégiant le débit
+	 */
+	THROUGHPUT(false, 1024 * 1024, 1024 * 1024, true, 1024);
+
+	/**
+	 * Désactivation de l'algorithme de Nagle (TCP_NODELAY)
+	 */
+	private final boolean tcpNoDelay;
+
+	/**
+	 * Taille (en octets) du tampon d'émission du noyau (0 pour la taille
+	 * choisie par le système)
+	 */
+	private final int sendBufferSize;
+
+	/**
+	 * Taille (en octets) du tampon de réception du noyau (0 pour la taille
+	 * choisie par le système)
+	 */
+	private final int receiveBufferSize;
+
+	/**
+	 * Détection des connections mortes (SO_KEEPALIVE)
+	 */
+	private final boolean keepAlive;
+
+	/**
+	 * Nombre maximum de connections en attente d'acceptation par une socket
+	 * serveur
+	 */
+	private final int backlog;
+
+	/**
+	 * Constructeur d'un profil
+	 * @param tcpNoDelay désactivation de l'algorithme de Nagle
+	 * @param sendBufferSize taille du tampon d'émission (0 : système)
+	 * @param receiveBufferSize taille du tampon de réception (0 : système)
+	 * @param keepAlive détection des connections mortes
+	 * @param backlog nombre maximum de connections en attente d'acceptation
+	 */
+	private SocketProfile(boolean tcpNoDelay,
+	                      int sendBufferSize,
+	                      int receiveBufferSize,
+	                      boolean keepAlive,
+	                      int backlog)
+	{
+		this.tcpNoDelay = tcpNoDelay;
+		this.sendBufferSize = sendBufferSize;
+		this.receiveBufferSize = receiveBufferSize;
+		this.keepAlive = keepAlive;
+		this.backlog = backlog;
+	}
+
+	/**
+	 * Accesseur en lecture de TCP_NODELAY
+	 * @return true si l'algorithme de Nagle est désactivé
+	 */
+	public boolean isTcpNoDelay()
+	{
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Accesseur en lecture de la taille du tampon d'émission
+	 * @return la taille (en octets) du tampon d'émission ou 0 si elle est
+	 * choisie par le système
+	 */
+	public int getSendBufferSize()
+	{
+		return sendBufferSize;
+	}
+
+	/**
+	 * Accesseur en lecture de la taille du tampon de réception
+	 * @return la taille (en octets) du tampon de réception ou 0 si elle est
+	 * choisie par le système
+	 */
+	public int getReceiveBufferSize()
+	{
+		return receiveBufferSize;
+	}
+
+	/**
+	 * Accesseur en lecture de SO_KEEPALIVE
+	 * @return true si les connections mortes sont détectées
+	 */
+	public boolean isKeepAlive()
+	{
+		return keepAlive;
+	}
+
+	/**
+	 * Accesseur en lecture du backlog
+	 * @return le nombre maximum de connections en attente d'acceptation par
+	 * une socket serveur
+	 */
+	public int getBacklog()
+	{
+		return backlog;
+	}
+
+	/**
+	 * Application du profil à une socket. La taille du tampon de réception
+	 * détermine le facteur d'échelle de la fenêtre TCP, qui est négocié à
+	 * l'établissement de la connection : pour une socket cliente le profil
+	 * doit donc être appliqué avant {@link Socket#connect(java.net.SocketAddress)}.
+	 * @param socket la socket à régler
+	 * @throws SocketException si l'une des options ne peut pas être appliquée
+	 */
+	public void configure(Socket socket) throws SocketException
+	{
+		if (this == DEFAULT)
+		{
+			return;
+		}
+		socket.setTcpNoDelay(tcpNoDelay);
+		socket.setKeepAlive(keepAlive);
+		if (sendBufferSize > 0)
+		{
+			socket.setSendBufferSize(sendBufferSize);
+		}
+		if (receiveBufferSize > 0)
+		{
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+	}
+
+	/**
+	 * Application du profil à une socket serveur, avant son
+	 * {@link ServerSocket#bind(java.net.SocketAddress, int)} : la taille du
+	 * tampon de réception est alors héritée par les sockets acceptées (voir
+	 * {@link #configure(Socket)}).
+	 * @param serverSocket la socket serveur à régler
+	 * @throws SocketException si l'une des options ne peut pas être appliquée
+	 */
+	public void configure(ServerSocket serverSocket) throws SocketException
+	{
+		if ((this != DEFAULT) && (receiveBufferSize > 0))
+		{
+			serverSocket.setReceiveBufferSize(receiveBufferSize);
+		}
+	}
+
+	/**
+	 * Profil correspondant à un nom de la forme "default", "latency" ou
+	 * "throughput" (tel qu'utilisé sur la ligne de commande)
+	 * @param name le nom du profil
+	 * @return le profil correspondant ou bien null si ce nom ne correspond à
+	 * aucun profil
+	 */
+	public static SocketProfile fromString(String name)
+	{
+		for (SocketProfile profile : values())
+		{
+			if (profile.toString().equals(name))
+			{
+				return profile;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Nom du profil tel qu'utilisé sur la ligne de commande
+	 * @return le nom du profil en minuscules
+	 */
+	@Override
+	public String toString()
+	{
+		return name().toLowerCase();
+	}
+}
@@ -21,14 +21,59 @@ public interface Vocabulary
 	 */
 	public final static String kickCmd="kick";
 
+	/**
+	 * Mot clé utilisé par un client pour obtenir les statistiques du serveur
+	 */
+	public final static String statsCmd="stats";
+
+	/**
+	 * Mot clé utilisé par un client pour obtenir la liste des clients
+	 * connectés
+	 */
+	public final static String whoCmd="who";
+
+	/**
+	 * Mot clé utilisé par un client pour obtenir les derniers messages
+	 * diffusés : history [nombre de messages]
+	 */
+	public final static String historyCmd="history";
+
+	/**
+	 * Mot clé utilisé par un client pour accorder au serveur le droit de lui
+	 * envoyer davantage de messages (contrôle de flux) : credit [nombre de
+	 * messages]
+	 */
+	public final static String creditCmd="credit";
+
+	/**
+	 * Préfixe introduisant une commande du serveur : /who, /kick <username>,
+	 * ... Une ligne ne commençant pas par ce préfixe est un message ordinaire
+	 * (à l'exception des commandes historiques, voir {@link #commands}).
+	 */
+	public final static String commandPrefix = "/";
+
+	/**
+	 * Séparateur entre le nom d'un client et le protocole qu'il demande lors
+	 * de sa présentation (voir {@link WireProtocol})
+	 */
+	public final static String protocolSeparator = "\t";
+
+	/**
+	 * Nom du protocole binaire demandé par un client lors de sa présentation
+	 * et renvoyé par le serveur pour l'accepter (voir {@link WireProtocol})
+	 */
+	public final static String binaryProtocol = "binary/1";
+
 	/**
 	 * Sauts de ligne du système d'exploitation (utilisé dans le texte)
 	 */
 	public final static String newLine = System.getProperty("line.separator");
 
 	/**
-	 * Un tableau contenant l'ensemble des commandes du serveur afin de pouvoir
-	 * le parcourir
+	 * Un tableau contenant les commandes historiques du serveur, encore
+	 * reconnues sans {@link #commandPrefix} pour les anciens clients
+	 * lorsqu'elles forment toute la ligne ("bye", "kill") ou son premier mot
+	 * suivi du nom d'un client ("kick <username>")
 	 */
 	public final static String[] commands = {byeCmd, kickCmd, killCmd};
 
@@ -0,0 +1,78 @@
+package chat;
+
+/**
+ * Les protocoles utilisables entre un client et le serveur. Le protocole est
+ * négocié lors de la présentation du client : le client qui souhaite
+ * utiliser le protocole binaire fait suivre son nom de
+ * {@link Vocabulary#protocolSeparator} et {@link Vocabulary#binaryProtocol}
+ * (voir {@link #nameLine(String)}). Le serveur répond alors par une trame de
+ * contrôle contenant {@link Vocabulary#binaryProtocol} au lieu de l'entête
+ * d'un flux objet. Un client qui envoie seulement son nom (ou un serveur qui
+ * ignore cette demande) utilise le protocole objet.
+ *
+ * @author davidroussel
+ */
+public enum WireProtocol
+{
+	/**
+	 * Protocole historique : le client envoie des lignes de texte et reçoit
+	 * des {@link models.Message} sérialisés qu'il lit avec un
+	 * {@link java.io.ObjectInputStream}
+	 */
+	OBJECT,
+	/**
+	 * Protocole binaire : le client et le serveur échangent des trames
+	 * précédées de leur longueur dans les deux sens (voir
+	 * {@link MessageCodec})
+	 */
+	BINARY;
+
+	/**
+	 * Ligne de présentation envoyée par un client utilisant ce protocole
+	 * @param name le nom du client
+	 * @return la ligne à envoyer au serveur (sans saut de ligne)
+	 */
+	public String nameLine(String name)
+	{
+		switch (this)
+		{
+			case BINARY:
+				return name + Vocabulary.protocolSeparator
+				    + Vocabulary.binaryProtocol;
+			case OBJECT:
+			default:
+				return name;
+		}
+	}
+
+	/**
+	 * Protocole demandé par un client dans sa ligne de présentation
+	 * @param nameLine la ligne de présentation reçue
+	 * @return le protocole demandé par le client
+	 */
+	public static WireProtocol requested(String nameLine)
+	{
+		if (nameLine.endsWith(Vocabulary.protocolSeparator
+		    + Vocabulary.binaryProtocol))
+		{
+			return BINARY;
+		}
+		return OBJECT;
+	}
+
+	/**
+	 * Nom du client contenu dans sa ligne de présentation
+	 * @param nameLine la ligne de présentation reçue
+	 * @return le nom du client (sans la demande de protocole)
+	 */
+	public static String userName(String nameLine)
+	{
+		if (requested(nameLine) == BINARY)
+		{
+			return nameLine.substring(0, nameLine.length()
+			    - (Vocabulary.protocolSeparator.length()
+			    + Vocabulary.binaryProtocol.length()));
+		}
+		return nameLine;
+	}
+}
@@ -1,15 +1,20 @@
 package chat.client;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectStreamConstants;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.logging.Logger;
 
 import chat.Failure;
+import chat.SocketProfile;
 import chat.UserOutputType;
+import chat.WireProtocol;
 import logger.LoggerFactory;
 
 /**
@@ -48,6 +53,11 @@ public class ChatClient implements Runnable
 	 */
 	private PrintWriter serverOutPW;
 
+	/**
+	 * Protocole négocié avec le serveur
+	 */
+	private WireProtocol protocol;
+
 	/**
 	 * Flux d'entrée depuis l'utilisateur
 	 */
@@ -104,6 +114,12 @@ public class ChatClient implements Runnable
 	 * @param out le flux de sortie vers l'utilisateur
 	 * @param outType le type de données attendues dans le flux de sortie vers
 	 * le client (texte ou objets)
+	 * @param requested le protocole demandé au serveur. Si le serveur ne
+	 * connaît pas le protocole binaire, le protocole objet est utilisé.
+	 * @param profile le profil de réglage de la socket vers le serveur
+	 * @param creditWindow nombre de messages que le serveur peut envoyer
+	 * avant que le client ne renouvelle son crédit (0 pour ne pas utiliser
+	 * le contrôle de flux, voir {@link chat.Vocabulary#creditCmd})
 	 * @param l'état d'exécution commun avec un autre runnable. ou bien null
 	 *            s'il n'y a pas d'autre runnable à synchroniser avec ceux
 	 *            lancés dans le ChatClient
@@ -115,10 +131,14 @@ public class ChatClient implements Runnable
 	                  InputStream in,
 	                  OutputStream out,
 	                  UserOutputType outType,
+	                  WireProtocol requested,
+	                  SocketProfile profile,
+	                  int creditWindow,
 	                  Boolean commonRun,
 	                  Logger parentLogger)
 	{
 		userName = name;
+		protocol = WireProtocol.OBJECT;
 		ready = false;
 
 		// Création du logger
@@ -132,8 +152,15 @@ public class ChatClient implements Runnable
 		clientSocket = null;
 		try
 		{
-			clientSocket = new Socket(host, port);
-			logger.info("ChatClient: socket created");
+			/*
+			 * Le profil est appliqué avant la connection : la taille du
+			 * tampon de réception est négociée à l'établissement de celle-ci
+			 */
+			clientSocket = new Socket();
+			profile.configure(clientSocket);
+			clientSocket.connect(new InetSocketAddress(host, port));
+			logger.info("ChatClient: socket created with " + profile
+			    + " profile");
 		}
 		catch (UnknownHostException e)
 		{
@@ -206,7 +233,7 @@ public class ChatClient implements Runnable
 			}
 			logger.info("ChatClient: sending name to server ... ");
 
-			serverOutPW.println(userName);
+			serverOutPW.println(requested.nameLine(userName));
 			if (serverOutPW.checkError())
 			{
 				logger.warning("ChatClient: serverOutPw has errors");
@@ -223,8 +250,12 @@ public class ChatClient implements Runnable
 
 		try
 		{
-			serverIn = clientSocket.getInputStream();
-
+			serverIn = new BufferedInputStream(clientSocket.getInputStream());
+			if (requested == WireProtocol.BINARY)
+			{
+				protocol = negotiate(serverIn);
+				logger.info("ChatClient: using " + protocol + " protocol");
+			}
 		}
 		catch (IOException e)
 		{
@@ -250,6 +281,7 @@ public class ChatClient implements Runnable
 		// Création du user handler
 		userHandler = new UserHandler(userIn,
 		                              serverOut,
+		                              protocol,
 		                              this.commonRun,
 		                              logger);
 
@@ -258,12 +290,163 @@ public class ChatClient implements Runnable
 		                                  serverIn,
 		                                  userOut,
 		                                  outType,
+		                                  protocol,
+		                                  serverOut,
+		                                  creditWindow,
 		                                  this.commonRun,
 		                                  logger);
 
 		ready = true;
 	}
 
+	/**
+	 * Constructeur d'un client de chat sans contrôle de flux
+	 *
+	 * @param host l'adresse du serveur
+	 * @param port le port à utiliser pour communiquer avec le serveur
+	 * @param name le nom d'utilisateur utilisé
+	 * @param in le flux d'entrée depuis l'utilisateur
+	 * @param out le flux de sortie vers l'utilisateur
+	 * @param outType le type de données attendues dans le flux de sortie vers
+	 * le client (texte ou objets)
+	 * @param requested le protocole demandé au serveur
+	 * @param profile le profil de réglage de la socket vers le serveur
+	 * @param l'état d'exécution commun avec un autre runnable. ou bien null
+	 *            s'il n'y a pas d'autre runnable à synchroniser avec ceux
+	 *            lancés dans le ChatClient
+	 * @param verbose niveau de debug pour les messages
+	 */
+	public ChatClient(String host,
+	                  int port,
+	                  String name,
+	                  InputStream in,
+	                  OutputStream out,
+	                  UserOutputType outType,
+	                  WireProtocol requested,
+	                  SocketProfile profile,
+	                  Boolean commonRun,
+	                  Logger parentLogger)
+	{
+		this(host,
+		     port,
+		     name,
+		     in,
+		     out,
+		     outType,
+		     requested,
+		     profile,
+		     0,
+		     commonRun,
+		     parentLogger);
+	}
+
+	/**
+	 * Constructeur d'un client de chat utilisant les réglages de socket du
+	 * système
+	 *
+	 * @param host l'adresse du serveur
+	 * @param port le port à utiliser pour communiquer avec le serveur
+	 * @param name le nom d'utilisateur utilisé
+	 * @param in le flux d'entrée depuis l'utilisateur
+	 * @param out le flux de sortie vers l'utilisateur
+	 * @param outType le type de données attendues dans le flux de sortie vers
+	 * le client (texte ou objets)
+	 * @param requested le protocole demandé au serveur
+	 * @param l'état d'exécution commun avec un autre runnable. ou bien null
+	 *            s'il n'y a pas d'autre runnable à synchroniser avec ceux
+	 *            lancés dans le ChatClient
+	 * @param verbose niveau de debug pour les messages
+	 */
+	public ChatClient(String host,
+	                  int port,
+	                  String name,
+	                  InputStream in,
+	                  OutputStream out,
+	                  UserOutputType outType,
+	                  WireProtocol requested,
+	                  Boolean commonRun,
+	                  Logger parentLogger)
+	{
+		this(host,
+		     port,
+		     name,
+		     in,
+		     out,
+		     outType,
+		     requested,
+		     SocketProfile.DEFAULT,
+		     commonRun,
+		     parentLogger);
+	}
+
+	/**
+	 * Constructeur d'un client de chat utilisant le protocole objet
+	 *
+	 * @param host l'adresse du serveur
+	 * @param port le port à utiliser pour communiquer avec le serveur
+	 * @param name le nom d'utilisateur utilisé
+	 * @param in le flux d'entrée depuis l'utilisateur
+	 * @param out le flux de sortie vers l'utilisateur
+	 * @param outType le type de données attendues dans le flux de sortie vers
+	 * le client (texte ou objets)
+	 * @param l'état d'exécution commun avec un autre runnable. ou bien null
+	 *            s'il n'y a pas d'autre runnable à synchroniser avec ceux
+	 *            lancés dans le ChatClient
+	 * @param verbose niveau de debug pour les messages
+	 */
+	public ChatClient(String host,
+	                  int port,
+	                  String name,
+	                  InputStream in,
+	                  OutputStream out,
+	                  UserOutputType outType,
+	                  Boolean commonRun,
+	                  Logger parentLogger)
+	{
+		this(host,
+		     port,
+		     name,
+		     in,
+		     out,
+		     outType,
+		     WireProtocol.OBJECT,
+		     commonRun,
+		     parentLogger);
+	}
+
+	/**
+	 * Détermination du protocole accepté par le serveur après la demande du
+	 * protocole binaire : un serveur qui ignore cette demande commence par
+	 * envoyer l'entête d'un flux objet alors qu'un serveur qui l'accepte
+	 * commence par une trame binaire. Les octets examinés sont laissés dans
+	 * le flux pour le {@link ServerHandler}.
+	 * @param in le flux (supportant mark/reset) en provenance du serveur
+	 * @return le protocole à utiliser avec le serveur
+	 * @throws IOException si la lecture du flux échoue
+	 */
+	private WireProtocol negotiate(InputStream in) throws IOException
+	{
+		in.mark(2);
+		int magic = (in.read() << 8) | in.read();
+		in.reset();
+		if ((short) magic == ObjectStreamConstants.STREAM_MAGIC)
+		{
+			logger.warning("ChatClient: server does not support "
+			    + WireProtocol.BINARY + " protocol");
+			return WireProtocol.OBJECT;
+		}
+		return WireProtocol.BINARY;
+	}
+
+	/**
+	 * Accès en lecture du protocole négocié avec le serveur
+	 * @return le protocole utilisé avec le serveur
+	 */
+	public WireProtocol getProtocol()
+	{
+		return protocol;
+	}
+
 	/**
 	 * Accès en lecture de l'état du client
 	 *
@@ -1,15 +1,22 @@
 package chat.client;
 
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.logging.Logger;
 
 import chat.Failure;
+import chat.Frame;
+import chat.MessageCodec;
 import chat.UserOutputType;
+import chat.Vocabulary;
+import chat.WireProtocol;
 import logger.LoggerFactory;
 import models.Message;
 
@@ -19,6 +26,18 @@ import models.Message;
  * Un client peut accepter soit
  * 	- du texte uniquement (c'est le cas du client console et du 1er client GUI)
  * 	- des messages (comme ceux envoyés par le serveur) à travers un ObjectStream
+ * Les messages du serveur sont lus avec un ObjectInputStream ou bien, si le
+ * protocole binaire a été négocié avec le serveur, décodés à partir de
+ * trames binaires (voir {@link MessageCodec}). Les lots de messages
+ * envoyés par le serveur sont dépaquetés : chacun de leurs messages est
+ * transmis à l'utilisateur comme un message isolé.
+ * Lorsque le client utilise le contrôle de flux, le ServerHandler accorde
+ * au serveur un crédit initial de {@link #creditWindow} messages
+ * ({@link Vocabulary#creditCmd}) puis le renouvelle chaque fois que la
+ * moitié de ce crédit a été transmise à l'utilisateur : un utilisateur qui
+ * affiche lentement ses messages (client graphique) ralentit donc
+ * l'émission du serveur au lieu de laisser les messages s'accumuler dans
+ * les tampons de la connection.
  *
  * @author davidroussel
  */
@@ -29,6 +48,23 @@ class ServerHandler implements Runnable
 	 */
 	private ObjectInputStream serverInOS;
 
+	/**
+	 * Flux d'entrée des trames binaires en provenance du serveur (lorsque le
+	 * protocole binaire a été négocié)
+	 */
+	private DataInputStream serverInDS;
+
+	/**
+	 * Messages d'un lot reçu du serveur (voir {@link chat.FrameType#BATCH})
+	 * pas encore transmis à l'utilisateur
+	 */
+	private ArrayDeque<Message> unpacked;
+
+	/**
+	 * Le protocole négocié avec le serveur
+	 */
+	private WireProtocol protocol;
+
 	/**
 	 * Le type de flux à utiliser pour envoyer les message au client.
 	 * Si le type de flux est {@link TEX}
@@ -45,6 +81,25 @@ class ServerHandler implements Runnable
 	 */
 	private ObjectOutputStream userOutOS;
 
+	/**
+	 * Flux de sortie vers le serveur, partagé avec le {@link UserHandler}
+	 * (les écritures sont synchronisées sur ce flux), utilisé pour accorder
+	 * du crédit au serveur
+	 */
+	private OutputStream serverOut;
+
+	/**
+	 * Nombre de messages que le serveur peut envoyer avant que le crédit ne
+	 * soit renouvelé (0 si le contrôle de flux n'est pas utilisé)
+	 */
+	private int creditWindow;
+
+	/**
+	 * Nombre de messages transmis à l'utilisateur depuis le dernier crédit
+	 * accordé au serveur
+	 */
+	private int consumed;
+
 	/**
 	 * Etat d'exécution commun du ServerHandler et du {@link UserHandler}
 	 */
@@ -60,6 +115,13 @@ class ServerHandler implements Runnable
 	 * @param name notre nom d'utilisateur sur le serveur
 	 * @param in le flux d'entrée en provenance du serveur
 	 * @param out le flux de sortie vers l'utilisateur
+	 * @param outType le type de données attendues par l'utilisateur
+	 * @param protocol le protocole négocié avec le serveur
+	 * @param serverOut le flux de sortie vers le serveur (partagé avec le
+	 * {@link UserHandler})
+	 * @param creditWindow nombre de messages que le serveur peut envoyer
+	 * avant que le crédit ne soit renouvelé (0 pour ne pas utiliser le
+	 * contrôle de flux)
 	 * @param commonRun l'état d'exécution commun du {@link ServerHandler} et du
 	 *            {@link UserHandler}
 	 * @param parentLogger logger parent pour affichage des messages de debug
@@ -68,9 +130,17 @@ class ServerHandler implements Runnable
 	                     InputStream in,
 	                     OutputStream out,
 	                     UserOutputType outType,
+	                     WireProtocol protocol,
+	                     OutputStream serverOut,
+	                     int creditWindow,
 	                     Boolean commonRun,
 	                     Logger parentLogger)
 	{
+		this.protocol = protocol;
+		this.serverOut = serverOut;
+		this.creditWindow = (serverOut != null ? Math.max(0, creditWindow) : 0);
+		consumed = 0;
+		unpacked = new ArrayDeque<Message>();
 		logger = LoggerFactory.getParentLogger(getClass(),
 		                                       parentLogger,
 		                                       parentLogger.getLevel());
@@ -88,9 +158,17 @@ class ServerHandler implements Runnable
 			 * on quitte avec la valeur Failure.CLIENT_INPUT_STREAM
 			 */
 			serverInOS = null;
+			serverInDS = null;
 			try
 			{
-				serverInOS = new ObjectInputStream(in);
+				if (protocol == WireProtocol.BINARY)
+				{
+					serverInDS = new DataInputStream(in);
+				}
+				else
+				{
+					serverInOS = new ObjectInputStream(in);
+				}
 			}
 			catch (IOException e)
 			{
@@ -181,6 +259,10 @@ class ServerHandler implements Runnable
 		 * false de manière synchronisée (atomique) afin que le UserHandler
 		 * s'arrête aussi.
 		 */
+		if ((creditWindow > 0) && !grantCredit(creditWindow))
+		{
+			logger.warning("ServerHandler: unable to grant initial credit");
+		}
 		while (commonRun.booleanValue())
 		{
 			/*
@@ -192,7 +274,7 @@ class ServerHandler implements Runnable
 			Message message = null;
 			try
 			{
-				message = (Message) serverInOS.readObject();
+				message = readMessage();
 			}
 			catch (IOException e)
 			{
@@ -243,6 +325,16 @@ class ServerHandler implements Runnable
 				{
 					break; // break this loop
 				}
+				if ((creditWindow > 0)
+				    && (++consumed >= Math.max(1, creditWindow / 2)))
+				{
+					if (!grantCredit(consumed))
+					{
+						logger.warning("ServerHandler: unable to renew credit");
+						break;
+					}
+					consumed = 0;
+				}
 			}
 			else
 			{
@@ -262,6 +354,75 @@ class ServerHandler implements Runnable
 		}
 	}
 
+	/**
+	 * Crédit accordé au serveur : envoi de la commande
+	 * {@link Vocabulary#creditCmd} sous la forme d'une trame de contrôle
+	 * (protocole binaire) ou d'une ligne de texte (protocole objet)
+	 * @param messages le nombre de messages supplémentaires que le serveur
+	 * peut nous envoyer
+	 * @return true si la commande a été envoyée
+	 */
+	private boolean grantCredit(int messages)
+	{
+		String line = Vocabulary.commandPrefix + Vocabulary.creditCmd + " "
+		    + messages;
+		byte[] data = (protocol == WireProtocol.BINARY ?
+		    MessageCodec.encode(Frame.fromLine(line)) :
+		    (line + Vocabulary.newLine).getBytes(Charset.defaultCharset()));
+		try
+		{
+			synchronized (serverOut)
+			{
+				serverOut.write(data);
+				serverOut.flush();
+			}
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Lecture du prochain message du serveur
+	 * @return le message lu ou bien null si le serveur a fermé la connection
+	 * (protocole binaire)
+	 * @throws IOException si la lecture échoue
+	 * @throws ClassNotFoundException si l'objet lu n'est pas un message
+	 */
+	private Message readMessage() throws IOException, ClassNotFoundException
+	{
+		if (protocol != WireProtocol.BINARY)
+		{
+			return (Message) serverInOS.readObject();
+		}
+		if (!unpacked.isEmpty())
+		{
+			return unpacked.poll();
+		}
+		Frame frame;
+		while ((frame = MessageCodec.read(serverInDS)) != null)
+		{
+			if (frame.isBatch())
+			{
+				unpacked.addAll(frame.getMessages());
+				return unpacked.poll();
+			}
+			/*
+			 * Les trames de contrôle du serveur (refus de notre nom) sont
+			 * affichées comme les messages du serveur, sauf l'acceptation du
+			 * protocole binaire
+			 */
+			if (!frame.isControl() ||
+			    !frame.getContent().equals(Vocabulary.binaryProtocol))
+			{
+				return frame.getMessage();
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Fermeture des flux
 	 */
@@ -274,7 +435,14 @@ class ServerHandler implements Runnable
 		 */
 		try
 		{
-			serverInOS.close();
+			if (serverInOS != null)
+			{
+				serverInOS.close();
+			}
+			if (serverInDS != null)
+			{
+				serverInDS.close();
+			}
 		}
 		catch (IOException e)
 		{
@@ -11,7 +11,10 @@ import java.io.PrintWriter;
 import java.util.logging.Logger;
 
 import chat.Failure;
+import chat.Frame;
+import chat.MessageCodec;
 import chat.Vocabulary;
+import chat.WireProtocol;
 import logger.LoggerFactory;
 
 /**
@@ -32,6 +35,24 @@ class UserHandler implements Runnable
 	 */
 	private PrintWriter serverOutPW;
 
+	/**
+	 * Flux de sortie vers le serveur utilisé pour envoyer les trames
+	 * binaires (lorsque le protocole binaire a été négocié)
+	 */
+	private OutputStream serverOut;
+
+	/**
+	 * Le protocole négocié avec le serveur
+	 */
+	private WireProtocol protocol;
+
+	/**
+	 * Marque de fin de ligne indiquant que le message continue sur la ligne
+	 * suivante. Seul le protocole binaire permet d'envoyer des messages sur
+	 * plusieurs lignes.
+	 */
+	public final static String CONTINUATION = "\\";
+
 	/**
 	 * Etat d'exécution commun du UserHandler et du {@link ServerHandler}
 	 */
@@ -47,13 +68,16 @@ class UserHandler implements Runnable
 	 *
 	 * @param in Le flux d'entrée de l'utilisateur pour les entrées utilisateur
 	 * @param out le flux de sortie vers le serveur
+	 * @param protocol le protocole négocié avec le serveur
 	 * @param commonRun l'état d'exécution commun du {@link UserHandler} et du
 	 *            {@link ServerHandler}
 	 * @param parentLogger le logger parent
 	 */
-	public UserHandler(InputStream in, OutputStream out, Boolean commonRun,
-			Logger parentLogger)
+	public UserHandler(InputStream in, OutputStream out, WireProtocol protocol,
+			Boolean commonRun, Logger parentLogger)
 	{
+		this.protocol = protocol;
+		serverOut = out;
 		logger = LoggerFactory.getParentLogger(getClass(), parentLogger,
 				parentLogger.getLevel());
 
@@ -162,11 +186,48 @@ class UserHandler implements Runnable
 				 * d'un warning au logger et break si c'est le cas.
 				 */
 				// TODO serverOutPW...
-				this.serverOutPW.println(userInput);
-				if (serverOutPW.checkError())
+				if (protocol == WireProtocol.BINARY)
 				{
-					logger.warning("ChatClient: serverOutPw has errors");
-					break;
+					/*
+					 * Un message se terminant par CONTINUATION se poursuit
+					 * sur la ligne suivante
+					 */
+					try
+					{
+						String nextInput;
+						while (userInput.endsWith(CONTINUATION) &&
+						       ((nextInput = userInBR.readLine()) != null))
+						{
+							userInput = userInput.substring(0,
+							    userInput.length() - CONTINUATION.length())
+							    + Vocabulary.newLine + nextInput;
+						}
+						byte[] frame =
+						    MessageCodec.encode(Frame.fromLine(userInput));
+						// flux partagé avec le crédit du ServerHandler
+						synchronized (serverOut)
+						{
+							serverOut.write(frame);
+							serverOut.flush();
+						}
+					}
+					catch (IOException e)
+					{
+						logger.warning("ChatClient: unable to send frame to server");
+						break;
+					}
+				}
+				else
+				{
+					synchronized (serverOut)
+					{
+						this.serverOutPW.println(userInput);
+					}
+					if (serverOutPW.checkError())
+					{
+						logger.warning("ChatClient: serverOutPw has errors");
+						break;
+					}
 				}
 				/*
 				 * TODO Si la commande Vocabulary.byeCmd a été tapée par
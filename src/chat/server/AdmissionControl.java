@@ -0,0 +1,333 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chat.Vocabulary;
+
+/**
+ * Contrôle d'admission des connections d'un serveur, appliqué dès
+ * l'acceptation d'une connection, avant toute création de client :
+ * <ul>
+ * <li>nombre maximum de connections simultanées</li>
+ * <li>nombre maximum de connections simultanées depuis une même adresse</li>
+ * <li>nombre maximum de connections acceptées par seconde (seau à jetons
+ * permettant une rafale d'une seconde)</li>
+ * </ul>
+ * Une limite nulle n'est pas appliquée. Une connection refusée reçoit une
+ * ligne de refus encodée une fois pour toutes ({@link Verdict}) puis est
+ * fermée : en cas de surcharge, le coût d'une connection refusée se limite
+ * donc à une écriture de quelques octets et à la fermeture de la socket.
+ * Le client n'ayant encore rien envoyé, son protocole n'est pas connu : le
+ * refus est une ligne de texte, comme celui d'un nom déjà utilisé.
+ * Chaque connection admise ({@link #admit(InetAddress)}) doit être rendue
+ * ({@link #release(InetAddress)}) lors de sa fermeture. L'admission n'est
+ * demandée que par le thread acceptant les connections, alors que les
+ * connections sont rendues par les threads qui les ferment.
+ *
+ * @author davidroussel
+ */
+public class AdmissionControl
+{
+	/**
+	 * Résultat de la demande d'admission d'une connection
+	 */
+	public enum Verdict
+	{
+		/**
+		 * Connection admise
+		 */
+		ADMITTED(null),
+		/**
+		 * Nombre maximum de connections atteint
+		 */
+		SERVER_FULL("server > Sorry the server is full, try again later"),
+		/**
+		 * Nombre maximum de connections depuis l'adresse du client atteint
+		 */
+		ADDRESS_LIMIT("server > Sorry too many connections from your address"),
+		/**
+		 * Trop de connections acceptées pendant la dernière seconde
+		 */
+		RATE_LIMIT("server > Sorry the server is busy, try again later");
+
+		/**
+		 * La ligne de refus encodée
+		 */
+		private final byte[] rejection;
+
+		/**
+		 * Constructeur d'un verdict
+		 * @param refusal la ligne de refus (null pour une connection admise)
+		 */
+		private Verdict(String refusal)
+		{
+			rejection = (refusal != null ?
+			    (refusal + Vocabulary.newLine).getBytes(StandardCharsets.US_ASCII)
+			    : null);
+		}
+
+		/**
+		 * Tampon (en lecture seule) sur la ligne de refus encodée
+		 * @return un nouveau tampon sur les octets de la ligne de refus ou
+		 * bien null pour une connection admise
+		 */
+		public ByteBuffer rejection()
+		{
+			return (rejection != null ?
+			    ByteBuffer.wrap(rejection).asReadOnlyBuffer() : null);
+		}
+	}
+
+	/**
+	 * Nombre maximum de connections simultanées (0 pour aucune limite)
+	 */
+	private final int maxConnections;
+
+	/**
+	 * Nombre maximum de connections simultanées depuis une même adresse (0
+	 * pour aucune limite)
+	 */
+	private final int maxPerAddress;
+
+	/**
+	 * Nombre maximum de connections acceptées par seconde (0 pour aucune
+	 * limite)
+	 */
+	private final int acceptRate;
+
+	/**
+	 * Nombre de connections admises et pas encore rendues
+	 */
+	private final AtomicInteger connections;
+
+	/**
+	 * Nombre de connections admises et pas encore rendues pour chaque
+	 * adresse (seulement si {@link #maxPerAddress} est non nul). Une adresse
+	 * est retirée lorsque sa dernière connection est rendue.
+	 */
+	private final ConcurrentHashMap<InetAddress, Integer> perAddress;
+
+	/**
+	 * Jetons disponibles pour accepter de nouvelles connections (utilisé
+	 * par le seul thread acceptant les connections)
+	 */
+	private double tokens;
+
+	/**
+	 * Date (en ns) du dernier ajout de jetons
+	 */
+	private long lastRefill;
+
+	/**
+	 * Nombre de connections refusées
+	 */
+	private final AtomicLong refused;
+
+	/**
+	 * Constructeur d'un contrôle d'admission
+	 * @param maxConnections nombre maximum de connections simultanées (0 pour
+	 * aucune limite)
+	 * @param maxPerAddress nombre maximum de connections simultanées depuis
+	 * une même adresse (0 pour aucune limite)
+	 * @param acceptRate nombre maximum de connections acceptées par seconde
+	 * (0 pour aucune limite)
+	 */
+	public AdmissionControl(int maxConnections, int maxPerAddress, int acceptRate)
+	{
+		this.maxConnections = maxConnections;
+		this.maxPerAddress = maxPerAddress;
+		this.acceptRate = acceptRate;
+		connections = new AtomicInteger(0);
+		perAddress = new ConcurrentHashMap<InetAddress, Integer>();
+		tokens = acceptRate;
+		lastRefill = System.nanoTime();
+		refused = new AtomicLong(0);
+	}
+
+	/**
+	 * Constructeur d'un contrôle d'admission d'après les réglages d'un
+	 * serveur
+	 * @param settings les réglages du serveur
+	 */
+	public AdmissionControl(ServerSettings settings)
+	{
+		this(settings.getMaxConnections(),
+		     settings.getMaxConnectionsPerAddress(),
+		     settings.getAcceptRate());
+	}
+
+	/**
+	 * Demande d'admission d'une connection qui vient d'être acceptée
+	 * (par le thread acceptant les connections)
+	 * @param address l'adresse du client
+	 * @return {@link Verdict#ADMITTED} si la connection est admise (elle
+	 * devra alors être rendue lors de sa fermeture) ou bien la raison de son
+	 * refus
+	 */
+	public Verdict admit(InetAddress address)
+	{
+		if ((acceptRate > 0) && !takeToken())
+		{
+			refused.incrementAndGet();
+			return Verdict.RATE_LIMIT;
+		}
+		if ((maxConnections > 0) &&
+		    (connections.incrementAndGet() > maxConnections))
+		{
+			connections.decrementAndGet();
+			refused.incrementAndGet();
+			return Verdict.SERVER_FULL;
+		}
+		if (maxConnections <= 0)
+		{
+			connections.incrementAndGet();
+		}
+		if ((maxPerAddress > 0) && !acquire(address))
+		{
+			connections.decrementAndGet();
+			refused.incrementAndGet();
+			return Verdict.ADDRESS_LIMIT;
+		}
+		return Verdict.ADMITTED;
+	}
+
+	/**
+	 * Restitution d'une connection admise lors de sa fermeture. Peut être
+	 * appelé depuis n'importe quel thread.
+	 * @param address l'adresse du client
+	 */
+	public void release(InetAddress address)
+	{
+		connections.decrementAndGet();
+		if (maxPerAddress > 0)
+		{
+			perAddress.computeIfPresent(address,
+			    (InetAddress a, Integer n) -> (n > 1 ? Integer.valueOf(n - 1) : null));
+		}
+	}
+
+	/**
+	 * Refus d'une connection : écriture de la ligne de refus puis fermeture
+	 * de la socket
+	 * @param socket la socket de la connection refusée
+	 * @param verdict la raison du refus
+	 */
+	public static void reject(Socket socket, Verdict verdict)
+	{
+		try
+		{
+			socket.getOutputStream().write(verdict.rejection);
+		}
+		catch (IOException e)
+		{
+			// le client est déjà parti : rien à lui dire
+		}
+		finally
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// la socket est inutilisable de toutes façons
+			}
+		}
+	}
+
+	/**
+	 * Refus d'une connection : écriture de la ligne de refus puis fermeture
+	 * du canal
+	 * @param channel le canal de la connection refusée
+	 * @param verdict la raison du refus
+	 */
+	public static void reject(SocketChannel channel, Verdict verdict)
+	{
+		try
+		{
+			channel.write(verdict.rejection());
+		}
+		catch (IOException e)
+		{
+			// le client est déjà parti : rien à lui dire
+		}
+		finally
+		{
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				// le canal est inutilisable de toutes façons
+			}
+		}
+	}
+
+	/**
+	 * Nombre de connections admises et pas encore rendues
+	 * @return le nombre de connections en cours
+	 */
+	public int getConnections()
+	{
+		return connections.get();
+	}
+
+	/**
+	 * Nombre de connections refusées
+	 * @return le nombre de connections refusées depuis le démarrage
+	 */
+	public long getRefused()
+	{
+		return refused.get();
+	}
+
+	/**
+	 * Prise d'une connection pour une adresse, si sa limite n'est pas
+	 * atteinte
+	 * @param address l'adresse du client
+	 * @return true si la connection est admise pour cette adresse
+	 */
+	private boolean acquire(InetAddress address)
+	{
+		boolean[] admitted = { false };
+		perAddress.compute(address, (InetAddress a, Integer n) -> {
+			int count = (n != null ? n.intValue() : 0);
+			if (count >= maxPerAddress)
+			{
+				return n;
+			}
+			admitted[0] = true;
+			return Integer.valueOf(count + 1);
+		});
+		return admitted[0];
+	}
+
+	/**
+	 * Prise d'un jeton pour accepter une connection, après ajout des jetons
+	 * accumulés depuis le dernier ajout (au plus {@link #acceptRate} jetons)
+	 * @return true si un jeton était disponible
+	 */
+	private boolean takeToken()
+	{
+		long now = System.nanoTime();
+		tokens = Math.min(acceptRate, tokens + ((now - lastRefill) * acceptRate)
+		    / (double) TimeUnit.SECONDS.toNanos(1));
+		lastRefill = now;
+		if (tokens < 1)
+		{
+			return false;
+		}
+		tokens -= 1;
+		return true;
+	}
+}
@@ -0,0 +1,186 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import chat.MessageCodec;
+import models.Message;
+
+/**
+ * Regroupement des messages diffusés pendant une fenêtre de temps afin de
+ * les encoder et de les transmettre aux clients en une seule trame (voir
+ * {@link FrameEncoder#encode(List)}). Le premier message d'un lot déclenche
+ * la fenêtre : le lot est transmis au plus tard à la fin de celle-ci, ou
+ * plus tôt s'il atteint le nombre maximum de messages d'un lot ou la taille
+ * maximum d'une trame. Le surcoût en latence d'un message est donc borné
+ * par la durée de la fenêtre.
+ * Le lot en cours est protégé par le verrou de diffusion du serveur, sous
+ * lequel les lots sont aussi transmis : les lots sont donc transmis dans
+ * l'ordre des messages, et dans le même ordre à tous les clients.
+ *
+ * @author davidroussel
+ */
+public class BroadcastCoalescer
+{
+	/**
+	 * Le verrou de diffusion du serveur
+	 */
+	private final ReentrantLock lock;
+
+	/**
+	 * La transmission d'un lot de messages aux clients, invoquée sous le
+	 * {@link #lock}
+	 */
+	private final Consumer<List<Message>> deliver;
+
+	/**
+	 * Durée (en ns) de la fenêtre de regroupement
+	 */
+	private final long window;
+
+	/**
+	 * Nombre maximum de messages d'un lot
+	 */
+	private final int maxMessages;
+
+	/**
+	 * Minuteur transmettant les lots à la fin de leur fenêtre
+	 */
+	private final ScheduledExecutorService timer;
+
+	/**
+	 * Les messages du lot en cours
+	 */
+	private ArrayList<Message> pending;
+
+	/**
+	 * Taille (en octets) des trames des messages du lot en cours (voir
+	 * {@link MessageCodec#length(Message)}), qui majore celle de ces
+	 * messages une fois encodés dans le lot
+	 */
+	private long pendingBytes;
+
+	/**
+	 * Transmission programmée du lot en cours
+	 */
+	private ScheduledFuture<?> scheduled;
+
+	/**
+	 * Constructeur d'un regroupement de messages
+	 * @param lock le verrou de diffusion du serveur
+	 * @param deliver la transmission d'un lot de messages aux clients
+	 * (invoquée sous le verrou de diffusion)
+	 * @param window durée (en µs) de la fenêtre de regroupement
+	 * @param maxMessages nombre maximum de messages d'un lot
+	 */
+	public BroadcastCoalescer(ReentrantLock lock,
+	                          Consumer<List<Message>> deliver,
+	                          int window,
+	                          int maxMessages)
+	{
+		this.lock = lock;
+		this.deliver = deliver;
+		this.window = TimeUnit.MICROSECONDS.toNanos(window);
+		this.maxMessages = Math.max(1, maxMessages);
+		timer = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+			Thread t = new Thread(r, "BroadcastCoalescer-timer");
+			t.setDaemon(true);
+			return t;
+		});
+		pending = new ArrayList<Message>();
+		pendingBytes = 0;
+		scheduled = null;
+	}
+
+	/**
+	 * Ajout d'un message à diffuser au lot en cours. Ne bloque que le temps
+	 * d'acquérir le verrou de diffusion (et de transmettre le lot s'il est
+	 * complet). Le message doit tenir dans une trame valide (voir
+	 * {@link MessageCodec#fits(Message)}) : il forme alors au pire un lot à
+	 * lui seul, transmis dans sa propre trame.
+	 * @param message le message à diffuser
+	 */
+	public void add(Message message)
+	{
+		long size = MessageCodec.length(message);
+		lock.lock();
+		try
+		{
+			if (!pending.isEmpty()
+			    && ((MessageCodec.BATCHHEADERSIZE + pendingBytes + size)
+			        > MessageCodec.MAXFRAMESIZE))
+			{
+				flushLocked();
+			}
+			pending.add(message);
+			pendingBytes += size;
+			if (pending.size() >= maxMessages)
+			{
+				flushLocked();
+			}
+			else if ((pending.size() == 1) && !timer.isShutdown())
+			{
+				scheduled = timer.schedule(this::flush,
+				                           window,
+				                           TimeUnit.NANOSECONDS);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Transmission immédiate du lot en cours (par exemple avant qu'un client
+	 * ne se déconnecte, afin qu'il reçoive les derniers messages)
+	 */
+	public void flush()
+	{
+		lock.lock();
+		try
+		{
+			flushLocked();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Transmission du lot en cours puis arrêt du minuteur. Les messages
+	 * ajoutés ensuite sont transmis par le prochain appel à {@link #flush()}.
+	 */
+	public void close()
+	{
+		flush();
+		timer.shutdownNow();
+	}
+
+	/**
+	 * Transmission du lot en cours (le verrou doit être acquis)
+	 */
+	private void flushLocked()
+	{
+		if (scheduled != null)
+		{
+			scheduled.cancel(false);
+			scheduled = null;
+		}
+		if (pending.isEmpty())
+		{
+			return;
+		}
+		List<Message> batch = pending;
+		pending = new ArrayList<Message>();
+		pendingBytes = 0;
+		deliver.accept(batch);
+	}
+}
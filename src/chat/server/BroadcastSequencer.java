@@ -0,0 +1,305 @@
+package chat.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Séquenceur des diffusions du serveur : les événements à diffuser sont
+ * publiés par de multiples producteurs (les {@link ClientHandler}) dans un
+ * anneau de cases préallouées, et traités dans l'ordre de leur numéro de
+ * séquence par un unique thread de distribution. Le numéro de séquence
+ * (croissant à partir de 1) définit un ordre total des messages de la salle.
+ * La publication se fait sans verrou :
+ * <ul>
+ * <li>le producteur obtient le numéro suivant par un incrément atomique</li>
+ * <li>il attend, si l'anneau est plein, que le distributeur ait libéré la
+ * case correspondante ({@link #getDispatched()} en retard de plus d'un tour
+ * d'anneau)</li>
+ * <li>il place l'événement dans la case puis y publie son numéro (écriture
+ * volatile), ce qui rend l'événement visible au distributeur</li>
+ * </ul>
+ * Le distributeur traite les cases dans l'ordre des numéros, en s'arrêtant
+ * sur la première case pas encore publiée, et se met en attente lorsqu'il
+ * n'y a plus rien à traiter (le producteur qui publie le réveille alors).
+ * Il indique au {@link Handler} le dernier événement de chaque série
+ * disponible afin qu'il puisse regrouper son travail.
+ * L'anneau n'est limité que par le distributeur : le traitement d'un
+ * événement ne doit donc jamais bloquer (les trames sont simplement ajoutées
+ * aux files bornées des clients, qui les écrivent chacun à leur rythme).
+ *
+ * @author davidroussel
+ * @param <E> le type des événements séquencés
+ */
+public class BroadcastSequencer<E>
+{
+	/**
+	 * Traitement des événements séquencés par le thread de distribution
+	 * @param <E> le type des événements séquencés
+	 */
+	public interface Handler<E>
+	{
+		/**
+		 * Traitement d'un événement
+		 * @param event l'événement
+		 * @param sequence le numéro de séquence de l'événement
+		 * @param endOfBatch true si aucun autre événement n'est encore
+		 * disponible après celui-ci
+		 */
+		public void dispatch(E event, long sequence, boolean endOfBatch);
+	}
+
+	/**
+	 * Nombre par défaut de cases de l'anneau
+	 */
+	public final static int DEFAULTCAPACITY = 1024;
+
+	/**
+	 * Délai (en ns) entre deux vérifications d'un producteur ou d'un thread
+	 * attendant le distributeur
+	 */
+	private final static long WAITDELAY = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/**
+	 * Les événements publiés (null pour une case libre)
+	 */
+	private final Object[] events;
+
+	/**
+	 * Numéro de séquence publié dans chaque case
+	 */
+	private final AtomicLongArray published;
+
+	/**
+	 * Masque donnant l'indice de la case d'un numéro de séquence
+	 */
+	private final int mask;
+
+	/**
+	 * Dernier numéro de séquence obtenu par un producteur
+	 */
+	private final AtomicLong claimed;
+
+	/**
+	 * Numéro de séquence du dernier événement traité par le distributeur
+	 */
+	private volatile long dispatched;
+
+	/**
+	 * Le traitement des événements
+	 */
+	private final Handler<E> handler;
+
+	/**
+	 * Le thread de distribution
+	 */
+	private final Thread dispatcher;
+
+	/**
+	 * Indique que le distributeur est (ou va être) en attente d'un événement
+	 */
+	private volatile boolean parked;
+
+	/**
+	 * Indique que le séquenceur accepte de nouveaux événements
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Nombre de publications ayant dû attendre qu'une case se libère
+	 */
+	private final AtomicLong stalls;
+
+	/**
+	 * Logger pour l'affichage des messages de debug
+	 */
+	private final Logger logger;
+
+	/**
+	 * Constructeur d'un séquenceur. Le thread de distribution est démarré
+	 * immédiatement.
+	 * @param name nom du thread de distribution
+	 * @param capacity nombre de cases de l'anneau (arrondi à la puissance de
+	 * 2 supérieure)
+	 * @param handler le traitement des événements
+	 * @param logger logger pour l'affichage des erreurs de traitement
+	 */
+	public BroadcastSequencer(String name,
+	                          int capacity,
+	                          Handler<E> handler,
+	                          Logger logger)
+	{
+		int size = Math.max(2, capacity);
+		size = Integer.highestOneBit(size - 1) << 1;
+		events = new Object[size];
+		published = new AtomicLongArray(size);
+		mask = size - 1;
+		claimed = new AtomicLong(0);
+		dispatched = 0;
+		this.handler = handler;
+		this.logger = logger;
+		parked = false;
+		running = true;
+		stalls = new AtomicLong(0);
+		dispatcher = new Thread(this::dispatch, name);
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Publication d'un événement (par n'importe quel thread). Ne bloque que
+	 * si l'anneau est plein.
+	 * @param event l'événement à publier
+	 * @return le numéro de séquence de l'événement ou bien -1 si le
+	 * séquenceur est fermé
+	 */
+	public long publish(E event)
+	{
+		if (!running)
+		{
+			return -1;
+		}
+		long sequence = claimed.incrementAndGet();
+		long wrapPoint = sequence - events.length;
+		if (wrapPoint > dispatched)
+		{
+			stalls.incrementAndGet();
+			while (wrapPoint > dispatched)
+			{
+				if (!running && !dispatcher.isAlive())
+				{
+					return -1;
+				}
+				LockSupport.parkNanos(this, WAITDELAY);
+			}
+		}
+		int index = (int) sequence & mask;
+		events[index] = event;
+		published.set(index, sequence);
+		if (parked)
+		{
+			LockSupport.unpark(dispatcher);
+		}
+		return sequence;
+	}
+
+	/**
+	 * Attente du traitement de tous les événements publiés jusqu'à un numéro
+	 * de séquence (par exemple avant qu'un client ne se déconnecte, afin
+	 * qu'il reçoive ses derniers messages)
+	 * @param sequence le numéro de séquence attendu
+	 */
+	public void awaitDispatched(long sequence)
+	{
+		while ((dispatched < sequence) && dispatcher.isAlive())
+		{
+			LockSupport.parkNanos(this, WAITDELAY);
+		}
+	}
+
+	/**
+	 * Fermeture du séquenceur : les événements déjà publiés sont traités
+	 * puis le thread de distribution se termine
+	 * @param timeout délai maximum (en ms) d'attente de la fin du
+	 * distributeur
+	 */
+	public void close(long timeout)
+	{
+		running = false;
+		LockSupport.unpark(dispatcher);
+		try
+		{
+			dispatcher.join(timeout);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Numéro de séquence du dernier événement publié (ou en cours de
+	 * publication)
+	 * @return le dernier numéro de séquence attribué
+	 */
+	public long getPublished()
+	{
+		return claimed.get();
+	}
+
+	/**
+	 * Numéro de séquence du dernier événement traité
+	 * @return le curseur du distributeur
+	 */
+	public long getDispatched()
+	{
+		return dispatched;
+	}
+
+	/**
+	 * Nombre de cases de l'anneau
+	 * @return le nombre d'événements pouvant être en attente de traitement
+	 */
+	public int getCapacity()
+	{
+		return events.length;
+	}
+
+	/**
+	 * Nombre de publications ayant attendu qu'une case se libère
+	 * @return le nombre de fois où l'anneau était plein
+	 */
+	public long getStalls()
+	{
+		return stalls.get();
+	}
+
+	/**
+	 * Boucle du thread de distribution : traitement des événements dans
+	 * l'ordre de leurs numéros de séquence jusqu'à la fermeture du
+	 * séquenceur
+	 */
+	@SuppressWarnings("unchecked")
+	private void dispatch()
+	{
+		long next = dispatched + 1;
+		while (true)
+		{
+			int index = (int) next & mask;
+			if (published.get(index) == next)
+			{
+				E event = (E) events[index];
+				events[index] = null;
+				boolean endOfBatch =
+				    published.get((int) (next + 1) & mask) != (next + 1);
+				try
+				{
+					handler.dispatch(event, next, endOfBatch);
+				}
+				catch (RuntimeException e)
+				{
+					logger.severe("BroadcastSequencer: dispatch of " + next
+					    + " failed: " + e);
+				}
+				dispatched = next++;
+				continue;
+			}
+			if (!running && (claimed.get() < next))
+			{
+				break;
+			}
+			/*
+			 * Mise en attente : un producteur publiant après la seconde
+			 * vérification voit parked et réveille le distributeur
+			 */
+			parked = true;
+			if ((published.get(index) != next) && running)
+			{
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+			}
+			parked = false;
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool de tampons directs utilisés pour les entrées/sorties du serveur :
+ * tampons de lecture des connections et trames diffusées
+ * ({@link MessageFrame}). Les tampons sont découpés dans des blocs
+ * ({@link #SLABSIZE}) alloués hors du tas, par classes de taille (puissances
+ * de 2 de {@link #MINSLOTSIZE} à {@link #MAXSLOTSIZE}) : une demande est
+ * servie par un tampon libre de la plus petite classe suffisante, un nouveau
+ * bloc n'étant découpé que lorsque cette classe n'a plus de tampon libre.
+ * Les tampons rendus ({@link PooledBuffer#release()}) sont réutilisés tels
+ * quels, si bien qu'une fois le régime établi, lire, encoder et diffuser un
+ * message n'alloue plus de tampon ni dans le tas ni hors du tas.
+ * La mémoire des blocs est bornée ({@link #getCapacity()}) : lorsque cette
+ * limite est atteinte, ou pour une taille supérieure à {@link #MAXSLOTSIZE},
+ * la demande est servie par un tampon du tas n'appartenant à aucun pool
+ * (compté dans {@link #getMisses()}).
+ * Chaque classe de taille possède son propre verrou, pris le temps de
+ * retirer ou de rendre un tampon.
+ *
+ * @author davidroussel
+ */
+public class BufferPool
+{
+	/**
+	 * Taille (en octets) des plus petits tampons du pool
+	 */
+	public final static int MINSLOTSIZE = 256;
+
+	/**
+	 * Taille (en octets) des plus grands tampons du pool
+	 */
+	public final static int MAXSLOTSIZE = 64 * 1024;
+
+	/**
+	 * Taille (en octets) des blocs alloués hors du tas et découpés en
+	 * tampons
+	 */
+	public final static int SLABSIZE = 1024 * 1024;
+
+	/**
+	 * Les tampons libres d'une classe de taille
+	 */
+	private static class SizeClass
+	{
+		/**
+		 * Taille (en octets) des tampons de la classe
+		 */
+		final int slotSize;
+
+		/**
+		 * Verrou protégeant les tampons libres
+		 */
+		final ReentrantLock lock;
+
+		/**
+		 * Les tampons libres de la classe
+		 */
+		final ArrayDeque<PooledBuffer> free;
+
+		/**
+		 * Constructeur d'une classe de taille
+		 * @param slotSize la taille des tampons de la classe
+		 */
+		SizeClass(int slotSize)
+		{
+			this.slotSize = slotSize;
+			lock = new ReentrantLock();
+			free = new ArrayDeque<PooledBuffer>();
+		}
+	}
+
+	/**
+	 * Les classes de taille, de la plus petite à la plus grande
+	 */
+	private final SizeClass[] classes;
+
+	/**
+	 * Taille maximum (en octets) de l'ensemble des blocs
+	 */
+	private final long capacity;
+
+	/**
+	 * Taille (en octets) des blocs alloués
+	 */
+	private final AtomicLong allocated;
+
+	/**
+	 * Nombre de tampons obtenus auprès du pool
+	 */
+	private final AtomicLong leases;
+
+	/**
+	 * Nombre de tampons rendus au pool
+	 */
+	private final AtomicLong recycles;
+
+	/**
+	 * Nombre de demandes servies par un tampon du tas
+	 */
+	private final AtomicLong misses;
+
+	/**
+	 * Constructeur d'un pool
+	 * @param capacity taille maximum (en octets) de l'ensemble des blocs
+	 * alloués hors du tas
+	 */
+	public BufferPool(long capacity)
+	{
+		this.capacity = capacity;
+		int count = Integer.numberOfTrailingZeros(MAXSLOTSIZE)
+		    - Integer.numberOfTrailingZeros(MINSLOTSIZE) + 1;
+		classes = new SizeClass[count];
+		for (int i = 0; i < count; i++)
+		{
+			classes[i] = new SizeClass(MINSLOTSIZE << i);
+		}
+		allocated = new AtomicLong(0);
+		leases = new AtomicLong(0);
+		recycles = new AtomicLong(0);
+		misses = new AtomicLong(0);
+	}
+
+	/**
+	 * Obtention d'un tampon. Le tampon obtenu est vide, sa capacité est au
+	 * moins celle demandée et celui qui l'obtient en détient l'unique
+	 * référence.
+	 * @param size la capacité minimum (en octets) du tampon
+	 * @return un tampon du pool ou bien, si le pool ne peut pas servir la
+	 * demande, un tampon du tas
+	 */
+	public PooledBuffer lease(int size)
+	{
+		int index = classIndex(size);
+		if (index < 0)
+		{
+			misses.incrementAndGet();
+			return PooledBuffer.allocate(size);
+		}
+		SizeClass sizeClass = classes[index];
+		PooledBuffer leased;
+		sizeClass.lock.lock();
+		try
+		{
+			leased = sizeClass.free.poll();
+			if ((leased == null) && carve(index))
+			{
+				leased = sizeClass.free.poll();
+			}
+		}
+		finally
+		{
+			sizeClass.lock.unlock();
+		}
+		if (leased == null)
+		{
+			misses.incrementAndGet();
+			return PooledBuffer.allocate(size);
+		}
+		leased.acquire();
+		leases.incrementAndGet();
+		return leased;
+	}
+
+	/**
+	 * Retour d'un tampon dont la dernière référence a été libérée (voir
+	 * {@link PooledBuffer#release()})
+	 * @param buffer le tampon rendu
+	 */
+	void recycle(PooledBuffer buffer)
+	{
+		SizeClass sizeClass = classes[buffer.getSizeClass()];
+		sizeClass.lock.lock();
+		try
+		{
+			sizeClass.free.push(buffer);
+		}
+		finally
+		{
+			sizeClass.lock.unlock();
+		}
+		recycles.incrementAndGet();
+	}
+
+	/**
+	 * Taille maximum de l'ensemble des blocs
+	 * @return la taille maximum (en octets) de la mémoire allouée hors du tas
+	 * par le pool
+	 */
+	public long getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Taille des blocs alloués
+	 * @return la taille (en octets) de la mémoire allouée hors du tas par le
+	 * pool
+	 */
+	public long getAllocatedBytes()
+	{
+		return allocated.get();
+	}
+
+	/**
+	 * Nombre de tampons obtenus et pas encore rendus au pool
+	 * @return le nombre de tampons du pool en cours d'utilisation
+	 */
+	public long getLeased()
+	{
+		return leases.get() - recycles.get();
+	}
+
+	/**
+	 * Nombre total de tampons obtenus auprès du pool
+	 * @return le nombre de demandes servies par un tampon du pool
+	 */
+	public long getLeases()
+	{
+		return leases.get();
+	}
+
+	/**
+	 * Nombre de demandes servies par un tampon du tas (taille trop grande ou
+	 * pool plein)
+	 * @return le nombre de demandes que le pool n'a pas pu servir
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Découpage d'un nouveau bloc en tampons d'une classe de taille (le
+	 * verrou de la classe doit être acquis)
+	 * @param index l'indice de la classe de taille
+	 * @return true si un bloc a été découpé, false si la taille maximum de
+	 * l'ensemble des blocs est atteinte
+	 */
+	private boolean carve(int index)
+	{
+		if (allocated.addAndGet(SLABSIZE) > capacity)
+		{
+			allocated.addAndGet(-SLABSIZE);
+			return false;
+		}
+		SizeClass sizeClass = classes[index];
+		ByteBuffer slab = ByteBuffer.allocateDirect(SLABSIZE);
+		for (int offset = 0; offset < SLABSIZE; offset += sizeClass.slotSize)
+		{
+			slab.limit(offset + sizeClass.slotSize);
+			slab.position(offset);
+			sizeClass.free.add(new PooledBuffer(this, index, slab.slice()));
+		}
+		return true;
+	}
+
+	/**
+	 * Indice de la plus petite classe de taille dont les tampons ont au moins
+	 * une capacité donnée
+	 * @param size la capacité demandée
+	 * @return l'indice de la classe ou bien -1 si aucune classe ne convient
+	 */
+	private static int classIndex(int size)
+	{
+		if (size > MAXSLOTSIZE)
+		{
+			return -1;
+		}
+		if (size <= MINSLOTSIZE)
+		{
+			return 0;
+		}
+		return (Integer.SIZE - Integer.numberOfLeadingZeros(size - 1))
+		    - Integer.numberOfTrailingZeros(MINSLOTSIZE);
+	}
+}
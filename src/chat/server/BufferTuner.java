@@ -0,0 +1,208 @@
+package chat.server;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Ajustement automatique de la taille du tampon d'émission du noyau
+ * (SO_SNDBUF) d'une connection d'après le débit observé vers le client.
+ * L'écrivain du client ({@link ClientWriter} ou reactor du
+ * {@link NioChatServer}) signale chacune de ses écritures
+ * ({@link #record(long, boolean)}). A la fin de chaque période
+ * ({@link #PERIOD}) le tampon est dimensionné pour contenir
+ * {@link #TARGETDELAY} de trafic au débit observé, arrondi à une puissance
+ * de 2 et borné par {@link #MINBUFFER} et {@link #MAXBUFFER} :
+ * <ul>
+ * <li>un client recevant de nombreuses diffusions obtient un grand tampon,
+ * son écrivain est donc moins souvent bloqué (ou mis en attente de
+ * OP_WRITE)</li>
+ * <li>un client peu actif conserve un petit tampon, les messages ne
+ * s'accumulent donc pas dans le noyau et la mémoire du noyau n'est pas
+ * gaspillée</li>
+ * </ul>
+ * Un écrivain qui n'a pas pu tout écrire (tampon plein) pendant la période
+ * double en outre la taille du tampon. Pour éviter les oscillations, le
+ * tampon n'est réduit que lorsque la taille visée est au moins 4 fois plus
+ * petite que la taille courante.
+ * Seul le tampon d'émission est ajusté : la taille du tampon de réception
+ * détermine le facteur d'échelle de la fenêtre TCP négocié à
+ * l'établissement de la connection, elle ne peut donc plus être
+ * significativement augmentée ensuite (voir
+ * {@link chat.SocketProfile#configure(java.net.ServerSocket)}).
+ * Sous Linux, fixer SO_SNDBUF désactive l'ajustement propre au noyau :
+ * l'ajusteur est surtout utile avec un profil fixant la taille des tampons
+ * (voir {@link chat.SocketProfile}), dont il rétablit l'adaptation au
+ * trafic de chaque client.
+ * Un ajusteur n'est utilisé que par l'écrivain de son client et n'est donc
+ * pas protégé contre les accès concurrents.
+ *
+ * @author davidroussel
+ */
+public class BufferTuner
+{
+	/**
+	 * Durée (en ns) d'une période de mesure du débit
+	 */
+	public final static long PERIOD = TimeUnit.MILLISECONDS.toNanos(250);
+
+	/**
+	 * Durée (en ns) de trafic que le tampon d'émission doit pouvoir contenir
+	 */
+	public final static long TARGETDELAY = TimeUnit.MILLISECONDS.toNanos(50);
+
+	/**
+	 * Taille minimum (en octets) du tampon d'émission
+	 */
+	public final static int MINBUFFER = 16 * 1024;
+
+	/**
+	 * Taille maximum (en octets) du tampon d'émission (le noyau peut imposer
+	 * une limite inférieure, net.core.wmem_max sous Linux)
+	 */
+	public final static int MAXBUFFER = 4 * 1024 * 1024;
+
+	/**
+	 * La socket dont on ajuste le tampon d'émission
+	 */
+	private final Socket socket;
+
+	/**
+	 * Taille (en octets) du tampon d'émission demandée lors du dernier
+	 * ajustement
+	 */
+	private int bufferSize;
+
+	/**
+	 * Début (en ns) de la période de mesure en cours
+	 */
+	private long periodStart;
+
+	/**
+	 * Nombre d'octets écrits pendant la période en cours
+	 */
+	private long periodBytes;
+
+	/**
+	 * Indique qu'une écriture n'a pas pu être complétée pendant la période
+	 * en cours
+	 */
+	private boolean saturated;
+
+	/**
+	 * Nombre d'ajustements effectués
+	 */
+	private volatile int adjustments;
+
+	/**
+	 * Logger pour l'affichage des messages de debug
+	 */
+	private final Logger logger;
+
+	/**
+	 * Constructeur d'un ajusteur
+	 * @param socket la socket dont on ajuste le tampon d'émission
+	 * @param logger logger pour l'affichage des ajustements
+	 */
+	public BufferTuner(Socket socket, Logger logger)
+	{
+		this.socket = socket;
+		this.logger = logger;
+		int initial = MINBUFFER;
+		try
+		{
+			initial = socket.getSendBufferSize();
+		}
+		catch (SocketException e)
+		{
+			// socket déjà fermée : la taille ne sera jamais ajustée
+		}
+		bufferSize = initial;
+		periodStart = System.nanoTime();
+		periodBytes = 0;
+		saturated = false;
+		adjustments = 0;
+	}
+
+	/**
+	 * Prise en compte d'une écriture vers le client et, en fin de période,
+	 * ajustement du tampon d'émission
+	 * @param bytes le nombre d'octets écrits
+	 * @param full true si l'écriture n'a pas pu être complétée (tampon du
+	 * noyau plein) ou si d'autres trames attendent déjà d'être écrites
+	 */
+	public void record(long bytes, boolean full)
+	{
+		periodBytes += bytes;
+		saturated |= full;
+		long now = System.nanoTime();
+		long elapsed = now - periodStart;
+		if (elapsed < PERIOD)
+		{
+			return;
+		}
+		long target = (periodBytes * TARGETDELAY) / elapsed;
+		if (saturated)
+		{
+			target = Math.max(target, 2L * bufferSize);
+		}
+		int size = roundSize(target);
+		if ((size > bufferSize) || ((4L * size) <= bufferSize))
+		{
+			try
+			{
+				socket.setSendBufferSize(size);
+				logger.fine("BufferTuner: send buffer " + bufferSize + " -> "
+				    + size + " bytes (" + ((periodBytes * 1000000000L) / elapsed)
+				    + " bytes/s)");
+				bufferSize = size;
+				adjustments++;
+			}
+			catch (SocketException e)
+			{
+				// socket fermée : l'écrivain s'en apercevra lui-même
+			}
+		}
+		periodStart = now;
+		periodBytes = 0;
+		saturated = false;
+	}
+
+	/**
+	 * Accesseur en lecture de la taille courante du tampon d'émission
+	 * @return la taille (en octets) demandée lors du dernier ajustement
+	 */
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	/**
+	 * Accesseur en lecture du nombre d'ajustements
+	 * @return le nombre de fois où la taille du tampon a été modifiée
+	 */
+	public int getAdjustments()
+	{
+		return adjustments;
+	}
+
+	/**
+	 * Arrondi d'une taille de tampon à la puissance de 2 supérieure, bornée
+	 * par {@link #MINBUFFER} et {@link #MAXBUFFER}
+	 * @param target la taille visée
+	 * @return la taille de tampon à demander
+	 */
+	private static int roundSize(long target)
+	{
+		if (target <= MINBUFFER)
+		{
+			return MINBUFFER;
+		}
+		if (target >= MAXBUFFER)
+		{
+			return MAXBUFFER;
+		}
+		return Integer.highestOneBit((int) target - 1) << 1;
+	}
+}
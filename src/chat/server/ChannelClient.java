@@ -0,0 +1,950 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.logging.Logger;
+
+import chat.Frame;
+import chat.FrameType;
+import chat.MessageCodec;
+import chat.Vocabulary;
+import chat.WireProtocol;
+import logger.LoggerFactory;
+import models.Message;
+
+/**
+ * Classe stockant les caractéristiques d'un client traité par le
+ * {@link NioChatServer} (et plus précisément par l'un de ses
+ * {@link Reactor}). Contrairement à l'{@link InputOutputClient} qui
+ * s'appuie sur des flux bloquants, ce client est caractérisé par
+ * <ul>
+ * <li>{@link #channel} : le {@link SocketChannel} non bloquant du client</li>
+ * <li>{@link #name} : le nom du client (null tant que le client ne s'est pas
+ * présenté)</li>
+ * <li>{@link #protocol} : le protocole négocié avec le client</li>
+ * <li>{@link #line} : la ligne de texte (ou la trame binaire) en cours de
+ * réception</li>
+ * <li>{@link #pending} : les messages diffusés (déjà sérialisés) en attente
+ * d'écriture</li>
+ * <li>{@link #outQueue} : les données en attente d'écriture vers le
+ * client</li>
+ * <li>{@link #banned} : l'état de bannissement</li>
+ * <li>{@link #rateLimiter} : la limitation du débit de ses messages et
+ * {@link #heldFrame} la trame retenue lorsque sa lecture est suspendue</li>
+ * <li>{@link #credit} : le crédit de messages accordé par le client</li>
+ * </ul>
+ *
+ * @author davidroussel
+ */
+public class ChannelClient
+{
+	/**
+	 * Taille initiale du tampon de la ligne en cours de réception
+	 */
+	private final static int INITIALLINESIZE = 128;
+
+	/**
+	 * Tampon vide rendu à la reprise de la lecture lorsqu'aucun octet n'a
+	 * été retenu
+	 */
+	private final static ByteBuffer EMPTYINPUT =
+	    ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	/**
+	 * Le canal de communication avec le client
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * La clé de sélection du {@link #channel} auprès du sélecteur du serveur
+	 */
+	private SelectionKey key;
+
+	/**
+	 * Le nom du client. Null tant que la première ligne (le nom) n'a pas été
+	 * reçue
+	 */
+	private String name;
+
+	/**
+	 * Le protocole négocié avec le client lors de sa présentation
+	 */
+	private WireProtocol protocol;
+
+	/**
+	 * Octets de la ligne en cours de réception (sans le saut de ligne) ou
+	 * bien, avec le protocole binaire, octets reçus n'appartenant pas encore
+	 * à une trame complète
+	 */
+	private byte[] line;
+
+	/**
+	 * Nombre d'octets significatifs dans {@link #line}
+	 */
+	private int lineLength;
+
+	/**
+	 * File bornée des messages diffusés pas encore placés dans la file de
+	 * sortie. Les messages ne sont transférés dans la file de sortie que
+	 * lorsque celle-ci contient moins d'un lot ({@link #batch}) de tampons,
+	 * la politique de débordement ne supprime donc que des messages complets.
+	 */
+	private final FrameQueue pending;
+
+	/**
+	 * File des tampons en attente d'écriture vers le client
+	 */
+	private final ArrayDeque<ByteBuffer> outQueue;
+
+	/**
+	 * Les trames dont les tampons sont dans la file de sortie, dans le même
+	 * ordre que ceux-ci ({@link #RAWDATA} pour des données brutes). La
+	 * référence sur chaque trame est libérée lorsque son tampon a été
+	 * entièrement écrit.
+	 */
+	private final ArrayDeque<MessageFrame> outFrames;
+
+	/**
+	 * Trame (jamais libérée) associée aux données brutes de la file de
+	 * sortie
+	 */
+	private final static MessageFrame RAWDATA =
+	    new MessageFrame(PooledBuffer.allocate(0),
+	                     false,
+	                     Collections.<Message>emptyList(),
+	                     null);
+
+	/**
+	 * Taille (en octets) des tampons de la file de sortie. Mise à jour par
+	 * le thread du reactor mais consultable depuis n'importe quel thread
+	 * ({@link #getFootprint()}).
+	 */
+	private volatile long outQueueBytes;
+
+	/**
+	 * Tampons de la file de sortie écrits ensemble par une seule écriture
+	 * groupée (sa taille est le nombre maximum de tampons d'un lot)
+	 */
+	private final ByteBuffer[] batch;
+
+	/**
+	 * Nombre d'écritures effectuées sur le canal. Mis à jour par le thread
+	 * du reactor mais consultable depuis n'importe quel thread.
+	 */
+	private volatile long writes;
+
+	/**
+	 * Nombre de tampons (trames) entièrement écrits sur le canal
+	 */
+	private volatile long writtenFrames;
+
+	/**
+	 * Ajusteur du tampon d'émission du canal (null si le tampon n'est pas
+	 * ajusté)
+	 */
+	private BufferTuner tuner;
+
+	/**
+	 * Indique que l'entête du flux objet a été envoyée au client, qui peut
+	 * alors recevoir des messages
+	 */
+	private boolean ready;
+
+	/**
+	 * Etat de bannissement du client (voir {@link InputClient#banned}). Le
+	 * bannissement est décidé par le reactor du super-utilisateur qui
+	 * peut être différent de celui de ce client.
+	 */
+	private volatile boolean banned;
+
+	/**
+	 * Indique que le client doit être fermé dès que sa file de sortie est
+	 * vide
+	 */
+	private boolean closing;
+
+	/**
+	 * Limiteur du débit des messages envoyés par le client (null si le débit
+	 * n'est pas limité)
+	 */
+	private RateLimiter rateLimiter;
+
+	/**
+	 * Trame retenue pendant la suspension de la lecture du client (null si
+	 * la lecture n'est pas suspendue)
+	 */
+	private Frame heldFrame;
+
+	/**
+	 * Octets reçus à la suite de la trame retenue, à traiter à la reprise
+	 * de la lecture (null s'il n'y en a pas)
+	 */
+	private ByteBuffer heldInput;
+
+	/**
+	 * Date (en ns) de reprise de la lecture suspendue
+	 */
+	private long resumeTime;
+
+	/**
+	 * Crédit de messages accordé par le client : les messages en attente ne
+	 * sont ajoutés à la file de sortie que tant qu'il est positif
+	 */
+	private final FlowCredit credit;
+
+	/**
+	 * Date (en ms) de la connection du client, utilisée pour vérifier qu'il
+	 * se présente dans le délai imparti
+	 */
+	private final long connectionTime;
+
+	/**
+	 * logger pour afficher les messages de debug
+	 */
+	private Logger logger;
+
+	/**
+	 * Constructeur d'un client non bloquant
+	 * @param channel le canal du client
+	 * @param capacity nombre maximum de messages en attente d'envoi
+	 * @param policy politique appliquée lorsque la file des messages en
+	 * attente est pleine
+	 * @param batchFrames nombre maximum de trames écrites en une seule
+	 * écriture groupée
+	 * @param encoder l'encodeur des messages diffusés vers ce client
+	 * @param parentLogger logger parent pour l'affichage des messages de debug
+	 */
+	public ChannelClient(SocketChannel channel,
+	                     int capacity,
+	                     OverflowPolicy policy,
+	                     int batchFrames,
+	                     FrameEncoder encoder,
+	                     Logger parentLogger)
+	{
+		this.channel = channel;
+		protocol = WireProtocol.OBJECT;
+		pending = new FrameQueue(capacity, policy, encoder, protocol);
+		key = null;
+		name = null;
+		line = new byte[INITIALLINESIZE];
+		lineLength = 0;
+		outQueue = new ArrayDeque<ByteBuffer>();
+		outFrames = new ArrayDeque<MessageFrame>();
+		outQueueBytes = 0;
+		batch = new ByteBuffer[Math.max(1, batchFrames)];
+		writes = 0;
+		writtenFrames = 0;
+		tuner = null;
+		ready = false;
+		banned = false;
+		closing = false;
+		rateLimiter = null;
+		heldFrame = null;
+		heldInput = null;
+		resumeTime = 0;
+		credit = new FlowCredit();
+		connectionTime = System.currentTimeMillis();
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+	}
+
+	/**
+	 * Accesseur en lecture du canal du client
+	 * @return le canal du client
+	 */
+	public SocketChannel getChannel()
+	{
+		return channel;
+	}
+
+	/**
+	 * Accesseur en lecture de la clé de sélection du client
+	 * @return la clé de sélection du client
+	 */
+	public SelectionKey getKey()
+	{
+		return key;
+	}
+
+	/**
+	 * Accesseur en écriture de la clé de sélection du client
+	 * @param key la clé de sélection obtenue lors de l'enregistrement du
+	 * canal auprès du sélecteur
+	 */
+	public void setKey(SelectionKey key)
+	{
+		this.key = key;
+	}
+
+	/**
+	 * Accesseur en lecture du nom du client
+	 * @return le nom du client ou bien null si celui-ci ne s'est pas encore
+	 * présenté
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Accesseur en lecture de la date de connection du client
+	 * @return la date (en ms) de connection du client
+	 */
+	public long getConnectionTime()
+	{
+		return connectionTime;
+	}
+
+	/**
+	 * Indique si le client s'est présenté (et peut donc recevoir des messages)
+	 * @return true si le client a un nom et que son flux objet est prêt
+	 */
+	public boolean isReady()
+	{
+		return ready;
+	}
+
+	/**
+	 * Accesseur en écriture du nom du client
+	 * @param name le nom reçu du client
+	 */
+	public void setName(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Accesseur en lecture du protocole négocié avec le client
+	 * @return le protocole du client
+	 */
+	public WireProtocol getProtocol()
+	{
+		return protocol;
+	}
+
+	/**
+	 * Accesseur en écriture du protocole demandé par le client lors de sa
+	 * présentation (avant son enregistrement)
+	 * @param protocol le protocole du client
+	 */
+	public void setProtocol(WireProtocol protocol)
+	{
+		this.protocol = protocol;
+		pending.setProtocol(protocol);
+	}
+
+	/**
+	 * Ouverture du flux vers le client une fois celui-ci enregistré.
+	 * L'entête du flux objet (ou la trame d'acceptation du protocole binaire)
+	 * est immédiatement placée dans la file de sortie car le client l'attend
+	 * avant tout message.
+	 */
+	public void login()
+	{
+		if (protocol == WireProtocol.BINARY)
+		{
+			send(ByteBuffer.wrap(MessageCodec.encode(FrameType.CONTROL,
+			    new Message(Vocabulary.binaryProtocol))));
+		}
+		else
+		{
+			send(ByteBuffer.wrap(MessageFrame.STREAMHEADER).asReadOnlyBuffer());
+		}
+		ready = true;
+	}
+
+	/**
+	 * Refus du client : le texte de refus est placé dans la file de sortie
+	 * et le client sera fermé une fois ce texte écrit
+	 * @param refusal le texte de refus encodé
+	 */
+	public void reject(ByteBuffer refusal)
+	{
+		send(refusal);
+		closing = true;
+	}
+
+	/**
+	 * Accesseur en lecture de l'état de bannissement
+	 * @return l'état de bannissement
+	 */
+	public boolean isBanned()
+	{
+		return banned;
+	}
+
+	/**
+	 * Accesseur en écriture de l'état de bannissement
+	 * @param banned l'état de bannissement à mettre en place
+	 */
+	public void setBanned(boolean banned)
+	{
+		this.banned = banned;
+	}
+
+	/**
+	 * Indique si le client doit être fermé une fois sa file de sortie vidée
+	 * @return true si le client doit être fermé
+	 */
+	public boolean isClosing()
+	{
+		return closing;
+	}
+
+	/**
+	 * Demande la fermeture du client une fois sa file de sortie vidée
+	 */
+	public void setClosing()
+	{
+		closing = true;
+	}
+
+	/**
+	 * Extraction de la prochaine ligne complète contenue dans le tampon de
+	 * lecture. Les octets d'une ligne incomplète sont conservés jusqu'à la
+	 * prochaine lecture.
+	 * @param buffer le tampon de lecture (en mode lecture)
+	 * @param charset le jeu de caractères utilisé par le client
+	 * @return la prochaine ligne (sans saut de ligne) ou bien null si le
+	 * tampon ne contient pas de ligne complète
+	 * @throws ProtocolException si la ligne est trop longue pour tenir dans
+	 * une trame
+	 */
+	public String nextLine(ByteBuffer buffer, Charset charset)
+	    throws ProtocolException
+	{
+		int length = scanLine(buffer);
+		return (length >= 0 ? new String(line, 0, length, charset) : null);
+	}
+
+	/**
+	 * Extraction de la prochaine ligne complète contenue dans le tampon de
+	 * lecture, convertie en trame sans être décodée (voir
+	 * {@link Frame#fromLine(byte[], int, Charset)})
+	 * @param buffer le tampon de lecture (en mode lecture)
+	 * @param charset le jeu de caractères utilisé par le client
+	 * @return la trame correspondant à la prochaine ligne ou bien null si le
+	 * tampon ne contient pas de ligne complète
+	 * @throws ProtocolException si la ligne est trop longue pour tenir dans
+	 * une trame
+	 */
+	private Frame nextLineFrame(ByteBuffer buffer, Charset charset)
+	    throws ProtocolException
+	{
+		int length = scanLine(buffer);
+		if (length < 0)
+		{
+			return null;
+		}
+		Frame frame = Frame.fromLine(line, length, charset);
+		if (MessageCodec.contentLength(frame.getMessage())
+		    > MessageCodec.maxContentLength(name))
+		{
+			// relayée, la ligne serait rejetée par les clients binaires
+			throw new ProtocolException("ChannelClient: line too long from "
+			    + name);
+		}
+		return frame;
+	}
+
+	/**
+	 * Accumulation dans {@link #line} des octets du tampon de lecture jusqu'à
+	 * la fin de la ligne en cours
+	 * @param buffer le tampon de lecture (en mode lecture)
+	 * @return le nombre d'octets de la ligne complète (sans saut de ligne)
+	 * contenue au début de {@link #line} ou bien -1 si la ligne n'est pas
+	 * encore complète
+	 * @throws ProtocolException si la ligne dépasse la taille maximum du
+	 * contenu d'une trame (voir {@link MessageCodec#maxContentLength(String)})
+	 */
+	private int scanLine(ByteBuffer buffer) throws ProtocolException
+	{
+		// retour chariot final éventuel compris
+		int maxLength = MessageCodec.maxContentLength(name) + 1;
+		while (buffer.hasRemaining())
+		{
+			byte b = buffer.get();
+			if (b == '\n')
+			{
+				int length = lineLength;
+				if ((length > 0) && (line[length - 1] == '\r'))
+				{
+					length--;
+				}
+				lineLength = 0;
+				return length;
+			}
+			if (lineLength == maxLength)
+			{
+				throw new ProtocolException("ChannelClient: line too long from "
+				    + name);
+			}
+			if (lineLength == line.length)
+			{
+				line = Arrays.copyOf(line, line.length * 2);
+			}
+			line[lineLength++] = b;
+		}
+		return -1;
+	}
+
+	/**
+	 * Extraction de la prochaine trame complète reçue du client : une trame
+	 * binaire ou bien une ligne de texte convertie en trame (voir
+	 * {@link Frame#fromLine(String)}) selon le protocole du client. Les
+	 * octets d'une trame incomplète sont conservés jusqu'à la prochaine
+	 * lecture.
+	 * @param buffer le tampon de lecture (en mode lecture)
+	 * @param charset le jeu de caractères utilisé par les clients texte
+	 * @return la prochaine trame ou bien null si le tampon ne contient pas de
+	 * trame complète
+	 * @throws IOException si la trame reçue est invalide
+	 */
+	public Frame nextFrame(ByteBuffer buffer, Charset charset)
+	    throws IOException
+	{
+		Frame frame = decodeFrame(buffer, charset);
+		if ((frame != null) && frame.isBatch())
+		{
+			// seul le serveur envoie des lots de messages
+			throw new ProtocolException("ChannelClient: unexpected batch frame from "
+			    + name);
+		}
+		return frame;
+	}
+
+	/**
+	 * Décodage de la prochaine trame complète reçue du client (voir
+	 * {@link #nextFrame(ByteBuffer, Charset)})
+	 * @param buffer le tampon de lecture (en mode lecture)
+	 * @param charset le jeu de caractères utilisé par les clients texte
+	 * @return la prochaine trame ou bien null si le tampon ne contient pas de
+	 * trame complète
+	 * @throws IOException si la trame reçue est invalide
+	 */
+	private Frame decodeFrame(ByteBuffer buffer, Charset charset)
+	    throws IOException
+	{
+		if (protocol != WireProtocol.BINARY)
+		{
+			return nextLineFrame(buffer, charset);
+		}
+
+		// trame entièrement contenue dans le tampon de lecture
+		if (lineLength == 0)
+		{
+			Frame frame = MessageCodec.decode(buffer);
+			if ((frame != null) || !buffer.hasRemaining())
+			{
+				return frame;
+			}
+		}
+
+		// trame à cheval sur plusieurs lectures
+		int needed = lineLength + buffer.remaining();
+		if (needed > line.length)
+		{
+			line = Arrays.copyOf(line, Math.max(needed, line.length * 2));
+		}
+		buffer.get(line, lineLength, buffer.remaining());
+		lineLength = needed;
+		ByteBuffer received = ByteBuffer.wrap(line, 0, lineLength);
+		Frame frame = MessageCodec.decode(received);
+		if (frame != null)
+		{
+			// les octets restants sont rendus au tampon de lecture
+			int consumed = received.position();
+			int left = lineLength - consumed;
+			lineLength = 0;
+			buffer.position(buffer.position() - left);
+		}
+		return frame;
+	}
+
+	/**
+	 * Ajout d'un message (déjà sérialisé) à la file des messages en attente.
+	 * Celui-ci sera écrit lors de l'écriture des données du client
+	 * ({@link #flush()}). La file prend sa propre référence sur la trame.
+	 * @param frame le message sérialisé à envoyer
+	 * @return false si la file des messages en attente est pleine et que le
+	 * client doit être déconnecté (politique {@link OverflowPolicy#DISCONNECT}),
+	 * true sinon
+	 */
+	public boolean send(MessageFrame frame)
+	{
+		boolean accepted = pending.offer(frame.retain());
+		interestWrite(true);
+		return accepted;
+	}
+
+	/**
+	 * Nombre de messages supprimés ou ignorés parce que le client ne les
+	 * lisait pas assez vite
+	 * @return le nombre de messages perdus
+	 */
+	public long getDropped()
+	{
+		return pending.getDropped();
+	}
+
+	/**
+	 * Ajout de données brutes à la file de sortie (utilisé par exemple pour
+	 * notifier un refus à un client avant qu'il n'ait de flux objet)
+	 * @param data les données à envoyer
+	 */
+	public void send(ByteBuffer data)
+	{
+		enqueue(data, RAWDATA);
+		interestWrite(true);
+	}
+
+	/**
+	 * Estimation de la mémoire du tas propre à la connection du client : les
+	 * messages en attente, les tampons de la file de sortie et le tampon de
+	 * la ligne (ou de la trame) en cours de réception. Les messages retenus
+	 * par l'encodeur partagé ne sont pas comptés ici car ils sont communs à
+	 * tous les clients (voir {@link FrameEncoder#getRetainedBytes()}).
+	 * @return la taille estimée (en octets) de la mémoire occupée par le
+	 * client
+	 */
+	public long getFootprint()
+	{
+		return pending.getQueuedBytes() + outQueueBytes + line.length;
+	}
+
+	/**
+	 * Taille maximum atteinte par les messages en attente
+	 * @return la taille maximum (en octets) des messages en attente
+	 */
+	public long getPeakBytes()
+	{
+		return pending.getPeakBytes();
+	}
+
+	/**
+	 * Nombre d'écritures effectuées sur le canal du client
+	 * @return le nombre d'écritures (et donc d'appels système) effectuées
+	 */
+	public long getWrites()
+	{
+		return writes;
+	}
+
+	/**
+	 * Nombre de tampons (trames) entièrement écrits vers le client
+	 * @return le nombre de trames écrites
+	 */
+	public long getWrittenFrames()
+	{
+		return writtenFrames;
+	}
+
+	/**
+	 * Accesseur en lecture de l'ajusteur du tampon d'émission
+	 * @return l'ajusteur du tampon d'émission du canal ou bien null si ce
+	 * tampon n'est pas ajusté
+	 */
+	public BufferTuner getTuner()
+	{
+		return tuner;
+	}
+
+	/**
+	 * Mise en place de l'ajustement du tampon d'émission du canal d'après le
+	 * débit observé (par le thread du reactor)
+	 * @param tuner l'ajusteur du tampon d'émission du canal
+	 */
+	void setTuner(BufferTuner tuner)
+	{
+		this.tuner = tuner;
+	}
+
+	/**
+	 * Accesseur en lecture du limiteur de débit du client
+	 * @return le limiteur du débit des messages envoyés par le client ou
+	 * bien null si le débit n'est pas limité
+	 */
+	public RateLimiter getRateLimiter()
+	{
+		return rateLimiter;
+	}
+
+	/**
+	 * Mise en place de la limitation du débit des messages envoyés par le
+	 * client (par le thread du reactor)
+	 * @param rateLimiter le limiteur de débit du client (ou null)
+	 */
+	void setRateLimiter(RateLimiter rateLimiter)
+	{
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Suspension de la lecture du client jusqu'à une date donnée : l'intérêt
+	 * pour la lecture est retiré de sa clé, les données qu'il envoie
+	 * s'accumulent donc dans le noyau jusqu'à ce que le contrôle de flux de
+	 * TCP le ralentisse. La trame qui n'a pas pu être traitée et les octets
+	 * reçus à sa suite sont conservés jusqu'à la reprise.
+	 * @param frame la trame à traiter à la reprise
+	 * @param input le tampon contenant les octets reçus à la suite de la
+	 * trame (en mode lecture), qui sont copiés
+	 * @param until date (en ns, voir {@link System#nanoTime()}) de reprise
+	 */
+	void suspendReads(Frame frame, ByteBuffer input, long until)
+	{
+		heldFrame = frame;
+		if (input.hasRemaining())
+		{
+			heldInput = ByteBuffer.allocate(input.remaining());
+			heldInput.put(input).flip();
+		}
+		else
+		{
+			heldInput = null;
+		}
+		resumeTime = until;
+		refreshInterest();
+	}
+
+	/**
+	 * Indique si la lecture du client est suspendue
+	 * @return true si la lecture est suspendue
+	 */
+	public boolean isSuspended()
+	{
+		return heldFrame != null;
+	}
+
+	/**
+	 * Date de reprise de la lecture suspendue
+	 * @return la date (en ns) à laquelle la lecture du client peut reprendre
+	 */
+	public long getResumeTime()
+	{
+		return resumeTime;
+	}
+
+	/**
+	 * Reprise de la lecture du client : l'intérêt pour la lecture est rétabli
+	 * sur sa clé
+	 * @return la trame retenue, à traiter avant les octets retenus
+	 * ({@link #takeHeldInput()})
+	 */
+	Frame resumeReads()
+	{
+		Frame frame = heldFrame;
+		heldFrame = null;
+		refreshInterest();
+		return frame;
+	}
+
+	/**
+	 * Octets reçus à la suite de la trame retenue
+	 * @return le tampon (en mode lecture) des octets retenus ou bien un
+	 * tampon vide
+	 */
+	ByteBuffer takeHeldInput()
+	{
+		ByteBuffer input = (heldInput != null ? heldInput : EMPTYINPUT);
+		heldInput = null;
+		return input;
+	}
+
+	/**
+	 * Accesseur en lecture du crédit de messages accordé par le client
+	 * @return le crédit du client
+	 */
+	public FlowCredit getCredit()
+	{
+		return credit;
+	}
+
+	/**
+	 * Crédit de messages accordé par le client (par le thread de son
+	 * reactor) : l'intérêt pour l'écriture est mis en place afin que les
+	 * messages retenus faute de crédit soient écrits dès que possible
+	 * @param messages le nombre de messages supplémentaires accordés
+	 */
+	void grantCredit(int messages)
+	{
+		credit.grant(messages);
+		interestWrite(true);
+	}
+
+	/**
+	 * Ecriture d'autant de données de la file de sortie que le canal en
+	 * accepte sans bloquer. Les tampons de la file de sortie sont écrits par
+	 * lots, en une seule écriture groupée par lot
+	 * ({@link SocketChannel#write(ByteBuffer[], int, int)}), la file de
+	 * sortie étant complétée avec les messages en attente avant chaque lot.
+	 * @return true si la file de sortie a été entièrement vidée
+	 * @throws IOException si l'écriture sur le canal échoue
+	 */
+	public boolean flush() throws IOException
+	{
+		int count;
+		while ((count = nextBatch()) > 0)
+		{
+			long bytes = channel.write(batch, 0, count);
+			writes++;
+			int written = 0;
+			while ((written < count) && !batch[written].hasRemaining())
+			{
+				outQueueBytes -= outQueue.poll().limit();
+				release(outFrames.poll());
+				written++;
+			}
+			writtenFrames += written;
+			if (tuner != null)
+			{
+				tuner.record(bytes, written < count);
+			}
+			Arrays.fill(batch, 0, count, null);
+			if (written < count)
+			{
+				// le tampon du noyau est plein : on attendra OP_WRITE
+				interestWrite(true);
+				return false;
+			}
+		}
+		interestWrite(false);
+		return true;
+	}
+
+	/**
+	 * Nettoyage du client : annulation de sa clé et fermeture de son canal
+	 */
+	public void cleanup()
+	{
+		logger.info("ChannelClient::cleanup: closing client channel ... ");
+		closing = true;
+		pending.abort();
+		outQueue.clear();
+		MessageFrame frame;
+		while ((frame = outFrames.poll()) != null)
+		{
+			release(frame);
+		}
+		outQueueBytes = 0;
+		if (key != null)
+		{
+			key.cancel();
+		}
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			logger.severe("ChannelClient::cleanup: unable to close client channel");
+			logger.severe(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Préparation du prochain lot de tampons à écrire : la file de sortie
+	 * est complétée avec les messages en attente (tant que le client a du
+	 * crédit) puis ses premiers tampons sont placés dans {@link #batch}.
+	 * Les messages retenus faute de crédit restent dans {@link #pending}.
+	 * @return le nombre de tampons du lot (0 s'il n'y a plus rien à écrire)
+	 */
+	private int nextBatch()
+	{
+		if (ready)
+		{
+			MessageFrame frame;
+			while ((outQueue.size() < batch.length)
+			    && (closing || credit.isAvailable())
+			    && ((frame = pending.pollFrame()) != null))
+			{
+				credit.consume(frame);
+				enqueue(frame.toBuffer(protocol), frame);
+			}
+			if (!closing && !credit.isAvailable() && !pending.isEmpty()
+			    && outQueue.isEmpty())
+			{
+				credit.recordStall();
+			}
+		}
+		int count = 0;
+		for (ByteBuffer data : outQueue)
+		{
+			if (count == batch.length)
+			{
+				break;
+			}
+			batch[count++] = data;
+		}
+		return count;
+	}
+
+	/**
+	 * Ajout d'un tampon à la file de sortie
+	 * @param data le tampon à ajouter
+	 * @param frame la trame (dont on détient une référence) contenant le
+	 * tampon ou bien {@link #RAWDATA}
+	 */
+	private void enqueue(ByteBuffer data, MessageFrame frame)
+	{
+		outQueue.add(data);
+		outFrames.add(frame);
+		outQueueBytes += data.limit();
+	}
+
+	/**
+	 * Libération de la référence sur une trame dont le tampon a été écrit
+	 * (ou abandonné)
+	 * @param frame la trame ou bien {@link #RAWDATA}
+	 */
+	private static void release(MessageFrame frame)
+	{
+		if (frame != RAWDATA)
+		{
+			frame.release();
+		}
+	}
+
+	/**
+	 * Mise à jour de l'intérêt pour la lecture sur la clé du client après la
+	 * suspension ou la reprise de sa lecture (l'intérêt pour l'écriture est
+	 * conservé)
+	 */
+	private void refreshInterest()
+	{
+		if ((key != null) && key.isValid())
+		{
+			interestWrite((key.interestOps() & SelectionKey.OP_WRITE) != 0);
+		}
+	}
+
+	/**
+	 * Mise en place ou retrait de l'intérêt pour l'écriture sur la clé du
+	 * client (l'intérêt pour la lecture n'est conservé que si la lecture
+	 * n'est pas suspendue)
+	 * @param write true pour être notifié lorsque le canal accepte
+	 * l'écriture
+	 */
+	private void interestWrite(boolean write)
+	{
+		if ((key != null) && key.isValid())
+		{
+			int ops = (heldFrame == null ? SelectionKey.OP_READ : 0);
+			if (write)
+			{
+				ops |= SelectionKey.OP_WRITE;
+			}
+			if (key.interestOps() != ops)
+			{
+				key.interestOps(ops);
+			}
+		}
+	}
+}
@@ -1,21 +1,54 @@
 package chat.server;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.util.Vector;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import chat.Failure;
+import chat.FrameType;
+import chat.MessageCodec;
+import chat.Vocabulary;
+import chat.WireProtocol;
 import logger.LoggerFactory;
+import models.Message;
 
 /**
  * Classe du serveur de chat Chaque message de chaque client doit être renvoyé à
  * tous autres clients
+ * Les messages traversent un pipeline dont chaque étage a sa propre
+ * politique de threads et ses propres mesures ({@link StageMetrics}) :
+ * <ol>
+ * <li>lecture : un {@link ClientHandler} par client lit ses trames</li>
+ * <li>traitement : l'étage {@link #getProcessStage()} affiche les messages,
+ * exécute les commandes et publie les diffusions dans le séquenceur, avec
+ * un nombre de threads réglable et des files bornées</li>
+ * <li>encodage : l'unique distributeur du séquenceur encode les trames dans
+ * l'ordre de leurs numéros de séquence (le flux objet partagé l'exige)</li>
+ * <li>distribution : ajout des trames aux files des clients, par le
+ * distributeur ou par les groupes de clients ({@link ShardedFanOut})</li>
+ * <li>écriture : un {@link ClientWriter} par client écrit sa file</li>
+ * </ol>
  *
  * @author davidroussel
  */
@@ -32,12 +65,15 @@ public class ChatServer implements Runnable
 	public final static int DEFAULTPORT = 1394;
 
 	/**
-	 * Temps d'attente (en ms) par défaut d'une connection d'un client. Au bout
-	 * de ce temps une {@link SocketTimeoutException} est générée et on peut
-	 * choisir de recommencer à attendre (s'il reste des clients) ou bien
-	 * arrêter le serveur (s'il n'y a plus de clients)
+	 * Taille maximum (en octets) de la ligne de présentation d'un client
 	 */
-	public final static int DEFAULTTIMEOUT = 1000;
+	public final static int MAXNAMELINE = 1024;
+
+	/**
+	 * Délai (en ms) avant de réessayer d'accepter une connection après un
+	 * échec de l'acceptation
+	 */
+	public final static long ACCEPTRETRYDELAY = 100;
 
 	/**
 	 * La liste des différents clients. Un client est constitué :
@@ -47,24 +83,181 @@ public class ChatServer implements Runnable
 	 * <li>d'un flux d'entrée : {@link BufferedReader}</li>
 	 * <li>d'un flux de sortie {@link PrintWriter}</li>
 	 * </ul>
-	 * Cette liste devra être accédée de manière synchrone par les différents
-	 * threads traitant les différents clients.
+	 * Ce registre est partagé sans verrou par les différents threads traitant
+	 * les différents clients (voir {@link ClientRegistry}).
 	 *
 	 * @uml.property name="clients"
 	 * @uml.associationEnd multiplicity="(0 -1)" ordering="true"
 	 *                     aggregation="composite"
 	 *                     inverse="chatServer:chat.server.InputOutputClient"
 	 */
-	private Vector<InputOutputClient> clients;
+	private ClientRegistry<InputOutputClient> clients;
 
 	/**
-	 * Liste des handlers de chaque client
-	 * @uml.property name="handlers"
-	 * @uml.associationEnd multiplicity="(0 -1)" ordering="true"
-	 *                     aggregation="composite"
-	 *                     inverse="chatServer:chat.server.ClientHandler"
+	 * Superviseur des connections en cours : présentation des clients puis
+	 * {@link ClientHandler} et {@link ClientWriter} de chaque client
+	 */
+	private final ConnectionSupervisor supervisor;
+
+	/**
+	 * Contrôle d'admission des connections, appliqué dès leur acceptation
+	 */
+	private final AdmissionControl admission;
+
+	/**
+	 * Nombre de messages de clients ayant dépassé le débit autorisé (voir
+	 * {@link RateLimiter})
+	 */
+	private final AtomicLong throttled;
+
+	/**
+	 * Message à diffuser ou réponse destinée à un seul client, publié dans
+	 * le {@link #sequencer}
+	 */
+	private static final class Delivery
+	{
+		/**
+		 * Les messages à envoyer
+		 */
+		final List<Message> messages;
+
+		/**
+		 * Le client destinataire (null pour une diffusion)
+		 */
+		final InputOutputClient recipient;
+
+		/**
+		 * Constructeur d'une diffusion ou d'une réponse
+		 * @param messages les messages à envoyer (un seul pour une
+		 * diffusion)
+		 * @param recipient le client destinataire ou bien null pour
+		 * diffuser le message à tous les clients
+		 */
+		Delivery(List<Message> messages, InputOutputClient recipient)
+		{
+			this.messages = messages;
+			this.recipient = recipient;
+		}
+	}
+
+	/**
+	 * Verrou de diffusion des messages, sous lequel les trames sont encodées
+	 * et ajoutées aux files des clients (par le distributeur du
+	 * {@link #sequencer} et par le {@link #coalescer}). On utilise un
+	 * {@link ReentrantLock} plutôt qu'un bloc synchronized car un thread
+	 * virtuel bloqué dans une écriture à l'intérieur d'un bloc synchronized
+	 * reste attaché à son thread porteur.
+	 */
+	private final ReentrantLock broadcastLock;
+
+	/**
+	 * Séquenceur dans lequel les {@link ClientHandler} publient, sans verrou,
+	 * les messages diffusés et les réponses aux commandes. Son unique thread
+	 * de distribution les encode et les ajoute aux files des clients dans
+	 * l'ordre de leurs numéros de séquence, qui est donc le même pour tous les
+	 * clients.
+	 */
+	private final BroadcastSequencer<Delivery> sequencer;
+
+	/**
+	 * Numéro de séquence de la dernière diffusion confiée au distributeur,
+	 * attribué aux trames diffusées (sous le {@link #broadcastLock})
+	 */
+	private long sequence;
+
+	/**
+	 * Encodeur des messages diffusés, utilisé sous le
+	 * {@link #broadcastLock}
+	 */
+	private final FrameEncoder frameEncoder;
+
+	/**
+	 * Pool des tampons utilisés pour les entrées/sorties des clients et pour
+	 * les trames diffusées (null si le serveur n'utilise pas de pool)
+	 */
+	private final BufferPool bufferPool;
+
+	/**
+	 * Regroupement des messages diffusés pendant une fenêtre de temps (null
+	 * si les messages ne sont pas regroupés, voir
+	 * {@link ServerSettings#getCoalesceWindow()})
+	 */
+	private final BroadcastCoalescer coalescer;
+
+	/**
+	 * Distribution des trames diffusées en parallèle par groupes de clients
+	 * dans une grande salle (null si la distribution n'est jamais répartie,
+	 * voir {@link ServerSettings#getFanOutShards()})
+	 */
+	private final ShardedFanOut fanOut;
+
+	/**
+	 * Etage de traitement des trames lues par les {@link ClientHandler}
+	 * (affichage, commandes et publication des diffusions)
+	 */
+	private final PipelineStage processStage;
+
+	/**
+	 * Mesures de l'étage de lecture (les {@link ClientHandler})
+	 */
+	private final StageMetrics readMetrics;
+
+	/**
+	 * Mesures de l'étage d'encodage (le distributeur du {@link #sequencer}
+	 * et le {@link #coalescer})
+	 */
+	private final StageMetrics encodeMetrics;
+
+	/**
+	 * Mesures de l'étage de distribution des trames aux files des clients
+	 */
+	private final StageMetrics routeMetrics;
+
+	/**
+	 * Mesures de l'étage d'écriture (les {@link ClientWriter})
+	 */
+	private final StageMetrics writeMetrics;
+
+	/**
+	 * Commandes exécutées lorsqu'un client envoie une trame de contrôle
+	 */
+	private final CommandRegistry commands;
+
+	/**
+	 * Historique des derniers messages diffusés, rejoués à chaque client
+	 * lors de son arrivée
+	 */
+	private final MessageHistory history;
+
+	/**
+	 * Journal persistant des messages diffusés, qui remplit l'historique au
+	 * démarrage du serveur (null si les messages ne sont pas journalisés,
+	 * voir {@link ServerSettings#getLogDirectory()})
+	 */
+	private final MessageLog messageLog;
+
+	/**
+	 * Fabrique des threads exécutant les {@link ClientHandler} : threads
+	 * classiques ou bien threads virtuels
+	 */
+	private final ThreadFactory threadFactory;
+
+	/**
+	 * Exécuteur des présentations des clients (lecture de leur nom) afin que
+	 * le thread du serveur ne fasse qu'accepter les connections
+	 */
+	private final ExecutorService handshakeExecutor;
+
+	/**
+	 * Minuteur fermant les connections des clients ne s'étant pas présentés
+	 * dans le délai imparti
+	 */
+	private final ScheduledExecutorService handshakeTimer;
+
+	/**
+	 * Réglages du serveur
 	 */
-	private Vector<ClientHandler> handlers;
+	private final ServerSettings settings;
 
 	/**
 	 * logger pour afficher les messages d'erreur
@@ -73,9 +266,9 @@ public class ChatServer implements Runnable
 
 	/**
 	 * Etat d'écoute du serveur. Cet état est vrai au départ et passe à false
-	 * lorsque le dernier client se déconnecte.
+	 * lorsque le dernier client se déconnecte ou qu'un kill est demandé.
 	 */
-	private boolean listening;
+	private volatile boolean listening;
 
 	/**
 	 * Termine le serveur lorsque le dernier client se délogue
@@ -87,38 +280,174 @@ public class ChatServer implements Runnable
 	 * {@link ServerSocket},
 	 *
 	 * @param port le port sur lequel on écoute les requètes
-	 * @param verbose affiche les messages de débug ou pas
-	 * @param timeout temps d'attente de connection d'un client
 	 * @param quitOnLastClient quitte le serveur lorsque le dernier client
 	 * se délogue
+	 * @param settings réglages du serveur
 	 * @param parentLogger logger parent pour l'affichage des messages de
 	 * debug
 	 * @throws IOException Si une erreur intervient lors de la création de la
 	 *             {@link ServerSocket}
 	 */
 	public ChatServer(int port,
-	                  int timeout,
 	                  boolean quitOnLastClient,
+	                  ServerSettings settings,
 	                  Logger parentLogger)
 	    throws IOException
 	{
 		this.quitOnLastClient = quitOnLastClient;
+		this.settings = settings;
 		logger = LoggerFactory.getParentLogger(getClass(),
 		                                       parentLogger,
 		                                       parentLogger.getLevel());
 
-		logger.info("ChatServer::ChatServer(port = " + port + ", timeout = "
-		    + timeout + ", quit = " + (quitOnLastClient ? "true" : "false")
-		    + ")");
+		logger.info("ChatServer::ChatServer(port = " + port
+		    + ", quit = " + (quitOnLastClient ? "true" : "false")
+		    + ", virtual threads = "
+		    + (settings.isVirtualThreads() ? "true" : "false")
+		    + ", handshake timeout = " + settings.getHandshakeTimeout()
+		    + ", socket profile = " + settings.getSocketProfile()
+		    + ", backlog = " + settings.getBacklog() + ")");
+
+		ThreadFactory factory = null;
+		if (settings.isVirtualThreads())
+		{
+			factory = virtualThreadFactory();
+			if (factory == null)
+			{
+				logger.warning("ChatServer: virtual threads not supported by "
+				    + "this JVM, using platform threads");
+			}
+		}
+		threadFactory = (factory != null ? factory : Thread::new);
+		bufferPool = (settings.getBufferPoolSize() > 0 ?
+		    new BufferPool(settings.getBufferPoolSize()) : null);
+		broadcastLock = new ReentrantLock();
+		sequence = 0;
+		frameEncoder = new FrameEncoder(settings.getResetMessages(),
+		                                settings.getResetBytes(),
+		                                bufferPool);
+		if (settings.getCoalesceWindow() > 0)
+		{
+			coalescer = new BroadcastCoalescer(broadcastLock,
+			                                   this::deliver,
+			                                   settings.getCoalesceWindow(),
+			                                   settings.getCoalesceMessages());
+		}
+		else
+		{
+			coalescer = null;
+		}
+		readMetrics = new StageMetrics("read", null);
+		encodeMetrics = new StageMetrics("encode", this::getPendingDeliveries);
+		routeMetrics = new StageMetrics("route", this::getPendingShardTasks);
+		writeMetrics = new StageMetrics("write", this::getQueuedFrames);
+		processStage = new PipelineStage("process",
+		                                 settings.getProcessThreads(),
+		                                 settings.getStageCapacity(),
+		                                 threadFactory,
+		                                 logger);
+		if (settings.getFanOutShards() > 1)
+		{
+			fanOut = new ShardedFanOut(settings.getFanOutShards(),
+			                           settings.getFanOutThreshold(),
+			                           this::offer,
+			                           routeMetrics,
+			                           logger);
+		}
+		else
+		{
+			fanOut = null;
+		}
+		commands = CommandRegistry.standard();
+		history = new MessageHistory(settings.getHistorySize(),
+		                             settings.getHistoryBytes(),
+		                             frameEncoder);
+		sequencer = new BroadcastSequencer<Delivery>("ChatServer-sequencer",
+		                                             settings.getSequencerSize(),
+		                                             this::dispatch,
+		                                             logger);
+		handshakeExecutor = Executors.newCachedThreadPool(threadFactory);
+		handshakeTimer = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+			Thread t = new Thread(r, "ChatServer-handshake-timer");
+			t.setDaemon(true);
+			return t;
+		});
+
+		/*
+		 * Pas de timeout sur la server socket : l'attente d'un client est
+		 * bloquante et c'est la fermeture de la server socket (voir
+		 * setListening) qui interrompt cette attente lorsque le serveur doit
+		 * s'arrêter.
+		 * La server socket est créée à partir d'un canal afin que les
+		 * sockets des clients possèdent elles aussi un canal, ce qui permet
+		 * à leurs ClientWriter d'écrire plusieurs trames en une seule
+		 * écriture groupée. Ces sockets restent en mode bloquant.
+		 * Le profil des sockets est appliqué avant bind afin que les
+		 * sockets acceptées héritent de la taille de son tampon de
+		 * réception, et la taille de la file des connections en attente
+		 * permet d'absorber un afflux de connections.
+		 */
+		serverSocket = ServerSocketChannel.open().socket();
+		serverSocket.setReuseAddress(true);
+		settings.getSocketProfile().configure(serverSocket);
+		serverSocket.bind(new InetSocketAddress(port), settings.getBacklog());
 
-		serverSocket = new ServerSocket(port);
-		if (serverSocket != null)
+		/*
+		 * Relecture du journal des messages et rechargement de l'historique
+		 * avant d'accepter le premier client, qui reçoit donc les derniers
+		 * messages diffusés avant le redémarrage du serveur
+		 */
+		if (settings.getLogDirectory() != null)
+		{
+			long retention =
+			    TimeUnit.SECONDS.toMillis(settings.getLogRetention());
+			try
+			{
+				messageLog = new MessageLog(Paths.get(settings.getLogDirectory()),
+				                            settings.getLogSegmentSize(),
+				                            retention,
+				                            settings.getLogRetentionBytes(),
+				                            settings.getLogCapacity(),
+				                            logger);
+				history.add(messageLog.recent(settings.getHistorySize()));
+			}
+			catch (IOException e)
+			{
+				serverSocket.close();
+				throw e;
+			}
+		}
+		else
 		{
-			serverSocket.setSoTimeout(timeout);
+			messageLog = null;
 		}
 
-		clients = new Vector<InputOutputClient>();
-		handlers = new Vector<ClientHandler>();
+		clients = new ClientRegistry<InputOutputClient>();
+		admission = new AdmissionControl(settings);
+		throttled = new AtomicLong(0);
+		supervisor = new ConnectionSupervisor(logger,
+		    (ConnectionSupervisor.Session session) ->
+		        admission.release(session.getSocket().getInetAddress()));
+	}
+
+	/**
+	 * Constructeur valué d'un serveur de chat utilisant les réglages par
+	 * défaut.
+	 *
+	 * @param port le port sur lequel on écoute les requètes
+	 * @param quitOnLastClient quitte le serveur lorsque le dernier client
+	 * se délogue
+	 * @param parentLogger logger parent pour l'affichage des messages de
+	 * debug
+	 * @throws IOException Si une erreur intervient lors de la création de la
+	 *             {@link ServerSocket}
+	 */
+	public ChatServer(int port,
+	                  boolean quitOnLastClient,
+	                  Logger parentLogger)
+	    throws IOException
+	{
+		this(port, quitOnLastClient, new ServerSettings(), parentLogger);
 	}
 
 	/**
@@ -133,7 +462,7 @@ public class ChatServer implements Runnable
 	 */
 	public ChatServer(int port, Logger parentLogger) throws IOException
 	{
-		this(port, DEFAULTTIMEOUT, true, parentLogger);
+		this(port, true, parentLogger);
 	}
 
 	/**
@@ -162,12 +491,113 @@ public class ChatServer implements Runnable
 	}
 
 	/**
-	 * Change l'état d'écoute du serveur
+	 * Accesseur en lecture du verrou de diffusion des messages
+	 * @return le verrou sous lequel les trames sont encodées et ajoutées aux
+	 * files des clients
+	 */
+	protected ReentrantLock getBroadcastLock()
+	{
+		return broadcastLock;
+	}
+
+	/**
+	 * Accesseur en lecture de l'encodeur des messages diffusés
+	 * @return l'encodeur partagé par les {@link ClientHandler}
+	 */
+	protected FrameEncoder getFrameEncoder()
+	{
+		return frameEncoder;
+	}
+
+	/**
+	 * Accesseur en lecture du pool de tampons
+	 * @return le pool des tampons d'entrées/sorties du serveur ou bien null
+	 * si le serveur n'utilise pas de pool
+	 */
+	protected BufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+
+	/**
+	 * Accesseur en lecture de l'étage de traitement
+	 * @return l'étage auquel les {@link ClientHandler} confient les trames
+	 * lues (avec leur client pour clé)
+	 */
+	protected PipelineStage getProcessStage()
+	{
+		return processStage;
+	}
+
+	/**
+	 * Accesseur en lecture des mesures de l'étage de lecture
+	 * @return les mesures enregistrées par les {@link ClientHandler}
+	 */
+	protected StageMetrics getReadMetrics()
+	{
+		return readMetrics;
+	}
+
+	/**
+	 * Accesseur en lecture des commandes du serveur, auxquelles de nouvelles
+	 * commandes peuvent être ajoutées
+	 * @return le registre des commandes exécutées par les
+	 * {@link ClientHandler}
+	 */
+	public CommandRegistry getCommands()
+	{
+		return commands;
+	}
+
+	/**
+	 * Accesseur en lecture du superviseur des connections
+	 * @return le superviseur des connections du serveur (nombres de
+	 * connections en cours, maximum et total)
+	 */
+	public ConnectionSupervisor getSupervisor()
+	{
+		return supervisor;
+	}
+
+	/**
+	 * Accesseur en lecture des réglages du serveur
+	 * @return les réglages du serveur
+	 */
+	public ServerSettings getSettings()
+	{
+		return settings;
+	}
+
+	/**
+	 * Comptabilisation d'un message de client ayant dépassé le débit
+	 * autorisé (par le {@link ClientHandler} du client)
+	 */
+	void recordThrottled()
+	{
+		throttled.incrementAndGet();
+	}
+
+	/**
+	 * Change l'état d'écoute du serveur. Lorsque le serveur doit s'arrêter,
+	 * la server socket est fermée afin d'interrompre immédiatement l'attente
+	 * d'un nouveau client dans {@link #run()}.
 	 * @param value la nouvelle valeur
 	 */
 	public synchronized void setListening(boolean value)
 	{
 		listening = value;
+		if (!value)
+		{
+			try
+			{
+				serverSocket.close();
+			}
+			catch (IOException e)
+			{
+				logger.severe("Close serversocket Failed !");
+				logger.severe(e.getLocalizedMessage());
+			}
+		}
 	}
 
 	/**
@@ -181,13 +611,11 @@ public class ChatServer implements Runnable
 	@Override
 	public void run()
 	{
-		Vector<Thread> handlerThreads = new Vector<Thread>();
 		listening = true;
 
 		while (listening)
 		{
 			Socket clientSocket = null;
-			String clientName = null;
 
 			// acceptation de la socket du client
 			try
@@ -197,103 +625,53 @@ public class ChatServer implements Runnable
 				logger.fine("ChatServer: client connection accepted");
 
 			}
-			catch (SocketTimeoutException ste)
-			{
-				// on re-attends
-				logger.info("Socket timeout, rewaiting ...");
-				continue;
-			}
 			catch (IOException e)
 			{
+				if (!listening)
+				{
+					// fermeture de la server socket par setListening(false)
+					logger.info("ChatServer::run: server socket closed");
+					break;
+				}
 
+				/*
+				 * Echec passager de l'acceptation (par exemple plus de
+				 * descripteurs de fichiers disponibles) : le serveur
+				 * continue de traiter les clients déjà connectés et
+				 * réessaie un peu plus tard
+				 */
 				logger.severe(Failure.SERVER_CONNECTION.toString()
 				    + ": " + e.getLocalizedMessage());
-				System.exit(Failure.SERVER_CONNECTION.toInteger());
+				pauseAccept();
+				continue;
 			}
 
-			if (clientSocket != null)
+			/*
+			 * Contrôle d'admission avant toute création de client : une
+			 * connection refusée ne coûte que l'écriture de la ligne de
+			 * refus et la fermeture de sa socket
+			 */
+			AdmissionControl.Verdict verdict =
+			    admission.admit(clientSocket.getInetAddress());
+			if (verdict != AdmissionControl.Verdict.ADMITTED)
 			{
-				// récupération du nom du client
-				BufferedReader reader = null;
-				logger.info("ChatServer: Creatingc client input stream to get client's name ... ");
-				try
-				{
-					reader = new BufferedReader(new InputStreamReader(
-							clientSocket.getInputStream()));
-				}
-				catch (IOException e1)
-				{
-					logger.severe("ChatServer: " + Failure.CLIENT_INPUT_STREAM);
-					logger.severe(e1.getLocalizedMessage());
-					System.exit(Failure.CLIENT_INPUT_STREAM.toInteger());
-				}
-				if (reader != null)
-				{
-					logger.info("ChatServer: reading client's name: ");
-					try
-					{
-						// Lecture du nom du client
-						clientName = reader.readLine();
-						logger.info("ChatServer: client name " + clientName);
-					}
-					catch (IOException e)
-					{
-						logger.severe("ChatServer: "+ Failure.NO_NAME_CLIENT);
-						logger.severe(e.getLocalizedMessage());
-						System.exit(Failure.NO_NAME_CLIENT.toInteger());
-					}
-
-					/*
-					 * On ne doit PAS fermer le client input stream car cela
-					 * revient à fermer la socket
-					 */
-				}
-
-				// Avant d'enregister cette connection dans l'ensemble des
-				// clients il faut vérifier qu'aucun client ne porte le même
-				// nom
-				if (searchClientByName(clientName) == null)
-				{
-					// Création d'un nouveau client
-					InputOutputClient newClient =
-							new InputOutputClient(clientSocket,
-							                      clientName,
-							                      logger);
-
-					// Ajout du nouveau client à la liste des clients.
-					synchronized (clients)
-					{
-						clients.add(newClient);
-					}
+				logger.fine("ChatServer: connection refused (" + verdict + ")");
+				AdmissionControl.reject(clientSocket, verdict);
+				clientSocket = null;
+			}
 
-					// Création et lancement d'un handler pour ce client
-					ClientHandler handler = new ClientHandler(this,
-					                                          newClient,
-					                                          clients,
-					                                          logger);
-					handlers.add(handler);
-					Thread handlerThread = new Thread(handler);
-					handlerThread.start();
-					handlerThreads.add(handlerThread);
-				}
-				else // un client avec ce nom existe déjà
-				{
-					// on notifie au client qu'il est refusé
-					try
-					{
-						PrintWriter out = new PrintWriter(
-								clientSocket.getOutputStream(), true);
-						out.println("server > Sorry another client already use the name "
-								+ clientName);
-						out.println("Hit ^D to close your client and try another name");
-						out.close();
-					}
-					catch (IOException e)
-					{
-						logger.severe("ChatServer: " + Failure.CLIENT_OUTPUT_STREAM);
-						logger.severe(e.getLocalizedMessage());
-					}
-				}
+			if (clientSocket != null)
+			{
+				/*
+				 * La lecture du nom du client est confiée à un autre thread
+				 * afin de pouvoir accepter immédiatement les connections
+				 * suivantes : un client qui ne donne jamais son nom ne bloque
+				 * donc plus les autres clients.
+				 */
+				ConnectionSupervisor.Session session =
+				    supervisor.open(clientSocket);
+				handshakeExecutor.execute(
+				    supervisor.task(session, () -> handshake(session)));
 
 				/*
 				 * Lorsqu'un ClientHandler se termine il lance la méthode
@@ -303,26 +681,45 @@ public class ChatServer implements Runnable
 			}
 		} // while listening
 
-		// attente de la fin de tous les threads de ClientHandler
-		for (Thread t : handlerThreads)
+		// les présentations en cours échoueront à la fermeture des sessions
+		handshakeExecutor.shutdown();
+		handshakeTimer.shutdownNow();
+
+		// transmission des derniers messages regroupés
+		if (coalescer != null)
 		{
-			try
-			{
-				t.join();
-			}
-			catch (InterruptedException e)
-			{
-				logger.severe("ChatServer::run: Client handlers join interrupted");
-				logger.severe(e.getLocalizedMessage());
-			}
+			coalescer.close();
 		}
 
-		logger.info("ChatServer::run: all client handlers terminated");
-
+		/*
+		 * Fermeture des connections restantes (après un kill) afin de
+		 * débloquer leurs handlers en attente de lecture, puis attente de la
+		 * fin de leurs tâches
+		 */
+		if (supervisor.shutdown(settings.getShutdownTimeout()))
+		{
+			logger.info("ChatServer::run: all client handlers terminated");
+		}
+		else
+		{
+			logger.warning("ChatServer::run: " + supervisor.getLive()
+			    + " connections not terminated within "
+			    + settings.getShutdownTimeout() + " ms");
+		}
 
-		handlerThreads.clear();
-		handlers.clear();
-		clients.clear();
+		// traitement des dernières trames lues puis distribution des
+		// derniers messages publiés
+		processStage.close(settings.getShutdownTimeout());
+		sequencer.close(settings.getShutdownTimeout());
+		if (fanOut != null)
+		{
+			fanOut.close(settings.getShutdownTimeout());
+		}
+		if (messageLog != null)
+		{
+			messageLog.close(settings.getShutdownTimeout());
+		}
+		history.clear();
 
 		// Fermeture de la socket du serveur
 		logger.info("ChatServer::run: Closing server socket ... ");
@@ -339,54 +736,827 @@ public class ChatServer implements Runnable
 	}
 
 	/**
-	 * Méthode invoquée par les {@link ClientHandler} à la fin de leur exécution
-	 * pour éventuellement arrêter le serveur lorsqu'il n'y a plus de clients
+	 * Courte pause après un échec de l'acceptation d'une connection, afin de
+	 * ne pas boucler sur une erreur persistante
 	 */
-	protected synchronized void cleanup()
+	private void pauseAccept()
 	{
-		// s'il ne reste plus de threads on arrête la boucle
-		int nbThreads = ClientHandler.getNbThreads();
-		if (nbThreads <= 0)
+		try
 		{
-			if (quitOnLastClient)
-			{
-				listening = false;
-				logger.info("ChatServer::run: no more threads.");
-			}
+			Thread.sleep(ACCEPTRETRYDELAY);
 		}
-		else
+		catch (InterruptedException e)
 		{
-			logger.info("ChatServer::run: still " + nbThreads +
-					" threads remaining ...");
+			Thread.currentThread().interrupt();
+			listening = false;
 		}
 	}
 
 	/**
-	 * Recherche parmis les clients déjà enregistrés un client portant le même
-	 * nom que l'argument
-	 *
-	 * @param clientName le nom du client à rechercher parmis les clients déjà
-	 *            enregistrés
-	 * @return le client recherché s'il existe ou bien null s'il n'existe pas
+	 * Présentation d'un client qui vient de se connecter : lecture de son
+	 * nom, vérification qu'aucun autre client ne porte le même nom puis
+	 * création et lancement de son {@link ClientHandler}. Si le client n'a
+	 * pas envoyé son nom dans le délai imparti
+	 * ({@link ServerSettings#getHandshakeTimeout()}), sa socket est fermée.
+	 * Cette méthode est exécutée par l'un des threads du
+	 * {@link #handshakeExecutor}, comme tâche de la session de la connection
+	 * à laquelle sont ensuite rattachés le handler et l'écrivain du client.
+	 * @param session la session de la connection du client
 	 */
-	protected InputOutputClient searchClientByName(String clientName)
+	private void handshake(ConnectionSupervisor.Session session)
 	{
-		/*
-		 * La consultation de la liste des clients à la recherche d'un nom doit
-		 * être atomique afin qu'aucun autre thread ne puisse modifier cette
-		 * liste pendant qu'on la consulte : d'où le "synchronized"
-		 */
-		synchronized (clients)
+		Socket clientSocket = session.getSocket();
+		String clientName = null;
+		int handshakeTimeout = settings.getHandshakeTimeout();
+
+		try
 		{
-			for (InputOutputClient c : clients)
+			settings.getSocketProfile().configure(clientSocket);
+		}
+		catch (SocketException e)
+		{
+			logger.warning("ChatServer::handshake: unable to apply socket profile: "
+			    + e.getLocalizedMessage());
+		}
+
+		/*
+		 * Mise en place de l'échéance de présentation : le délai porte sur
+		 * l'ensemble de la présentation et pas seulement sur chaque lecture,
+		 * un client envoyant son nom octet par octet est donc aussi
+		 * déconnecté.
+		 */
+		ScheduledFuture<?> deadline = null;
+		if (handshakeTimeout > 0)
+		{
+			deadline = handshakeTimer.schedule(() -> {
+				logger.warning("ChatServer: client did not send its name within "
+				    + handshakeTimeout + " ms, closing connection");
+				close(clientSocket);
+			}, handshakeTimeout, TimeUnit.MILLISECONDS);
+		}
+
+		// récupération du nom du client
+		logger.info("ChatServer: Creatingc client input stream to get client's name ... ");
+		WireProtocol protocol = WireProtocol.OBJECT;
+		try
+		{
+			logger.info("ChatServer: reading client's name: ");
+			/*
+			 * Lecture du nom du client (et du protocole qu'il demande)
+			 * directement sur le flux de la socket : un lecteur tamponné
+			 * pourrait consommer les données qui suivent le nom et qui
+			 * seront lues par le flux d'entrée du client.
+			 * On ne doit PAS fermer le client input stream car cela
+			 * revient à fermer la socket
+			 */
+			String nameLine = readNameLine(clientSocket.getInputStream());
+			if (nameLine != null)
 			{
-				if (c.getName().equals(clientName))
+				protocol = WireProtocol.requested(nameLine);
+				clientName = WireProtocol.userName(nameLine);
+			}
+			logger.info("ChatServer: client name " + clientName
+			    + " using " + protocol + " protocol");
+		}
+		catch (IOException e)
+		{
+			logger.warning("ChatServer: " + Failure.NO_NAME_CLIENT);
+			logger.warning(e.getLocalizedMessage());
+		}
+
+		if ((deadline != null) && !deadline.cancel(false))
+		{
+			// l'échéance est passée : la socket a déjà été fermée
+			return;
+		}
+
+		if (clientName == null)
+		{
+			logger.warning("ChatServer: " + Failure.NO_NAME_CLIENT
+			    + ", closing connection");
+			close(clientSocket);
+			return;
+		}
+
+		/*
+		 * Avant d'enregister cette connection dans l'ensemble des clients il
+		 * faut vérifier qu'aucun client ne porte le même nom. Plusieurs
+		 * présentations pouvant avoir lieu en même temps, la vérification et
+		 * l'ajout doivent être atomiques : c'est le cas de l'enregistrement
+		 * dans le registre des clients, qui ne nécessite aucun verrou. Le
+		 * client n'est accueilli qu'une fois son nom enregistré.
+		 */
+		InputOutputClient newClient = null;
+		if (searchClientByName(clientName) == null)
+		{
+			// Création d'un nouveau client
+			newClient = new InputOutputClient(clientSocket,
+			                                  clientName,
+			                                  settings.getOutboundCapacity(),
+			                                  settings.getOverflowPolicy(),
+			                                  frameEncoder,
+			                                  protocol,
+			                                  bufferPool,
+			                                  logger);
+			if (!newClient.isReady())
+			{
+				// flux du client inutilisables : refus de cette seule connection
+				logger.warning("ChatServer: " + Failure.CLIENT_NOT_READY
+				    + ", closing connection of " + clientName);
+				newClient.cleanup();
+				return;
+			}
+			if (settings.isAutoTune())
+			{
+				newClient.setTuner(new BufferTuner(clientSocket, logger));
+			}
+			newClient.setRateLimiter(RateLimiter.create(settings));
+			newClient.advanceCursor(sequencer.getDispatched());
+
+			/*
+			 * Ajout du nouveau client à la liste des clients, sous le verrou
+			 * de diffusion afin qu'aucune trame ne soit diffusée entre
+			 * l'enregistrement et la copie de l'historique : chaque message
+			 * diffusé avant l'enregistrement est rejoué par l'historique,
+			 * chaque message diffusé après est ajouté à la file du client.
+			 */
+			List<MessageFrame> replayed = null;
+			broadcastLock.lock();
+			try
+			{
+				if (clients.register(clientName, newClient))
 				{
-					return c;
+					if (fanOut != null)
+					{
+						fanOut.add(newClient);
+					}
+					if (protocol == WireProtocol.OBJECT)
+					{
+						/*
+						 * le nouveau client ne pourra lire qu'une trame de
+						 * remise à zéro. La demande suit l'enregistrement :
+						 * la prochaine trame encodée sera donc diffusée à ce
+						 * client.
+						 */
+						frameEncoder.requestReset();
+					}
+					replayed = history.replay();
 				}
 			}
+			finally
+			{
+				broadcastLock.unlock();
+			}
+
+			if (replayed == null)
+			{
+				// un autre client a pris ce nom entre temps
+				newClient = null;
+			}
+			else
+			{
+				/*
+				 * Accueil du client et derniers messages diffusés en une
+				 * seule écriture, avant le lancement de son écrivain
+				 */
+				boolean welcomed;
+				try
+				{
+					welcomed = newClient.welcome(replayed);
+				}
+				finally
+				{
+					for (MessageFrame frame : replayed)
+					{
+						frame.release();
+					}
+				}
+				if (!welcomed)
+				{
+					unregister(newClient);
+					newClient.cleanup();
+					return;
+				}
+			}
+		}
+
+		if (newClient != null)
+		{
+			// Création et lancement d'un handler pour ce client
+			ClientHandler handler = new ClientHandler(this,
+			                                          newClient,
+			                                          logger);
+			threadFactory.newThread(supervisor.task(session, handler)).start();
+
+			// Création et lancement de l'écrivain de ce client
+			ClientWriter writer = new ClientWriter(newClient,
+			                                       settings.getBatchFrames(),
+			                                       settings.getBatchDelay(),
+			                                       writeMetrics,
+			                                       logger);
+			threadFactory.newThread(supervisor.task(session, writer)).start();
+		}
+		else // un client avec ce nom existe déjà
+		{
+			// on notifie au client qu'il est refusé
+			String refusal = "server > Sorry another client already use the name "
+			    + clientName;
+			String hint = "Hit ^D to close your client and try another name";
+			try
+			{
+				if (protocol == WireProtocol.BINARY)
+				{
+					clientSocket.getOutputStream().write(MessageCodec.encode(
+					    FrameType.CONTROL,
+					    new Message(refusal + Vocabulary.newLine + hint)));
+					clientSocket.close();
+				}
+				else
+				{
+					PrintWriter out = new PrintWriter(
+							clientSocket.getOutputStream(), true);
+					out.println(refusal);
+					out.println(hint);
+					out.close();
+				}
+			}
+			catch (IOException e)
+			{
+				logger.severe("ChatServer: " + Failure.CLIENT_OUTPUT_STREAM);
+				logger.severe(e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Lecture de la ligne de présentation d'un client (son nom suivi
+	 * éventuellement du protocole qu'il demande) octet par octet, afin de ne
+	 * rien lire au delà du saut de ligne
+	 * @param in le flux d'entrée de la socket du client
+	 * @return la ligne lue (sans saut de ligne) ou bien null si le flux se
+	 * termine avant la fin de la ligne
+	 * @throws IOException si la lecture échoue ou si la ligne dépasse
+	 * {@link #MAXNAMELINE} octets
+	 */
+	private static String readNameLine(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n')
+		{
+			if (b < 0)
+			{
+				// fin de flux avant la fin du nom
+				return null;
+			}
+			if (line.size() >= MAXNAMELINE)
+			{
+				throw new IOException("ChatServer: name line longer than "
+				    + MAXNAMELINE + " bytes");
+			}
+			line.write(b);
+		}
+		String nameLine = line.toString();
+		if (nameLine.endsWith("\r"))
+		{
+			nameLine = nameLine.substring(0, nameLine.length() - 1);
+		}
+		return nameLine;
+	}
+
+	/**
+	 * Fermeture de la socket d'un client qui n'a pas été enregistré
+	 * @param clientSocket la socket à fermer
+	 */
+	private void close(Socket clientSocket)
+	{
+		try
+		{
+			clientSocket.close();
+		}
+		catch (IOException e)
+		{
+			logger.warning("ChatServer: unable to close client socket: "
+			    + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Méthode invoquée par les {@link ClientHandler} à la fin de leur exécution
+	 * pour éventuellement arrêter le serveur lorsqu'il n'y a plus de clients
+	 */
+	protected synchronized void cleanup()
+	{
+		// s'il ne reste plus de clients on arrête la boucle
+		int nbClients = clients.size();
+		if (nbClients <= 0)
+		{
+			if (quitOnLastClient)
+			{
+				setListening(false);
+				logger.info("ChatServer::run: no more clients.");
+			}
+		}
+		else
+		{
+			logger.info("ChatServer::run: still " + nbClients +
+					" clients remaining, " + supervisor.getLive()
+					+ " connections, estimated footprint "
+					+ getFootprint() + " bytes");
+		}
+	}
+
+	/**
+	 * Diffusion d'un message à tous les clients.
+	 * Le message est seulement publié dans le {@link #sequencer}, sans verrou
+	 * : les {@link ClientHandler} ne se disputent donc plus le verrou de
+	 * diffusion. Le distributeur du séquenceur l'encode puis l'ajoute aux
+	 * files de sortie des clients (voir {@link #dispatch(Delivery, long,
+	 * boolean)}).
+	 * Un message trop grand pour tenir dans une trame (voir
+	 * {@link MessageCodec#fits(Message)}) n'est pas diffusé.
+	 * @param message le message à diffuser
+	 * @throws IOException si le message ne peut être sérialisé
+	 */
+	protected void broadcast(Message message) throws IOException
+	{
+		if (!MessageCodec.fits(message))
+		{
+			logger.warning("ChatServer: message too large, not broadcast");
+			return;
+		}
+		if (sequencer.publish(new Delivery(Collections.singletonList(message),
+		                                   null)) < 0)
+		{
+			logger.warning("ChatServer: server stopped, message not broadcast");
+		}
+	}
+
+	/**
+	 * Traitement d'un message publié dans le {@link #sequencer}, par son
+	 * unique thread de distribution. Les clients sont parcourus dans un
+	 * instantané du registre qui n'est jamais verrouillé. Le verrou de
+	 * diffusion ne protège que l'encodage et la mise en file, que le
+	 * {@link #coalescer} effectue aussi depuis son propre minuteur : les
+	 * trames sont donc ajoutées dans le même ordre à toutes les files (ce
+	 * que le flux objet partagé exige). La diffusion ne fait qu'ajouter le
+	 * message aux files de sortie des clients (écrites par leurs
+	 * ClientWriter) : le distributeur n'est donc jamais bloqué par un client
+	 * lent. Le message est sérialisé une seule fois et la même trame est
+	 * placée dans la file de chacun des clients.
+	 * Si les messages sont regroupés, le message est seulement ajouté au lot
+	 * en cours qui sera sérialisé et diffusé de la même manière à la fin de
+	 * sa fenêtre de regroupement (voir {@link BroadcastCoalescer}).
+	 * @param delivery le message à diffuser ou la réponse à envoyer
+	 * @param number le numéro de séquence du message
+	 * @param endOfBatch true si aucun autre message n'a encore été publié
+	 */
+	private void dispatch(Delivery delivery, long number, boolean endOfBatch)
+	{
+		if ((delivery.recipient == null) && (coalescer != null))
+		{
+			broadcastLock.lock();
+			try
+			{
+				sequence = number;
+			}
+			finally
+			{
+				broadcastLock.unlock();
+			}
+			coalescer.add(delivery.messages.get(0));
+			return;
+		}
+		broadcastLock.lock();
+		try
+		{
+			sequence = number;
+			if (delivery.recipient == null)
+			{
+				long start = System.nanoTime();
+				MessageFrame frame = frameEncoder.encode(delivery.messages.get(0));
+				encodeMetrics.record(start);
+				deliver(frame);
+			}
+			else
+			{
+				send(delivery.recipient, delivery.messages);
+			}
+		}
+		catch (IOException e)
+		{
+			logger.severe("ChatServer: unable to serialize message " + number
+			    + ": " + e.getLocalizedMessage());
+		}
+		finally
+		{
+			broadcastLock.unlock();
+		}
+	}
+
+	/**
+	 * Diffusion immédiate des messages déjà publiés et de ceux en cours de
+	 * regroupement (s'il y en a)
+	 */
+	protected void flushBroadcasts()
+	{
+		sequencer.awaitDispatched(sequencer.getPublished());
+		if (coalescer != null)
+		{
+			coalescer.flush();
+		}
+	}
+
+	/**
+	 * Diffusion d'un lot de messages regroupés par le {@link #coalescer}
+	 * (sous le verrou de diffusion)
+	 * @param messages les messages à diffuser dans une même trame
+	 */
+	private void deliver(List<Message> messages)
+	{
+		try
+		{
+			long start = System.nanoTime();
+			MessageFrame frame = frameEncoder.encode(messages);
+			encodeMetrics.record(start);
+			deliver(frame);
+		}
+		catch (IOException e)
+		{
+			logger.severe("ChatServer: unable to serialize " + messages.size()
+			    + " messages: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Ajout d'une trame aux files de sortie de tous les clients (sous le
+	 * verrou de diffusion) et de ses messages à l'historique. La trame porte
+	 * le numéro de séquence de son dernier message, qui permet de suivre la
+	 * progression de chaque client. L'instantané des clients est obtenu après
+	 * l'encodage de la trame afin qu'un client qui vient de demander une
+	 * remise à zéro reçoive la trame correspondante. Chaque file prend sa
+	 * propre référence sur la trame, la référence obtenue de l'encodeur est
+	 * libérée une fois la trame distribuée.
+	 * @param frame la trame à diffuser
+	 */
+	private void deliver(MessageFrame frame)
+	{
+		try
+		{
+			frame.setSequence(sequence);
+			history.add(frame.getMessages());
+			if (messageLog != null)
+			{
+				// écriture asynchrone, hors du verrou de diffusion
+				messageLog.append(frame.getMessages());
+			}
+			if ((fanOut != null) && fanOut.deliver(frame, clients.size()))
+			{
+				// grande salle : distribution par les groupes de clients
+				return;
+			}
+			long start = System.nanoTime();
+			for (InputOutputClient c : clients.snapshot())
+			{
+				offer(c, frame);
+			}
+			routeMetrics.record(start);
 		}
+		finally
+		{
+			frame.release();
+		}
+	}
 
-		return null;
+	/**
+	 * Ajout d'une trame à la file de sortie d'un client, qui est déconnecté
+	 * si sa file est pleine (politique {@link OverflowPolicy#DISCONNECT}).
+	 * Invoqué par le distributeur ou, dans une grande salle, par le groupe
+	 * du client (voir {@link ShardedFanOut}).
+	 * @param client le client destinataire
+	 * @param frame la trame à ajouter
+	 */
+	private void offer(InputOutputClient client, MessageFrame frame)
+	{
+		if (client.isReady())
+		{
+			// ajout du message à la file de sortie du client
+			if (!client.send(frame))
+			{
+				logger.warning("ChatServer: client " + client.getName()
+				    + " output queue full, disconnecting");
+				client.disconnect();
+			}
+		}
+		else
+		{
+			logger.warning("ChatServer: client " + client.getName()
+			    + " not ready");
+		}
+	}
+
+	/**
+	 * Envoi de messages à un seul client (réponse à une commande). La
+	 * réponse est publiée dans le {@link #sequencer} comme une diffusion :
+	 * elle suit donc dans la file du client les messages publiés avant
+	 * elle.
+	 * @param client le client destinataire
+	 * @param messages les messages à envoyer (au moins un)
+	 * @throws IOException si les messages ne peuvent être sérialisés
+	 */
+	protected void reply(InputOutputClient client, List<Message> messages)
+	    throws IOException
+	{
+		if (sequencer.publish(new Delivery(messages, client)) < 0)
+		{
+			logger.warning("ChatServer: server stopped, reply to "
+			    + client.getName() + " not sent");
+		}
+	}
+
+	/**
+	 * Ajout d'une réponse à la file d'un seul client, entre deux trames
+	 * diffusées (sous le verrou de diffusion). Les messages sont sérialisés
+	 * hors du flux partagé (voir {@link FrameEncoder#encodePrivate(List)}).
+	 * @param client le client destinataire
+	 * @param messages les messages à envoyer (au moins un)
+	 * @throws IOException si les messages ne peuvent être sérialisés
+	 */
+	private void send(InputOutputClient client, List<Message> messages)
+	    throws IOException
+	{
+		long start = System.nanoTime();
+		MessageFrame frame = frameEncoder.encodePrivate(messages);
+		encodeMetrics.record(start);
+		try
+		{
+			frame.setSequence(sequence);
+			if ((fanOut == null) || !fanOut.send(client, frame))
+			{
+				start = System.nanoTime();
+				offer(client, frame);
+				routeMetrics.record(start);
+			}
+		}
+		finally
+		{
+			frame.release();
+		}
+	}
+
+	/**
+	 * Derniers messages diffusés par le serveur
+	 * @param count le nombre maximum de messages
+	 * @return les derniers messages diffusés dans leur ordre de diffusion
+	 */
+	protected List<Message> getHistory(int count)
+	{
+		return history.recent(count);
+	}
+
+	/**
+	 * Noms des clients enregistrés
+	 * @return les noms des clients enregistrés, le super-utilisateur en
+	 * premier
+	 */
+	public List<String> getClientNames()
+	{
+		List<InputOutputClient> snapshot = clients.snapshot();
+		List<String> names = new ArrayList<String>(snapshot.size());
+		for (InputOutputClient c : snapshot)
+		{
+			names.add(c.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * Statistiques du serveur : nombre de clients, mémoire occupée, trames
+	 * écrites et remises à zéro du flux partagé
+	 * @return une description des statistiques du serveur
+	 */
+	public String getStatistics()
+	{
+		StringBuilder stats = new StringBuilder();
+		stats.append("clients: " + clients.size());
+		stats.append(", connections: " + supervisor.getLive() + " (peak "
+		    + supervisor.getPeak() + ", total " + supervisor.getTotal() + ")");
+		stats.append(", refused: " + admission.getRefused());
+		stats.append(", throttled: " + throttled.get());
+		stats.append(", credit stalls: " + getCreditStalls());
+		long published = sequencer.getPublished();
+		stats.append(", sequence: " + published + " (lag "
+		    + (published - getSlowestCursor()) + ", ring stalls "
+		    + sequencer.getStalls() + ")");
+		stats.append(", footprint: " + getFootprint() + " bytes");
+		stats.append(", frames: " + getWrittenFrames() + " in "
+		    + getWrites() + " writes");
+		stats.append(", resets: " + frameEncoder.getResets());
+		stats.append(", history: " + history.size() + " messages ("
+		    + history.getBytes() + " bytes)");
+		if (messageLog != null)
+		{
+			stats.append(", log: sequence " + messageLog.getLastSequence()
+			    + " in " + messageLog.getSegments() + " segments ("
+			    + messageLog.getBytes() + " bytes, " + messageLog.getDropped()
+			    + " dropped)");
+		}
+		if (fanOut != null)
+		{
+			stats.append(", sharded: " + fanOut.getShardedFrames() + " frames ("
+			    + fanOut.getShards() + " shards from " + fanOut.getThreshold()
+			    + " clients)");
+		}
+		if (bufferPool != null)
+		{
+			stats.append(", leased buffers: " + bufferPool.getLeased());
+		}
+		stats.append(", stages: " + readMetrics + ", " + processStage.getMetrics()
+		    + ", " + encodeMetrics + ", " + routeMetrics + ", " + writeMetrics);
+		if (messageLog != null)
+		{
+			stats.append(", " + messageLog.getMetrics());
+		}
+		stats.append(", stage stalls: " + processStage.getStalls());
+		return stats.toString();
+	}
+
+	/**
+	 * Estimation de la mémoire du tas occupée par les connections du
+	 * serveur : la somme des estimations de chacun des clients (voir
+	 * {@link InputOutputClient#getFootprint()}) et des messages retenus par
+	 * l'encodeur partagé jusqu'à sa prochaine remise à zéro. Grâce à la
+	 * politique de remise à zéro de l'encodeur cette mémoire est bornée par
+	 * le nombre de connections et non par l'historique des messages.
+	 * @return la taille estimée (en octets) de la mémoire occupée
+	 */
+	public long getFootprint()
+	{
+		long footprint = frameEncoder.getRetainedBytes();
+		for (InputOutputClient c : clients.snapshot())
+		{
+			footprint += c.getFootprint();
+		}
+		return footprint;
+	}
+
+	/**
+	 * Nombre d'écritures effectuées vers les clients connectés. Rapporté au
+	 * nombre de trames écrites ({@link #getWrittenFrames()}) il indique
+	 * l'efficacité des écritures groupées.
+	 * @return le nombre d'écritures effectuées vers les clients connectés
+	 */
+	public long getWrites()
+	{
+		long writes = 0;
+		for (InputOutputClient c : clients.snapshot())
+		{
+			writes += c.getWrites();
+		}
+		return writes;
+	}
+
+	/**
+	 * Nombre de trames écrites vers les clients connectés
+	 * @return le nombre de trames écrites vers les clients connectés
+	 */
+	public long getWrittenFrames()
+	{
+		long frames = 0;
+		for (InputOutputClient c : clients.snapshot())
+		{
+			frames += c.getWrittenFrames();
+		}
+		return frames;
+	}
+
+	/**
+	 * Curseur du client le plus lent : le numéro de séquence de la dernière
+	 * trame écrite par le client le plus en retard. Son écart avec le dernier
+	 * numéro publié ({@link BroadcastSequencer#getPublished()}) mesure le
+	 * retard des consommateurs lents (les réponses destinées à d'autres
+	 * clients y sont comptées).
+	 * @return le plus petit curseur des clients connectés ou bien le curseur
+	 * du distributeur s'il n'y a aucun client
+	 */
+	public long getSlowestCursor()
+	{
+		long slowest = sequencer.getDispatched();
+		for (InputOutputClient c : clients.snapshot())
+		{
+			slowest = Math.min(slowest, c.getCursor());
+		}
+		return slowest;
+	}
+
+	/**
+	 * Nombre de diffusions et de réponses publiées dans le séquenceur et pas
+	 * encore encodées
+	 * @return la profondeur de l'étage d'encodage
+	 */
+	private long getPendingDeliveries()
+	{
+		return sequencer.getPublished() - sequencer.getDispatched();
+	}
+
+	/**
+	 * Nombre de trames confiées aux groupes de clients et pas encore
+	 * distribuées
+	 * @return la profondeur de l'étage de distribution
+	 */
+	private long getPendingShardTasks()
+	{
+		return (fanOut != null ? fanOut.getPending() : 0);
+	}
+
+	/**
+	 * Nombre de trames en attente d'écriture dans les files de sortie des
+	 * clients
+	 * @return la profondeur totale des files de l'étage d'écriture
+	 */
+	public long getQueuedFrames()
+	{
+		long queued = 0;
+		for (InputOutputClient c : clients.snapshot())
+		{
+			queued += c.getOutQueue().size();
+		}
+		return queued;
+	}
+
+	/**
+	 * Nombre d'attentes de crédit des clients connectés (voir
+	 * {@link FlowCredit})
+	 * @return le nombre de fois où des messages ont été retenus faute de
+	 * crédit accordé par leur destinataire
+	 */
+	public long getCreditStalls()
+	{
+		long stalls = 0;
+		for (InputOutputClient c : clients.snapshot())
+		{
+			stalls += c.getCredit().getStalls();
+		}
+		return stalls;
+	}
+
+	/**
+	 * Recherche parmis les clients déjà enregistrés un client portant le même
+	 * nom que l'argument
+	 *
+	 * @param clientName le nom du client à rechercher parmis les clients déjà
+	 *            enregistrés
+	 * @return le client recherché s'il existe ou bien null s'il n'existe pas
+	 */
+	protected InputOutputClient searchClientByName(String clientName)
+	{
+		// recherche en temps constant et sans verrou dans le registre
+		return clients.get(clientName);
+	}
+
+	/**
+	 * Retrait d'un client de la liste des clients enregistrés
+	 * @param client le client à retirer
+	 */
+	protected void unregister(InputOutputClient client)
+	{
+		if (clients.unregister(client.getName(), client) && (fanOut != null))
+		{
+			fanOut.remove(client);
+		}
+	}
+
+	/**
+	 * Indique si un client est le super-utilisateur (le premier des clients
+	 * encore enregistrés)
+	 * @param client le client à tester
+	 * @return true si le client est le super-utilisateur
+	 */
+	protected boolean isSuperUser(InputClient client)
+	{
+		return clients.first() == client;
+	}
+
+	/**
+	 * Obtention d'une fabrique de threads virtuels. Les threads virtuels
+	 * n'existant qu'à partir de Java 21, la fabrique est obtenue par
+	 * introspection afin que le serveur reste compilable et exécutable avec
+	 * une JVM plus ancienne.
+	 * @return une fabrique de threads virtuels ou bien null si la JVM ne
+	 * supporte pas les threads virtuels
+	 */
+	protected static ThreadFactory virtualThreadFactory()
+	{
+		try
+		{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory =
+			    Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		}
+		catch (ReflectiveOperationException | UnsupportedOperationException e)
+		{
+			return null;
+		}
 	}
 }
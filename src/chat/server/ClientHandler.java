@@ -1,23 +1,24 @@
 package chat.server;
 
 import java.io.IOException;
-import java.io.InvalidClassException;
-import java.io.NotSerializableException;
-import java.io.ObjectOutputStream;
-import java.util.Vector;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import chat.Frame;
 import chat.Vocabulary;
 import logger.LoggerFactory;
 import models.Message;
 
 /**
  * Classe utilisée pour traiter chacune des connections des clients dans un
- * nouveau thread
+ * nouveau thread. Le handler est aussi le contexte d'exécution des
+ * commandes envoyées par son client (voir {@link CommandRegistry}).
  *
  * @author davidroussel
  */
-public class ClientHandler implements Runnable
+public class ClientHandler implements Runnable, CommandContext
 {
 	/**
 	 * le ChatServer qui a lancé ce thread
@@ -33,25 +34,18 @@ public class ClientHandler implements Runnable
 	 * @uml.property name="mainClient"
 	 * @uml.associationEnd aggregation="shared"
 	 */
-	private InputClient mainClient;
+	private InputOutputClient mainClient;
 
 	/**
-	 * Les autres clients reliés au serveur.
-	 *
-	 * @uml.property name="allClients"
-	 * @uml.associationEnd multiplicity="(1 -1)" ordering="true"
-	 *                     aggregation="shared"
-	 *                     inverse="clientHandler:chat.server.InputOutputClient"
+	 * Indique que le client s'est délogué (ou a été banni). Modifié par les
+	 * commandes, exécutées par l'étage de traitement du serveur.
 	 */
-	private Vector<InputOutputClient> allClients;
+	private volatile boolean loggedOut;
 
 	/**
-	 * Compteur d'instances du nombre de threads créés pour traiter les
-	 * connections
-	 *
-	 * @uml.property name="nbThreads"
+	 * Indique que le super-utilisateur a demandé l'arrêt du serveur
 	 */
-	private static int nbThreads = 0;
+	private volatile boolean killed;
 
 	/**
 	 * Logger pour l'affichage des messages de debug
@@ -62,61 +56,69 @@ public class ClientHandler implements Runnable
 	 * Constructeur d'un handler de client
 	 *
 	 * @param parent le {@link ChatServer} qui a lancé ce Runnable
-	 * @param mainClient le client principal qu'il faut écouter
-	 * @param allClients les autres clients à qui il faut redistribuer ce
-	 *            qu'envoie le client principal
+	 * @param mainClient le client principal qu'il faut écouter. Ce
+	 *            qu'envoie le client principal est redistribué aux autres
+	 *            clients par le parent (voir
+	 *            {@link ChatServer#broadcast(Message)})
 	 */
 	public ClientHandler(ChatServer parent,
-	                     InputClient mainClient,
-	                     Vector<InputOutputClient> allClients,
+	                     InputOutputClient mainClient,
 	                     Logger parentLogger)
 	{
 		this.parent = parent;
 		this.mainClient = mainClient;
-		this.allClients = allClients;
-		nbThreads++;
+		loggedOut = false;
+		killed = false;
 		logger = LoggerFactory.getParentLogger(getClass(),
 		                                       parentLogger,
 		                                       parentLogger.getLevel());
 	}
 
 	/**
-	 * Accesseur en lecture du nombre de ClientHandler en activité
-	 *
-	 * @return the nbThreads
-	 * @uml.property name="nbThreads"
-	 */
-	public static int getNbThreads()
-	{
-		return nbThreads;
-	}
-
-	/**
-	 * Exécution d'un handler de client. Consiste à lire une ligne du client
-	 * jusqu'à ce que l'on reçoive la commande bye, ou qu'une IOException
-	 * intervienne si le flux est coupé
+	 * Exécution d'un handler de client. Consiste à lire une trame (ou une
+	 * ligne selon le protocole du client) du client jusqu'à ce que l'on
+	 * reçoive la commande bye (ou kill), ou qu'une IOException intervienne
+	 * si le flux est coupé.
+	 * Le handler constitue l'étage de lecture du pipeline du serveur : il
+	 * ne fait que lire les trames, appliquer la limitation de débit du
+	 * client et confier chaque trame à l'étage de traitement du serveur
+	 * (voir {@link ChatServer#getProcessStage()}) avec son client pour clé,
+	 * ce qui conserve l'ordre des trames d'un même client. Une trame de
+	 * contrôle est traitée avant la lecture de la suivante car la commande
+	 * peut mettre fin à la lecture (bye, kill).
 	 *
 	 * @see java.lang.Runnable#run()
 	 */
 	@Override
 	public void run()
 	{
-		boolean loggedOut = false;
-		boolean killed = false;
-		String clientInput = null;
-
+		Frame clientFrame = null;
+		PipelineStage stage = parent.getProcessStage();
+		StageMetrics readMetrics = parent.getReadMetrics();
 
 		try
 		{
 			/*
-			 * Attente d'une ligne de texte de la part d'un client (appel
-			 * bloquant)
+			 * Attente d'une trame de la part d'un client (appel bloquant)
 			 */
 			while (!loggedOut && !killed &&
-			       ((clientInput = mainClient.getIn().readLine()) != null))
+			       ((clientFrame = mainClient.readFrame()) != null))
 			{
-				// Affiche ce qui est reçu par le serveur dans la console
-				System.out.println(mainClient.getName() + " > " + clientInput);
+				long start = System.nanoTime();
+				Frame frame = clientFrame;
+
+				/*
+				 * Limitation du débit des messages ordinaires et des
+				 * commandes (sauf contrôle de flux et déconnexion, voir
+				 * RateLimiter#isExempt) : une trame refusée est ignorée
+				 * (elle est seulement affichée dans la console)
+				 */
+				if (!RateLimiter.isExempt(frame) && !admit(frame.getMessage()))
+				{
+					stage.execute(mainClient, () -> echo(frame.getMessage()));
+					readMetrics.record(start);
+					continue;
+				}
 
 				// on vérifie que ce client n'a pas été banni par un super utilisateur
 				if (mainClient.isBanned())
@@ -126,186 +128,288 @@ public class ClientHandler implements Runnable
 					break;
 				}
 
-				// On vérifie qu'il ne s'agit pas d'un message de contrôle (kick ou bye)
-				boolean controlMessage = false;
-				for (String command : Vocabulary.commands)
+				if (frame.isControl())
 				{
-					if (clientInput.toLowerCase().startsWith(command))
-					{
-						controlMessage = true;
-						break;
-					}
-				}
-
-				StringBuffer messageContent = new StringBuffer();
-
-				if (controlMessage)
-				{
-					// Le client veut nous quitter
-					if (clientInput.toLowerCase().equals(Vocabulary.byeCmd))
-					{
-						messageContent.append(mainClient.getName() +
-						                      " logged out");
-						loggedOut = true;
-					}
-					// on vérifie si un kill est demandé par le client
-					else if (clientInput.toLowerCase().startsWith(Vocabulary.killCmd))
-					{
-						// on vérifie que le client est super-utilisateur
-						// (1er de tous les clients)
-						if (allClients.get(0) == mainClient)
-						{
-							killed = true;
-							parent.setListening(false);
-							break;
-						}
-					}
-					// on vérifie si un kick est demandé par le client
-					else if (clientInput.toLowerCase().startsWith(Vocabulary.kickCmd))
-					{
-						messageContent.append(Vocabulary.kickCmd);
-						// On bloque l'accès à allClients tant que l'on traite
-						// la commande du mainClient
-						synchronized (allClients)
-						{
-							// on vérifie que le client est super-utilisateur
-							// (1er de tous les clients)
-							if (allClients.get(0) == mainClient)
-							{
-								// on recherche le nom du client à kicker
-								String kickedName = null;
-								try
-								{
-									/*
-									 * On recherche le nom du client à kicker
-									 * dans kick clientToKill
-									 */
-									kickedName = clientInput.substring(
-										Vocabulary.kickCmd.length() + 1);
-								}
-								catch (IndexOutOfBoundsException iob)
-								{
-									logger.warning("ClientHandler: Error retreiving client name to kick");
-								}
-								if (kickedName != null)
-								{
-									messageContent.append(" " + kickedName);
-									InputOutputClient kickedClient =
-										parent.searchClientByName(kickedName);
-									if (kickedClient != null)
-									{
-										kickedClient.setBanned(true);
-										logger.info("Clienthandler["
-											+ mainClient.getName() + "] client "
-											+ kickedName + " banned");
-										messageContent.append(" [request granted by server]");
-									}
-									else
-									{
-										messageContent.append(" [client "
-											+ kickedName + " does not exist]");
-									}
-								}
-								else
-								{
-									messageContent.append(" [no client name to kick]");
-								}
-							}
-							else
-							{
-								int cmdL = Vocabulary.kickCmd.length();
-								messageContent.append(clientInput.substring(cmdL, (clientInput.length())));
-								messageContent.append(" [request denied by server]");
-							}
-							messageContent.append(" by " + mainClient.getName());
-						}
-					}
+					/*
+					 * Trame de contrôle (une ligne commençant par une
+					 * commande ou une trame binaire de contrôle) : seules les
+					 * commandes ont besoin du contenu décodé. La commande
+					 * est exécutée par l'étage de traitement dans le
+					 * contexte de ce handler (voir CommandContext), que l'on
+					 * attend.
+					 */
+					readMetrics.record(start);
+					stage.call(mainClient, () -> process(frame));
 				}
 				else
 				{
-					// Il s'agit d'un message ordinaire
-					messageContent.append(clientInput);
+					stage.execute(mainClient, () -> process(frame));
+					readMetrics.record(start);
 				}
+			}
+		}
+		catch (IOException e)
+		{
+			logger.severe("ClientHandler[" + mainClient.getName()
+					+ "]: received failed, Closing client " + this);
+		}
 
-				/*
-				 * Création du message à diffuser
-				 */
-				Message message = null;
-				if (controlMessage)
-				{
-					message = new Message(messageContent.toString());
-				}
-				else
-				{
-					message = new Message(messageContent.toString(),
-					                      mainClient.getName());
-				}
+		// fin du traitement des trames déjà lues
+		stage.call(mainClient, () -> {});
+		// les messages regroupés (dont le nôtre) sont transmis avant le départ
+		parent.flushBroadcasts();
+		// remove current client from the registry (atomic, without lock)
+		parent.unregister(mainClient);
+		// cleanup current client
+		mainClient.cleanup();
+		// Nettoyage du ChatServer parent (qui pourra evt s'arrêter s'il n'y a
+		// plus de clients)
+		parent.cleanup();
+	}
 
-				/*
-				 * Diffusion du message à tous les clients.
-				 * allClients est un Vector qui est atomique donc a
-				 * priori on a pas besoin du "synchronized (allClients)",
-				 * Néanmoins ce synchronized permet de bloquer l'accès à
-				 * l'ensemble des autres clients quand on diffuse le message de
-				 * notre mainClient à tous les clients. Sans quoi on pourrait
-				 * diffuser le message à un client, puis se faire interrompre
-				 * par un autre client, puis diffuser le message à un autre
-				 * client, etc. A vérifier ...
-				 */
-				synchronized (allClients)
-				{
-					for (InputOutputClient c : allClients)
-					{
-						if (c.isReady())
-						{
-							// récupération du flux de sortie et envoi du message
-							ObjectOutputStream out = c.getOut();
-							out.writeObject(message);
-						}
-						else
-						{
-							logger.warning("ClientHandler["
-									+ mainClient.getName() + "]Client "
-									+ c.getName() + " not ready");
-						}
-					}
-				}
+	/**
+	 * Traitement d'une trame lue, par l'étage de traitement du serveur :
+	 * affichage dans la console (à l'exception des renouvellements
+	 * automatiques du crédit du client, seulement journalisés au niveau
+	 * FINE) puis exécution de la commande d'une trame de contrôle ou
+	 * diffusion d'un message ordinaire. Le contenu d'un
+	 * message ordinaire est relayé tel que reçu (sans être décodé), seuls la
+	 * date et l'auteur sont ajoutés par le serveur. Le message est seulement
+	 * publié dans le séquenceur du serveur, sans verrou (voir
+	 * ChatServer#broadcast), qui l'ajoutera aux files de sortie des clients
+	 * (ou au lot en cours si les messages diffusés sont regroupés).
+	 * @param frame la trame lue
+	 */
+	private void process(Frame frame)
+	{
+		if (CommandRegistry.isCommand(frame, Vocabulary.creditCmd))
+		{
+			// renouvellement automatique du crédit, que l'opérateur n'a pas à voir
+			if (logger.isLoggable(Level.FINE))
+			{
+				logger.fine(mainClient.getName() + " > " + frame.getContent());
 			}
 		}
-		catch (InvalidClassException ice)
+		else
 		{
-			logger.severe("ClientHandler["
-				+ mainClient.getName() + "]: write to client invalid class " +
-				ice.getLocalizedMessage());
+			echo(frame.getMessage());
 		}
-		catch (NotSerializableException nse)
+		try
 		{
-			logger.severe(
-				"ClientHandler[" + mainClient.getName()
-					+ "]: write to not serializable exception "
-					+ nse.getLocalizedMessage());
+			if (frame.isControl())
+			{
+				parent.getCommands().dispatch(this, frame.getContent());
+			}
+			else
+			{
+				parent.broadcast(frame.getMessage().forward(mainClient.getName()));
+			}
 		}
 		catch (IOException e)
 		{
 			logger.severe("ClientHandler[" + mainClient.getName()
-					+ "]: received or write failed, Closing client " + this);
+			    + "]: unable to process frame: " + e.getLocalizedMessage());
 		}
+	}
 
-		// remove current client from allClients (should be atomic)
-		synchronized (allClients)
+	/**
+	 * Application de la limitation du débit du client à un message
+	 * ordinaire ou à une commande selon la {@link ThrottlePolicy} du
+	 * serveur :
+	 * <ul>
+	 * <li>{@link ThrottlePolicy#DELAY} : le handler attend que le message
+	 * soit autorisé. Pendant ce temps le client n'est plus lu, ce qui le
+	 * ralentit au travers du contrôle de flux de TCP.</li>
+	 * <li>{@link ThrottlePolicy#DROP} : le message est ignoré</li>
+	 * <li>{@link ThrottlePolicy#KICK} : le client est banni, la lecture de
+	 * ses trames se termine donc avec ce message</li>
+	 * </ul>
+	 * @param message le message reçu du client
+	 * @return true si le message doit être traité, false s'il doit être
+	 * ignoré
+	 * @throws IOException si la notification du bannissement ne peut pas
+	 * être diffusée
+	 */
+	private boolean admit(Message message) throws IOException
+	{
+		RateLimiter limiter = mainClient.getRateLimiter();
+		if (limiter == null)
 		{
-			allClients.remove(mainClient);
+			return true;
 		}
-		// cleanup current client
-		mainClient.cleanup();
-		synchronized (parent)
+		long wait;
+		while ((wait = limiter.acquire(message)) > 0)
+		{
+			parent.recordThrottled();
+			switch (parent.getSettings().getThrottlePolicy())
+			{
+				case DROP:
+					return false;
+				case KICK:
+					logger.warning("ClientHandler[" + mainClient.getName()
+					    + "]: rate limit exceeded, banning client");
+					mainClient.setBanned(true);
+					parent.broadcast(new Message(Vocabulary.kickCmd + " "
+					    + mainClient.getName() + " [rate limit exceeded] by server"));
+					return true;
+				default:
+					try
+					{
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+					catch (InterruptedException e)
+					{
+						// arrêt du serveur
+						Thread.currentThread().interrupt();
+						loggedOut = true;
+						return false;
+					}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Nom du client de ce handler
+	 * @see CommandContext#getClientName()
+	 */
+	@Override
+	public String getClientName()
+	{
+		return mainClient.getName();
+	}
+
+	/**
+	 * Indique si le client de ce handler est le super-utilisateur
+	 * @see CommandContext#isSuperUser()
+	 */
+	@Override
+	public boolean isSuperUser()
+	{
+		return parent.isSuperUser(mainClient);
+	}
+
+	/**
+	 * Diffusion d'un message à tous les clients
+	 * @see CommandContext#broadcast(Message)
+	 */
+	@Override
+	public void broadcast(Message message) throws IOException
+	{
+		parent.broadcast(message);
+	}
+
+	/**
+	 * Envoi de messages au seul client de ce handler
+	 * @see CommandContext#reply(List)
+	 */
+	@Override
+	public void reply(List<Message> messages) throws IOException
+	{
+		parent.reply(mainClient, messages);
+	}
+
+	/**
+	 * Fin de la lecture des trames du client
+	 * @see CommandContext#logout()
+	 */
+	@Override
+	public void logout()
+	{
+		loggedOut = true;
+	}
+
+	/**
+	 * Arrêt du serveur et fin de la lecture des trames du client
+	 * @see CommandContext#shutdown()
+	 */
+	@Override
+	public void shutdown()
+	{
+		logger.info("ClientHandler[" + mainClient.getName()
+		    + "]: kill requested");
+		killed = true;
+		parent.setListening(false);
+	}
+
+	/**
+	 * Bannissement d'un client. Pas de verrou : la recherche du client se
+	 * fait en temps constant dans le registre sans bloquer les diffusions.
+	 * @see CommandContext#ban(String)
+	 */
+	@Override
+	public boolean ban(String clientName)
+	{
+		InputOutputClient kickedClient = parent.searchClientByName(clientName);
+		if (kickedClient == null)
 		{
-			// décrémentation du nombre de threads des clients
-			nbThreads--;
-			// Nettoyage du ChatServer parent (qui pourra evt s'arrêter s'il n'y a
-			// plus de clients)
-			parent.cleanup();
+			return false;
 		}
+		kickedClient.setBanned(true);
+		logger.info("Clienthandler[" + mainClient.getName() + "] client "
+		    + clientName + " banned");
+		return true;
 	}
 
+	/**
+	 * Noms des clients du serveur
+	 * @see CommandContext#getClientNames()
+	 */
+	@Override
+	public List<String> getClientNames()
+	{
+		return parent.getClientNames();
+	}
+
+	/**
+	 * Statistiques du serveur
+	 * @see CommandContext#getStatistics()
+	 */
+	@Override
+	public String getStatistics()
+	{
+		return parent.getStatistics();
+	}
+
+	/**
+	 * Derniers messages diffusés par le serveur
+	 * @see CommandContext#getHistory(int)
+	 */
+	@Override
+	public List<Message> getHistory(int count)
+	{
+		return parent.getHistory(count);
+	}
+
+	/**
+	 * Crédit accordé par le client à son {@link ClientWriter}
+	 * @see CommandContext#grantCredit(int)
+	 */
+	@Override
+	public void grantCredit(int messages)
+	{
+		mainClient.getCredit().grant(messages);
+	}
+
+	/**
+	 * Affichage dans la console d'un message reçu du client. Le contenu d'un
+	 * message qui n'a pas été décodé est écrit tel que reçu.
+	 * @param received le message reçu
+	 */
+	private void echo(Message received)
+	{
+		byte[] encodedContent = received.getEncodedContent();
+		if (encodedContent == null)
+		{
+			System.out.println(mainClient.getName() + " > "
+			    + received.getContent());
+			return;
+		}
+		synchronized (System.out)
+		{
+			System.out.print(mainClient.getName() + " > ");
+			System.out.write(encodedContent, 0, encodedContent.length);
+			System.out.println();
+		}
+	}
 }
@@ -0,0 +1,156 @@
+package chat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Registre des clients enregistrés auprès d'un serveur, indexés par leur
+ * nom. Aucune opération du registre ne prend de verrou :
+ * <ul>
+ * <li>l'unicité des noms est garantie par
+ * {@link ConcurrentHashMap#putIfAbsent(Object, Object)} : deux clients se
+ * présentant simultanément avec le même nom ne peuvent pas être enregistrés
+ * tous les deux</li>
+ * <li>la recherche d'un client par son nom ({@link #get(String)}) se fait
+ * en temps constant</li>
+ * <li>les diffusions parcourent un instantané immuable des clients
+ * ({@link #snapshot()}) remplacé atomiquement à chaque enregistrement ou
+ * retrait : un parcours n'est jamais bloqué ni perturbé par l'arrivée ou le
+ * départ d'un client</li>
+ * </ul>
+ * L'instantané conserve l'ordre d'enregistrement des clients, le premier
+ * client encore présent est donc le super-utilisateur ({@link #first()}).
+ *
+ * @param <C> le type des clients enregistrés
+ * @author davidroussel
+ */
+public class ClientRegistry<C>
+{
+	/**
+	 * Les clients enregistrés indexés par leur nom
+	 */
+	private final ConcurrentHashMap<String, C> byName;
+
+	/**
+	 * Instantané immuable des clients enregistrés, dans l'ordre de leur
+	 * enregistrement
+	 */
+	private final AtomicReference<List<C>> snapshot;
+
+	/**
+	 * Constructeur d'un registre vide
+	 */
+	public ClientRegistry()
+	{
+		byName = new ConcurrentHashMap<String, C>();
+		snapshot = new AtomicReference<List<C>>(Collections.<C>emptyList());
+	}
+
+	/**
+	 * Enregistrement d'un client s'il n'existe pas déjà de client portant le
+	 * même nom
+	 * @param name le nom du client
+	 * @param client le client à enregistrer
+	 * @return true si le client a été enregistré, false si un autre client
+	 * porte déjà ce nom
+	 */
+	public boolean register(String name, C client)
+	{
+		if (byName.putIfAbsent(name, client) != null)
+		{
+			return false;
+		}
+		List<C> current;
+		List<C> next;
+		do
+		{
+			current = snapshot.get();
+			next = new ArrayList<C>(current.size() + 1);
+			next.addAll(current);
+			next.add(client);
+			next = Collections.unmodifiableList(next);
+		}
+		while (!snapshot.compareAndSet(current, next));
+		return true;
+	}
+
+	/**
+	 * Retrait d'un client
+	 * @param name le nom du client
+	 * @param client le client à retirer
+	 * @return true si le client était enregistré sous ce nom et a été
+	 * retiré, false sinon
+	 */
+	public boolean unregister(String name, C client)
+	{
+		if (!byName.remove(name, client))
+		{
+			return false;
+		}
+		List<C> current;
+		List<C> next;
+		do
+		{
+			current = snapshot.get();
+			next = new ArrayList<C>(current);
+			next.remove(client);
+			next = Collections.unmodifiableList(next);
+		}
+		while (!snapshot.compareAndSet(current, next));
+		return true;
+	}
+
+	/**
+	 * Recherche d'un client par son nom
+	 * @param name le nom du client recherché
+	 * @return le client portant ce nom ou bien null s'il n'existe pas
+	 */
+	public C get(String name)
+	{
+		return byName.get(name);
+	}
+
+	/**
+	 * Instantané des clients enregistrés. La liste obtenue n'est pas
+	 * modifiable et n'est pas affectée par les enregistrements et retraits
+	 * ultérieurs.
+	 * @return la liste des clients enregistrés dans l'ordre de leur
+	 * enregistrement
+	 */
+	public List<C> snapshot()
+	{
+		return snapshot.get();
+	}
+
+	/**
+	 * Le plus ancien des clients enregistrés (le super-utilisateur)
+	 * @return le premier client enregistré encore présent ou bien null s'il
+	 * n'y a aucun client
+	 */
+	public C first()
+	{
+		List<C> current = snapshot.get();
+		return (current.isEmpty() ? null : current.get(0));
+	}
+
+	/**
+	 * Nombre de clients enregistrés
+	 * @return le nombre de clients enregistrés
+	 */
+	public int size()
+	{
+		return snapshot.get().size();
+	}
+
+	/**
+	 * Indique si le registre est vide
+	 * @return true s'il n'y a aucun client enregistré
+	 */
+	public boolean isEmpty()
+	{
+		return snapshot.get().isEmpty();
+	}
+}
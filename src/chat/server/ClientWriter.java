@@ -0,0 +1,275 @@
+package chat.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import chat.WireProtocol;
+import logger.LoggerFactory;
+
+/**
+ * Classe utilisée pour écrire, dans un thread dédié, les messages en attente
+ * dans la file de sortie d'un {@link InputOutputClient}. Ainsi seul ce
+ * thread peut être bloqué par un client qui ne lit plus ses messages : les
+ * {@link ClientHandler} qui diffusent des messages ne font qu'ajouter ces
+ * messages aux files de sortie des clients.
+ * Les trames en attente sont écrites par lots : toutes les trames déjà
+ * présentes dans la file (au plus {@link #batchFrames}) sont écrites en une
+ * seule écriture groupée (un seul appel système) sur le canal de la socket
+ * du client. Lorsque la salle est active, le nombre d'écritures par message
+ * délivré est donc bien inférieur à 1. Un délai ({@link #batchDelay}) permet
+ * en outre d'attendre brièvement les trames suivantes avant d'écrire un lot
+ * incomplet.
+ * La référence sur chaque trame retirée de la file est libérée une fois son
+ * lot écrit (ou abandonné), ce qui rend ses tampons au {@link BufferPool}
+ * lorsque la trame a été écrite vers tous ses destinataires.
+ * Lorsque le client a accordé un crédit de messages ({@link FlowCredit}),
+ * l'écrivain attend que ce crédit soit positif avant d'écrire un lot et ne
+ * complète ce lot que tant qu'il reste du crédit : les trames suivantes
+ * restent dans la file du client et sont écrites ensemble dès que le client
+ * renouvelle son crédit.
+ * Une fois un lot écrit, le curseur du client avance jusqu'au numéro de
+ * séquence de sa dernière trame (voir {@link BroadcastSequencer}).
+ * Les écrivains de tous les clients constituent l'étage d'écriture du
+ * pipeline du serveur : chaque lot écrit est enregistré dans les mesures de
+ * cet étage ({@link StageMetrics}).
+ *
+ * @author davidroussel
+ */
+public class ClientWriter implements Runnable
+{
+	/**
+	 * Le client vers lequel on écrit
+	 */
+	private InputOutputClient client;
+
+	/**
+	 * Nombre maximum de trames écrites en une seule écriture
+	 */
+	private final int batchFrames;
+
+	/**
+	 * Délai maximum (en ns) ajouté à l'écriture d'une trame pour attendre
+	 * les suivantes
+	 */
+	private final long batchDelay;
+
+	/**
+	 * Tampon dans lequel sont copiées les trames d'un lot lorsque la socket
+	 * du client n'a pas de canal (une seule écriture sur le flux de sortie)
+	 */
+	private byte[] gathered;
+
+	/**
+	 * Mesures de l'étage d'écriture (null si les écritures ne sont pas
+	 * mesurées)
+	 */
+	private final StageMetrics metrics;
+
+	/**
+	 * Logger pour l'affichage des messages de debug
+	 */
+	private Logger logger;
+
+	/**
+	 * Constructeur d'un écrivain de client
+	 * @param client le client vers lequel écrire
+	 * @param batchFrames nombre maximum de trames écrites en une seule
+	 * écriture
+	 * @param batchDelay délai maximum (en µs) ajouté à l'écriture d'une trame
+	 * pour attendre les suivantes (0 pour n'écrire ensemble que les trames
+	 * déjà en attente)
+	 * @param metrics mesures de l'étage d'écriture du serveur (ou null)
+	 * @param parentLogger logger parent pour l'affichage des messages de
+	 * debug
+	 */
+	public ClientWriter(InputOutputClient client,
+	                    int batchFrames,
+	                    int batchDelay,
+	                    StageMetrics metrics,
+	                    Logger parentLogger)
+	{
+		this.client = client;
+		this.metrics = metrics;
+		this.batchFrames = Math.max(1, batchFrames);
+		this.batchDelay = TimeUnit.MICROSECONDS.toNanos(Math.max(0, batchDelay));
+		gathered = null;
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+	}
+
+	/**
+	 * Constructeur d'un écrivain de client utilisant les réglages d'écriture
+	 * par défaut
+	 * @param client le client vers lequel écrire
+	 * @param parentLogger logger parent pour l'affichage des messages de
+	 * debug
+	 */
+	public ClientWriter(InputOutputClient client, Logger parentLogger)
+	{
+		this(client,
+		     ServerSettings.DEFAULTBATCHFRAMES,
+		     ServerSettings.DEFAULTBATCHDELAY,
+		     null,
+		     parentLogger);
+	}
+
+	/**
+	 * Exécution de l'écrivain : écriture des messages de la file de sortie du
+	 * client jusqu'à ce que celle-ci soit fermée et vide, ou qu'une
+	 * IOException intervienne. Dans ce dernier cas le client est déconnecté
+	 * (ce qui termine aussi son {@link ClientHandler}).
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		FrameQueue queue = client.getOutQueue();
+		WireProtocol protocol = client.getProtocol();
+		ByteBuffer[] batch = new ByteBuffer[batchFrames];
+		MessageFrame[] frames = new MessageFrame[batchFrames];
+		BufferTuner tuner = client.getTuner();
+		FlowCredit credit = client.getCredit();
+		try
+		{
+			MessageFrame frame;
+			while ((frame = queue.takeFrame()) != null)
+			{
+				int count = 0;
+				long bytes;
+				long sequence = 0;
+				try
+				{
+					frames[count] = frame;
+					batch[count++] = frame.toBuffer(protocol);
+					credit.await();
+					credit.consume(frame);
+					long deadline = System.nanoTime() + batchDelay;
+					while ((count < batch.length) && credit.isAvailable())
+					{
+						long remaining = deadline - System.nanoTime();
+						MessageFrame next = (remaining > 0 ?
+						    queue.pollFrame(remaining, TimeUnit.NANOSECONDS) :
+						    queue.pollFrame());
+						if (next == null)
+						{
+							break;
+						}
+						frames[count] = next;
+						batch[count++] = next.toBuffer(protocol);
+						credit.consume(next);
+					}
+					long start = System.nanoTime();
+					bytes = write(batch, count);
+					if (metrics != null)
+					{
+						metrics.record(start);
+					}
+				}
+				finally
+				{
+					for (int i = 0; i < count; i++)
+					{
+						sequence = Math.max(sequence, frames[i].getSequence());
+						frames[i].release();
+					}
+					Arrays.fill(frames, 0, count, null);
+					Arrays.fill(batch, 0, count, null);
+				}
+				client.advanceCursor(sequence);
+				if (tuner != null)
+				{
+					// des trames en attente : l'écrivain ne suit pas le débit
+					tuner.record(bytes, queue.size() > 0);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			logger.warning("ClientWriter[" + client.getName()
+			    + "]: interrupted, Closing client");
+			queue.abort();
+			client.disconnect();
+		}
+		catch (IOException e)
+		{
+			logger.warning("ClientWriter[" + client.getName()
+			    + "]: write failed, Closing client");
+			queue.abort();
+			client.disconnect();
+		}
+
+		long dropped = queue.getDropped();
+		if (dropped > 0)
+		{
+			logger.info("ClientWriter[" + client.getName() + "]: " + dropped
+			    + " messages dropped");
+		}
+		logger.fine("ClientWriter[" + client.getName() + "]: peak queued "
+		    + queue.getPeakBytes() + " bytes, " + client.getWrittenFrames()
+		    + " frames in " + client.getWrites() + " writes"
+		    + (credit.getStalls() > 0 ? ", " + credit.getStalls()
+		        + " credit stalls" : "")
+		    + (tuner != null ? ", send buffer " + tuner.getBufferSize()
+		        + " bytes after " + tuner.getAdjustments() + " adjustments" : ""));
+	}
+
+	/**
+	 * Ecriture d'un lot de trames en une seule écriture groupée sur le canal
+	 * du client ou bien, si la socket du client n'a pas de canal, en une
+	 * seule écriture sur son flux de sortie
+	 * @param batch les tampons des trames à écrire
+	 * @param count le nombre de trames du lot
+	 * @return le nombre d'octets écrits
+	 * @throws IOException si l'écriture échoue
+	 */
+	private long write(ByteBuffer[] batch, int count) throws IOException
+	{
+		SocketChannel channel = client.getChannel();
+		if (channel != null)
+		{
+			// un canal bloquant écrit normalement tout le lot en une fois
+			int frames = count;
+			int first = 0;
+			long bytes = 0;
+			while (first < count)
+			{
+				bytes += channel.write(batch, first, count - first);
+				client.recordWrite(frames);
+				frames = 0;
+				while ((first < count) && !batch[first].hasRemaining())
+				{
+					first++;
+				}
+			}
+			return bytes;
+		}
+
+		OutputStream out = client.getOut();
+		int length = 0;
+		for (int i = 0; i < count; i++)
+		{
+			length += batch[i].remaining();
+		}
+		if ((gathered == null) || (gathered.length < length))
+		{
+			gathered = new byte[length];
+		}
+		int offset = 0;
+		for (int i = 0; i < count; i++)
+		{
+			int size = batch[i].remaining();
+			batch[i].get(gathered, offset, size);
+			offset += size;
+		}
+		out.write(gathered, 0, length);
+		client.recordWrite(count);
+		return length;
+	}
+}
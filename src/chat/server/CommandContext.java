@@ -0,0 +1,103 @@
+package chat.server;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import models.Message;
+
+/**
+ * Contexte d'exécution d'une {@link ServerCommand} : le client ayant envoyé
+ * la commande et les actions qu'une commande peut effectuer sur le serveur.
+ * Le contexte est fourni par le {@link ClientHandler} du client avec le
+ * {@link ChatServer} et par le {@link Reactor} du client avec le
+ * {@link NioChatServer}.
+ *
+ * @author davidroussel
+ */
+public interface CommandContext
+{
+	/**
+	 * Accesseur en lecture du nom du client ayant envoyé la commande
+	 * @return le nom du client
+	 */
+	public String getClientName();
+
+	/**
+	 * Indique si le client ayant envoyé la commande est le super-utilisateur
+	 * (le premier des clients enregistrés)
+	 * @return true si le client est le super-utilisateur
+	 */
+	public boolean isSuperUser();
+
+	/**
+	 * Diffusion d'un message à l'ensemble des clients
+	 * @param message le message à diffuser
+	 * @throws IOException si le message ne peut être sérialisé
+	 */
+	public void broadcast(Message message) throws IOException;
+
+	/**
+	 * Envoi de messages au seul client ayant envoyé la commande
+	 * @param messages les messages à envoyer (au moins un)
+	 * @throws IOException si les messages ne peuvent être sérialisés
+	 */
+	public void reply(List<Message> messages) throws IOException;
+
+	/**
+	 * Envoi d'un message au seul client ayant envoyé la commande
+	 * @param content le contenu du message à envoyer
+	 * @throws IOException si le message ne peut être sérialisé
+	 */
+	public default void reply(String content) throws IOException
+	{
+		reply(Collections.singletonList(new Message(content)));
+	}
+
+	/**
+	 * Déconnexion du client ayant envoyé la commande, une fois celle-ci
+	 * exécutée
+	 */
+	public void logout();
+
+	/**
+	 * Arrêt du serveur
+	 */
+	public void shutdown();
+
+	/**
+	 * Bannissement d'un client : celui-ci sera déconnecté à la réception de
+	 * sa prochaine trame
+	 * @param clientName le nom du client à bannir
+	 * @return true si le client existe, false sinon
+	 */
+	public boolean ban(String clientName);
+
+	/**
+	 * Noms des clients enregistrés
+	 * @return les noms des clients enregistrés, le super-utilisateur en
+	 * premier
+	 */
+	public List<String> getClientNames();
+
+	/**
+	 * Statistiques du serveur
+	 * @return une description des statistiques du serveur
+	 */
+	public String getStatistics();
+
+	/**
+	 * Derniers messages diffusés
+	 * @param count le nombre maximum de messages
+	 * @return les derniers messages diffusés dans leur ordre de diffusion
+	 */
+	public List<Message> getHistory(int count);
+
+	/**
+	 * Crédit accordé par le client ayant envoyé la commande : le serveur
+	 * peut lui envoyer un nombre supplémentaire de messages (voir
+	 * {@link FlowCredit})
+	 * @param messages le nombre de messages supplémentaires (positif)
+	 */
+	public void grantCredit(int messages);
+}
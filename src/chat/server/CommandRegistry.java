@@ -0,0 +1,462 @@
+package chat.server;
+
+import java.io.IOException;
+import java.util.List;
+
+import chat.Frame;
+import chat.Vocabulary;
+import models.Message;
+
+/**
+ * Registre des commandes du serveur ({@link ServerCommand}) indexées par
+ * leur nom. Une trame de contrôle reçue d'un client est une ligne de la
+ * forme "/commande arguments" (ou "commande arguments", le
+ * {@link Vocabulary#commandPrefix} étant facultatif dans une trame de
+ * contrôle) : le nom de la commande est le premier mot de la ligne, recherché
+ * sans tenir compte de la casse dans une table de hachage à adressage
+ * ouvert. La recherche compare directement les caractères de la ligne à ceux
+ * des noms enregistrés, sans créer de chaîne intermédiaire ni convertir la
+ * ligne en minuscules, et son coût ne dépend pas du nombre de commandes
+ * enregistrées.
+ * Le registre {@link #standard()} contient les commandes du
+ * {@link Vocabulary} ; de nouvelles commandes peuvent être ajoutées à tout
+ * moment ({@link #register(String, ServerCommand)}). La table est remplacée
+ * par une copie à chaque enregistrement : la recherche se fait donc sans
+ * verrou.
+ *
+ * @author davidroussel
+ */
+public class CommandRegistry
+{
+	/**
+	 * Nombre de messages envoyés par défaut par la commande
+	 * {@link Vocabulary#historyCmd}
+	 */
+	public final static int DEFAULTHISTORYCOUNT = 20;
+
+	/**
+	 * Table de hachage (immuable) des commandes
+	 */
+	private static class Table
+	{
+		/**
+		 * Noms (en minuscules) des commandes, null pour une case libre
+		 */
+		final String[] names;
+
+		/**
+		 * Commandes correspondant aux noms
+		 */
+		final ServerCommand[] commands;
+
+		/**
+		 * Nombre de commandes de la table
+		 */
+		final int size;
+
+		/**
+		 * Constructeur d'une table vide
+		 * @param capacity le nombre de cases de la table (puissance de 2)
+		 * @param size le nombre de commandes qui y seront placées
+		 */
+		Table(int capacity, int size)
+		{
+			names = new String[capacity];
+			commands = new ServerCommand[capacity];
+			this.size = size;
+		}
+
+		/**
+		 * Placement d'une commande dans la première case libre à partir de
+		 * celle désignée par son nom
+		 * @param name le nom (en minuscules) de la commande
+		 * @param command la commande
+		 */
+		void put(String name, ServerCommand command)
+		{
+			int mask = names.length - 1;
+			int index = hash(name, 0, name.length()) & mask;
+			while ((names[index] != null) && !names[index].equals(name))
+			{
+				index = (index + 1) & mask;
+			}
+			names[index] = name;
+			commands[index] = command;
+		}
+	}
+
+	/**
+	 * La table courante des commandes
+	 */
+	private volatile Table table;
+
+	/**
+	 * Constructeur d'un registre vide
+	 */
+	public CommandRegistry()
+	{
+		table = new Table(8, 0);
+	}
+
+	/**
+	 * Registre contenant les commandes du {@link Vocabulary} :
+	 * <ul>
+	 * <li>{@link Vocabulary#byeCmd} : déconnexion du client</li>
+	 * <li>{@link Vocabulary#kickCmd} &lt;username&gt; : bannissement d'un
+	 * client par le super-utilisateur</li>
+	 * <li>{@link Vocabulary#killCmd} : arrêt du serveur par le
+	 * super-utilisateur</li>
+	 * <li>{@link Vocabulary#statsCmd} : statistiques du serveur</li>
+	 * <li>{@link Vocabulary#whoCmd} : liste des clients connectés</li>
+	 * <li>{@link Vocabulary#historyCmd} [nombre] : derniers messages
+	 * diffusés</li>
+	 * <li>{@link Vocabulary#creditCmd} &lt;nombre&gt; : crédit de messages
+	 * accordé au serveur par le client (sans réponse)</li>
+	 * </ul>
+	 * Seules les trois premières commandes sont diffusées à l'ensemble des
+	 * clients, les réponses des autres ne sont envoyées qu'au client qui les
+	 * demande.
+	 * @return un nouveau registre contenant les commandes standard
+	 */
+	public static CommandRegistry standard()
+	{
+		CommandRegistry registry = new CommandRegistry();
+		registry.register(Vocabulary.byeCmd, CommandRegistry::bye);
+		registry.register(Vocabulary.kickCmd, CommandRegistry::kick);
+		registry.register(Vocabulary.killCmd, CommandRegistry::kill);
+		registry.register(Vocabulary.statsCmd, CommandRegistry::stats);
+		registry.register(Vocabulary.whoCmd, CommandRegistry::who);
+		registry.register(Vocabulary.historyCmd, CommandRegistry::history);
+		registry.register(Vocabulary.creditCmd, CommandRegistry::credit);
+		return registry;
+	}
+
+	/**
+	 * Enregistrement d'une commande (qui remplace une éventuelle commande de
+	 * même nom)
+	 * @param name le nom de la commande (un seul mot)
+	 * @param command la commande
+	 * @throws IllegalArgumentException si le nom est vide ou contient un
+	 * espace
+	 */
+	public synchronized void register(String name, ServerCommand command)
+	{
+		if (name.isEmpty() || (name.indexOf(' ') >= 0))
+		{
+			throw new IllegalArgumentException("CommandRegistry: invalid command name \""
+			    + name + "\"");
+		}
+		String key = name.toLowerCase();
+		Table current = table;
+		int size = current.size + (lookup(key, 0, key.length()) == null ? 1 : 0);
+		int capacity = current.names.length;
+		while (capacity < (2 * size))
+		{
+			capacity *= 2;
+		}
+		Table next = new Table(capacity, size);
+		for (int i = 0; i < current.names.length; i++)
+		{
+			if (current.names[i] != null)
+			{
+				next.put(current.names[i], current.commands[i]);
+			}
+		}
+		next.put(key, command);
+		table = next;
+	}
+
+	/**
+	 * Recherche d'une commande d'après un nom contenu dans une ligne
+	 * @param line la ligne contenant le nom
+	 * @param start l'indice du premier caractère du nom
+	 * @param end l'indice suivant le dernier caractère du nom
+	 * @return la commande correspondant au nom (sans tenir compte de la
+	 * casse) ou bien null si aucune commande ne porte ce nom
+	 */
+	public ServerCommand lookup(CharSequence line, int start, int end)
+	{
+		Table current = table;
+		int mask = current.names.length - 1;
+		int index = hash(line, start, end) & mask;
+		String name;
+		while ((name = current.names[index]) != null)
+		{
+			if (matches(name, line, start, end))
+			{
+				return current.commands[index];
+			}
+			index = (index + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Exécution de la commande contenue dans une trame de contrôle. Une
+	 * commande inconnue est signalée au seul client qui l'a envoyée.
+	 * @param context le contexte du client ayant envoyé la commande
+	 * @param line le contenu de la trame de contrôle
+	 * @return true si la commande a été exécutée, false si elle est inconnue
+	 * @throws IOException si un message ne peut être diffusé ou envoyé au
+	 * client
+	 */
+	public boolean dispatch(CommandContext context, String line)
+	    throws IOException
+	{
+		int start = (line.startsWith(Vocabulary.commandPrefix) ?
+		    Vocabulary.commandPrefix.length() : 0);
+		int end = line.indexOf(' ', start);
+		if (end < 0)
+		{
+			end = line.length();
+		}
+		ServerCommand command = lookup(line, start, end);
+		if (command == null)
+		{
+			context.reply(line + " [unknown command]");
+			return false;
+		}
+		String arguments = (end < line.length() ?
+		    line.substring(end + 1).trim() : "");
+		command.execute(context, arguments);
+		return true;
+	}
+
+	/**
+	 * Indique si une trame contient une commande donnée, sans l'exécuter
+	 * (par exemple pour traiter à part les commandes de contrôle de flux)
+	 * @param frame la trame reçue d'un client
+	 * @param command le nom (en minuscules) de la commande
+	 * @return true si la trame est une trame de contrôle dont le premier mot
+	 * (sans tenir compte du {@link Vocabulary#commandPrefix} ni de la casse)
+	 * est le nom de la commande
+	 */
+	public static boolean isCommand(Frame frame, String command)
+	{
+		if (!frame.isControl())
+		{
+			return false;
+		}
+		String line = frame.getContent();
+		int start = (line.startsWith(Vocabulary.commandPrefix) ?
+		    Vocabulary.commandPrefix.length() : 0);
+		int end = line.indexOf(' ', start);
+		if (end < 0)
+		{
+			end = line.length();
+		}
+		return matches(command, line, start, end);
+	}
+
+	/**
+	 * Calcul du code de hachage d'un nom (en minuscules)
+	 * @param name la séquence contenant le nom
+	 * @param start l'indice du premier caractère du nom
+	 * @param end l'indice suivant le dernier caractère du nom
+	 * @return le code de hachage du nom
+	 */
+	private static int hash(CharSequence name, int start, int end)
+	{
+		int h = 0;
+		for (int i = start; i < end; i++)
+		{
+			h = (31 * h) + Character.toLowerCase(name.charAt(i));
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Comparaison d'un nom enregistré avec un nom contenu dans une ligne,
+	 * sans tenir compte de la casse de la ligne
+	 * @param name le nom enregistré (en minuscules)
+	 * @param line la ligne contenant le nom
+	 * @param start l'indice du premier caractère du nom
+	 * @param end l'indice suivant le dernier caractère du nom
+	 * @return true si les deux noms sont identiques
+	 */
+	private static boolean matches(String name,
+	                               CharSequence line,
+	                               int start,
+	                               int end)
+	{
+		if (name.length() != (end - start))
+		{
+			return false;
+		}
+		for (int i = start; i < end; i++)
+		{
+			if (Character.toLowerCase(line.charAt(i)) != name.charAt(i - start))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Commande {@link Vocabulary#byeCmd} : la déconnexion du client est
+	 * annoncée à tous les clients
+	 * @param context le contexte du client
+	 * @param arguments ignorés
+	 * @throws IOException si l'annonce ne peut être diffusée
+	 */
+	private static void bye(CommandContext context, String arguments)
+	    throws IOException
+	{
+		context.broadcast(new Message(context.getClientName() + " logged out"));
+		context.logout();
+	}
+
+	/**
+	 * Commande {@link Vocabulary#kickCmd} : bannissement d'un client par le
+	 * super-utilisateur. Le résultat de la demande est diffusé à tous les
+	 * clients.
+	 * @param context le contexte du client
+	 * @param arguments le nom du client à bannir
+	 * @throws IOException si le résultat ne peut être diffusé
+	 */
+	private static void kick(CommandContext context, String arguments)
+	    throws IOException
+	{
+		StringBuilder content = new StringBuilder(Vocabulary.kickCmd);
+		if (context.isSuperUser())
+		{
+			if (arguments.isEmpty())
+			{
+				content.append(" [no client name to kick]");
+			}
+			else
+			{
+				content.append(" " + arguments);
+				if (context.ban(arguments))
+				{
+					content.append(" [request granted by server]");
+				}
+				else
+				{
+					content.append(" [client " + arguments + " does not exist]");
+				}
+			}
+		}
+		else
+		{
+			content.append(" " + arguments + " [request denied by server]");
+		}
+		content.append(" by " + context.getClientName());
+		context.broadcast(new Message(content.toString()));
+	}
+
+	/**
+	 * Commande {@link Vocabulary#killCmd} : arrêt du serveur par le
+	 * super-utilisateur. Le refus d'une demande émanant d'un autre client
+	 * est diffusé à tous les clients.
+	 * @param context le contexte du client
+	 * @param arguments ignorés
+	 * @throws IOException si le refus ne peut être diffusé
+	 */
+	private static void kill(CommandContext context, String arguments)
+	    throws IOException
+	{
+		if (context.isSuperUser())
+		{
+			context.shutdown();
+		}
+		else
+		{
+			context.broadcast(new Message(Vocabulary.killCmd
+			    + " [request denied by server] by " + context.getClientName()));
+		}
+	}
+
+	/**
+	 * Commande {@link Vocabulary#statsCmd} : envoi des statistiques du
+	 * serveur au client
+	 * @param context le contexte du client
+	 * @param arguments ignorés
+	 * @throws IOException si la réponse ne peut être envoyée
+	 */
+	private static void stats(CommandContext context, String arguments)
+	    throws IOException
+	{
+		context.reply(context.getStatistics());
+	}
+
+	/**
+	 * Commande {@link Vocabulary#whoCmd} : envoi de la liste des clients
+	 * connectés au client
+	 * @param context le contexte du client
+	 * @param arguments ignorés
+	 * @throws IOException si la réponse ne peut être envoyée
+	 */
+	private static void who(CommandContext context, String arguments)
+	    throws IOException
+	{
+		List<String> names = context.getClientNames();
+		context.reply(names.size() + " clients: " + String.join(", ", names));
+	}
+
+	/**
+	 * Commande {@link Vocabulary#historyCmd} : envoi au client des derniers
+	 * messages diffusés (au plus {@link #DEFAULTHISTORYCOUNT} si le nombre
+	 * n'est pas précisé)
+	 * @param context le contexte du client
+	 * @param arguments le nombre de messages demandés (facultatif)
+	 * @throws IOException si la réponse ne peut être envoyée
+	 */
+	private static void history(CommandContext context, String arguments)
+	    throws IOException
+	{
+		int count = DEFAULTHISTORYCOUNT;
+		if (!arguments.isEmpty())
+		{
+			try
+			{
+				count = Integer.parseInt(arguments);
+			}
+			catch (NumberFormatException e)
+			{
+				context.reply(Vocabulary.historyCmd + " " + arguments
+				    + " [invalid number of messages]");
+				return;
+			}
+		}
+		List<Message> messages = context.getHistory(count);
+		if (messages.isEmpty())
+		{
+			context.reply(Vocabulary.historyCmd + " [no message]");
+		}
+		else
+		{
+			context.reply(messages);
+		}
+	}
+
+	/**
+	 * Commande {@link Vocabulary#creditCmd} : crédit de messages accordé au
+	 * serveur par le client. La commande n'a pas de réponse (sauf erreur)
+	 * afin de ne pas consommer elle-même le crédit qu'elle accorde.
+	 * @param context le contexte du client
+	 * @param arguments le nombre de messages accordés
+	 * @throws IOException si la réponse ne peut être envoyée
+	 */
+	private static void credit(CommandContext context, String arguments)
+	    throws IOException
+	{
+		int messages;
+		try
+		{
+			messages = Integer.parseInt(arguments);
+		}
+		catch (NumberFormatException e)
+		{
+			messages = 0;
+		}
+		if (messages <= 0)
+		{
+			context.reply(Vocabulary.creditCmd + " " + arguments
+			    + " [invalid credit]");
+			return;
+		}
+		context.grantCredit(messages);
+	}
+}
@@ -0,0 +1,315 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Superviseur des connections du {@link ChatServer}. Chaque connection
+ * acceptée ouvre une {@link Session} ({@link #open(Socket)}) à laquelle sont
+ * rattachées les tâches qui la traitent : présentation du client, puis
+ * {@link ClientHandler} et {@link ClientWriter}. Les tâches sont enveloppées
+ * par {@link #task(Session, Runnable)} : lorsque la dernière tâche d'une
+ * session se termine la session est fermée (sa socket est fermée si ce
+ * n'est déjà fait) et retirée du superviseur. Le superviseur ne conserve
+ * donc que les sessions en cours, quel que soit le nombre de connections
+ * traitées depuis le démarrage du serveur.
+ * Les nombres de sessions en cours, maximum et total sont maintenus de
+ * manière atomique et peuvent être lus depuis n'importe quel thread.
+ * L'arrêt ({@link #shutdown(long)}) ferme toutes les sessions en cours et
+ * attend la fin de leurs tâches jusqu'à une échéance, au delà de laquelle
+ * les threads restants sont interrompus.
+ * Un observateur peut être prévenu de la fermeture de chaque session (par
+ * exemple pour rendre la connection au {@link AdmissionControl} du
+ * serveur).
+ *
+ * @author davidroussel
+ */
+public class ConnectionSupervisor
+{
+	/**
+	 * Connection supervisée et tâches qui la traitent
+	 */
+	public static class Session
+	{
+		/**
+		 * La socket de la connection
+		 */
+		private final Socket socket;
+
+		/**
+		 * Nombre de tâches de la session pas encore terminées (y compris
+		 * celles qui n'ont pas encore démarré)
+		 */
+		private final AtomicInteger tasks;
+
+		/**
+		 * Threads exécutant actuellement une tâche de la session
+		 */
+		private final Collection<Thread> threads;
+
+		/**
+		 * Constructeur d'une session
+		 * @param socket la socket de la connection
+		 */
+		Session(Socket socket)
+		{
+			this.socket = socket;
+			tasks = new AtomicInteger(0);
+			threads = ConcurrentHashMap.newKeySet();
+		}
+
+		/**
+		 * Accesseur en lecture de la socket de la session
+		 * @return la socket de la connection
+		 */
+		public Socket getSocket()
+		{
+			return socket;
+		}
+
+		/**
+		 * Fermeture de la connection (si ce n'est déjà fait). Un client en
+		 * cours de présentation ou dont le handler est en attente de lecture
+		 * reçoit alors une exception et sa tâche se termine.
+		 */
+		void disconnect()
+		{
+			if (socket.isClosed())
+			{
+				return;
+			}
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// la socket est inutilisable de toutes façons
+			}
+		}
+	}
+
+	/**
+	 * Les sessions en cours
+	 */
+	private final ConcurrentHashMap<Session, Boolean> sessions;
+
+	/**
+	 * Nombre de sessions en cours
+	 */
+	private final AtomicInteger live;
+
+	/**
+	 * Nombre maximum de sessions simultanées depuis le démarrage
+	 */
+	private final AtomicInteger peak;
+
+	/**
+	 * Nombre total de sessions ouvertes depuis le démarrage
+	 */
+	private final AtomicLong total;
+
+	/**
+	 * Observateur prévenu de la fermeture de chaque session (ou null)
+	 */
+	private final Consumer<Session> closeListener;
+
+	/**
+	 * Logger pour l'affichage des messages de debug
+	 */
+	private final Logger logger;
+
+	/**
+	 * Constructeur d'un superviseur
+	 * @param logger logger pour l'affichage des messages
+	 */
+	public ConnectionSupervisor(Logger logger)
+	{
+		this(logger, null);
+	}
+
+	/**
+	 * Constructeur d'un superviseur prévenant un observateur de la fermeture
+	 * de chaque session
+	 * @param logger logger pour l'affichage des messages
+	 * @param closeListener observateur appelé (une seule fois) par le thread
+	 * fermant une session, après la fermeture de sa connection (ou null)
+	 */
+	public ConnectionSupervisor(Logger logger, Consumer<Session> closeListener)
+	{
+		this.logger = logger;
+		this.closeListener = closeListener;
+		sessions = new ConcurrentHashMap<Session, Boolean>();
+		live = new AtomicInteger(0);
+		peak = new AtomicInteger(0);
+		total = new AtomicLong(0);
+	}
+
+	/**
+	 * Ouverture d'une session pour une connection acceptée. La session doit
+	 * recevoir au moins une tâche ({@link #task(Session, Runnable)}), faute
+	 * de quoi elle doit être fermée par {@link #close(Session)}.
+	 * @param socket la socket de la connection
+	 * @return la session de la connection
+	 */
+	public Session open(Socket socket)
+	{
+		Session session = new Session(socket);
+		sessions.put(session, Boolean.TRUE);
+		int current = live.incrementAndGet();
+		peak.accumulateAndGet(current, Math::max);
+		total.incrementAndGet();
+		return session;
+	}
+
+	/**
+	 * Enveloppe d'une tâche rattachée à une session. La tâche est comptée
+	 * dès sa création : elle doit donc être exécutée. Une tâche peut créer
+	 * d'autres tâches de la même session, celle-ci ne se termine qu'avec la
+	 * dernière d'entre elles.
+	 * @param session la session traitée par la tâche
+	 * @param body le traitement de la tâche
+	 * @return la tâche à exécuter (dans un thread ou un exécuteur)
+	 */
+	public Runnable task(Session session, Runnable body)
+	{
+		session.tasks.incrementAndGet();
+		return () -> {
+			Thread current = Thread.currentThread();
+			session.threads.add(current);
+			try
+			{
+				body.run();
+			}
+			finally
+			{
+				session.threads.remove(current);
+				if (session.tasks.decrementAndGet() == 0)
+				{
+					close(session);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Fermeture d'une session : la connection est fermée si ce n'est déjà
+	 * fait et la session est retirée du superviseur (sans effet si elle
+	 * l'a déjà été)
+	 * @param session la session à fermer
+	 */
+	public void close(Session session)
+	{
+		if (sessions.remove(session) == null)
+		{
+			return;
+		}
+		session.disconnect();
+		if (closeListener != null)
+		{
+			closeListener.accept(session);
+		}
+		if (live.decrementAndGet() == 0)
+		{
+			synchronized (this)
+			{
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Nombre de sessions en cours
+	 * @return le nombre de connections en cours de traitement
+	 */
+	public int getLive()
+	{
+		return live.get();
+	}
+
+	/**
+	 * Nombre maximum de sessions simultanées
+	 * @return le nombre maximum de connections traitées simultanément depuis
+	 * le démarrage
+	 */
+	public int getPeak()
+	{
+		return peak.get();
+	}
+
+	/**
+	 * Nombre total de sessions
+	 * @return le nombre de connections acceptées depuis le démarrage
+	 */
+	public long getTotal()
+	{
+		return total.get();
+	}
+
+	/**
+	 * Instantané des sessions en cours
+	 * @return les sessions en cours
+	 */
+	public List<Session> snapshot()
+	{
+		return new ArrayList<Session>(sessions.keySet());
+	}
+
+	/**
+	 * Arrêt de toutes les sessions : chaque connection est fermée, ce qui
+	 * termine ses tâches, puis on attend la fin de toutes les tâches jusqu'à
+	 * l'échéance. Les threads des sessions encore en cours à l'échéance sont
+	 * interrompus.
+	 * @param timeout délai maximum (en ms) d'attente de la fin des tâches
+	 * @return true si toutes les sessions se sont terminées avant l'échéance
+	 */
+	public boolean shutdown(long timeout)
+	{
+		for (Session session : snapshot())
+		{
+			session.disconnect();
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		synchronized (this)
+		{
+			long remaining;
+			while ((live.get() > 0) &&
+			       ((remaining = deadline - System.nanoTime()) > 0))
+			{
+				try
+				{
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		if (live.get() == 0)
+		{
+			return true;
+		}
+		logger.warning("ConnectionSupervisor::shutdown: " + live.get()
+		    + " sessions still running after " + timeout
+		    + " ms, interrupting their threads");
+		for (Session session : snapshot())
+		{
+			for (Thread t : session.threads)
+			{
+				t.interrupt();
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,297 @@
+package chat.server;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Crédit accordé au serveur par un client pour lui envoyer des messages
+ * (contrôle de flux applicatif). Un client qui affiche lentement ses
+ * messages (client graphique par exemple) accorde un crédit initial puis le
+ * renouvelle au fur et à mesure qu'il consomme les messages reçus (voir
+ * {@link chat.Vocabulary#creditCmd}). L'écrivain du client
+ * ({@link ClientWriter} ou reactor du {@link NioChatServer}) n'écrit une
+ * trame que si le crédit est positif et en retire le nombre de messages de
+ * la trame : un lot peut donc rendre le crédit négatif, d'au plus la taille
+ * d'une trame.
+ * Tant que le crédit est épuisé, les trames restent dans la file de sortie
+ * (bornée) du client, où la politique de débordement s'applique, puis sont
+ * écrites par lots dès que le client renouvelle son crédit. Le serveur ne
+ * remplit donc jamais le tampon du noyau d'un client lent et ni la mémoire
+ * ni les écrivains du serveur ne dépendent de la vitesse d'affichage des
+ * clients.
+ * Le contrôle de flux n'est appliqué qu'à partir du premier crédit accordé
+ * par le client : un client qui n'en accorde jamais n'est pas limité. Il
+ * cesse de l'être lorsque le crédit est fermé ({@link #close()}), afin que
+ * les derniers messages soient écrits lors de sa déconnexion.
+ * On utilise un {@link ReentrantLock} plutôt qu'un bloc synchronized car
+ * un écrivain exécuté dans un thread virtuel peut attendre le crédit.
+ *
+ * @author davidroussel
+ */
+public class FlowCredit
+{
+	/**
+	 * Verrou protégeant le crédit
+	 */
+	private final ReentrantLock lock;
+
+	/**
+	 * Condition signalée lorsque du crédit est accordé ou que le crédit est
+	 * fermé
+	 */
+	private final Condition granted;
+
+	/**
+	 * Indique que le client a accordé un crédit (le contrôle de flux est
+	 * alors appliqué)
+	 */
+	private boolean enabled;
+
+	/**
+	 * Indique que le crédit est fermé et n'est plus appliqué
+	 */
+	private boolean closed;
+
+	/**
+	 * Nombre de messages que le serveur peut encore envoyer au client
+	 */
+	private long balance;
+
+	/**
+	 * Nombre de messages écrits vers le client avant son premier crédit
+	 * (historique rejoué lors de son accueil), retirés de ce crédit dès
+	 * qu'il est accordé
+	 */
+	private long owed;
+
+	/**
+	 * Nombre de fois où l'écrivain a dû retenir des trames faute de crédit
+	 */
+	private volatile long stalls;
+
+	/**
+	 * Indique qu'une attente a déjà été comptée depuis le dernier crédit
+	 * accordé (voir {@link #recordStall()})
+	 */
+	private boolean stalled;
+
+	/**
+	 * Constructeur d'un crédit non appliqué (jusqu'au premier crédit
+	 * accordé par le client)
+	 */
+	public FlowCredit()
+	{
+		lock = new ReentrantLock();
+		granted = lock.newCondition();
+		enabled = false;
+		closed = false;
+		balance = 0;
+		owed = 0;
+		stalls = 0;
+		stalled = false;
+	}
+
+	/**
+	 * Crédit accordé par le client (par le lecteur de ses trames)
+	 * @param messages le nombre de messages supplémentaires que le serveur
+	 * peut envoyer au client
+	 */
+	public void grant(int messages)
+	{
+		lock.lock();
+		try
+		{
+			if (!enabled)
+			{
+				enabled = true;
+				balance -= owed;
+				owed = 0;
+			}
+			balance += messages;
+			stalled = false;
+			granted.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Indique si une trame peut être écrite vers le client sans attendre
+	 * @return true si le contrôle de flux n'est pas appliqué ou si le crédit
+	 * est positif
+	 */
+	public boolean isAvailable()
+	{
+		lock.lock();
+		try
+		{
+			return !enabled || closed || (balance > 0);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Attente bloquante d'un crédit positif (par le {@link ClientWriter} du
+	 * client)
+	 * @throws InterruptedException si le thread est interrompu pendant
+	 * l'attente
+	 */
+	public void await() throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			if (enabled && !closed && (balance <= 0))
+			{
+				stalls++;
+				do
+				{
+					granted.await();
+				}
+				while (!closed && (balance <= 0));
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Consommation du crédit par l'écriture d'une trame
+	 * @param frame la trame écrite vers le client
+	 */
+	public void consume(MessageFrame frame)
+	{
+		lock.lock();
+		try
+		{
+			if (enabled)
+			{
+				balance -= frame.getMessages().size();
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Consommation du crédit par des messages écrits vers le client sans
+	 * passer par son écrivain (historique rejoué lors de son accueil, voir
+	 * {@link InputOutputClient#welcome(java.util.List)}). Le client compte
+	 * ces messages comme les autres lorsqu'il renouvelle son crédit : s'il
+	 * n'en a pas encore accordé, ils sont retirés de son premier crédit.
+	 * @param messages le nombre de messages écrits
+	 */
+	public void consume(int messages)
+	{
+		lock.lock();
+		try
+		{
+			if (enabled)
+			{
+				balance -= messages;
+			}
+			else
+			{
+				owed += messages;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Comptabilisation de trames retenues faute de crédit par un écrivain
+	 * qui n'attend pas (voir {@link #isAvailable()}) : une seule attente est
+	 * comptée jusqu'au prochain crédit accordé
+	 */
+	void recordStall()
+	{
+		lock.lock();
+		try
+		{
+			if (!stalled)
+			{
+				stalled = true;
+				stalls++;
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Fermeture du crédit lors de la déconnexion du client : le contrôle de
+	 * flux n'est plus appliqué et un écrivain en attente est débloqué
+	 */
+	public void close()
+	{
+		lock.lock();
+		try
+		{
+			closed = true;
+			granted.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Indique si le client a accordé un crédit
+	 * @return true si le contrôle de flux est appliqué
+	 */
+	public boolean isEnabled()
+	{
+		lock.lock();
+		try
+		{
+			return enabled && !closed;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Crédit restant
+	 * @return le nombre de messages que le serveur peut encore envoyer au
+	 * client (négatif si la dernière trame a dépassé le crédit)
+	 */
+	public long getBalance()
+	{
+		lock.lock();
+		try
+		{
+			return balance;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Nombre d'attentes de crédit
+	 * @return le nombre de fois où des trames ont été retenues faute de
+	 * crédit
+	 */
+	public long getStalls()
+	{
+		return stalls;
+	}
+}
@@ -0,0 +1,354 @@
+package chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import models.Message;
+
+/**
+ * Encodeur des messages diffusés par un serveur. Plutôt que de sérialiser
+ * chaque message dans un {@link ObjectOutputStream} par client, les messages
+ * sont sérialisés une seule fois dans un flux objet partagé et les octets
+ * obtenus ({@link MessageFrame}) sont écrits tels quels vers chacun des
+ * clients. Le flux objet de chaque client est ainsi le reflet du flux
+ * partagé : les descripteurs de classes et les références déjà transmis ne
+ * sont pas répétés d'un message à l'autre.
+ * Un client qui n'a pas reçu toutes les trames (parce qu'il vient de se
+ * connecter ou parce que des trames ont été supprimées de sa file de sortie)
+ * doit attendre une trame de remise à zéro, que l'on demande par
+ * {@link #requestReset()}.
+ * Tant qu'il n'est pas remis à zéro, un flux objet conserve une référence
+ * vers chacun des objets qu'il a écrits (afin de pouvoir y faire référence
+ * ultérieurement). Pour que la mémoire occupée par l'encodeur (et par le flux
+ * objet de chacun des clients) ne croisse pas avec l'historique des
+ * messages, une remise à zéro est aussi demandée tous les
+ * {@link #resetMessages} messages ou {@link #resetBytes} octets encodés.
+ * Les octets de chaque trame sont copiés dans un tampon d'un
+ * {@link BufferPool} (lorsque l'encodeur en possède un), rendu au pool
+ * lorsque la trame a été écrite vers tous ses destinataires (voir
+ * {@link MessageFrame#release()}) : une fois le régime établi, encoder un
+ * message n'alloue donc plus de tableau d'octets.
+ * Une réponse destinée à un seul client (voir {@link CommandContext#reply(List)})
+ * ne peut pas être sérialisée dans le flux partagé, dont le flux objet des
+ * autres clients ne serait plus le reflet. Elle est sérialisée dans un flux
+ * à part ({@link #encodePrivate(List)}) entre deux remises à zéro : le flux
+ * objet du client est donc remis à zéro après l'avoir lue et la trame
+ * suivante du flux partagé est une trame de remise à zéro.
+ * L'encodeur n'est pas thread safe : les serveurs l'utilisent sous leur
+ * verrou de diffusion, ce qui garantit aussi que les trames sont reçues par
+ * tous les clients dans l'ordre de leur encodage.
+ *
+ * @author davidroussel
+ */
+public class FrameEncoder
+{
+	/**
+	 * Tampon dans lequel l'{@link #encoder} sérialise les messages, dont le
+	 * contenu peut être copié sans passer par un nouveau tableau
+	 */
+	private static class EncodingBuffer extends ByteArrayOutputStream
+	{
+		/**
+		 * Copie du contenu du tampon
+		 * @param destination le tampon dans lequel copier le contenu
+		 */
+		void copyTo(ByteBuffer destination)
+		{
+			destination.put(buf, 0, count);
+		}
+	}
+
+	/**
+	 * Tampon dans lequel l'{@link #encoder} sérialise les messages
+	 */
+	private final EncodingBuffer encoded;
+
+	/**
+	 * Le pool fournissant les tampons des trames (null pour des tampons du
+	 * tas)
+	 */
+	private final BufferPool pool;
+
+	/**
+	 * Flux objet partagé dont l'état est reproduit par le flux objet de
+	 * chacun des clients
+	 */
+	private final ObjectOutputStream encoder;
+
+	/**
+	 * Indique que la prochaine trame doit commencer par une remise à zéro
+	 * du flux objet
+	 */
+	private final AtomicBoolean resetRequested;
+
+	/**
+	 * Nombre maximum de messages encodés entre deux remises à zéro (0 pour
+	 * aucune limite)
+	 */
+	private final int resetMessages;
+
+	/**
+	 * Nombre maximum d'octets encodés entre deux remises à zéro (0 pour
+	 * aucune limite)
+	 */
+	private final long resetBytes;
+
+	/**
+	 * Nombre de messages encodés depuis la dernière remise à zéro, c'est à
+	 * dire retenus par le flux partagé
+	 */
+	private volatile int retainedMessages;
+
+	/**
+	 * Nombre d'octets encodés depuis la dernière remise à zéro
+	 */
+	private volatile long retainedBytes;
+
+	/**
+	 * Nombre de trames de remise à zéro encodées
+	 */
+	private volatile long resets;
+
+	/**
+	 * Constructeur d'un encodeur avec la politique de remise à zéro par
+	 * défaut ({@link ServerSettings#DEFAULTRESETMESSAGES} messages ou
+	 * {@link ServerSettings#DEFAULTRESETBYTES} octets)
+	 */
+	public FrameEncoder()
+	{
+		this(ServerSettings.DEFAULTRESETMESSAGES,
+		     ServerSettings.DEFAULTRESETBYTES);
+	}
+
+	/**
+	 * Constructeur d'un encodeur sans pool de tampons
+	 * @param resetMessages nombre maximum de messages encodés entre deux
+	 * remises à zéro (0 pour aucune limite)
+	 * @param resetBytes nombre maximum d'octets encodés entre deux remises à
+	 * zéro (0 pour aucune limite)
+	 */
+	public FrameEncoder(int resetMessages, long resetBytes)
+	{
+		this(resetMessages, resetBytes, null);
+	}
+
+	/**
+	 * Constructeur d'un encodeur. La première trame encodée est une trame de
+	 * remise à zéro.
+	 * @param resetMessages nombre maximum de messages encodés entre deux
+	 * remises à zéro (0 pour aucune limite)
+	 * @param resetBytes nombre maximum d'octets encodés entre deux remises à
+	 * zéro (0 pour aucune limite)
+	 * @param pool le pool fournissant les tampons des trames (ou null pour
+	 * des tampons du tas)
+	 */
+	public FrameEncoder(int resetMessages, long resetBytes, BufferPool pool)
+	{
+		this.resetMessages = resetMessages;
+		this.resetBytes = resetBytes;
+		this.pool = pool;
+		retainedMessages = 0;
+		retainedBytes = 0;
+		resets = 0;
+		encoded = new EncodingBuffer();
+		try
+		{
+			encoder = new ObjectOutputStream(encoded);
+			encoder.flush();
+		}
+		catch (IOException e)
+		{
+			// n'arrive pas avec un ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		// l'entête est envoyée par chaque client à l'ouverture de son flux
+		encoded.reset();
+		resetRequested = new AtomicBoolean(true);
+	}
+
+	/**
+	 * Demande que la prochaine trame commence par une remise à zéro du flux
+	 * objet. Peut être appelé depuis n'importe quel thread.
+	 */
+	public void requestReset()
+	{
+		resetRequested.set(true);
+	}
+
+	/**
+	 * Sérialisation d'un message dans le flux partagé
+	 * @param message le message à sérialiser
+	 * @return la trame contenant le message sérialisé, dont l'appelant
+	 * détient l'unique référence
+	 * @throws IOException si le message ne peut être sérialisé. La prochaine
+	 * trame sera alors une trame de remise à zéro.
+	 */
+	public MessageFrame encode(Message message) throws IOException
+	{
+		return encode(Collections.singletonList(message));
+	}
+
+	/**
+	 * Sérialisation d'un lot de messages dans le flux partagé : les messages
+	 * sont sérialisés les uns à la suite des autres dans une seule trame
+	 * (une éventuelle remise à zéro précède le premier message)
+	 * @param messages les messages à sérialiser (au moins un)
+	 * @return la trame contenant les messages sérialisés, dont l'appelant
+	 * détient l'unique référence
+	 * @throws IOException si l'un des messages ne peut être sérialisé. La
+	 * prochaine trame sera alors une trame de remise à zéro.
+	 */
+	public MessageFrame encode(List<Message> messages) throws IOException
+	{
+		boolean reset = resetRequested.getAndSet(false);
+		try
+		{
+			if (reset)
+			{
+				encoder.reset();
+				retainedMessages = 0;
+				retainedBytes = 0;
+				resets++;
+			}
+			for (Message message : messages)
+			{
+				encoder.writeObject(message);
+			}
+			encoder.flush();
+			PooledBuffer bytes = (pool != null ? pool.lease(encoded.size())
+			    : PooledBuffer.allocate(encoded.size()));
+			encoded.copyTo(bytes.buffer());
+			bytes.buffer().flip();
+			MessageFrame frame =
+			    new MessageFrame(bytes, reset, messages, pool);
+			retainedMessages += messages.size();
+			retainedBytes += encoded.size();
+			if (((resetMessages > 0) && (retainedMessages >= resetMessages)) ||
+			    ((resetBytes > 0) && (retainedBytes >= resetBytes)))
+			{
+				requestReset();
+			}
+			return frame;
+		}
+		catch (IOException e)
+		{
+			// l'état du flux partagé est incertain
+			requestReset();
+			throw e;
+		}
+		finally
+		{
+			encoded.reset();
+		}
+	}
+
+	/**
+	 * Sérialisation de messages destinés à un seul client hors du flux
+	 * partagé. La trame obtenue commence et se termine par une remise à zéro
+	 * du flux objet ({@link MessageFrame#isIsolated()}) et une remise à zéro
+	 * est demandée pour la prochaine trame du flux partagé : ajoutée à la
+	 * file du client sous le verrou de diffusion, entre deux trames du flux
+	 * partagé, la trame peut donc être lue par le client sans qu'il perde
+	 * les trames suivantes.
+	 * @param messages les messages à sérialiser (au moins un)
+	 * @return la trame contenant les messages sérialisés, dont l'appelant
+	 * détient l'unique référence
+	 * @throws IOException si l'un des messages ne peut être sérialisé
+	 */
+	public MessageFrame encodePrivate(List<Message> messages)
+	    throws IOException
+	{
+		MessageFrame frame = encodeIsolated(messages, pool);
+		requestReset();
+		return frame;
+	}
+
+	/**
+	 * Sérialisation de messages conservés par l'historique du serveur (voir
+	 * {@link MessageHistory}) hors du flux partagé. Comme une réponse
+	 * destinée à un seul client, la trame obtenue commence et se termine par
+	 * une remise à zéro du flux objet : plusieurs de ces trames peuvent donc
+	 * être écrites à la suite vers un client qui vient de recevoir l'entête
+	 * de son flux objet. Le flux partagé n'étant pas concerné, aucune remise
+	 * à zéro n'est demandée et cette méthode peut être appelée depuis
+	 * n'importe quel thread. Les octets de la trame sont placés dans le tas
+	 * plutôt que dans le pool de l'encodeur, car la trame peut être conservée
+	 * longtemps.
+	 * @param messages les messages à sérialiser (au moins un)
+	 * @return la trame contenant les messages sérialisés, dont l'appelant
+	 * détient l'unique référence
+	 * @throws IOException si l'un des messages ne peut être sérialisé
+	 */
+	public MessageFrame encodeIsolated(List<Message> messages)
+	    throws IOException
+	{
+		return encodeIsolated(messages, null);
+	}
+
+	/**
+	 * Sérialisation de messages dans un flux à part, entre deux remises à
+	 * zéro
+	 * @param messages les messages à sérialiser (au moins un)
+	 * @param bufferPool le pool fournissant le tampon de la trame (ou null
+	 * pour un tampon du tas)
+	 * @return la trame isolée contenant les messages sérialisés
+	 * @throws IOException si l'un des messages ne peut être sérialisé
+	 */
+	private static MessageFrame encodeIsolated(List<Message> messages,
+	                                           BufferPool bufferPool)
+	    throws IOException
+	{
+		EncodingBuffer privateEncoded = new EncodingBuffer();
+		ObjectOutputStream privateEncoder = new ObjectOutputStream(privateEncoded);
+		privateEncoder.flush();
+		// l'entête a déjà été reçue par le client
+		privateEncoded.reset();
+		privateEncoder.reset();
+		for (Message message : messages)
+		{
+			privateEncoder.writeObject(message);
+		}
+		privateEncoder.reset();
+		privateEncoder.flush();
+		PooledBuffer bytes = (bufferPool != null ?
+		    bufferPool.lease(privateEncoded.size()) :
+		    PooledBuffer.allocate(privateEncoded.size()));
+		privateEncoded.copyTo(bytes.buffer());
+		bytes.buffer().flip();
+		return new MessageFrame(bytes, true, true, messages, bufferPool);
+	}
+
+	/**
+	 * Nombre de messages encodés depuis la dernière remise à zéro. Ces
+	 * messages restent référencés par le flux partagé (et par le flux objet
+	 * des clients) jusqu'à la prochaine remise à zéro.
+	 * @return le nombre de messages retenus
+	 */
+	public int getRetainedMessages()
+	{
+		return retainedMessages;
+	}
+
+	/**
+	 * Nombre d'octets encodés depuis la dernière remise à zéro
+	 * @return le nombre d'octets des messages retenus
+	 */
+	public long getRetainedBytes()
+	{
+		return retainedBytes;
+	}
+
+	/**
+	 * Nombre de trames de remise à zéro encodées
+	 * @return le nombre de remises à zéro du flux partagé
+	 */
+	public long getResets()
+	{
+		return resets;
+	}
+}
@@ -0,0 +1,221 @@
+package chat.server;
+
+import java.util.concurrent.TimeUnit;
+
+import chat.WireProtocol;
+
+/**
+ * File de sortie des trames ({@link MessageFrame}) d'un client. Les trames
+ * produites par un {@link FrameEncoder} ne peuvent être lues par un client
+ * que si celui-ci a reçu toutes les trames précédentes depuis la dernière
+ * trame de remise à zéro. Cette file écarte donc les trames qu'un client ne
+ * pourrait pas lire :
+ * <ul>
+ * <li>les trames précédant la première trame de remise à zéro (le client
+ * vient de se connecter)</li>
+ * <li>les trames suivant une trame supprimée par la politique de débordement,
+ * jusqu'à la prochaine trame de remise à zéro</li>
+ * </ul>
+ * Une remise à zéro est demandée à l'encodeur dès qu'une trame est
+ * supprimée afin que le client reçoive à nouveau des messages dès la
+ * prochaine diffusion. Lors d'un débordement, un client perd donc la trame
+ * supprimée ainsi que les trames déjà en attente derrière elle.
+ * Une trame isolée ({@link MessageFrame#isIsolated()}) laisse le flux objet
+ * du client remis à zéro : seule une trame de remise à zéro peut la suivre.
+ * Les trames binaires ({@link WireProtocol#BINARY}) étant autonomes, elles
+ * sont toujours lisibles et la file d'un client binaire ne demande jamais de
+ * remise à zéro.
+ * Chaque trame ajoutée à la file ({@link #offer(Object)}) doit apporter une
+ * référence ({@link MessageFrame#retain()}) que la file libère lorsqu'elle
+ * écarte ou supprime la trame et que le consommateur libère après avoir
+ * écrit une trame retirée.
+ *
+ * @author davidroussel
+ */
+public class FrameQueue extends OutboundQueue<MessageFrame>
+{
+	/**
+	 * L'encodeur produisant les trames de cette file
+	 */
+	private final FrameEncoder encoder;
+
+	/**
+	 * Indique que le flux objet du client est synchronisé avec celui de
+	 * l'encodeur. Cet état n'est manipulé que par le consommateur de la file.
+	 */
+	private boolean synced;
+
+	/**
+	 * Le protocole du client destinataire des trames
+	 */
+	private volatile WireProtocol protocol;
+
+	/**
+	 * Constructeur d'une file de trames
+	 * @param capacity le nombre maximum de trames en attente (au moins 1)
+	 * @param policy la politique à appliquer lorsque la file est pleine
+	 * @param encoder l'encodeur produisant les trames
+	 * @param protocol le protocole du client destinataire
+	 */
+	public FrameQueue(int capacity,
+	                  OverflowPolicy policy,
+	                  FrameEncoder encoder,
+	                  WireProtocol protocol)
+	{
+		super(capacity, policy);
+		this.encoder = encoder;
+		this.protocol = protocol;
+		synced = false;
+	}
+
+	/**
+	 * Accesseur en lecture du protocole du client destinataire
+	 * @return le protocole du client
+	 */
+	public WireProtocol getProtocol()
+	{
+		return protocol;
+	}
+
+	/**
+	 * Accesseur en écriture du protocole du client destinataire (lorsque
+	 * celui-ci n'est connu qu'après la création de la file). Doit être appelé
+	 * avant l'ajout de la première trame.
+	 * @param protocol le protocole du client
+	 */
+	public void setProtocol(WireProtocol protocol)
+	{
+		this.protocol = protocol;
+	}
+
+	/**
+	 * Retrait bloquant de la prochaine trame lisible par le client
+	 * @return la prochaine trame lisible ou bien null si la file est fermée
+	 * et vide
+	 * @throws InterruptedException si le thread est interrompu pendant
+	 * l'attente
+	 */
+	public MessageFrame takeFrame() throws InterruptedException
+	{
+		MessageFrame frame;
+		while ((frame = take()) != null)
+		{
+			if (readable(frame))
+			{
+				return frame;
+			}
+			frame.release();
+		}
+		return null;
+	}
+
+	/**
+	 * Retrait non bloquant de la prochaine trame lisible par le client
+	 * @return la prochaine trame lisible ou bien null s'il n'y en a pas
+	 */
+	public MessageFrame pollFrame()
+	{
+		MessageFrame frame;
+		while ((frame = poll()) != null)
+		{
+			if (readable(frame))
+			{
+				return frame;
+			}
+			frame.release();
+		}
+		return null;
+	}
+
+	/**
+	 * Retrait de la prochaine trame lisible par le client, en attendant au
+	 * plus le délai indiqué
+	 * @param timeout délai maximum d'attente
+	 * @param unit l'unité du délai
+	 * @return la prochaine trame lisible ou bien null s'il n'y en a pas à
+	 * l'issue du délai
+	 * @throws InterruptedException si le thread est interrompu pendant
+	 * l'attente
+	 */
+	public MessageFrame pollFrame(long timeout, TimeUnit unit)
+	    throws InterruptedException
+	{
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		MessageFrame frame;
+		while ((frame = poll(deadline - System.nanoTime(),
+		                     TimeUnit.NANOSECONDS)) != null)
+		{
+			if (readable(frame))
+			{
+				return frame;
+			}
+			frame.release();
+		}
+		return null;
+	}
+
+	/**
+	 * Demande de remise à zéro lorsqu'une trame est supprimée
+	 * @see OutboundQueue#overflowed()
+	 */
+	@Override
+	protected void overflowed()
+	{
+		if (protocol == WireProtocol.OBJECT)
+		{
+			encoder.requestReset();
+		}
+	}
+
+	/**
+	 * Libération de la référence apportée par une trame refusée ou supprimée
+	 * @see OutboundQueue#discarded(Object)
+	 */
+	@Override
+	protected void discarded(MessageFrame frame)
+	{
+		frame.release();
+	}
+
+	/**
+	 * Taille d'une trame pour le protocole du client
+	 * @see OutboundQueue#sizeOf(Object)
+	 */
+	@Override
+	protected long sizeOf(MessageFrame frame)
+	{
+		return frame.length(protocol);
+	}
+
+	/**
+	 * Mise à jour de l'état de synchronisation du client avec la trame qui
+	 * vient d'être retirée de la file
+	 * @param frame la trame retirée
+	 * @return true si cette trame peut être lue par le client
+	 */
+	private boolean readable(MessageFrame frame)
+	{
+		if (protocol == WireProtocol.BINARY)
+		{
+			return true;
+		}
+		if (followsGap())
+		{
+			synced = false;
+		}
+		if (frame.isReset())
+		{
+			synced = true;
+		}
+		else if (!synced)
+		{
+			encoder.requestReset();
+		}
+		boolean readable = synced;
+		if (frame.isIsolated())
+		{
+			synced = false;
+		}
+		return readable;
+	}
+}
@@ -1,11 +1,22 @@
 package chat.server;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
+import chat.Frame;
+import chat.MessageCodec;
+import chat.WireProtocol;
 import logger.LoggerFactory;
 
 /**
@@ -17,15 +28,41 @@ import logger.LoggerFactory;
  * <li>{@link #inBR} : {@link BufferedReader} créé à partir d'un
  * {@link InputStreamReader} sur l'{@link InputStream} de la {@link Socket}
  * et permettant de lire le texte en provenance du client</li>
- * <li>{@link #ready} indique que l'{@link BufferedReader} a été créé et que
- * l'on est prêt à lire les lignes en provenance du client</li>
+ * <li>{@link #inDS} : {@link DataInputStream} permettant de lire les trames
+ * d'un client utilisant le protocole binaire (à la place de
+ * {@link #inBR})</li>
+ * <li>{@link #readBuffer} : tampon direct obtenu auprès du
+ * {@link BufferPool} du serveur dans lequel on lit le canal de la socket (à
+ * la place des deux flux précédents)</li>
+ * <li>{@link #protocol} : le protocole négocié avec le client</li>
+ * <li>{@link #ready} indique que le flux d'entrée a été créé et que
+ * l'on est prêt à lire ce qui provient du client</li>
  * <li>{@link #banned} indique le statut de bannissement</li>
  * </ul>
+ * Lorsque le serveur possède un pool de tampons et que la socket du client
+ * possède un canal, les octets reçus sont lus directement dans un tampon du
+ * pool : les trames binaires y sont décodées sans copie intermédiaire et les
+ * lignes de texte sont extraites dans un tableau d'octets réutilisé d'une
+ * ligne à l'autre. La connection n'alloue alors ni tampon de flux ni tampon
+ * de décodeur de caractères dans le tas et le tampon de lecture est rendu au
+ * pool lors du nettoyage du client.
  *
  * @author davidroussel
  */
 public class InputClient
 {
+	/**
+	 * Taille (en octets pour le protocole binaire, en caractères pour le
+	 * protocole texte) du tampon du flux d'entrée
+	 */
+	public final static int INPUTBUFFERSIZE = 8192;
+
+	/**
+	 * Taille initiale du tableau de la ligne de texte en cours de réception
+	 * (lorsque le client est lu au travers de {@link #readBuffer})
+	 */
+	private final static int INITIALLINESIZE = 128;
+
 	/**
 	 * La socket du client
 	 */
@@ -44,6 +81,39 @@ public class InputClient
 	 */
 	protected BufferedReader inBR;
 
+	/**
+	 * le flux d'entrée d'un client utilisant le protocole binaire
+	 */
+	protected DataInputStream inDS;
+
+	/**
+	 * Le pool fournissant le tampon de lecture (null si le client est lu au
+	 * travers de ses flux)
+	 */
+	private final BufferPool pool;
+
+	/**
+	 * Le tampon (en mode lecture) dans lequel on lit le canal de la socket du
+	 * client ou bien null si le client est lu au travers de ses flux
+	 */
+	protected PooledBuffer readBuffer;
+
+	/**
+	 * Les octets de la ligne de texte en cours de réception (lorsque le
+	 * client est lu au travers de {@link #readBuffer})
+	 */
+	private byte[] line;
+
+	/**
+	 * Nombre d'octets de la ligne en cours de réception
+	 */
+	private int lineLength;
+
+	/**
+	 * Le protocole négocié avec le client
+	 */
+	protected WireProtocol protocol;
+
 	/**
 	 * Un Main client est "ready" lorsque sa clientSocket est non nulle et que
 	 * l'on a réussi à obtenir son input stream
@@ -61,6 +131,12 @@ public class InputClient
 	 */
 	protected boolean banned;
 
+	/**
+	 * Limiteur du débit des messages envoyés par le client (null si le débit
+	 * n'est pas limité)
+	 */
+	protected RateLimiter rateLimiter;
+
 	/**
 	 * logger pour afficher les messages de debug
 	 */
@@ -70,26 +146,60 @@ public class InputClient
 	 * Constructeur d'un MainClient
 	 * @param socket the client's socket
 	 * @param name the client's name
+	 * @param protocol le protocole négocié avec le client
+	 * @param pool le pool fournissant le tampon de lecture du client (ou null
+	 * pour lire le client au travers de flux)
 	 * @param parentLogger logger parent pour l'affichage des messages de debug
 	 */
-	public InputClient(Socket socket, String name, Logger parentLogger)
+	public InputClient(Socket socket,
+	                   String name,
+	                   WireProtocol protocol,
+	                   BufferPool pool,
+	                   Logger parentLogger)
 	{
 		clientSocket = socket;
 		this.name = name;
+		this.protocol = protocol;
 		inBR = null;
+		inDS = null;
+		readBuffer = null;
+		line = null;
+		lineLength = 0;
 		ready = false;
+		rateLimiter = null;
+		this.pool = (socket != null && socket.getChannel() != null ? pool
+		    : null);
 
 		logger = LoggerFactory.getParentLogger(getClass(),
 		                                       parentLogger,
 		                                       parentLogger.getLevel());
 
-		if (socket != null)
+		if (this.pool != null)
+		{
+			logger.info("InputClient: Leasing input buffer ... ");
+			readBuffer = this.pool.lease(INPUTBUFFERSIZE);
+			readBuffer.buffer().flip();
+			if (protocol != WireProtocol.BINARY)
+			{
+				line = new byte[INITIALLINESIZE];
+			}
+			ready = true;
+		}
+		else if (socket != null)
 		{
 			logger.info("InputClient: Creating Input Stream ... ");
 			try
 			{
-				inBR = new BufferedReader(new InputStreamReader(
-						socket.getInputStream()));
+				if (protocol == WireProtocol.BINARY)
+				{
+					inDS = new DataInputStream(new BufferedInputStream(
+							socket.getInputStream(), INPUTBUFFERSIZE));
+				}
+				else
+				{
+					inBR = new BufferedReader(new InputStreamReader(
+							socket.getInputStream()), INPUTBUFFERSIZE);
+				}
 				ready = true;
 			}
 			catch (IOException e)
@@ -100,6 +210,32 @@ public class InputClient
 		}
 	}
 
+	/**
+	 * Constructeur d'un MainClient lu au travers de flux
+	 * @param socket the client's socket
+	 * @param name the client's name
+	 * @param protocol le protocole négocié avec le client
+	 * @param parentLogger logger parent pour l'affichage des messages de debug
+	 */
+	public InputClient(Socket socket,
+	                   String name,
+	                   WireProtocol protocol,
+	                   Logger parentLogger)
+	{
+		this(socket, name, protocol, null, parentLogger);
+	}
+
+	/**
+	 * Constructeur d'un MainClient utilisant le protocole objet
+	 * @param socket the client's socket
+	 * @param name the client's name
+	 * @param parentLogger logger parent pour l'affichage des messages de debug
+	 */
+	public InputClient(Socket socket, String name, Logger parentLogger)
+	{
+		this(socket, name, WireProtocol.OBJECT, parentLogger);
+	}
+
 	/**
 	 * Accesseur en lecture du nom du client
 	 *
@@ -114,13 +250,243 @@ public class InputClient
 	/**
 	 * Accesseur en lecture du flux d'entrée du client
 	 *
-	 * @return the input {@link BufferedReader}
+	 * @return the input {@link BufferedReader} ou bien null si le client
+	 * utilise le protocole binaire
 	 */
 	public BufferedReader getIn()
 	{
 		return inBR;
 	}
 
+	/**
+	 * Accesseur en lecture du protocole négocié avec le client
+	 * @return le protocole du client
+	 */
+	public WireProtocol getProtocol()
+	{
+		return protocol;
+	}
+
+	/**
+	 * Estimation de la mémoire du tas propre à la connection du client : le
+	 * tampon du flux d'entrée (plus, avec le protocole texte, le tampon
+	 * d'octets du décodeur de caractères) ou bien, si le client est lu au
+	 * travers d'un tampon du pool (hors du tas), le tableau de la ligne en
+	 * cours de réception
+	 * @return la taille estimée (en octets) de la mémoire occupée par le
+	 * client
+	 */
+	public long getFootprint()
+	{
+		if (pool != null)
+		{
+			return (line != null ? line.length : 0);
+		}
+		if (protocol == WireProtocol.BINARY)
+		{
+			return INPUTBUFFERSIZE;
+		}
+		// char[] du BufferedReader + byte[] du décodeur de l'InputStreamReader
+		return (2L * INPUTBUFFERSIZE) + INPUTBUFFERSIZE;
+	}
+
+	/**
+	 * Lecture bloquante de la prochaine trame envoyée par le client : une
+	 * trame binaire ou bien une ligne de texte convertie en trame (voir
+	 * {@link Frame#fromLine(String)}) selon le protocole du client
+	 * @return la trame reçue ou bien null si le client a fermé sa connection
+	 * @throws IOException si la lecture échoue ou si la trame reçue est
+	 * invalide
+	 */
+	public Frame readFrame() throws IOException
+	{
+		if (pool != null)
+		{
+			return (protocol == WireProtocol.BINARY ? readBinaryFrame()
+			    : readLineFrame());
+		}
+		if (protocol == WireProtocol.BINARY)
+		{
+			Frame frame = MessageCodec.read(inDS);
+			if ((frame != null) && frame.isBatch())
+			{
+				// seul le serveur envoie des lots de messages
+				throw new ProtocolException("InputClient: unexpected batch frame from "
+				    + name);
+			}
+			return frame;
+		}
+		String line = inBR.readLine();
+		return (line != null ? checkLine(Frame.fromLine(line)) : null);
+	}
+
+	/**
+	 * Lecture bloquante de la prochaine trame binaire au travers du
+	 * {@link #readBuffer}. Une trame plus grande que le tampon est lue dans
+	 * un tampon plus grand obtenu auprès du pool, le tampon de taille normale
+	 * étant repris dès que les octets en attente y tiennent.
+	 * @return la trame reçue ou bien null si le client a fermé sa connection
+	 * @throws IOException si la lecture échoue, si la trame reçue est
+	 * invalide ou si la connection est fermée au milieu d'une trame
+	 */
+	private Frame readBinaryFrame() throws IOException
+	{
+		while (true)
+		{
+			ByteBuffer buffer = readBuffer.buffer();
+			Frame frame = MessageCodec.decode(buffer);
+			if (frame != null)
+			{
+				if (frame.isBatch())
+				{
+					// seul le serveur envoie des lots de messages
+					throw new ProtocolException("InputClient: unexpected batch frame from "
+					    + name);
+				}
+				if ((buffer.capacity() > INPUTBUFFERSIZE)
+				    && (buffer.remaining() <= INPUTBUFFERSIZE))
+				{
+					resize(INPUTBUFFERSIZE);
+				}
+				return frame;
+			}
+			if (buffer.remaining() >= MessageCodec.LENGTHSIZE)
+			{
+				// longueur déjà vérifiée par decode
+				int size = MessageCodec.LENGTHSIZE
+				    + buffer.getInt(buffer.position());
+				if (size > buffer.capacity())
+				{
+					resize(size);
+				}
+			}
+			if (!fill())
+			{
+				if (readBuffer.buffer().hasRemaining())
+				{
+					throw new EOFException("InputClient: connection closed by "
+					    + name + " within a frame");
+				}
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Lecture bloquante de la prochaine ligne de texte au travers du
+	 * {@link #readBuffer}, convertie en trame sans être décodée (voir
+	 * {@link Frame#fromLine(byte[], int, Charset)})
+	 * @return la trame reçue ou bien null si le client a fermé sa connection
+	 * @throws IOException si la lecture échoue ou si la ligne reçue est trop
+	 * longue pour tenir dans une trame
+	 */
+	private Frame readLineFrame() throws IOException
+	{
+		// retour chariot final éventuel compris
+		int maxLength = MessageCodec.maxContentLength(name) + 1;
+		while (true)
+		{
+			ByteBuffer buffer = readBuffer.buffer();
+			while (buffer.hasRemaining())
+			{
+				byte b = buffer.get();
+				if (b == '\n')
+				{
+					return takeLine();
+				}
+				if (lineLength == maxLength)
+				{
+					throw new ProtocolException("InputClient: line too long from "
+					    + name);
+				}
+				if (lineLength == line.length)
+				{
+					line = Arrays.copyOf(line, line.length * 2);
+				}
+				line[lineLength++] = b;
+			}
+			if (!fill())
+			{
+				// comme BufferedReader, la dernière ligne peut être incomplète
+				return (lineLength > 0 ? takeLine() : null);
+			}
+		}
+	}
+
+	/**
+	 * Extraction de la ligne en cours de réception (sans retour chariot
+	 * final)
+	 * @return la trame correspondant à la ligne reçue
+	 * @throws ProtocolException si la ligne est trop longue pour tenir dans
+	 * une trame
+	 */
+	private Frame takeLine() throws ProtocolException
+	{
+		int length = lineLength;
+		if ((length > 0) && (line[length - 1] == '\r'))
+		{
+			length--;
+		}
+		lineLength = 0;
+		return checkLine(Frame.fromLine(line, length, Charset.defaultCharset()));
+	}
+
+	/**
+	 * Vérification de la taille d'une ligne de texte reçue : le message
+	 * relayé doit tenir dans une trame (voir
+	 * {@link MessageCodec#maxContentLength(String)}), faute de quoi les
+	 * clients binaires le rejetteraient
+	 * @param frame la trame correspondant à la ligne reçue
+	 * @return la trame
+	 * @throws ProtocolException si la ligne est trop longue
+	 */
+	private Frame checkLine(Frame frame) throws ProtocolException
+	{
+		if (MessageCodec.contentLength(frame.getMessage())
+		    > MessageCodec.maxContentLength(name))
+		{
+			throw new ProtocolException("InputClient: line too long from "
+			    + name);
+		}
+		return frame;
+	}
+
+	/**
+	 * Lecture bloquante d'octets du canal de la socket à la suite de ceux
+	 * qui restent dans le {@link #readBuffer}
+	 * @return false si le client a fermé sa connection
+	 * @throws IOException si la lecture échoue
+	 */
+	private boolean fill() throws IOException
+	{
+		SocketChannel channel = clientSocket.getChannel();
+		ByteBuffer buffer = readBuffer.buffer();
+		buffer.compact();
+		int count;
+		try
+		{
+			count = channel.read(buffer);
+		}
+		finally
+		{
+			buffer.flip();
+		}
+		return count >= 0;
+	}
+
+	/**
+	 * Remplacement du {@link #readBuffer} par un tampon d'une autre capacité
+	 * contenant les octets en attente
+	 * @param size la capacité du nouveau tampon
+	 */
+	private void resize(int size)
+	{
+		PooledBuffer resized = pool.lease(size);
+		resized.buffer().put(readBuffer.buffer()).flip();
+		readBuffer.release();
+		readBuffer = resized;
+	}
+
 	/**
 	 * Accesseur en lecture de l'état du client
 	 *
@@ -154,6 +520,46 @@ public class InputClient
 		this.banned = banned;
 	}
 
+	/**
+	 * Accesseur en lecture du limiteur de débit du client
+	 * @return le limiteur du débit des messages envoyés par le client ou
+	 * bien null si le débit n'est pas limité
+	 */
+	public RateLimiter getRateLimiter()
+	{
+		return rateLimiter;
+	}
+
+	/**
+	 * Mise en place de la limitation du débit des messages envoyés par le
+	 * client (avant le lancement de son {@link ClientHandler})
+	 * @param rateLimiter le limiteur de débit du client (ou null)
+	 */
+	void setRateLimiter(RateLimiter rateLimiter)
+	{
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Déconnexion forcée du client : fermeture de sa socket sans passer par
+	 * son flux d'entrée. Le thread de son handler, bloqué en lecture, reçoit
+	 * alors une exception et se termine normalement (en appelant
+	 * {@link #cleanup()}).
+	 */
+	public void disconnect()
+	{
+		logger.info("MainClient::disconnect: closing client socket ... ");
+		try
+		{
+			clientSocket.close();
+		}
+		catch (IOException e)
+		{
+			logger.severe("MainClient::disconnect: unable to close client socket");
+			logger.severe(e.getLocalizedMessage());
+		}
+	}
+
 	/**
 	 * Nettoyage d'un client principal : fermeture du flux d'entrée et fermeture
 	 * de sa socket.
@@ -164,7 +570,14 @@ public class InputClient
 		logger.info("MainClient::cleanup: closing input stream ... ");
 		try
 		{
-			inBR.close();
+			if (inBR != null)
+			{
+				inBR.close();
+			}
+			if (inDS != null)
+			{
+				inDS.close();
+			}
 		}
 		catch (IOException e)
 		{
@@ -182,5 +595,12 @@ public class InputClient
 			logger.severe("MainClient::cleanup: unable to close client socket");
 			logger.severe(e.getLocalizedMessage());
 		}
+
+		if (readBuffer != null)
+		{
+			// plus aucune lecture ne peut avoir lieu
+			readBuffer.release();
+			readBuffer = null;
+		}
 	}
 }
@@ -1,10 +1,19 @@
 package chat.server;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Logger;
 
 import chat.Failure;
+import chat.FrameType;
+import chat.MessageCodec;
+import chat.Vocabulary;
+import chat.WireProtocol;
+import models.Message;
 
 
 /**
@@ -13,7 +22,13 @@ import chat.Failure;
  * Un client "normal" ajoute aussi le flux de sortie sur lequel on écrit les
  * messages vers le client
  * <ul>
- * 	<li>out : {@link ObjectOutputStream}</li>
+ * 	<li>out : {@link OutputStream} sur lequel sont écrits l'entête du flux
+ * 	objet puis les {@link MessageFrame} lues par le client avec un
+ * 	{@link java.io.ObjectInputStream} ou bien, si le client utilise le
+ * 	protocole binaire, la trame d'acceptation de ce protocole puis les
+ * 	trames binaires des messages</li>
+ * 	<li>outQueue : la file des messages en attente d'écriture sur ce flux
+ * 	par le {@link ClientWriter} du client</li>
  * </ul>
  * @author davidroussel
  *
@@ -23,18 +38,87 @@ public class InputOutputClient extends InputClient
 	/**
 	 * Le flux de sortie vers le client (celui sur lequel on écrit au client)
 	 */
-	private ObjectOutputStream outOS;
+	private OutputStream outOS;
 
 	/**
-	 * Constructeur d'un client
+	 * Délai maximum (en ms) accordé au {@link ClientWriter} pour écrire les
+	 * messages en attente lors du nettoyage du client
+	 */
+	public final static long CLOSELINGER = 1000;
+
+	/**
+	 * La file des messages en attente d'écriture vers le client. Les
+	 * diffusions ne font qu'ajouter des messages à cette file, ce qui ne
+	 * bloque jamais, même si le client ne lit plus ses messages.
+	 */
+	private FrameQueue outQueue;
+
+	/**
+	 * Nombre d'écritures effectuées vers le client par son
+	 * {@link ClientWriter} (seul thread à le modifier)
+	 */
+	private volatile long writes;
+
+	/**
+	 * Nombre de trames écrites vers le client par son {@link ClientWriter}
+	 */
+	private volatile long writtenFrames;
+
+	/**
+	 * Ajusteur du tampon d'émission de la socket du client, utilisé par son
+	 * {@link ClientWriter} (null si le tampon n'est pas ajusté)
+	 */
+	private BufferTuner tuner;
+
+	/**
+	 * Crédit de messages accordé par le client, attendu par son
+	 * {@link ClientWriter}
+	 */
+	private final FlowCredit credit;
+
+	/**
+	 * Curseur du client : numéro de séquence de la dernière trame écrite
+	 * vers le client par son {@link ClientWriter} (voir
+	 * {@link BroadcastSequencer})
+	 */
+	private volatile long cursor;
+
+	/**
+	 * Numéro du groupe distribuant les trames diffusées vers le client dans
+	 * une grande salle (voir {@link ShardedFanOut}), -1 si le client n'est
+	 * affecté à aucun groupe
+	 */
+	private volatile int shard;
+
+	/**
+	 * Constructeur d'un client. Rien n'est encore écrit vers le client : le
+	 * serveur l'accueille avec {@link #welcome()} une fois son nom
+	 * enregistré.
 	 * @param socket la socket du client
 	 * @param name le nom du client
-	 * @param verbose niveau de debug pour les messages
+	 * @param capacity nombre maximum de messages en attente d'écriture
+	 * @param policy politique appliquée lorsque la file des messages en
+	 * attente est pleine
+	 * @param encoder l'encodeur des messages diffusés vers ce client
+	 * @param protocol le protocole négocié avec le client
+	 * @param pool le pool fournissant le tampon de lecture du client (ou null
+	 * pour lire le client au travers de flux)
 	 * @param parentLogger logger parent pour l'affichage des messages
 	 */
-	public InputOutputClient(Socket socket, String name, Logger parentLogger)
+	public InputOutputClient(Socket socket,
+	                         String name,
+	                         int capacity,
+	                         OverflowPolicy policy,
+	                         FrameEncoder encoder,
+	                         WireProtocol protocol,
+	                         BufferPool pool,
+	                         Logger parentLogger)
 	{
-		super(socket, name, parentLogger);
+		super(socket, name, protocol, pool, parentLogger);
+		outQueue = new FrameQueue(capacity, policy, encoder, protocol);
+		credit = new FlowCredit();
+		cursor = 0;
+		shard = -1;
 		if (ready)
 		{
 			outOS = null;
@@ -45,7 +129,7 @@ public class InputOutputClient extends InputClient
 				logger.info("Client: Creating Output Stream ... ");
 				try
 				{
-					outOS = new ObjectOutputStream(clientSocket.getOutputStream());
+					outOS = clientSocket.getOutputStream();
 					ready = true;
 				}
 				catch (IOException e)
@@ -57,8 +141,106 @@ public class InputOutputClient extends InputClient
 		}
 		else
 		{
-			logger.severe("Client: " + Failure.CLIENT_NOT_READY + ", abort...");
-			System.exit(Failure.CLIENT_NOT_READY.toInteger());
+			/*
+			 * Le client reste "not ready" : c'est au serveur de refuser
+			 * cette connection, les autres clients ne doivent pas en pâtir
+			 */
+			outOS = null;
+			logger.severe("Client: " + Failure.CLIENT_NOT_READY);
+		}
+	}
+
+	/**
+	 * Constructeur d'un client utilisant le protocole objet avec une file de
+	 * sortie aux réglages par défaut et son propre encodeur de messages
+	 * @param socket la socket du client
+	 * @param name le nom du client
+	 * @param parentLogger logger parent pour l'affichage des messages
+	 */
+	public InputOutputClient(Socket socket, String name, Logger parentLogger)
+	{
+		this(socket,
+		     name,
+		     ServerSettings.DEFAULTOUTBOUNDCAPACITY,
+		     OverflowPolicy.DROP_OLDEST,
+		     new FrameEncoder(),
+		     WireProtocol.OBJECT,
+		     null,
+		     parentLogger);
+	}
+
+	/**
+	 * Accueil du client une fois son nom accepté par le serveur : écriture
+	 * de la trame d'acceptation du protocole binaire ou bien de l'entête du
+	 * flux objet. Doit précéder le lancement du {@link ClientWriter} du
+	 * client.
+	 * @return true si l'accueil a pu être écrit, false sinon (le client
+	 * n'est alors plus prêt)
+	 */
+	public boolean welcome()
+	{
+		return welcome(Collections.<MessageFrame>emptyList());
+	}
+
+	/**
+	 * Accueil du client une fois son nom accepté par le serveur, suivi des
+	 * derniers messages diffusés avant son arrivée (voir
+	 * {@link MessageHistory#replay()}). La trame d'acceptation du protocole
+	 * binaire ou l'entête du flux objet et les trames rejouées sont
+	 * rassemblées dans un seul tampon, écrit en une seule écriture. Les
+	 * trames rejouées étant isolées, le flux objet du client est remis à zéro
+	 * après les avoir lues et sa file n'écrit ensuite les trames du flux
+	 * partagé qu'à partir d'une trame de remise à zéro (voir
+	 * {@link FrameQueue}). Les messages rejoués sont retirés du crédit du
+	 * client (voir {@link FlowCredit#consume(int)}). Doit précéder le
+	 * lancement du {@link ClientWriter} du client.
+	 * @param history les trames à rejouer dans leur ordre de diffusion (les
+	 * références sur ces trames restent détenues par l'appelant)
+	 * @return true si l'accueil a pu être écrit, false sinon (le client
+	 * n'est alors plus prêt)
+	 */
+	public boolean welcome(List<MessageFrame> history)
+	{
+		if (outOS == null)
+		{
+			return false;
+		}
+		try
+		{
+			byte[] greeting = (protocol == WireProtocol.BINARY ?
+			    MessageCodec.encode(FrameType.CONTROL,
+			                        new Message(Vocabulary.binaryProtocol)) :
+			    MessageFrame.STREAMHEADER);
+			int length = greeting.length;
+			for (MessageFrame frame : history)
+			{
+				length += frame.length(protocol);
+			}
+			ByteBuffer gathered = ByteBuffer.allocate(length);
+			gathered.put(greeting);
+			for (MessageFrame frame : history)
+			{
+				gathered.put(frame.toBuffer(protocol));
+			}
+			outOS.write(gathered.array(), 0, length);
+			if (!history.isEmpty())
+			{
+				int messages = 0;
+				for (MessageFrame frame : history)
+				{
+					messages += frame.getMessages().size();
+				}
+				credit.consume(messages);
+				recordWrite(history.size());
+			}
+			return true;
+		}
+		catch (IOException e)
+		{
+			logger.severe("Client: unable to write to client output stream");
+			logger.severe(e.getLocalizedMessage());
+			ready = false;
+			return false;
 		}
 	}
 
@@ -66,26 +248,192 @@ public class InputOutputClient extends InputClient
 	 * Accesseur en lecture du flux de sortie d'un client
 	 * @return the out
 	 */
-	public ObjectOutputStream getOut()
+	public OutputStream getOut()
 	{
 		return outOS;
 	}
 
 	/**
-	 * Nettoyage d'un client : fermeture du flux de sortie et super.cleanup()
+	 * Canal de la socket du client permettant des écritures groupées
+	 * @return le canal de la socket du client ou bien null si la socket n'a
+	 * pas été créée par un canal (il faut alors écrire sur {@link #getOut()})
+	 */
+	public SocketChannel getChannel()
+	{
+		return (clientSocket != null ? clientSocket.getChannel() : null);
+	}
+
+	/**
+	 * Accesseur en lecture de l'ajusteur du tampon d'émission
+	 * @return l'ajusteur du tampon d'émission de la socket du client ou bien
+	 * null si ce tampon n'est pas ajusté
+	 */
+	public BufferTuner getTuner()
+	{
+		return tuner;
+	}
+
+	/**
+	 * Mise en place de l'ajustement du tampon d'émission (avant le
+	 * lancement du {@link ClientWriter} du client)
+	 * @param tuner l'ajusteur du tampon d'émission de la socket du client
+	 */
+	void setTuner(BufferTuner tuner)
+	{
+		this.tuner = tuner;
+	}
+
+	/**
+	 * Accesseur en lecture du crédit de messages accordé par le client
+	 * @return le crédit du client
+	 */
+	public FlowCredit getCredit()
+	{
+		return credit;
+	}
+
+	/**
+	 * Accesseur en lecture du groupe du client
+	 * @return le numéro du groupe distribuant les trames vers le client ou
+	 * bien -1 s'il n'est affecté à aucun groupe
+	 */
+	public int getShard()
+	{
+		return shard;
+	}
+
+	/**
+	 * Affectation du client à un groupe (par le {@link ShardedFanOut})
+	 * @param shard le numéro du groupe
+	 */
+	void setShard(int shard)
+	{
+		this.shard = shard;
+	}
+
+	/**
+	 * Accesseur en lecture du curseur du client
+	 * @return le numéro de séquence de la dernière trame écrite vers le
+	 * client
+	 */
+	public long getCursor()
+	{
+		return cursor;
+	}
+
+	/**
+	 * Avancement du curseur du client (par son {@link ClientWriter} ou lors
+	 * de son enregistrement), le curseur ne reculant jamais
+	 * @param sequence le numéro de séquence de la dernière trame écrite
+	 */
+	void advanceCursor(long sequence)
+	{
+		if (sequence > cursor)
+		{
+			cursor = sequence;
+		}
+	}
+
+	/**
+	 * Comptabilisation d'une écriture vers le client (par son
+	 * {@link ClientWriter})
+	 * @param frames le nombre de trames écrites en une seule écriture
+	 */
+	void recordWrite(int frames)
+	{
+		writes++;
+		writtenFrames += frames;
+	}
+
+	/**
+	 * Nombre d'écritures effectuées vers le client
+	 * @return le nombre d'écritures (et donc d'appels système) effectuées
+	 * pour écrire les trames du client
+	 */
+	public long getWrites()
+	{
+		return writes;
+	}
+
+	/**
+	 * Nombre de trames écrites vers le client
+	 * @return le nombre de trames écrites
+	 */
+	public long getWrittenFrames()
+	{
+		return writtenFrames;
+	}
+
+	/**
+	 * Accesseur en lecture de la file des messages en attente d'écriture
+	 * @return la file de sortie du client
+	 */
+	public FrameQueue getOutQueue()
+	{
+		return outQueue;
+	}
+
+	/**
+	 * Estimation de la mémoire du tas propre à la connection du client : son
+	 * tampon d'entrée et les trames en attente dans sa file de sortie. Les
+	 * messages retenus par l'encodeur partagé ne sont pas comptés ici car
+	 * ils sont communs à tous les clients (voir
+	 * {@link FrameEncoder#getRetainedBytes()}).
+	 * @return la taille estimée (en octets) de la mémoire occupée par le
+	 * client
+	 * @see InputClient#getFootprint()
+	 */
+	@Override
+	public long getFootprint()
+	{
+		return super.getFootprint() + outQueue.getQueuedBytes();
+	}
+
+	/**
+	 * Envoi d'un message (déjà sérialisé) au client : le message est
+	 * simplement ajouté à la file de sortie du client et sera écrit par son
+	 * {@link ClientWriter}. La file prend sa propre référence sur la trame.
+	 * @param frame le message sérialisé à envoyer
+	 * @return false si la file de sortie est pleine et que le client doit
+	 * être déconnecté (politique {@link OverflowPolicy#DISCONNECT}), true
+	 * sinon
+	 */
+	public boolean send(MessageFrame frame)
+	{
+		return outQueue.offer(frame.retain());
+	}
+
+	/**
+	 * Nettoyage d'un client : fermeture de la file de sortie et du crédit,
+	 * attente (bornée) de l'écriture des messages en attente puis fermeture
+	 * du flux de sortie et super.cleanup()
 	 */
 	@Override
 	public void cleanup()
 	{
-		logger.info("Client::cleanup: closing output stream ... ");
-		try
+		outQueue.close();
+		credit.close();
+		if (outOS == null)
 		{
-			outOS.close();
+			// flux de sortie jamais créé : rien à fermer
 		}
-		catch (IOException e)
+		else if (outQueue.awaitDrained(CLOSELINGER))
 		{
-			logger.severe("Client: unable to close client output stream");
-			logger.severe(e.getLocalizedMessage());
+			logger.info("Client::cleanup: closing output stream ... ");
+			try
+			{
+				outOS.close();
+			}
+			catch (IOException e)
+			{
+				logger.severe("Client: unable to close client output stream");
+				logger.severe(e.getLocalizedMessage());
+			}
+		}
+		else
+		{
+			logger.warning("Client::cleanup: " + outQueue.size()
+			    + " messages not written to " + name);
 		}
 		super.cleanup();
 	}
@@ -0,0 +1,386 @@
+package chat.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import chat.FrameType;
+import chat.MessageCodec;
+import chat.WireProtocol;
+import models.Message;
+
+/**
+ * Message sérialisé une seule fois par un {@link FrameEncoder} pour
+ * l'ensemble de ses destinataires. Les octets d'une trame sont immuables et
+ * peuvent être écrits tels quels vers n'importe quel client dont le flux
+ * objet est dans le même état que celui de l'encodeur, c'est à dire un client
+ * ayant reçu toutes les trames depuis la dernière trame de remise à zéro
+ * ({@link #isReset()}).
+ * Pour les clients utilisant le protocole binaire ({@link WireProtocol}), la
+ * trame binaire du message n'est encodée qu'une seule fois, lors de sa
+ * première utilisation. Chaque trame binaire étant autonome, elle peut être
+ * écrite vers n'importe quel client binaire.
+ * Une trame peut aussi contenir plusieurs messages regroupés par un
+ * {@link BroadcastCoalescer} : les messages sont alors sérialisés les uns à
+ * la suite des autres et la trame binaire est un lot de messages
+ * ({@link FrameType#BATCH}).
+ * Les octets d'une trame sont placés dans des tampons d'un
+ * {@link BufferPool} : la trame possède donc un compteur de références.
+ * L'encodeur en donne une à celui qui diffuse la trame, chaque file de
+ * sortie à laquelle la trame est ajoutée en reçoit une ({@link #retain()})
+ * qui est libérée ({@link #release()}) une fois la trame écrite vers le
+ * client ou supprimée de la file. Les tampons de la trame sont rendus au
+ * pool lorsque la dernière référence est libérée, après quoi la trame ne
+ * doit plus être utilisée.
+ *
+ * @author davidroussel
+ */
+public final class MessageFrame
+{
+	/**
+	 * Entête d'un flux objet, à envoyer à chaque client avant toute trame
+	 */
+	public final static byte[] STREAMHEADER = streamHeader();
+
+	/**
+	 * Mise à jour atomique de la trame binaire encodée lors de sa première
+	 * utilisation
+	 */
+	private final static AtomicReferenceFieldUpdater<MessageFrame, PooledBuffer> BINARY =
+	    AtomicReferenceFieldUpdater.newUpdater(MessageFrame.class,
+	                                           PooledBuffer.class,
+	                                           "binary");
+
+	/**
+	 * Mise à jour atomique du compteur de références
+	 */
+	private final static AtomicIntegerFieldUpdater<MessageFrame> REFERENCES =
+	    AtomicIntegerFieldUpdater.newUpdater(MessageFrame.class, "references");
+
+	/**
+	 * Le tampon contenant les octets du message sérialisé
+	 */
+	private final PooledBuffer bytes;
+
+	/**
+	 * Indique que la trame commence par un
+	 * {@link ObjectStreamConstants#TC_RESET} et peut donc être lue par
+	 * n'importe quel client (dont le flux objet est ouvert)
+	 */
+	private final boolean reset;
+
+	/**
+	 * Indique que la trame a été sérialisée hors du flux partagé pour un seul
+	 * client (voir {@link FrameEncoder#encodePrivate(List)}) : elle se
+	 * termine par un {@link ObjectStreamConstants#TC_RESET} et ne peut donc
+	 * être suivie que par une trame de remise à zéro
+	 */
+	private final boolean isolated;
+
+	/**
+	 * Les messages contenus dans la trame (un seul sauf pour un lot)
+	 */
+	private final List<Message> messages;
+
+	/**
+	 * Le pool fournissant le tampon de la trame binaire (null pour un tampon
+	 * du tas)
+	 */
+	private final BufferPool pool;
+
+	/**
+	 * Le tampon de la trame binaire du message (voir {@link MessageCodec}),
+	 * encodée lors de sa première utilisation. Plusieurs threads peuvent
+	 * l'encoder simultanément : seul le premier tampon encodé est conservé.
+	 */
+	private volatile PooledBuffer binary;
+
+	/**
+	 * Nombre de références détenues sur la trame
+	 */
+	private volatile int references;
+
+	/**
+	 * Numéro de séquence du dernier message de la trame (voir
+	 * {@link BroadcastSequencer}), 0 si la trame n'a pas été séquencée
+	 */
+	private long sequence;
+
+	/**
+	 * Constructeur d'une trame (voir {@link FrameEncoder#encode(List)}).
+	 * Celui qui crée la trame en détient
+	 * l'unique référence.
+	 * @param bytes le tampon (prêt à être lu) contenant les messages
+	 * sérialisés les uns à la suite des autres
+	 * @param reset true si la trame commence par une remise à zéro du flux
+	 * objet
+	 * @param messages les messages contenus dans la trame (au moins un)
+	 * @param pool le pool fournissant le tampon de la trame binaire (ou null)
+	 */
+	MessageFrame(PooledBuffer bytes,
+	             boolean reset,
+	             List<Message> messages,
+	             BufferPool pool)
+	{
+		this(bytes, reset, false, messages, pool);
+	}
+
+	/**
+	 * Constructeur d'une trame pouvant être destinée à un seul client (voir
+	 * {@link FrameEncoder#encodePrivate(List)}). Celui qui crée la trame en
+	 * détient l'unique référence.
+	 * @param bytes le tampon (prêt à être lu) contenant les messages
+	 * sérialisés les uns à la suite des autres
+	 * @param reset true si la trame commence par une remise à zéro du flux
+	 * objet
+	 * @param isolated true si la trame se termine par une remise à zéro du
+	 * flux objet
+	 * @param messages les messages contenus dans la trame (au moins un)
+	 * @param pool le pool fournissant le tampon de la trame binaire (ou null)
+	 */
+	MessageFrame(PooledBuffer bytes,
+	             boolean reset,
+	             boolean isolated,
+	             List<Message> messages,
+	             BufferPool pool)
+	{
+		this.bytes = bytes;
+		this.reset = reset;
+		this.isolated = isolated;
+		this.messages = messages;
+		this.pool = pool;
+		binary = null;
+		references = 1;
+		sequence = 0;
+	}
+
+	/**
+	 * Indique si la trame commence par une remise à zéro du flux objet
+	 * @return true si la trame peut être lue par un client quel que soit
+	 * l'état de son flux objet
+	 */
+	public boolean isReset()
+	{
+		return reset;
+	}
+
+	/**
+	 * Indique si la trame a été sérialisée hors du flux partagé
+	 * @return true si la trame laisse le flux objet du client remis à zéro,
+	 * seule une trame de remise à zéro pouvant alors la suivre
+	 */
+	public boolean isIsolated()
+	{
+		return isolated;
+	}
+
+	/**
+	 * Accesseur en lecture du message contenu dans la trame
+	 * @return le message de la trame (le premier message d'un lot)
+	 */
+	public Message getMessage()
+	{
+		return messages.get(0);
+	}
+
+	/**
+	 * Accesseur en lecture du numéro de séquence de la trame
+	 * @return le numéro de séquence du dernier message de la trame ou bien 0
+	 * si la trame n'a pas été séquencée
+	 */
+	public long getSequence()
+	{
+		return sequence;
+	}
+
+	/**
+	 * Accesseur en écriture du numéro de séquence de la trame, avant qu'elle
+	 * ne soit ajoutée aux files des clients (qui la publient à leurs
+	 * écrivains)
+	 * @param sequence le numéro de séquence du dernier message de la trame
+	 */
+	void setSequence(long sequence)
+	{
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Accesseur en lecture des messages contenus dans la trame
+	 * @return les messages de la trame dans leur ordre de diffusion
+	 */
+	public List<Message> getMessages()
+	{
+		return messages;
+	}
+
+	/**
+	 * Prise d'une référence supplémentaire sur la trame (par exemple avant de
+	 * l'ajouter à la file de sortie d'un client)
+	 * @return cette trame
+	 * @throws IllegalStateException si la trame a déjà été libérée
+	 */
+	public MessageFrame retain()
+	{
+		if (REFERENCES.getAndIncrement(this) <= 0)
+		{
+			REFERENCES.decrementAndGet(this);
+			throw new IllegalStateException("MessageFrame: retain of a released frame");
+		}
+		return this;
+	}
+
+	/**
+	 * Libération d'une référence sur la trame. Les tampons de la trame sont
+	 * rendus à leur pool lorsque la dernière référence est libérée.
+	 */
+	public void release()
+	{
+		int remaining = REFERENCES.decrementAndGet(this);
+		if (remaining == 0)
+		{
+			bytes.release();
+			PooledBuffer encoded = BINARY.getAndSet(this, null);
+			if (encoded != null)
+			{
+				encoded.release();
+			}
+		}
+		else if (remaining < 0)
+		{
+			REFERENCES.incrementAndGet(this);
+			throw new IllegalStateException("MessageFrame: frame released twice");
+		}
+	}
+
+	/**
+	 * Taille de la trame
+	 * @param protocol le protocole du client destinataire
+	 * @return le nombre d'octets de la trame
+	 */
+	public int length(WireProtocol protocol)
+	{
+		return buffer(protocol).length();
+	}
+
+	/**
+	 * Ecriture de la trame sur un flux de sortie
+	 * @param out le flux sur lequel écrire
+	 * @param protocol le protocole du client destinataire
+	 * @throws IOException si l'écriture échoue
+	 */
+	public void writeTo(OutputStream out, WireProtocol protocol)
+	    throws IOException
+	{
+		ByteBuffer data = toBuffer(protocol);
+		if (data.hasArray())
+		{
+			out.write(data.array(),
+			          data.arrayOffset() + data.position(),
+			          data.remaining());
+		}
+		else
+		{
+			byte[] copy = new byte[data.remaining()];
+			data.get(copy);
+			out.write(copy);
+		}
+	}
+
+	/**
+	 * Tampon (en lecture seule) sur les octets de la trame. Chaque appel
+	 * fournit un nouveau tampon possédant sa propre position, les mêmes
+	 * octets peuvent donc être écrits simultanément vers plusieurs canaux.
+	 * Le tampon obtenu n'est utilisable que tant qu'une référence est
+	 * détenue sur la trame.
+	 * @param protocol le protocole du client destinataire
+	 * @return un nouveau tampon sur les octets de la trame
+	 */
+	public ByteBuffer toBuffer(WireProtocol protocol)
+	{
+		return buffer(protocol).view();
+	}
+
+	/**
+	 * Tampon de la trame pour un protocole
+	 * @param protocol le protocole du client destinataire
+	 * @return le tampon des octets sérialisés ou bien de la trame binaire
+	 */
+	private PooledBuffer buffer(WireProtocol protocol)
+	{
+		if (protocol != WireProtocol.BINARY)
+		{
+			return bytes;
+		}
+		PooledBuffer encoded = binary;
+		if (encoded == null)
+		{
+			encoded = encodeBinary();
+			if (!BINARY.compareAndSet(this, null, encoded))
+			{
+				// un autre thread l'a encodée en même temps
+				encoded.release();
+				encoded = binary;
+			}
+		}
+		return encoded;
+	}
+
+	/**
+	 * Encodage de la trame binaire des messages de la trame : un message
+	 * isolé est encodé directement dans un tampon du pool, un lot est encodé
+	 * puis copié dans un tampon du pool
+	 * @return le tampon (prêt à être lu) de la trame binaire
+	 */
+	private PooledBuffer encodeBinary()
+	{
+		if (messages.size() == 1)
+		{
+			Message message = messages.get(0);
+			PooledBuffer encoded = lease(MessageCodec.length(message));
+			MessageCodec.encode(FrameType.MESSAGE, message, encoded.buffer());
+			encoded.buffer().flip();
+			return encoded;
+		}
+		byte[] batch = MessageCodec.encodeBatch(messages);
+		PooledBuffer encoded = lease(batch.length);
+		encoded.buffer().put(batch).flip();
+		return encoded;
+	}
+
+	/**
+	 * Obtention d'un tampon auprès du pool de la trame
+	 * @param size la capacité du tampon
+	 * @return un tampon du pool ou bien du tas si la trame n'a pas de pool
+	 */
+	private PooledBuffer lease(int size)
+	{
+		return (pool != null ? pool.lease(size) : PooledBuffer.allocate(size));
+	}
+
+	/**
+	 * Calcul de l'entête d'un flux objet
+	 * @return les octets écrits par un {@link ObjectOutputStream} à sa
+	 * création
+	 */
+	private static byte[] streamHeader()
+	{
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		try
+		{
+			new ObjectOutputStream(header).close();
+		}
+		catch (IOException e)
+		{
+			// n'arrive pas avec un ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return header.toByteArray();
+	}
+}
@@ -0,0 +1,271 @@
+package chat.server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import chat.MessageCodec;
+import models.Message;
+
+/**
+ * Historique (borné) des derniers messages diffusés par un serveur, envoyé
+ * aux clients qui le demandent (voir {@link chat.Vocabulary#historyCmd}).
+ * Les messages sont ajoutés sous le verrou de diffusion du serveur, dans
+ * leur ordre de diffusion ; au delà de la capacité de l'historique les plus
+ * anciens sont oubliés. L'ajout d'un message ne fait que le placer dans
+ * l'anneau : il n'est pas sérialisé une seconde fois sur le chemin de
+ * diffusion.
+ * Lorsque l'historique possède un encodeur, ses messages peuvent être
+ * rejoués vers un client qui vient de se connecter ({@link #replay()}) sous
+ * la forme de quelques trames isolées (voir
+ * {@link FrameEncoder#encodeIsolated(List)}), aussi grandes que le permet
+ * la taille maximum d'une trame binaire ({@link MessageCodec#MAXFRAMESIZE}).
+ * Ces trames ne sont construites qu'à l'arrivée d'un client et conservées
+ * pour les clients suivants jusqu'à ce que l'historique change ; leurs
+ * trames binaires ne sont elles aussi encodées qu'une seule fois,
+ * lorsqu'un premier client binaire les reçoit.
+ * L'historique est alors aussi borné par la taille totale de ses messages
+ * encodés (voir {@link MessageCodec#length(Message)}).
+ *
+ * @author davidroussel
+ */
+public class MessageHistory
+{
+	/**
+	 * Nombre maximum de messages conservés
+	 */
+	private final int capacity;
+
+	/**
+	 * Taille totale maximum (en octets) des messages encodés conservés (0
+	 * pour aucune limite)
+	 */
+	private final long byteCapacity;
+
+	/**
+	 * Encodeur de la trame rejouée (null si les messages ne sont pas
+	 * rejoués)
+	 */
+	private final FrameEncoder encoder;
+
+	/**
+	 * Les messages conservés, du plus ancien au plus récent
+	 */
+	private final ArrayDeque<Message> messages;
+
+	/**
+	 * Taille totale (en octets) des messages encodés conservés
+	 */
+	private long bytes;
+
+	/**
+	 * Trames isolées des messages conservés, construites lors du premier
+	 * {@link #replay()} suivant une modification de l'historique (null si
+	 * elles n'ont pas encore été construites), sur lesquelles l'historique
+	 * détient une référence
+	 */
+	private List<MessageFrame> replayFrames;
+
+	/**
+	 * Constructeur d'un historique dont les messages ne sont pas rejoués
+	 * @param capacity le nombre maximum de messages conservés (0 pour ne
+	 * conserver aucun message)
+	 */
+	public MessageHistory(int capacity)
+	{
+		this(capacity, 0, null);
+	}
+
+	/**
+	 * Constructeur d'un historique
+	 * @param capacity le nombre maximum de messages conservés (0 pour ne
+	 * conserver aucun message)
+	 * @param byteCapacity la taille totale maximum (en octets) des messages
+	 * encodés conservés (0 pour aucune limite)
+	 * @param encoder l'encodeur de la trame rejouée aux clients qui se
+	 * connectent, ou bien null si les messages ne sont pas rejoués
+	 */
+	public MessageHistory(int capacity, long byteCapacity, FrameEncoder encoder)
+	{
+		this.capacity = Math.max(0, capacity);
+		this.byteCapacity = Math.max(0, byteCapacity);
+		this.encoder = encoder;
+		messages = new ArrayDeque<Message>(Math.min(this.capacity, 1024));
+		bytes = 0;
+		replayFrames = null;
+	}
+
+	/**
+	 * Ajout de messages diffusés à l'historique
+	 * @param diffused les messages diffusés dans leur ordre de diffusion
+	 */
+	public synchronized void add(List<Message> diffused)
+	{
+		if (capacity == 0)
+		{
+			return;
+		}
+		for (Message message : diffused)
+		{
+			messages.add(message);
+			bytes += MessageCodec.length(message);
+			while ((messages.size() > capacity) ||
+			       ((byteCapacity > 0) && (bytes > byteCapacity)))
+			{
+				bytes -= MessageCodec.length(messages.poll());
+			}
+		}
+		invalidate();
+	}
+
+	/**
+	 * Derniers messages de l'historique
+	 * @param count le nombre maximum de messages
+	 * @return les (au plus) count derniers messages dans leur ordre de
+	 * diffusion
+	 */
+	public synchronized List<Message> recent(int count)
+	{
+		int size = Math.max(0, Math.min(count, messages.size()));
+		ArrayList<Message> result = new ArrayList<Message>(size);
+		Iterator<Message> it = messages.descendingIterator();
+		for (int i = 0; i < size; i++)
+		{
+			result.add(it.next());
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
+	/**
+	 * Trames des messages de l'historique, à rejouer vers un client qui
+	 * vient de se connecter. Appelé sous le verrou de diffusion du serveur,
+	 * en même temps que l'enregistrement du client, afin que chaque message
+	 * soit reçu soit par l'historique soit par la file du client, mais
+	 * jamais par les deux. Les messages sont sérialisés lors du premier appel
+	 * suivant une modification de l'historique dans des trames isolées
+	 * dont la trame binaire ne dépasse pas la taille maximum d'une trame
+	 * (voir {@link MessageCodec#BATCHHEADERSIZE}), les appels suivants
+	 * rejouant les mêmes trames.
+	 * @return les trames isolées des messages conservés dans leur ordre de
+	 * diffusion, sur lesquelles l'appelant détient une référence qu'il doit
+	 * libérer une fois les trames écrites (liste vide si l'historique est
+	 * vide, si les messages ne sont pas rejoués ou s'ils ne peuvent être
+	 * sérialisés)
+	 */
+	public synchronized List<MessageFrame> replay()
+	{
+		if ((encoder == null) || messages.isEmpty())
+		{
+			return new ArrayList<MessageFrame>(0);
+		}
+		if (replayFrames == null)
+		{
+			ArrayList<MessageFrame> frames = new ArrayList<MessageFrame>();
+			ArrayList<Message> chunk = new ArrayList<Message>();
+			long chunkBytes = MessageCodec.BATCHHEADERSIZE;
+			try
+			{
+				for (Message message : messages)
+				{
+					int size = MessageCodec.length(message);
+					if (!chunk.isEmpty()
+					    && ((chunkBytes + size) > MessageCodec.MAXFRAMESIZE))
+					{
+						frames.add(encoder.encodeIsolated(chunk));
+						chunk = new ArrayList<Message>();
+						chunkBytes = MessageCodec.BATCHHEADERSIZE;
+					}
+					chunk.add(message);
+					chunkBytes += size;
+				}
+				frames.add(encoder.encodeIsolated(chunk));
+			}
+			catch (IOException e)
+			{
+				// déjà sérialisés pour leur diffusion : rien n'est rejoué
+				for (MessageFrame frame : frames)
+				{
+					frame.release();
+				}
+				return new ArrayList<MessageFrame>(0);
+			}
+			replayFrames = frames;
+		}
+		ArrayList<MessageFrame> replayed =
+		    new ArrayList<MessageFrame>(replayFrames.size());
+		for (MessageFrame frame : replayFrames)
+		{
+			replayed.add(frame.retain());
+		}
+		return replayed;
+	}
+
+	/**
+	 * Oubli de tous les messages de l'historique (par exemple à l'arrêt du
+	 * serveur)
+	 */
+	public synchronized void clear()
+	{
+		messages.clear();
+		bytes = 0;
+		invalidate();
+	}
+
+	/**
+	 * Accesseur en lecture de la capacité de l'historique
+	 * @return le nombre maximum de messages conservés
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Accesseur en lecture de la taille maximum de l'historique
+	 * @return la taille totale maximum (en octets) des messages encodés
+	 * conservés (0 pour aucune limite)
+	 */
+	public long getByteCapacity()
+	{
+		return byteCapacity;
+	}
+
+	/**
+	 * Nombre de messages conservés
+	 * @return le nombre de messages de l'historique
+	 */
+	public synchronized int size()
+	{
+		return messages.size();
+	}
+
+	/**
+	 * Taille des messages conservés
+	 * @return la taille totale (en octets) des messages encodés de
+	 * l'historique
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * Abandon des trames rejouées après une modification de l'historique
+	 * (les clients en train de les écrire conservent leur propre référence)
+	 */
+	private void invalidate()
+	{
+		if (replayFrames != null)
+		{
+			for (MessageFrame frame : replayFrames)
+			{
+				frame.release();
+			}
+			replayFrames = null;
+		}
+	}
+}
@@ -0,0 +1,860 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import chat.Frame;
+import chat.FrameType;
+import chat.MessageCodec;
+import models.Message;
+
+/**
+ * Journal persistant des messages diffusés par un serveur : chaque message
+ * est ajouté à la fin du journal avec un numéro de séquence (qui continue
+ * d'augmenter d'un démarrage du serveur à l'autre) et la date de son ajout.
+ * Le journal est découpé en segments, des fichiers de taille fixe nommés
+ * d'après le numéro de séquence de leur premier message et projetés en
+ * mémoire ({@link MappedByteBuffer}) : un ajout n'est qu'une copie en
+ * mémoire, que le système écrit sur le disque. Les messages écrits survivent
+ * donc à l'arrêt (même brutal) du serveur, seul un arrêt du système peut
+ * faire perdre les derniers ajouts d'un segment qui n'a pas encore été
+ * forcé sur le disque (à sa fermeture).
+ * Chaque enregistrement d'un segment est constitué :
+ * <ul>
+ * <li>d'une somme de contrôle (int, CRC32 de ce qui suit)</li>
+ * <li>du numéro de séquence du message (long, à partir de 1)</li>
+ * <li>de la date d'ajout du message (long, en ms depuis le 1er janvier
+ * 1970)</li>
+ * <li>de la trame binaire du message (voir {@link MessageCodec})</li>
+ * </ul>
+ * La fin d'un segment est remplie de zéros : un numéro de séquence nul (ou
+ * une somme de contrôle invalide) en marque la fin. Au démarrage les
+ * segments existants sont relus afin de retrouver le dernier numéro de
+ * séquence et la fin du dernier segment, un enregistrement incomplet
+ * (écrit lors d'un arrêt brutal) étant effacé.
+ * Les ajouts ne sont jamais faits par le thread qui diffuse les messages :
+ * {@link #append(List)} ne fait que confier les messages (sans attendre) à
+ * l'unique thread d'écriture du journal, les messages sont perdus si sa
+ * file est pleine. C'est aussi ce thread qui supprime les plus anciens
+ * segments lorsque le journal dépasse son âge ou sa taille maximum.
+ *
+ * @author davidroussel
+ */
+public class MessageLog
+{
+	/**
+	 * Taille minimum (en octets) d'un segment
+	 */
+	public final static int MINSEGMENTSIZE = 64 * 1024;
+
+	/**
+	 * Taille (en octets) de l'entête d'un enregistrement : somme de contrôle,
+	 * numéro de séquence et date d'ajout
+	 */
+	public final static int RECORDHEADER = Integer.BYTES + (2 * Long.BYTES);
+
+	/**
+	 * Délai (en ms) entre deux applications de la politique de rétention
+	 * lorsque le journal ne reçoit pas de messages
+	 */
+	public final static long RETENTIONPERIOD = 1000;
+
+	/**
+	 * Extension des fichiers des segments
+	 */
+	private final static String SUFFIX = ".log";
+
+	/**
+	 * Lot signalant la fin du thread d'écriture
+	 */
+	private final static List<Message> STOP = new ArrayList<Message>(0);
+
+	/**
+	 * Un segment du journal
+	 */
+	private static final class Segment
+	{
+		/**
+		 * Numéro de séquence du premier message du segment
+		 */
+		final long base;
+
+		/**
+		 * Le fichier du segment
+		 */
+		final Path path;
+
+		/**
+		 * Le contenu du segment projeté en mémoire (null si le segment est
+		 * fermé : il est alors projeté à nouveau pour chaque lecture)
+		 */
+		volatile MappedByteBuffer buffer;
+
+		/**
+		 * Taille (en octets) du fichier du segment
+		 */
+		volatile long size;
+
+		/**
+		 * Position de la fin du dernier enregistrement du segment
+		 */
+		volatile int end;
+
+		/**
+		 * Numéro de séquence du dernier message du segment (base - 1 si le
+		 * segment est vide)
+		 */
+		volatile long last;
+
+		/**
+		 * Date d'ajout du dernier message du segment
+		 */
+		volatile long timestamp;
+
+		/**
+		 * Constructeur d'un segment vide
+		 * @param base numéro de séquence du premier message du segment
+		 * @param path le fichier du segment
+		 */
+		Segment(long base, Path path)
+		{
+			this.base = base;
+			this.path = path;
+			buffer = null;
+			size = 0;
+			end = 0;
+			last = base - 1;
+			timestamp = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Répertoire contenant les segments
+	 */
+	private final Path directory;
+
+	/**
+	 * Taille (en octets) de chaque segment
+	 */
+	private final int segmentSize;
+
+	/**
+	 * Age maximum (en ms) des messages conservés (0 pour aucune limite)
+	 */
+	private final long retentionAge;
+
+	/**
+	 * Taille totale maximum (en octets) des segments conservés (0 pour
+	 * aucune limite)
+	 */
+	private final long retentionBytes;
+
+	/**
+	 * Les segments du journal, du plus ancien au plus récent (le dernier est
+	 * le segment courant, dans lequel les messages sont ajoutés)
+	 */
+	private final ArrayList<Segment> segments;
+
+	/**
+	 * Lots de messages en attente d'écriture
+	 */
+	private final BlockingQueue<List<Message>> pending;
+
+	/**
+	 * Le thread d'écriture du journal
+	 */
+	private final Thread writer;
+
+	/**
+	 * Mesures de l'écriture du journal
+	 */
+	private final StageMetrics metrics;
+
+	/**
+	 * Nombre de messages perdus faute de place dans la file d'écriture (ou
+	 * trop grands pour un segment)
+	 */
+	private final AtomicLong dropped;
+
+	/**
+	 * Indique que des messages sont actuellement perdus (afin de ne signaler
+	 * qu'une fois une série de pertes)
+	 */
+	private volatile boolean dropping;
+
+	/**
+	 * Somme de contrôle des enregistrements (utilisée par la relecture des
+	 * segments puis par le thread d'écriture)
+	 */
+	private final CRC32 crc;
+
+	/**
+	 * Date de la dernière application de la politique de rétention
+	 */
+	private long retained;
+
+	/**
+	 * Indique que le journal n'accepte plus de messages
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Logger pour l'affichage des erreurs d'écriture
+	 */
+	private final Logger logger;
+
+	/**
+	 * Constructeur d'un journal : les segments existants sont relus, les
+	 * segments trop anciens supprimés, puis le thread d'écriture est
+	 * démarré.
+	 * @param directory répertoire des segments (créé s'il n'existe pas)
+	 * @param segmentSize taille (en octets) de chaque segment (au moins
+	 * {@link #MINSEGMENTSIZE})
+	 * @param retentionAge age maximum (en ms) des messages conservés (0 pour
+	 * aucune limite)
+	 * @param retentionBytes taille totale maximum (en octets) des segments
+	 * conservés (0 pour aucune limite)
+	 * @param capacity nombre maximum de lots de messages en attente
+	 * d'écriture
+	 * @param logger logger pour l'affichage des erreurs d'écriture
+	 * @throws IOException si le répertoire ou ses segments ne peuvent être
+	 * lus
+	 */
+	public MessageLog(Path directory,
+	                  int segmentSize,
+	                  long retentionAge,
+	                  long retentionBytes,
+	                  int capacity,
+	                  Logger logger)
+	    throws IOException
+	{
+		this.directory = directory;
+		this.segmentSize = Math.max(MINSEGMENTSIZE, segmentSize);
+		this.retentionAge = Math.max(0, retentionAge);
+		this.retentionBytes = Math.max(0, retentionBytes);
+		this.logger = logger;
+		segments = new ArrayList<Segment>();
+		pending = new ArrayBlockingQueue<List<Message>>(Math.max(1, capacity));
+		metrics = new StageMetrics("log", pending::size);
+		dropped = new AtomicLong(0);
+		dropping = false;
+		crc = new CRC32();
+		closed = false;
+
+		Files.createDirectories(directory);
+		recover();
+		retain();
+		logger.info("MessageLog: " + segments.size() + " segments in "
+		    + directory + ", last sequence " + getLastSequence());
+
+		writer = new Thread(this::write, "MessageLog-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Ajout de messages diffusés à la fin du journal. Les messages sont
+	 * seulement confiés au thread d'écriture : cette méthode n'attend jamais
+	 * et peut donc être appelée sous le verrou de diffusion du serveur.
+	 * @param diffused les messages diffusés dans leur ordre de diffusion
+	 * @return true si les messages seront écrits, false s'ils sont perdus
+	 * (file d'écriture pleine ou journal fermé)
+	 */
+	public boolean append(List<Message> diffused)
+	{
+		if (!closed && pending.offer(diffused))
+		{
+			dropping = false;
+			return true;
+		}
+		dropped.addAndGet(diffused.size());
+		if (!dropping)
+		{
+			dropping = true;
+			logger.warning("MessageLog: write queue full, dropping messages");
+		}
+		return false;
+	}
+
+	/**
+	 * Lecture de messages du journal
+	 * @param from numéro de séquence du premier message à lire
+	 * @param count nombre maximum de messages à lire
+	 * @return les (au plus) count messages du journal à partir du numéro de
+	 * séquence from (ou du plus ancien message conservé), dans leur ordre
+	 * d'ajout
+	 * @throws IOException si un segment ne peut être lu
+	 */
+	public List<Message> read(long from, int count) throws IOException
+	{
+		ArrayList<Message> result = new ArrayList<Message>();
+		for (Segment segment : snapshot())
+		{
+			if (result.size() >= count)
+			{
+				break;
+			}
+			if (segment.last < from)
+			{
+				continue;
+			}
+			ByteBuffer buffer = view(segment);
+			int end = segment.end;
+			int position = 0;
+			while ((position < end) && (result.size() < count))
+			{
+				long sequence = buffer.getLong(position + Integer.BYTES);
+				int length = MessageCodec.LENGTHSIZE
+				    + buffer.getInt(position + RECORDHEADER);
+				if (sequence >= from)
+				{
+					ByteBuffer record = buffer.duplicate();
+					record.position(position + RECORDHEADER);
+					record.limit(position + RECORDHEADER + length);
+					Frame frame = MessageCodec.decode(record);
+					result.add(frame.getMessage());
+				}
+				position += RECORDHEADER + length;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Derniers messages du journal (par exemple pour remplir l'historique
+	 * du serveur à son démarrage)
+	 * @param count le nombre maximum de messages
+	 * @return les (au plus) count derniers messages du journal dans leur
+	 * ordre d'ajout
+	 * @throws IOException si un segment ne peut être lu
+	 */
+	public List<Message> recent(int count) throws IOException
+	{
+		if (count <= 0)
+		{
+			return new ArrayList<Message>(0);
+		}
+		return read(getLastSequence() - count + 1, count);
+	}
+
+	/**
+	 * Fermeture du journal : les messages déjà confiés sont écrits, le
+	 * segment courant est forcé sur le disque puis le thread d'écriture se
+	 * termine
+	 * @param timeout délai maximum (en ms) d'attente de la fin du thread
+	 * d'écriture
+	 */
+	public void close(long timeout)
+	{
+		closed = true;
+		try
+		{
+			if (pending.offer(STOP, timeout, TimeUnit.MILLISECONDS))
+			{
+				writer.join(timeout);
+			}
+			else
+			{
+				logger.warning("MessageLog: writer not stopped within "
+				    + timeout + " ms");
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Numéro de séquence du plus ancien message conservé
+	 * @return le numéro de séquence du premier message du plus ancien
+	 * segment
+	 */
+	public long getFirstSequence()
+	{
+		synchronized (segments)
+		{
+			return segments.get(0).base;
+		}
+	}
+
+	/**
+	 * Numéro de séquence du dernier message écrit
+	 * @return le numéro de séquence du dernier message écrit (0 si aucun
+	 * message n'a jamais été écrit)
+	 */
+	public long getLastSequence()
+	{
+		synchronized (segments)
+		{
+			return segments.get(segments.size() - 1).last;
+		}
+	}
+
+	/**
+	 * Nombre de segments du journal
+	 * @return le nombre de segments conservés (segment courant compris)
+	 */
+	public int getSegments()
+	{
+		synchronized (segments)
+		{
+			return segments.size();
+		}
+	}
+
+	/**
+	 * Taille du journal
+	 * @return la taille totale (en octets) des enregistrements conservés
+	 */
+	public long getBytes()
+	{
+		long bytes = 0;
+		for (Segment segment : snapshot())
+		{
+			bytes += segment.end;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Nombre de messages perdus
+	 * @return le nombre de messages qui n'ont pas pu être écrits
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * Accesseur en lecture des mesures de l'écriture du journal
+	 * @return les mesures de l'écriture (la profondeur étant le nombre de
+	 * lots en attente d'écriture)
+	 */
+	public StageMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Ecriture des lots de messages confiés jusqu'à la fermeture du journal
+	 * (exécuté par le thread d'écriture)
+	 */
+	private void write()
+	{
+		try
+		{
+			List<Message> batch;
+			while ((batch = pending.poll(RETENTIONPERIOD,
+			                             TimeUnit.MILLISECONDS)) != STOP)
+			{
+				if (batch != null)
+				{
+					long start = System.nanoTime();
+					write(batch);
+					metrics.record(start);
+				}
+				if ((System.currentTimeMillis() - retained) >= RETENTIONPERIOD)
+				{
+					retain();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			logger.warning("MessageLog: writer interrupted");
+		}
+		finally
+		{
+			Segment current = current();
+			if (current.buffer != null)
+			{
+				current.buffer.force();
+			}
+		}
+	}
+
+	/**
+	 * Ecriture d'un lot de messages. Si un nouveau segment ne peut être
+	 * créé (par exemple faute de place sur le disque), les messages restants
+	 * du lot sont perdus.
+	 * @param batch les messages à écrire
+	 */
+	private void write(List<Message> batch)
+	{
+		int written = 0;
+		try
+		{
+			for (Message message : batch)
+			{
+				write(message);
+				written++;
+			}
+		}
+		catch (IOException e)
+		{
+			dropped.addAndGet(batch.size() - written);
+			logger.severe("MessageLog: unable to write to " + directory + ": "
+			    + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Ecriture d'un message à la fin du segment courant (qui est remplacé
+	 * par un nouveau segment s'il est plein). Un message dont la trame
+	 * dépasse la taille maximum d'une trame n'est pas écrit : sa relecture
+	 * (voir {@link #scan(Segment, ByteBuffer)}) le prendrait pour un
+	 * enregistrement corrompu.
+	 * @param message le message à écrire
+	 * @throws IOException si un nouveau segment ne peut être créé
+	 */
+	private void write(Message message) throws IOException
+	{
+		int length = RECORDHEADER + MessageCodec.length(message);
+		if (!MessageCodec.fits(message))
+		{
+			dropped.incrementAndGet();
+			logger.warning("MessageLog: message of " + length
+			    + " bytes too large for a frame");
+			return;
+		}
+		if (length > segmentSize)
+		{
+			dropped.incrementAndGet();
+			logger.warning("MessageLog: message of " + length
+			    + " bytes too large for a segment");
+			return;
+		}
+		Segment segment = current();
+		if ((segment.end + length) > segmentSize)
+		{
+			segment = roll(segment);
+		}
+		int position = segment.end;
+		long sequence = segment.last + 1;
+		long timestamp = System.currentTimeMillis();
+		ByteBuffer record = segment.buffer.duplicate();
+		record.position(position + Integer.BYTES);
+		record.putLong(sequence);
+		record.putLong(timestamp);
+		MessageCodec.encode(FrameType.MESSAGE, message, record);
+		record.flip();
+		record.position(position + Integer.BYTES);
+		crc.reset();
+		crc.update(record);
+		segment.buffer.putInt(position, (int) crc.getValue());
+		segment.timestamp = timestamp;
+		segment.last = sequence;
+		segment.end = position + length;
+	}
+
+	/**
+	 * Fermeture du segment courant (forcé sur le disque) et création du
+	 * segment suivant, puis application de la politique de rétention
+	 * @param full le segment courant
+	 * @return le nouveau segment courant
+	 * @throws IOException si le nouveau segment ne peut être créé
+	 */
+	private Segment roll(Segment full) throws IOException
+	{
+		Segment next = new Segment(full.last + 1, path(full.last + 1));
+		next.buffer = map(next.path, FileChannel.MapMode.READ_WRITE);
+		next.size = next.buffer.capacity();
+		full.buffer.force();
+		synchronized (segments)
+		{
+			full.buffer = null;
+			segments.add(next);
+		}
+		retain();
+		return next;
+	}
+
+	/**
+	 * Suppression des plus anciens segments fermés tant que le journal
+	 * dépasse son âge ou sa taille maximum. Le segment courant n'est jamais
+	 * supprimé.
+	 */
+	private void retain()
+	{
+		retained = System.currentTimeMillis();
+		if ((retentionAge == 0) && (retentionBytes == 0))
+		{
+			return;
+		}
+		while (true)
+		{
+			Segment oldest;
+			synchronized (segments)
+			{
+				if (segments.size() <= 1)
+				{
+					return;
+				}
+				oldest = segments.get(0);
+				long bytes = 0;
+				for (Segment segment : segments)
+				{
+					bytes += segment.size;
+				}
+				boolean expired = (retentionAge > 0) &&
+				    ((retained - oldest.timestamp) > retentionAge);
+				boolean oversized = (retentionBytes > 0) &&
+				    (bytes > retentionBytes);
+				if (!expired && !oversized)
+				{
+					return;
+				}
+				segments.remove(0);
+			}
+			try
+			{
+				Files.deleteIfExists(oldest.path);
+				logger.fine("MessageLog: segment " + oldest.path.getFileName()
+				    + " deleted");
+			}
+			catch (IOException e)
+			{
+				logger.warning("MessageLog: unable to delete " + oldest.path
+				    + ": " + e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Relecture des segments existants : recherche de la fin de chaque
+	 * segment et du dernier numéro de séquence, effacement d'un éventuel
+	 * enregistrement incomplet à la fin du dernier segment, et ouverture du
+	 * segment courant (un segment vide est créé s'il n'y a aucun segment)
+	 * @throws IOException si un segment ne peut être lu
+	 */
+	private void recover() throws IOException
+	{
+		ArrayList<Long> bases = new ArrayList<Long>();
+		try (DirectoryStream<Path> files =
+		    Files.newDirectoryStream(directory, "*" + SUFFIX))
+		{
+			for (Path file : files)
+			{
+				String name = file.getFileName().toString();
+				try
+				{
+					bases.add(Long.valueOf(name.substring(0,
+					    name.length() - SUFFIX.length())));
+				}
+				catch (NumberFormatException e)
+				{
+					logger.warning("MessageLog: ignoring " + file);
+				}
+			}
+		}
+		bases.sort(null);
+
+		long last = 0;
+		for (Long base : bases)
+		{
+			Segment segment = new Segment(base.longValue(),
+			                              path(base.longValue()));
+			if (segment.base <= last)
+			{
+				logger.warning("MessageLog: ignoring overlapping segment "
+				    + segment.path);
+				continue;
+			}
+			MappedByteBuffer buffer = map(segment.path,
+			                              FileChannel.MapMode.READ_WRITE);
+			segment.size = buffer.capacity();
+			if (!scan(segment, buffer))
+			{
+				// effacement d'un enregistrement incomplet
+				for (int i = segment.end; i < buffer.capacity(); i++)
+				{
+					buffer.put(i, (byte) 0);
+				}
+			}
+			if (segment.end == 0)
+			{
+				segment.timestamp = Files.getLastModifiedTime(segment.path)
+				    .toMillis();
+			}
+			segment.buffer = buffer;
+			if (!segments.isEmpty())
+			{
+				current().buffer.force();
+				current().buffer = null;
+			}
+			segments.add(segment);
+			last = segment.last;
+		}
+
+		Segment current = (segments.isEmpty() ? null : current());
+		if ((current == null) ||
+		    (current.buffer.capacity() != segmentSize))
+		{
+			// premier segment ou bien taille de segment modifiée
+			Segment next = new Segment(last + 1, path(last + 1));
+			if ((current != null) && (current.end == 0))
+			{
+				// segment vide remplacé
+				segments.remove(segments.size() - 1);
+				current.buffer = null;
+				Files.deleteIfExists(current.path);
+			}
+			else if (current != null)
+			{
+				current.buffer.force();
+				current.buffer = null;
+			}
+			next.buffer = map(next.path, FileChannel.MapMode.READ_WRITE);
+			next.size = next.buffer.capacity();
+			segments.add(next);
+		}
+	}
+
+	/**
+	 * Recherche de la fin des enregistrements valides d'un segment
+	 * @param segment le segment dont la fin et le dernier numéro de séquence
+	 * sont mis à jour
+	 * @param buffer le contenu du segment
+	 * @return true si les enregistrements valides sont suivis de zéros,
+	 * false s'ils sont suivis d'un enregistrement incomplet ou corrompu
+	 */
+	private boolean scan(Segment segment, ByteBuffer buffer)
+	{
+		int position = 0;
+		int capacity = buffer.capacity();
+		while ((position + RECORDHEADER + MessageCodec.LENGTHSIZE) <= capacity)
+		{
+			long sequence = buffer.getLong(position + Integer.BYTES);
+			int length = buffer.getInt(position + RECORDHEADER);
+			if ((sequence != segment.last + 1) ||
+			    (length < MessageCodec.MINFRAMESIZE) ||
+			    (length > MessageCodec.MAXFRAMESIZE) ||
+			    ((position + RECORDHEADER + MessageCodec.LENGTHSIZE + length)
+			        > capacity))
+			{
+				break;
+			}
+			ByteBuffer record = buffer.duplicate();
+			record.position(position + Integer.BYTES);
+			record.limit(position + RECORDHEADER + MessageCodec.LENGTHSIZE
+			    + length);
+			crc.reset();
+			crc.update(record);
+			if ((int) crc.getValue() != buffer.getInt(position))
+			{
+				break;
+			}
+			segment.last = sequence;
+			segment.timestamp = buffer.getLong(position + Integer.BYTES
+			    + Long.BYTES);
+			position += RECORDHEADER + MessageCodec.LENGTHSIZE + length;
+		}
+		segment.end = position;
+		int header = Math.min(RECORDHEADER + MessageCodec.LENGTHSIZE,
+		                      capacity - position);
+		for (int i = 0; i < header; i++)
+		{
+			if (buffer.get(position + i) != 0)
+			{
+				logger.warning("MessageLog: incomplete record after "
+				    + segment.last + " in " + segment.path + ", truncating");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Contenu d'un segment pour une lecture
+	 * @param segment le segment
+	 * @return le contenu du segment courant ou bien d'un segment fermé
+	 * projeté à nouveau en lecture seule
+	 * @throws IOException si le segment ne peut être lu
+	 */
+	private ByteBuffer view(Segment segment) throws IOException
+	{
+		MappedByteBuffer buffer = segment.buffer;
+		if (buffer != null)
+		{
+			return buffer.duplicate();
+		}
+		return map(segment.path, FileChannel.MapMode.READ_ONLY);
+	}
+
+	/**
+	 * Projection en mémoire du fichier d'un segment. Un nouveau segment est
+	 * créé avec la taille des segments (et rempli de zéros par le système).
+	 * @param path le fichier du segment
+	 * @param mode mode de projection (lecture seule ou lecture/écriture)
+	 * @return le contenu du segment
+	 * @throws IOException si le fichier ne peut être ouvert ou projeté
+	 */
+	private MappedByteBuffer map(Path path, FileChannel.MapMode mode)
+	    throws IOException
+	{
+		boolean write = (mode == FileChannel.MapMode.READ_WRITE);
+		try (FileChannel channel = (write ?
+		    FileChannel.open(path, StandardOpenOption.CREATE,
+		                     StandardOpenOption.READ,
+		                     StandardOpenOption.WRITE) :
+		    FileChannel.open(path, StandardOpenOption.READ)))
+		{
+			long size = channel.size();
+			if (size == 0)
+			{
+				size = segmentSize;
+			}
+			// la projection reste valide après la fermeture du canal
+			return channel.map(mode, 0, size);
+		}
+	}
+
+	/**
+	 * Fichier d'un segment
+	 * @param base numéro de séquence du premier message du segment
+	 * @return le fichier du segment dans le répertoire du journal
+	 */
+	private Path path(long base)
+	{
+		return directory.resolve(String.format("%020d", base) + SUFFIX);
+	}
+
+	/**
+	 * Segment courant
+	 * @return le dernier segment du journal
+	 */
+	private Segment current()
+	{
+		synchronized (segments)
+		{
+			return segments.get(segments.size() - 1);
+		}
+	}
+
+	/**
+	 * Instantané des segments du journal
+	 * @return une copie de la liste des segments
+	 */
+	private List<Segment> snapshot()
+	{
+		synchronized (segments)
+		{
+			return new ArrayList<Segment>(segments);
+		}
+	}
+}
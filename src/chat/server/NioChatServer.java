@@ -0,0 +1,700 @@
+package chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import chat.MessageCodec;
+import chat.Vocabulary;
+import chat.WireProtocol;
+import logger.LoggerFactory;
+import models.Message;
+
+/**
+ * Serveur de chat à base d'entrées/sorties non bloquantes. Contrairement au
+ * {@link ChatServer} qui lance un thread par client, les clients sont
+ * répartis entre un petit nombre de {@link Reactor} (par défaut un par
+ * processeur) possédant chacun leur propre boucle d'évènements :
+ * <ul>
+ * <li>le thread du serveur ne fait qu'accepter les connections et les
+ * confie au reactor le moins chargé</li>
+ * <li>chaque reactor lit les lignes de ses clients, traite leurs commandes
+ * et écrit les messages diffusés vers ses clients</li>
+ * <li>un message diffusé est transmis à tous les reactors, qui le
+ * transmettent à leur tour à leurs clients</li>
+ * </ul>
+ * Le protocole est identique à celui du {@link ChatServer} :
+ * <ul>
+ * <li>la première ligne reçue d'un client est son nom</li>
+ * <li>les lignes suivantes sont des messages ou des commandes
+ * ({@link Vocabulary})</li>
+ * <li>les messages sont renvoyés aux clients sous forme de {@link Message}
+ * sérialisés</li>
+ * </ul>
+ *
+ * @author davidroussel
+ */
+public class NioChatServer implements Runnable
+{
+	/**
+	 * Le canal d'écoute du serveur
+	 */
+	private ServerSocketChannel serverChannel;
+
+	/**
+	 * Les reactors traitant les clients
+	 */
+	private Reactor[] reactors;
+
+	/**
+	 * La liste des clients enregistrés (i.e. ayant donné un nom valide) de
+	 * l'ensemble des reactors, indexés par leur nom et accessibles sans
+	 * verrou. Le premier de ces clients est le super-utilisateur.
+	 */
+	private ClientRegistry<ChannelClient> clients;
+
+	/**
+	 * Verrou assurant que les messages diffusés sont transmis à tous les
+	 * reactors dans le même ordre
+	 */
+	private final ReentrantLock broadcastLock;
+
+	/**
+	 * Encodeur des messages diffusés, utilisé sous le {@link #broadcastLock}
+	 */
+	private final FrameEncoder frameEncoder;
+
+	/**
+	 * Pool des tampons utilisés pour les entrées/sorties des clients et pour
+	 * les trames diffusées (null si le serveur n'utilise pas de pool)
+	 */
+	private final BufferPool bufferPool;
+
+	/**
+	 * Regroupement des messages diffusés pendant une fenêtre de temps (null
+	 * si les messages ne sont pas regroupés, voir
+	 * {@link ServerSettings#getCoalesceWindow()})
+	 */
+	private final BroadcastCoalescer coalescer;
+
+	/**
+	 * Commandes exécutées par les reactors lorsqu'un client envoie une trame
+	 * de contrôle
+	 */
+	private final CommandRegistry commands;
+
+	/**
+	 * Historique des derniers messages diffusés
+	 */
+	private final MessageHistory history;
+
+	/**
+	 * Contrôle d'admission des connections, appliqué dès leur acceptation
+	 */
+	private final AdmissionControl admission;
+
+	/**
+	 * Nombre de messages de clients ayant dépassé le débit autorisé (voir
+	 * {@link RateLimiter})
+	 */
+	private final AtomicLong throttled;
+
+	/**
+	 * logger pour afficher les messages d'erreur
+	 */
+	private Logger logger;
+
+	/**
+	 * Etat d'écoute du serveur. Cet état est vrai au départ et passe à false
+	 * lorsque le dernier client se déconnecte ou qu'un kill est demandé.
+	 */
+	private volatile boolean listening;
+
+	/**
+	 * Termine le serveur lorsque le dernier client se délogue
+	 */
+	private final boolean quitOnLastClient;
+
+	/**
+	 * Réglages du serveur
+	 */
+	private final ServerSettings settings;
+
+	/**
+	 * Constructeur valué d'un serveur de chat non bloquant. Celui ci
+	 * initialise le {@link ServerSocketChannel} ainsi que les
+	 * {@link Reactor}s
+	 *
+	 * @param port le port sur lequel on écoute les requètes
+	 * @param quitOnLastClient quitte le serveur lorsque le dernier client
+	 * se délogue
+	 * @param settings réglages du serveur (nombre de reactors, délai de
+	 * présentation des clients, ...)
+	 * @param parentLogger logger parent pour l'affichage des messages de
+	 * debug
+	 * @throws IOException Si une erreur intervient lors de la création du
+	 *             canal d'écoute ou des sélecteurs
+	 */
+	public NioChatServer(int port,
+	                     boolean quitOnLastClient,
+	                     ServerSettings settings,
+	                     Logger parentLogger)
+	    throws IOException
+	{
+		this.quitOnLastClient = quitOnLastClient;
+		this.settings = settings;
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+
+		int nbReactors = settings.getReactors();
+		logger.info("NioChatServer::NioChatServer(port = " + port
+		    + ", reactors = " + nbReactors
+		    + ", quit = " + (quitOnLastClient ? "true" : "false")
+		    + ", handshake timeout = " + settings.getHandshakeTimeout()
+		    + ", socket profile = " + settings.getSocketProfile()
+		    + ", backlog = " + settings.getBacklog() + ")");
+
+		/*
+		 * Le profil des sockets est appliqué avant bind afin que les canaux
+		 * acceptés héritent de la taille de son tampon de réception
+		 */
+		serverChannel = ServerSocketChannel.open();
+		settings.getSocketProfile().configure(serverChannel.socket());
+		serverChannel.bind(new InetSocketAddress(port), settings.getBacklog());
+
+		bufferPool = (settings.getBufferPoolSize() > 0 ?
+		    new BufferPool(settings.getBufferPoolSize()) : null);
+		Charset charset = Charset.defaultCharset();
+		reactors = new Reactor[nbReactors];
+		for (int i = 0; i < nbReactors; i++)
+		{
+			reactors[i] = new Reactor(this, i, charset, logger);
+		}
+
+		clients = new ClientRegistry<ChannelClient>();
+		broadcastLock = new ReentrantLock();
+		frameEncoder = new FrameEncoder(settings.getResetMessages(),
+		                                settings.getResetBytes(),
+		                                bufferPool);
+		if (settings.getCoalesceWindow() > 0)
+		{
+			coalescer = new BroadcastCoalescer(broadcastLock,
+			                                   this::deliver,
+			                                   settings.getCoalesceWindow(),
+			                                   settings.getCoalesceMessages());
+		}
+		else
+		{
+			coalescer = null;
+		}
+		commands = CommandRegistry.standard();
+		history = new MessageHistory(settings.getHistorySize());
+		admission = new AdmissionControl(settings);
+		throttled = new AtomicLong(0);
+	}
+
+	/**
+	 * Constructeur valué d'un serveur de chat non bloquant utilisant les
+	 * réglages par défaut (un reactor par processeur disponible)
+	 *
+	 * @param port le port sur lequel on écoute les requètes
+	 * @param quitOnLastClient quitte le serveur lorsque le dernier client
+	 * se délogue
+	 * @param parentLogger logger parent pour l'affichage des messages de
+	 * debug
+	 * @throws IOException Si une erreur intervient lors de la création du
+	 *             canal d'écoute ou des sélecteurs
+	 */
+	public NioChatServer(int port,
+	                     boolean quitOnLastClient,
+	                     Logger parentLogger)
+	    throws IOException
+	{
+		this(port, quitOnLastClient, new ServerSettings(), parentLogger);
+	}
+
+	/**
+	 * Accesseur en lecture des réglages du serveur
+	 * @return les réglages du serveur
+	 */
+	public ServerSettings getSettings()
+	{
+		return settings;
+	}
+
+	/**
+	 * Accesseur en lecture de l'encodeur des messages diffusés
+	 * @return l'encodeur des messages diffusés
+	 */
+	public FrameEncoder getFrameEncoder()
+	{
+		return frameEncoder;
+	}
+
+	/**
+	 * Accesseur en lecture du verrou de diffusion des messages
+	 * @return le verrou sous lequel les trames sont encodées et transmises
+	 * aux reactors
+	 */
+	ReentrantLock getBroadcastLock()
+	{
+		return broadcastLock;
+	}
+
+	/**
+	 * Restitution au contrôle d'admission d'une connection admise, lors de
+	 * sa fermeture par son reactor
+	 * @param channel le canal de la connection (encore ouvert)
+	 */
+	void release(SocketChannel channel)
+	{
+		admission.release(channel.socket().getInetAddress());
+	}
+
+	/**
+	 * Comptabilisation d'un message de client ayant dépassé le débit
+	 * autorisé (par le reactor du client)
+	 */
+	void recordThrottled()
+	{
+		throttled.incrementAndGet();
+	}
+
+	/**
+	 * Accesseur en lecture des commandes du serveur, auxquelles de nouvelles
+	 * commandes peuvent être ajoutées
+	 * @return le registre des commandes exécutées par les {@link Reactor}
+	 */
+	public CommandRegistry getCommands()
+	{
+		return commands;
+	}
+
+	/**
+	 * Accesseur en lecture du pool de tampons
+	 * @return le pool des tampons d'entrées/sorties du serveur ou bien null
+	 * si le serveur n'utilise pas de pool
+	 */
+	public BufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+
+	/**
+	 * Accesseur en lecture du {@link #quitOnLastClient}
+	 * @return la valeu du {@link #quitOnLastClient}
+	 */
+	public boolean isQuitOnLastClient()
+	{
+		return quitOnLastClient;
+	}
+
+	/**
+	 * Change l'état d'écoute du serveur. L'arrêt est pris en compte
+	 * immédiatement par la fermeture du canal d'écoute qui débloque
+	 * l'attente de nouvelles connections.
+	 * @param value la nouvelle valeur
+	 */
+	public void setListening(boolean value)
+	{
+		listening = value;
+		if (!value)
+		{
+			try
+			{
+				serverChannel.close();
+			}
+			catch (IOException e)
+			{
+				logger.severe("Close server channel Failed !");
+				logger.severe(e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Exécution du serveur de chat : lancement des reactors puis acceptation
+	 * des connections des clients qui sont confiées au reactor le moins
+	 * chargé. Lorsque le serveur s'arrête, les reactors sont arrêtés à leur
+	 * tour (ce qui ferme l'ensemble des clients).
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		Thread[] reactorThreads = new Thread[reactors.length];
+		for (int i = 0; i < reactors.length; i++)
+		{
+			reactorThreads[i] = new Thread(reactors[i], "Reactor-" + i);
+			reactorThreads[i].start();
+		}
+
+		listening = true;
+		while (listening)
+		{
+			try
+			{
+				// on attends ici une connection d'un nouveau client
+				SocketChannel channel = serverChannel.accept();
+				logger.fine("NioChatServer: client connection accepted");
+				/*
+				 * Contrôle d'admission avant de confier la connection à un
+				 * reactor : une connection refusée ne coûte que l'écriture
+				 * de la ligne de refus et la fermeture de son canal
+				 */
+				AdmissionControl.Verdict verdict =
+				    admission.admit(channel.socket().getInetAddress());
+				if (verdict == AdmissionControl.Verdict.ADMITTED)
+				{
+					leastLoadedReactor().assign(channel);
+				}
+				else
+				{
+					logger.fine("NioChatServer: connection refused ("
+					    + verdict + ")");
+					AdmissionControl.reject(channel, verdict);
+				}
+			}
+			catch (ClosedChannelException cce)
+			{
+				// fermeture du canal d'écoute par setListening(false)
+				logger.info("NioChatServer::run: server channel closed");
+				listening = false;
+			}
+			catch (IOException e)
+			{
+				/*
+				 * Echec passager de l'acceptation (par exemple plus de
+				 * descripteurs de fichiers disponibles) : les reactors
+				 * continuent de traiter les clients déjà connectés et on
+				 * réessaie un peu plus tard
+				 */
+				logger.warning("NioChatServer: client connection failed: "
+				    + e.getLocalizedMessage());
+				try
+				{
+					Thread.sleep(ChatServer.ACCEPTRETRYDELAY);
+				}
+				catch (InterruptedException ie)
+				{
+					Thread.currentThread().interrupt();
+					listening = false;
+				}
+			}
+		}
+
+		// transmission des derniers messages regroupés
+		if (coalescer != null)
+		{
+			coalescer.close();
+		}
+
+		logger.info("NioChatServer::run: stopping reactors ... ");
+		for (Reactor r : reactors)
+		{
+			r.stop();
+		}
+		for (Thread t : reactorThreads)
+		{
+			try
+			{
+				t.join();
+			}
+			catch (InterruptedException e)
+			{
+				logger.severe("NioChatServer::run: reactors join interrupted");
+				logger.severe(e.getLocalizedMessage());
+			}
+		}
+
+		logger.info("NioChatServer::run: all reactors terminated");
+	}
+
+	/**
+	 * Recherche du reactor traitant le moins de connections
+	 * @return le reactor le moins chargé
+	 */
+	private Reactor leastLoadedReactor()
+	{
+		Reactor best = reactors[0];
+		for (int i = 1; i < reactors.length; i++)
+		{
+			if (reactors[i].getLoad() < best.getLoad())
+			{
+				best = reactors[i];
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Enregistrement d'un client d'après son nom. L'enregistrement échoue si
+	 * un client portant le même nom existe déjà (vérification et ajout sont
+	 * atomiques sans nécessiter de verrou, voir {@link ClientRegistry}).
+	 * @param client le client (nommé) à enregistrer
+	 * @return true si le client a été enregistré, false si un autre client
+	 * porte déjà le même nom
+	 */
+	protected boolean register(ChannelClient client)
+	{
+		if (!clients.register(client.getName(), client))
+		{
+			return false;
+		}
+		if (client.getProtocol() == WireProtocol.OBJECT)
+		{
+			// le nouveau client ne pourra lire qu'une trame de remise à zéro
+			frameEncoder.requestReset();
+		}
+		return true;
+	}
+
+	/**
+	 * Retrait d'un client de la liste des clients enregistrés. Arrête le
+	 * serveur s'il s'agissait du dernier client et que
+	 * {@link #quitOnLastClient} est vrai.
+	 * @param client le client à retirer
+	 */
+	protected void unregister(ChannelClient client)
+	{
+		// un client fermé avant d'avoir donné son nom n'a jamais été enregistré
+		if ((client.getName() == null)
+		    || !clients.unregister(client.getName(), client))
+		{
+			return;
+		}
+		int remaining = clients.size();
+
+		if (remaining == 0)
+		{
+			if (quitOnLastClient)
+			{
+				logger.info("NioChatServer::run: no more clients.");
+				setListening(false);
+			}
+		}
+		else
+		{
+			logger.info("NioChatServer::run: still " + remaining
+			    + " clients remaining, estimated footprint " + getFootprint()
+			    + " bytes");
+		}
+	}
+
+	/**
+	 * Indique si un client est le super-utilisateur (le premier des clients
+	 * enregistrés)
+	 * @param client le client à tester
+	 * @return true si le client est le super-utilisateur
+	 */
+	protected boolean isSuperUser(ChannelClient client)
+	{
+		return clients.first() == client;
+	}
+
+	/**
+	 * Diffusion d'un message à l'ensemble des clients : le message est
+	 * sérialisé une seule fois puis transmis à chacun des reactors qui se
+	 * chargent d'écrire ces mêmes octets vers leurs clients. Cette méthode ne
+	 * bloque donc jamais sur une écriture. Si les messages sont regroupés, le
+	 * message est seulement ajouté au lot en cours qui sera diffusé dans une
+	 * même trame à la fin de sa fenêtre de regroupement (voir
+	 * {@link BroadcastCoalescer}).
+	 * Un message trop grand pour tenir dans une trame (voir
+	 * {@link MessageCodec#fits(Message)}) n'est pas diffusé.
+	 * @param message le message à diffuser
+	 */
+	protected void broadcast(Message message)
+	{
+		if (!MessageCodec.fits(message))
+		{
+			logger.warning("NioChatServer: message too large, not broadcast");
+			return;
+		}
+		if (coalescer != null)
+		{
+			coalescer.add(message);
+			return;
+		}
+		broadcastLock.lock();
+		try
+		{
+			deliver(Collections.singletonList(message));
+		}
+		finally
+		{
+			broadcastLock.unlock();
+		}
+	}
+
+	/**
+	 * Sérialisation d'un ou plusieurs messages dans une même trame et
+	 * transmission de celle-ci à chacun des reactors (sous le verrou de
+	 * diffusion), ajout des messages à l'historique. Chaque reactor reçoit sa propre référence sur la trame.
+	 * @param messages les messages à diffuser
+	 */
+	private void deliver(List<Message> messages)
+	{
+		try
+		{
+			MessageFrame frame = frameEncoder.encode(messages);
+			history.add(messages);
+			try
+			{
+				for (Reactor r : reactors)
+				{
+					r.deliver(frame.retain());
+				}
+			}
+			finally
+			{
+				frame.release();
+			}
+		}
+		catch (IOException e)
+		{
+			logger.severe("NioChatServer: unable to serialize message: "
+			    + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Derniers messages diffusés par le serveur
+	 * @param count le nombre maximum de messages
+	 * @return les derniers messages diffusés dans leur ordre de diffusion
+	 */
+	protected List<Message> getHistory(int count)
+	{
+		return history.recent(count);
+	}
+
+	/**
+	 * Noms des clients enregistrés
+	 * @return les noms des clients enregistrés, le super-utilisateur en
+	 * premier
+	 */
+	public List<String> getClientNames()
+	{
+		List<ChannelClient> snapshot = clients.snapshot();
+		List<String> names = new ArrayList<String>(snapshot.size());
+		for (ChannelClient c : snapshot)
+		{
+			names.add(c.getName());
+		}
+		return names;
+	}
+
+	/**
+	 * Statistiques du serveur : nombre de clients et de reactors, mémoire
+	 * occupée, trames écrites et remises à zéro du flux partagé
+	 * @return une description des statistiques du serveur
+	 */
+	public String getStatistics()
+	{
+		StringBuilder stats = new StringBuilder();
+		stats.append("clients: " + clients.size());
+		stats.append(", reactors: " + reactors.length);
+		stats.append(", refused: " + admission.getRefused());
+		stats.append(", throttled: " + throttled.get());
+		stats.append(", credit stalls: " + getCreditStalls());
+		stats.append(", footprint: " + getFootprint() + " bytes");
+		stats.append(", frames: " + getWrittenFrames() + " in "
+		    + getWrites() + " writes");
+		stats.append(", resets: " + frameEncoder.getResets());
+		if (bufferPool != null)
+		{
+			stats.append(", leased buffers: " + bufferPool.getLeased());
+		}
+		return stats.toString();
+	}
+
+	/**
+	 * Estimation de la mémoire du tas occupée par les connections du
+	 * serveur : la somme des estimations de chacun des clients (voir
+	 * {@link ChannelClient#getFootprint()}) et des messages retenus par
+	 * l'encodeur partagé jusqu'à sa prochaine remise à zéro. Grâce à la
+	 * politique de remise à zéro de l'encodeur cette mémoire est bornée par
+	 * le nombre de connections et non par l'historique des messages.
+	 * @return la taille estimée (en octets) de la mémoire occupée
+	 */
+	public long getFootprint()
+	{
+		long footprint = frameEncoder.getRetainedBytes();
+		for (ChannelClient c : clients.snapshot())
+		{
+			footprint += c.getFootprint();
+		}
+		return footprint;
+	}
+
+	/**
+	 * Nombre d'écritures effectuées vers les clients connectés. Rapporté au
+	 * nombre de trames écrites ({@link #getWrittenFrames()}) il indique
+	 * l'efficacité des écritures groupées.
+	 * @return le nombre d'écritures effectuées vers les clients connectés
+	 */
+	public long getWrites()
+	{
+		long writes = 0;
+		for (ChannelClient c : clients.snapshot())
+		{
+			writes += c.getWrites();
+		}
+		return writes;
+	}
+
+	/**
+	 * Nombre de trames écrites vers les clients connectés
+	 * @return le nombre de trames écrites vers les clients connectés
+	 */
+	public long getWrittenFrames()
+	{
+		long frames = 0;
+		for (ChannelClient c : clients.snapshot())
+		{
+			frames += c.getWrittenFrames();
+		}
+		return frames;
+	}
+
+	/**
+	 * Nombre d'attentes de crédit des clients connectés (voir
+	 * {@link FlowCredit})
+	 * @return le nombre de fois où des messages ont été retenus faute de
+	 * crédit accordé par leur destinataire
+	 */
+	public long getCreditStalls()
+	{
+		long stalls = 0;
+		for (ChannelClient c : clients.snapshot())
+		{
+			stalls += c.getCredit().getStalls();
+		}
+		return stalls;
+	}
+
+	/**
+	 * Recherche parmis les clients déjà enregistrés un client portant le même
+	 * nom que l'argument
+	 *
+	 * @param clientName le nom du client à rechercher parmis les clients déjà
+	 *            enregistrés
+	 * @return le client recherché s'il existe ou bien null s'il n'existe pas
+	 */
+	protected ChannelClient searchClientByName(String clientName)
+	{
+		// recherche en temps constant et sans verrou dans le registre
+		return clients.get(clientName);
+	}
+}
@@ -0,0 +1,543 @@
+package chat.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * File bornée des éléments en attente d'envoi vers un client. Les threads
+ * qui diffusent des messages se contentent d'ajouter ces messages à la file
+ * ({@link #offer(Object)}) sans jamais bloquer, tandis qu'un unique
+ * consommateur (le {@link ClientWriter} d'un {@link InputOutputClient} ou
+ * le {@link Reactor} d'un {@link ChannelClient}) les retire pour les écrire
+ * vers le client. Lorsque la file est pleine, l'{@link OverflowPolicy} de la
+ * file décide du sort du nouvel élément. Le consommateur peut savoir si un
+ * élément retiré suit un élément supprimé ({@link #followsGap()}).
+ * La file tient aussi le compte de la taille (en octets, voir
+ * {@link #sizeOf(Object)}) des éléments en attente, ce qui permet de
+ * connaître la mémoire occupée par la file d'un client.
+ * Un élément ajouté à la file appartient à la file jusqu'à ce qu'il soit
+ * retiré par le consommateur : un élément refusé (file fermée) ou supprimé
+ * (débordement, abandon de la file) est signalé par {@link #discarded(Object)}
+ * afin que les ressources qu'il détient puissent être libérées.
+ *
+ * @param <E> le type des éléments de la file
+ * @author davidroussel
+ */
+public class OutboundQueue<E>
+{
+	/**
+	 * Elément en attente, accompagné de l'indication qu'il suit un ou
+	 * plusieurs éléments supprimés
+	 * @param <E> le type de l'élément
+	 */
+	private static class Entry<E>
+	{
+		/**
+		 * L'élément en attente
+		 */
+		final E element;
+
+		/**
+		 * Indique que l'élément précédent a été supprimé
+		 */
+		boolean afterGap;
+
+		/**
+		 * Constructeur d'une entrée
+		 * @param element l'élément en attente
+		 * @param afterGap true si l'élément précédent a été supprimé
+		 */
+		Entry(E element, boolean afterGap)
+		{
+			this.element = element;
+			this.afterGap = afterGap;
+		}
+	}
+
+	/**
+	 * Les éléments en attente
+	 */
+	private final ArrayDeque<Entry<E>> elements;
+
+	/**
+	 * Nombre maximum d'éléments en attente
+	 */
+	private final int capacity;
+
+	/**
+	 * Politique appliquée lorsque la file est pleine
+	 */
+	private final OverflowPolicy policy;
+
+	/**
+	 * Verrou protégeant l'ensemble de l'état de la file. On utilise un
+	 * ReentrantLock plutôt qu'un synchronized afin de ne pas épingler les
+	 * threads virtuels.
+	 */
+	private final ReentrantLock lock;
+
+	/**
+	 * Condition signalée lorsqu'un élément est ajouté ou que la file est
+	 * fermée
+	 */
+	private final Condition notEmpty;
+
+	/**
+	 * Condition signalée lorsque le consommateur a terminé de traiter tous
+	 * les éléments de la file
+	 */
+	private final Condition drained;
+
+	/**
+	 * Indique que le consommateur est en train de traiter le dernier élément
+	 * qu'il a retiré par {@link #take()}
+	 */
+	private boolean busy;
+
+	/**
+	 * Indique que plus aucun élément ne sera accepté
+	 */
+	private boolean closed;
+
+	/**
+	 * Nombre d'éléments supprimés ou ignorés à cause d'un débordement
+	 */
+	private long dropped;
+
+	/**
+	 * Indique que le prochain élément ajouté suit un élément supprimé
+	 */
+	private boolean gap;
+
+	/**
+	 * Indique que le dernier élément retiré suit un élément supprimé
+	 */
+	private boolean lastAfterGap;
+
+	/**
+	 * Taille (en octets) des éléments en attente
+	 */
+	private long queuedBytes;
+
+	/**
+	 * Taille maximum (en octets) atteinte par les éléments en attente
+	 */
+	private long peakBytes;
+
+	/**
+	 * Constructeur d'une file de sortie
+	 * @param capacity le nombre maximum d'éléments en attente (au moins 1)
+	 * @param policy la politique à appliquer lorsque la file est pleine
+	 */
+	public OutboundQueue(int capacity, OverflowPolicy policy)
+	{
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+		elements = new ArrayDeque<Entry<E>>();
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+		drained = lock.newCondition();
+		busy = false;
+		closed = false;
+		dropped = 0;
+		gap = false;
+		lastAfterGap = false;
+		queuedBytes = 0;
+		peakBytes = 0;
+	}
+
+	/**
+	 * Ajout d'un élément à la file sans jamais bloquer. Si la file est pleine
+	 * la politique de débordement est appliquée.
+	 * @param element l'élément à ajouter
+	 * @return false si la file est pleine et que la politique de débordement
+	 * est {@link OverflowPolicy#DISCONNECT} (le client doit alors être
+	 * déconnecté et la file est fermée), true sinon (y compris lorsqu'un
+	 * élément a été supprimé ou que la file est fermée)
+	 */
+	public boolean offer(E element)
+	{
+		lock.lock();
+		try
+		{
+			if (closed)
+			{
+				discarded(element);
+				return true;
+			}
+			if (elements.size() >= capacity)
+			{
+				switch (policy)
+				{
+					case DROP_OLDEST:
+						E oldest = elements.poll().element;
+						queuedBytes -= sizeOf(oldest);
+						discarded(oldest);
+						dropped++;
+						overflowed();
+						if (elements.isEmpty())
+						{
+							gap = true;
+						}
+						else
+						{
+							elements.peek().afterGap = true;
+						}
+						break;
+					case DROP_NEWEST:
+						discarded(element);
+						dropped++;
+						gap = true;
+						overflowed();
+						return true;
+					case DISCONNECT:
+					default:
+						// le client sera déconnecté : plus rien ne lui est envoyé
+						closed = true;
+						clear();
+						discarded(element);
+						notEmpty.signalAll();
+						return false;
+				}
+			}
+			elements.add(new Entry<E>(element, gap));
+			gap = false;
+			queuedBytes += sizeOf(element);
+			if (queuedBytes > peakBytes)
+			{
+				peakBytes = queuedBytes;
+			}
+			notEmpty.signal();
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrait bloquant du prochain élément de la file. L'appel à cette méthode
+	 * indique aussi que le consommateur a terminé de traiter l'élément
+	 * précédent.
+	 * @return le prochain élément ou bien null si la file est fermée et vide
+	 * @throws InterruptedException si le thread est interrompu pendant
+	 * l'attente
+	 */
+	public E take() throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			busy = false;
+			while (elements.isEmpty())
+			{
+				if (closed)
+				{
+					drained.signalAll();
+					return null;
+				}
+				drained.signalAll();
+				notEmpty.await();
+			}
+			busy = true;
+			return next();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrait non bloquant du prochain élément de la file
+	 * @return le prochain élément ou bien null si la file est vide
+	 */
+	public E poll()
+	{
+		lock.lock();
+		try
+		{
+			return elements.isEmpty() ? null : next();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrait du prochain élément de la file, en attendant au plus le délai
+	 * indiqué qu'un élément soit ajouté
+	 * @param timeout délai maximum d'attente
+	 * @param unit l'unité du délai
+	 * @return le prochain élément ou bien null si la file est encore vide
+	 * (ou fermée) à l'issue du délai
+	 * @throws InterruptedException si le thread est interrompu pendant
+	 * l'attente
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long remaining = unit.toNanos(timeout);
+		lock.lock();
+		try
+		{
+			while (elements.isEmpty())
+			{
+				if (closed || (remaining <= 0))
+				{
+					return null;
+				}
+				remaining = notEmpty.awaitNanos(remaining);
+			}
+			return next();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Indique si le dernier élément retiré par {@link #take()} ou
+	 * {@link #poll()} suit un ou plusieurs éléments supprimés par la
+	 * politique de débordement
+	 * @return true si des éléments ont été supprimés juste avant le dernier
+	 * élément retiré
+	 */
+	public boolean followsGap()
+	{
+		lock.lock();
+		try
+		{
+			return lastAfterGap;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Indique si la file est vide
+	 * @return true si aucun élément n'est en attente
+	 */
+	public boolean isEmpty()
+	{
+		lock.lock();
+		try
+		{
+			return elements.isEmpty();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Nombre d'éléments en attente
+	 * @return le nombre d'éléments en attente
+	 */
+	public int size()
+	{
+		lock.lock();
+		try
+		{
+			return elements.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Nombre d'éléments supprimés ou ignorés à cause d'un débordement
+	 * @return le nombre d'éléments perdus
+	 */
+	public long getDropped()
+	{
+		lock.lock();
+		try
+		{
+			return dropped;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Taille des éléments en attente
+	 * @return la taille (en octets) des éléments en attente
+	 */
+	public long getQueuedBytes()
+	{
+		lock.lock();
+		try
+		{
+			return queuedBytes;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Taille maximum atteinte par les éléments en attente
+	 * @return la taille maximum (en octets) des éléments en attente depuis
+	 * la création de la file
+	 */
+	public long getPeakBytes()
+	{
+		lock.lock();
+		try
+		{
+			return peakBytes;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Fermeture de la file : plus aucun élément n'est accepté, mais les
+	 * éléments en attente peuvent encore être retirés par le consommateur
+	 */
+	public void close()
+	{
+		lock.lock();
+		try
+		{
+			closed = true;
+			notEmpty.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Abandon de la file (par exemple lorsque le consommateur ne peut plus
+	 * écrire vers le client) : la file est fermée et les éléments en attente
+	 * sont supprimés
+	 */
+	public void abort()
+	{
+		lock.lock();
+		try
+		{
+			closed = true;
+			busy = false;
+			clear();
+			notEmpty.signalAll();
+			drained.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Méthode appelée (sous le verrou de la file) chaque fois qu'un élément
+	 * est supprimé ou ignoré par la politique de débordement. Ne fait rien
+	 * par défaut.
+	 */
+	protected void overflowed()
+	{
+		// rien par défaut
+	}
+
+	/**
+	 * Méthode appelée (sous le verrou de la file) pour chaque élément refusé
+	 * ou supprimé de la file, qui ne sera donc jamais retiré par le
+	 * consommateur. Ne fait rien par défaut.
+	 * @param element l'élément refusé ou supprimé
+	 */
+	protected void discarded(E element)
+	{
+		// rien par défaut
+	}
+
+	/**
+	 * Taille (en octets) d'un élément. Appelée sous le verrou de la file,
+	 * une fois lors de l'ajout de l'élément et une fois lors de son retrait :
+	 * elle doit donc toujours renvoyer la même valeur pour un même élément.
+	 * Renvoie 0 par défaut.
+	 * @param element l'élément
+	 * @return la taille de l'élément
+	 */
+	protected long sizeOf(E element)
+	{
+		return 0;
+	}
+
+	/**
+	 * Retrait du prochain élément (la file ne doit pas être vide et le verrou
+	 * doit être acquis)
+	 * @return le prochain élément
+	 */
+	private E next()
+	{
+		Entry<E> entry = elements.poll();
+		lastAfterGap = entry.afterGap;
+		queuedBytes -= sizeOf(entry.element);
+		return entry.element;
+	}
+
+	/**
+	 * Suppression de tous les éléments en attente (le verrou doit être
+	 * acquis)
+	 */
+	private void clear()
+	{
+		Entry<E> entry;
+		while ((entry = elements.poll()) != null)
+		{
+			discarded(entry.element);
+		}
+		queuedBytes = 0;
+	}
+
+	/**
+	 * Attente (bornée) de la fin du traitement de tous les éléments de la
+	 * file par le consommateur
+	 * @param timeout délai maximum d'attente (en ms)
+	 * @return true si tous les éléments ont été traités, false si le délai
+	 * s'est écoulé avant
+	 */
+	public boolean awaitDrained(long timeout)
+	{
+		long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+		lock.lock();
+		try
+		{
+			while (busy || !elements.isEmpty())
+			{
+				if (remaining <= 0)
+				{
+					return false;
+				}
+				remaining = drained.awaitNanos(remaining);
+			}
+			return true;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package chat.server;
+
+/**
+ * Politique appliquée lorsque la file de sortie ({@link OutboundQueue}) d'un
+ * client est pleine, c'est à dire lorsque ce client ne lit pas ses messages
+ * aussi vite qu'ils sont diffusés.
+ *
+ * @author davidroussel
+ */
+public enum OverflowPolicy
+{
+	/**
+	 * Le plus ancien message en attente est supprimé pour faire de la place
+	 * au nouveau message
+	 */
+	DROP_OLDEST,
+	/**
+	 * Le nouveau message est ignoré
+	 */
+	DROP_NEWEST,
+	/**
+	 * Le client est déconnecté
+	 */
+	DISCONNECT;
+
+	/**
+	 * Politique correspondant à un nom de la forme "drop-oldest",
+	 * "drop-newest" ou "disconnect" (tel qu'utilisé sur la ligne de commande)
+	 * @param name le nom de la politique
+	 * @return la politique correspondante ou bien null si ce nom ne
+	 * correspond à aucune politique
+	 */
+	public static OverflowPolicy fromString(String name)
+	{
+		for (OverflowPolicy policy : values())
+		{
+			if (policy.toString().equals(name))
+			{
+				return policy;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Nom de la politique tel qu'utilisé sur la ligne de commande
+	 * @return le nom de la politique en minuscules ("drop-oldest", ...)
+	 */
+	@Override
+	public String toString()
+	{
+		return name().toLowerCase().replace('_', '-');
+	}
+}
@@ -0,0 +1,331 @@
+package chat.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Etage du pipeline du {@link ChatServer} exécutant des tâches sur ses
+ * propres threads. Chaque tâche est soumise avec une clé (par exemple le
+ * client qui l'a produite) : toutes les tâches d'une même clé sont
+ * exécutées par le même thread, dans l'ordre de leur soumission, tandis que
+ * les tâches de clés différentes sont exécutées en parallèle par les
+ * threads de l'étage.
+ * Chaque thread dispose de sa propre file bornée : lorsque celle-ci est
+ * pleine, le thread qui soumet une tâche est bloqué jusqu'à ce qu'une place
+ * se libère. Un étage trop lent ralentit donc l'étage précédent (et, au
+ * bout du compte, la lecture des clients au travers du contrôle de flux de
+ * TCP) au lieu d'accumuler des tâches sans limite.
+ * La politique de threads de l'étage est donnée par son nombre de threads
+ * et par sa fabrique de threads (threads classiques ou threads virtuels).
+ * Un étage sans thread exécute chaque tâche directement dans le thread qui
+ * la soumet. Dans tous les cas la profondeur des files et les temps de
+ * service des tâches sont mesurés (voir {@link StageMetrics}).
+ *
+ * @author davidroussel
+ */
+public class PipelineStage
+{
+	/**
+	 * Tâche signalant la fin d'un thread de l'étage
+	 */
+	private static final Runnable STOP = () -> {};
+
+	/**
+	 * Délai (en ms) au bout duquel une soumission bloquée sur une file pleine
+	 * vérifie si l'étage a été fermé (le thread de la file ne la vide plus
+	 * une fois arrêté)
+	 */
+	private static final long CLOSEDPOLL = 100;
+
+	/**
+	 * Un thread de l'étage et sa file de tâches
+	 */
+	private class Worker implements Runnable
+	{
+		/**
+		 * Les tâches en attente de ce thread
+		 */
+		private final BlockingQueue<Runnable> tasks;
+
+		/**
+		 * Le thread exécutant les tâches
+		 */
+		private final Thread thread;
+
+		/**
+		 * Constructeur d'un thread de l'étage. Le thread est démarré
+		 * immédiatement.
+		 * @param index le numéro du thread dans l'étage
+		 * @param capacity nombre maximum de tâches en attente
+		 * @param factory la fabrique du thread
+		 */
+		Worker(int index, int capacity, ThreadFactory factory)
+		{
+			tasks = new ArrayBlockingQueue<Runnable>(capacity);
+			thread = factory.newThread(this);
+			thread.setName("PipelineStage-" + metrics.getName() + "-" + index);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * Exécution des tâches jusqu'à l'arrêt de l'étage
+		 */
+		@Override
+		public void run()
+		{
+			try
+			{
+				Runnable task;
+				while ((task = tasks.take()) != STOP)
+				{
+					perform(task);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				logger.warning("PipelineStage: " + thread.getName()
+				    + " interrupted");
+			}
+		}
+	}
+
+	/**
+	 * Les threads de l'étage (vide si les tâches sont exécutées par le
+	 * thread qui les soumet)
+	 */
+	private final Worker[] workers;
+
+	/**
+	 * Mesures de l'étage
+	 */
+	private final StageMetrics metrics;
+
+	/**
+	 * Nombre de soumissions ayant dû attendre qu'une place se libère
+	 */
+	private final AtomicLong stalls;
+
+	/**
+	 * Indique que l'étage n'accepte plus de tâches
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Logger pour l'affichage des erreurs d'exécution des tâches
+	 */
+	private final Logger logger;
+
+	/**
+	 * Constructeur d'un étage. Ses threads sont démarrés immédiatement.
+	 * @param name nom de l'étage (qui figure dans le nom de ses threads)
+	 * @param threads nombre de threads de l'étage, 0 pour exécuter les
+	 * tâches dans le thread qui les soumet
+	 * @param capacity nombre maximum de tâches en attente de chaque thread
+	 * @param factory fabrique des threads de l'étage
+	 * @param logger logger pour l'affichage des erreurs d'exécution des
+	 * tâches
+	 */
+	public PipelineStage(String name,
+	                     int threads,
+	                     int capacity,
+	                     ThreadFactory factory,
+	                     Logger logger)
+	{
+		this.logger = logger;
+		metrics = new StageMetrics(name, this::getDepth);
+		stalls = new AtomicLong(0);
+		closed = false;
+		workers = new Worker[Math.max(0, threads)];
+		for (int i = 0; i < workers.length; i++)
+		{
+			workers[i] = new Worker(i, Math.max(1, capacity), factory);
+		}
+	}
+
+	/**
+	 * Soumission d'une tâche, exécutée après toutes les tâches déjà soumises
+	 * avec la même clé. Bloque tant que la file du thread correspondant est
+	 * pleine. L'étage pouvant être fermé pendant la soumission, la tâche
+	 * n'est acceptée que si elle précède l'arrêt du thread dans sa file :
+	 * une tâche placée derrière l'arrêt est retirée de la file et refusée.
+	 * @param key la clé de la tâche
+	 * @param task la tâche à exécuter
+	 * @return true si la tâche a été acceptée (elle sera donc exécutée),
+	 * false si l'étage est fermé (ou si le thread qui soumet la tâche a été
+	 * interrompu)
+	 */
+	public boolean execute(Object key, Runnable task)
+	{
+		if (closed)
+		{
+			return false;
+		}
+		if (workers.length == 0)
+		{
+			perform(task);
+			return true;
+		}
+		BlockingQueue<Runnable> tasks =
+		    workers[Math.floorMod(key.hashCode(), workers.length)].tasks;
+		if (!tasks.offer(task))
+		{
+			stalls.incrementAndGet();
+			try
+			{
+				while (!tasks.offer(task, CLOSEDPOLL, TimeUnit.MILLISECONDS))
+				{
+					if (closed)
+					{
+						return false;
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		/*
+		 * Fermeture concurrente : l'arrêt du thread a pu être placé avant
+		 * la tâche, qui ne serait alors jamais exécutée. Si le thread ne l'a
+		 * pas encore prise, elle est retirée et refusée.
+		 */
+		if (closed && tasks.remove(task))
+		{
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Exécution d'une tâche et attente de sa fin. La tâche est exécutée
+	 * après toutes les tâches déjà soumises avec la même clé : une tâche vide
+	 * permet donc d'attendre que toutes ces tâches soient terminées.
+	 * @param key la clé de la tâche
+	 * @param task la tâche à exécuter
+	 * @return true si la tâche a été exécutée, false si l'étage est fermé
+	 * (ou si l'attente a été interrompue)
+	 */
+	public boolean call(Object key, Runnable task)
+	{
+		CountDownLatch done = new CountDownLatch(1);
+		if (!execute(key, () -> {
+			try
+			{
+				task.run();
+			}
+			finally
+			{
+				done.countDown();
+			}
+		}))
+		{
+			return false;
+		}
+		try
+		{
+			done.await();
+			return true;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Fermeture de l'étage : les tâches déjà soumises sont exécutées puis
+	 * les threads de l'étage se terminent
+	 * @param timeout délai maximum (en ms) d'attente de la fin de chacun
+	 * des threads
+	 */
+	public void close(long timeout)
+	{
+		closed = true;
+		for (Worker worker : workers)
+		{
+			try
+			{
+				worker.tasks.put(STOP);
+				worker.thread.join(timeout);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Nombre de threads de l'étage
+	 * @return le nombre de threads (0 si les tâches sont exécutées par le
+	 * thread qui les soumet)
+	 */
+	public int getThreads()
+	{
+		return workers.length;
+	}
+
+	/**
+	 * Nombre de tâches en attente dans les files de l'étage
+	 * @return la profondeur totale des files de l'étage
+	 */
+	public long getDepth()
+	{
+		long depth = 0;
+		for (Worker worker : workers)
+		{
+			depth += worker.tasks.size();
+		}
+		return depth;
+	}
+
+	/**
+	 * Nombre de soumissions ayant attendu qu'une place se libère
+	 * @return le nombre de fois où la file d'un thread était pleine
+	 */
+	public long getStalls()
+	{
+		return stalls.get();
+	}
+
+	/**
+	 * Accesseur en lecture des mesures de l'étage
+	 * @return les mesures de l'étage
+	 */
+	public StageMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Exécution d'une tâche et mesure de son temps de service
+	 * @param task la tâche à exécuter
+	 */
+	private void perform(Runnable task)
+	{
+		long start = System.nanoTime();
+		try
+		{
+			task.run();
+		}
+		catch (RuntimeException e)
+		{
+			logger.severe("PipelineStage: " + metrics.getName()
+			    + " task failed: " + e);
+		}
+		finally
+		{
+			metrics.record(start);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package chat.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tampon obtenu auprès d'un {@link BufferPool} et rendu à celui-ci lorsque
+ * son dernier utilisateur le libère. Le tampon possède un compteur de
+ * références : celui qui l'obtient en détient une, chaque utilisateur
+ * supplémentaire en prend une ({@link #retain()}) et chacun rend la sienne
+ * ({@link #release()}) lorsqu'il n'a plus besoin du tampon. Le tampon est
+ * rendu au pool lorsque le compteur atteint 0 : il ne doit alors plus être
+ * utilisé.
+ * Le contenu du tampon est écrit par celui qui l'obtient
+ * ({@link #buffer()}, qu'il doit ensuite retourner avec
+ * {@link ByteBuffer#flip()}) puis lu au travers de vues
+ * ({@link #view()}) possédant chacune leur propre position, ce qui permet
+ * d'écrire les mêmes octets simultanément vers plusieurs canaux.
+ * Un tampon peut aussi envelopper un tableau d'octets du tas
+ * ({@link #wrap(byte[])}) : il se comporte alors de la même manière mais
+ * n'est rendu à aucun pool.
+ *
+ * @author davidroussel
+ */
+public final class PooledBuffer
+{
+	/**
+	 * Le pool auquel le tampon doit être rendu (null si le tampon
+	 * n'appartient à aucun pool)
+	 */
+	private final BufferPool pool;
+
+	/**
+	 * Indice de la classe de taille du tampon dans son pool
+	 */
+	private final int sizeClass;
+
+	/**
+	 * Le tampon
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Nombre de références détenues sur le tampon
+	 */
+	private final AtomicInteger references;
+
+	/**
+	 * Constructeur d'un tampon
+	 * @param pool le pool auquel le tampon doit être rendu (ou null)
+	 * @param sizeClass indice de la classe de taille du tampon dans son pool
+	 * @param buffer le tampon
+	 */
+	PooledBuffer(BufferPool pool, int sizeClass, ByteBuffer buffer)
+	{
+		this.pool = pool;
+		this.sizeClass = sizeClass;
+		this.buffer = buffer;
+		references = new AtomicInteger(pool != null ? 0 : 1);
+	}
+
+	/**
+	 * Tampon n'appartenant à aucun pool contenant des octets déjà encodés
+	 * @param bytes les octets du tampon
+	 * @return un tampon (prêt à être lu) sur ces octets
+	 */
+	public static PooledBuffer wrap(byte[] bytes)
+	{
+		return new PooledBuffer(null, -1, ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Tampon du tas n'appartenant à aucun pool
+	 * @param capacity la capacité du tampon
+	 * @return un tampon (prêt à être rempli) de cette capacité
+	 */
+	public static PooledBuffer allocate(int capacity)
+	{
+		return new PooledBuffer(null, -1, ByteBuffer.allocate(capacity));
+	}
+
+	/**
+	 * Le tampon lui-même, à remplir (puis à retourner) par celui qui vient de
+	 * l'obtenir
+	 * @return le tampon
+	 */
+	public ByteBuffer buffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * Nouvelle vue (en lecture seule) sur le contenu du tampon, possédant sa
+	 * propre position
+	 * @return une vue sur les octets compris entre 0 et la limite du tampon
+	 */
+	public ByteBuffer view()
+	{
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Taille du contenu du tampon
+	 * @return le nombre d'octets du tampon (sa limite une fois retourné)
+	 */
+	public int length()
+	{
+		return buffer.limit();
+	}
+
+	/**
+	 * Indique si le tampon appartient à un pool
+	 * @return true si le tampon sera rendu à un pool lors de sa dernière
+	 * libération
+	 */
+	public boolean isPooled()
+	{
+		return pool != null;
+	}
+
+	/**
+	 * Prise d'une référence supplémentaire sur le tampon
+	 * @return ce tampon
+	 * @throws IllegalStateException si le tampon a déjà été rendu à son pool
+	 */
+	public PooledBuffer retain()
+	{
+		if (references.getAndIncrement() <= 0)
+		{
+			references.decrementAndGet();
+			throw new IllegalStateException("PooledBuffer: retain of a released buffer");
+		}
+		return this;
+	}
+
+	/**
+	 * Libération d'une référence sur le tampon. Le tampon est rendu à son
+	 * pool lorsque la dernière référence est libérée.
+	 * @throws IllegalStateException si le tampon a déjà été rendu à son pool
+	 */
+	public void release()
+	{
+		int remaining = references.decrementAndGet();
+		if (remaining == 0)
+		{
+			if (pool != null)
+			{
+				pool.recycle(this);
+			}
+		}
+		else if (remaining < 0)
+		{
+			references.incrementAndGet();
+			throw new IllegalStateException("PooledBuffer: buffer released twice");
+		}
+	}
+
+	/**
+	 * Indice de la classe de taille du tampon dans son pool
+	 * @return l'indice de la classe de taille du tampon
+	 */
+	int getSizeClass()
+	{
+		return sizeClass;
+	}
+
+	/**
+	 * Remise à zéro du tampon lorsqu'il est obtenu auprès de son pool : le
+	 * tampon est vidé et son unique référence appartient à celui qui l'obtient
+	 */
+	void acquire()
+	{
+		buffer.clear();
+		references.set(1);
+	}
+}
@@ -0,0 +1,204 @@
+package chat.server;
+
+import java.util.concurrent.TimeUnit;
+
+import chat.Frame;
+import chat.MessageCodec;
+import chat.Vocabulary;
+import models.Message;
+
+/**
+ * Limitation du débit des messages envoyés par un client, par deux seaux à
+ * jetons : l'un compte les messages, l'autre les octets de leur contenu.
+ * Chaque seau se remplit au débit autorisé (par seconde) et contient au
+ * plus une seconde de ce débit, ce qui permet une courte rafale après une
+ * période de silence. Un message n'est accepté que si les deux seaux
+ * contiennent assez de jetons ; un message plus grand que le seau des
+ * octets est accepté lorsque ce seau est plein, le seau étant alors
+ * endetté d'autant.
+ * Chaque message d'un client étant diffusé à tous les clients, limiter le
+ * débit d'un client borne la charge d'écriture qu'il peut imposer au
+ * serveur. Les commandes sont limitées elles aussi car elles peuvent être
+ * diffusées (un kick refusé, par exemple) ou coûter une réponse encodée
+ * sous le verrou de diffusion ; seules les commandes de {@link #EXEMPT}
+ * (contrôle de flux et déconnexion) ne le sont jamais (voir
+ * {@link #isExempt(Frame)}).
+ * Un limiteur n'est utilisé que par le lecteur de son client
+ * ({@link ClientHandler} ou reactor du {@link NioChatServer}) et n'est donc
+ * pas protégé contre les accès concurrents (à l'exception de ses
+ * compteurs).
+ *
+ * @author davidroussel
+ */
+public class RateLimiter
+{
+	/**
+	 * Commandes jamais limitées : le renouvellement du crédit de messages
+	 * d'un client (qui ne doit pas bloquer son propre flux) et sa
+	 * déconnexion
+	 */
+	public final static String[] EXEMPT = {Vocabulary.creditCmd,
+	                                       Vocabulary.byeCmd};
+
+	/**
+	 * Nombre maximum de messages par seconde (0 pour aucune limite)
+	 */
+	private final int messageRate;
+
+	/**
+	 * Nombre maximum d'octets par seconde (0 pour aucune limite)
+	 */
+	private final int byteRate;
+
+	/**
+	 * Jetons disponibles dans le seau des messages
+	 */
+	private double messageTokens;
+
+	/**
+	 * Jetons disponibles dans le seau des octets (négatif après un message
+	 * plus grand que le seau)
+	 */
+	private double byteTokens;
+
+	/**
+	 * Date (en ns) du dernier remplissage des seaux
+	 */
+	private long lastRefill;
+
+	/**
+	 * Nombre de messages ayant dépassé le débit autorisé
+	 */
+	private volatile long throttled;
+
+	/**
+	 * Constructeur d'un limiteur dont les seaux sont pleins
+	 * @param messageRate nombre maximum de messages par seconde (0 pour
+	 * aucune limite)
+	 * @param byteRate nombre maximum d'octets par seconde (0 pour aucune
+	 * limite)
+	 */
+	public RateLimiter(int messageRate, int byteRate)
+	{
+		this.messageRate = messageRate;
+		this.byteRate = byteRate;
+		messageTokens = messageRate;
+		byteTokens = byteRate;
+		lastRefill = System.nanoTime();
+		throttled = 0;
+	}
+
+	/**
+	 * Limiteur correspondant aux réglages d'un serveur
+	 * @param settings les réglages du serveur
+	 * @return un nouveau limiteur ou bien null si les réglages ne limitent
+	 * pas le débit des clients
+	 */
+	public static RateLimiter create(ServerSettings settings)
+	{
+		if ((settings.getRateMessages() <= 0) && (settings.getRateBytes() <= 0))
+		{
+			return null;
+		}
+		return new RateLimiter(settings.getRateMessages(),
+		                       settings.getRateBytes());
+	}
+
+	/**
+	 * Demande d'autorisation d'un message. Si le message est autorisé ses
+	 * jetons sont retirés des seaux, sinon les seaux ne sont pas modifiés et
+	 * le message est compté comme limité.
+	 * @param message le message reçu du client
+	 * @return 0 si le message est autorisé ou bien le délai (en ns) au bout
+	 * duquel il le sera
+	 */
+	public long acquire(Message message)
+	{
+		refill();
+		int size = size(message);
+		double neededBytes = Math.min(size, byteRate);
+		long wait = 0;
+		if ((messageRate > 0) && (messageTokens < 1))
+		{
+			wait = delay(1 - messageTokens, messageRate);
+		}
+		if ((byteRate > 0) && (byteTokens < neededBytes))
+		{
+			wait = Math.max(wait, delay(neededBytes - byteTokens, byteRate));
+		}
+		if (wait > 0)
+		{
+			throttled++;
+			return wait;
+		}
+		messageTokens -= 1;
+		byteTokens -= size;
+		return 0;
+	}
+
+	/**
+	 * Nombre de messages ayant dépassé le débit autorisé (retardés, ignorés
+	 * ou ayant entraîné le bannissement du client selon la
+	 * {@link ThrottlePolicy}). Un message retardé plusieurs fois est compté
+	 * à chaque fois.
+	 * @return le nombre de dépassements du débit autorisé
+	 */
+	public long getThrottled()
+	{
+		return throttled;
+	}
+
+	/**
+	 * Indique si une trame échappe à la limitation de débit : seules les
+	 * trames de contrôle contenant l'une des commandes de {@link #EXEMPT}
+	 * (avec ou sans {@link Vocabulary#commandPrefix}) y échappent
+	 * @param frame la trame reçue d'un client
+	 * @return true si la trame ne doit pas être limitée
+	 */
+	public static boolean isExempt(Frame frame)
+	{
+		for (String command : EXEMPT)
+		{
+			if (CommandRegistry.isCommand(frame, command))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Taille d'un message, telle que comptée par le seau des octets
+	 * @param message le message
+	 * @return le nombre d'octets de son contenu encodé en UTF-8 (voir
+	 * {@link MessageCodec#contentLength(Message)})
+	 */
+	public static int size(Message message)
+	{
+		return MessageCodec.contentLength(message);
+	}
+
+	/**
+	 * Remplissage des seaux d'après le temps écoulé depuis le dernier
+	 * remplissage
+	 */
+	private void refill()
+	{
+		long now = System.nanoTime();
+		double elapsed = (now - lastRefill) / (double) TimeUnit.SECONDS.toNanos(1);
+		lastRefill = now;
+		messageTokens = Math.min(messageRate, messageTokens + (elapsed * messageRate));
+		byteTokens = Math.min(byteRate, byteTokens + (elapsed * byteRate));
+	}
+
+	/**
+	 * Délai nécessaire pour obtenir des jetons
+	 * @param missing le nombre de jetons manquants
+	 * @param rate le débit (par seconde) du seau
+	 * @return le délai (en ns, au moins 1) nécessaire pour obtenir ces jetons
+	 */
+	private static long delay(double missing, int rate)
+	{
+		return Math.max(1, (long) Math.ceil((missing * TimeUnit.SECONDS.toNanos(1)) / rate));
+	}
+}
@@ -0,0 +1,959 @@
+package chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import chat.Frame;
+import chat.FrameType;
+import chat.MessageCodec;
+import chat.Vocabulary;
+import chat.WireProtocol;
+import logger.LoggerFactory;
+import models.Message;
+
+/**
+ * Boucle d'évènements d'entrées/sorties du {@link NioChatServer}. Chaque
+ * reactor possède son propre {@link Selector} et son propre thread et traite
+ * un sous ensemble des clients du serveur : les connections acceptées par le
+ * serveur lui sont confiées par {@link #assign(SocketChannel)} et les
+ * messages diffusés (déjà sérialisés) lui sont transmis par
+ * {@link #deliver(MessageFrame)}. Tous les accès aux clients d'un reactor
+ * (lecture, écriture) sont donc réalisés par le seul thread de ce reactor.
+ *
+ * @author davidroussel
+ */
+public class Reactor implements Runnable
+{
+	/**
+	 * Taille du tampon de lecture partagé par les clients du reactor (obtenu
+	 * auprès du {@link BufferPool} du serveur s'il en possède un)
+	 */
+	public final static int READBUFFERSIZE = 8192;
+
+	/**
+	 * Le serveur auquel appartient ce reactor
+	 */
+	private final NioChatServer parent;
+
+	/**
+	 * Numéro du reactor (pour les messages de debug)
+	 */
+	private final int number;
+
+	/**
+	 * Le sélecteur de la boucle d'évènements
+	 */
+	private final Selector selector;
+
+	/**
+	 * Connections acceptées par le serveur et pas encore enregistrées auprès
+	 * du {@link #selector}
+	 */
+	private final ConcurrentLinkedQueue<SocketChannel> pendingChannels;
+
+	/**
+	 * Messages diffusés pas encore transmis aux clients du reactor
+	 */
+	private final ConcurrentLinkedQueue<MessageFrame> pendingMessages;
+
+	/**
+	 * Clients enregistrés (i.e. ayant donné un nom valide) traités par ce
+	 * reactor. Cette liste n'est manipulée que par le thread du reactor.
+	 */
+	private final ArrayList<ChannelClient> members;
+
+	/**
+	 * Clients connectés qui n'ont pas encore envoyé leur nom, dans l'ordre
+	 * de leur connection. Cette liste n'est manipulée que par le thread du
+	 * reactor.
+	 */
+	private final ArrayDeque<ChannelClient> handshaking;
+
+	/**
+	 * Clients dont la lecture est suspendue parce qu'ils ont dépassé le débit
+	 * autorisé (voir {@link ThrottlePolicy#DELAY}), par ordre de reprise.
+	 * Cette file n'est manipulée que par le thread du reactor.
+	 */
+	private final PriorityQueue<ChannelClient> suspended;
+
+	/**
+	 * Délai maximum (en ms) accordé à un client pour envoyer son nom (0 pour
+	 * un délai infini)
+	 */
+	private final int handshakeTimeout;
+
+	/**
+	 * Réglages du serveur utilisés pour créer les files de sortie des
+	 * clients
+	 */
+	private final ServerSettings settings;
+
+	/**
+	 * Nombre de connections traitées par ce reactor (utilisé par le serveur
+	 * pour choisir le reactor le moins chargé)
+	 */
+	private final AtomicInteger load;
+
+	/**
+	 * Jeu de caractères utilisé par les clients pour envoyer leur texte
+	 */
+	private final Charset charset;
+
+	/**
+	 * Etat d'exécution du reactor
+	 */
+	private volatile boolean running;
+
+	/**
+	 * logger pour afficher les messages de debug
+	 */
+	private Logger logger;
+
+	/**
+	 * Constructeur d'un reactor
+	 * @param parent le serveur auquel appartient ce reactor
+	 * @param number le numéro du reactor
+	 * @param charset le jeu de caractères utilisé par les clients
+	 * @param parentLogger logger parent pour l'affichage des messages de debug
+	 * @throws IOException si le sélecteur ne peut être créé
+	 */
+	public Reactor(NioChatServer parent,
+	               int number,
+	               Charset charset,
+	               Logger parentLogger)
+	    throws IOException
+	{
+		this.parent = parent;
+		this.number = number;
+		this.charset = charset;
+		selector = Selector.open();
+		pendingChannels = new ConcurrentLinkedQueue<SocketChannel>();
+		pendingMessages = new ConcurrentLinkedQueue<MessageFrame>();
+		members = new ArrayList<ChannelClient>();
+		handshaking = new ArrayDeque<ChannelClient>();
+		suspended = new PriorityQueue<ChannelClient>(
+		    Comparator.comparingLong(ChannelClient::getResumeTime));
+		settings = parent.getSettings();
+		handshakeTimeout = settings.getHandshakeTimeout();
+		load = new AtomicInteger(0);
+		running = true;
+		logger = LoggerFactory.getParentLogger(getClass(),
+		                                       parentLogger,
+		                                       parentLogger.getLevel());
+	}
+
+	/**
+	 * Nombre de connections actuellement traitées par ce reactor
+	 * @return le nombre de connections du reactor
+	 */
+	public int getLoad()
+	{
+		return load.get();
+	}
+
+	/**
+	 * Confie une nouvelle connection à ce reactor. Peut être appelé depuis
+	 * n'importe quel thread.
+	 * @param channel la connection acceptée par le serveur
+	 */
+	public void assign(SocketChannel channel)
+	{
+		load.incrementAndGet();
+		pendingChannels.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Transmet un message à diffuser à tous les clients de ce reactor. Peut
+	 * être appelé depuis n'importe quel thread. Le reactor libère la
+	 * référence de l'appelant sur la trame une fois celle-ci transmise à ses
+	 * clients.
+	 * @param frame le message sérialisé à diffuser
+	 */
+	public void deliver(MessageFrame frame)
+	{
+		pendingMessages.add(frame);
+		selector.wakeup();
+	}
+
+	/**
+	 * Demande l'arrêt du reactor. Ses clients seront fermés par son thread.
+	 */
+	public void stop()
+	{
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Boucle d'évènements du reactor : enregistrement des connections
+	 * confiées par le serveur, transmission des messages diffusés puis
+	 * traitement des canaux prêts en lecture ou en écriture.
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		BufferPool pool = parent.getBufferPool();
+		PooledBuffer leased = (pool != null ? pool.lease(READBUFFERSIZE) : null);
+		ByteBuffer readBuffer = (leased != null ? leased.buffer()
+		    : ByteBuffer.allocateDirect(READBUFFERSIZE));
+
+		while (running)
+		{
+			try
+			{
+				selector.select(nextSelectDelay());
+			}
+			catch (IOException e)
+			{
+				logger.severe("Reactor[" + number + "]: select failed");
+				logger.severe(e.getLocalizedMessage());
+				break;
+			}
+
+			expireHandshakes();
+			resumeSuspendedReads();
+			registerPendingChannels();
+			deliverPendingMessages();
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext())
+			{
+				SelectionKey key = it.next();
+				it.remove();
+
+				if (!key.isValid())
+				{
+					continue;
+				}
+
+				ChannelClient client = (ChannelClient) key.attachment();
+				try
+				{
+					if (key.isReadable())
+					{
+						read(client, readBuffer);
+					}
+					if (key.isValid() && key.isWritable())
+					{
+						write(client);
+					}
+				}
+				catch (IOException e)
+				{
+					logger.warning("Reactor[" + number + "][" + client.getName()
+					    + "]: received or write failed, Closing client");
+					remove(client);
+				}
+			}
+		}
+
+		logger.info("Reactor[" + number + "]: closing all clients ... ");
+		for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys()))
+		{
+			remove((ChannelClient) key.attachment());
+		}
+		SocketChannel channel;
+		while ((channel = pendingChannels.poll()) != null)
+		{
+			parent.release(channel);
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				logger.warning("Reactor[" + number + "]: close failed");
+			}
+		}
+		MessageFrame frame;
+		while ((frame = pendingMessages.poll()) != null)
+		{
+			frame.release();
+		}
+		if (leased != null)
+		{
+			leased.release();
+		}
+		try
+		{
+			selector.close();
+		}
+		catch (IOException e)
+		{
+			logger.severe("Reactor[" + number + "]: close selector failed");
+			logger.severe(e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Enregistrement auprès du {@link #selector} des connections confiées
+	 * par le serveur depuis le dernier tour de boucle
+	 */
+	private void registerPendingChannels()
+	{
+		SocketChannel channel;
+		while ((channel = pendingChannels.poll()) != null)
+		{
+			ChannelClient client = new ChannelClient(channel,
+			                                         settings.getOutboundCapacity(),
+			                                         settings.getOverflowPolicy(),
+			                                         settings.getBatchFrames(),
+			                                         parent.getFrameEncoder(),
+			                                         logger);
+			try
+			{
+				settings.getSocketProfile().configure(channel.socket());
+				if (settings.isAutoTune())
+				{
+					client.setTuner(new BufferTuner(channel.socket(), logger));
+				}
+				client.setRateLimiter(RateLimiter.create(settings));
+				channel.configureBlocking(false);
+				client.setKey(channel.register(selector,
+				                               SelectionKey.OP_READ,
+				                               client));
+				if (handshakeTimeout > 0)
+				{
+					handshaking.add(client);
+				}
+			}
+			catch (IOException e)
+			{
+				logger.warning("Reactor[" + number + "]: unable to register channel: "
+				    + e.getLocalizedMessage());
+				parent.release(channel);
+				client.cleanup();
+				load.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Délai d'attente du sélecteur jusqu'à la prochaine échéance : fin du
+	 * délai de présentation d'un client ou reprise de la lecture d'un client
+	 * suspendu
+	 * @return le délai (en ms) jusqu'à la prochaine échéance ou 0 s'il n'y a
+	 * aucune échéance (attente infinie)
+	 */
+	private long nextSelectDelay()
+	{
+		long delay = nextHandshakeDelay();
+		ChannelClient next = suspended.peek();
+		if (next != null)
+		{
+			long remaining = next.getResumeTime() - System.nanoTime();
+			// arrondi à la ms supérieure : select(0) attendrait indéfiniment
+			long resumeDelay = Math.max(1, TimeUnit.NANOSECONDS.toMillis(
+			    remaining + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+			delay = (delay == 0 ? resumeDelay : Math.min(delay, resumeDelay));
+		}
+		return delay;
+	}
+
+	/**
+	 * Délai d'attente du sélecteur jusqu'à la prochaine échéance de
+	 * présentation d'un client
+	 * @return le délai (en ms) jusqu'à la prochaine échéance ou 0 s'il n'y a
+	 * aucune échéance (attente infinie)
+	 */
+	private long nextHandshakeDelay()
+	{
+		ChannelClient oldest = handshaking.peek();
+		if (oldest == null)
+		{
+			return 0;
+		}
+		long delay = (oldest.getConnectionTime() + handshakeTimeout)
+		    - System.currentTimeMillis();
+		// select(0) attendrait indéfiniment
+		return Math.max(1, delay);
+	}
+
+	/**
+	 * Fermeture des connections des clients qui ne se sont pas présentés
+	 * dans le délai imparti. Les clients étant rangés par ordre de
+	 * connection, seuls les plus anciens sont examinés.
+	 */
+	private void expireHandshakes()
+	{
+		long now = System.currentTimeMillis();
+		ChannelClient oldest;
+		while ((oldest = handshaking.peek()) != null)
+		{
+			if (oldest.getName() != null || !oldest.getChannel().isOpen())
+			{
+				// client présenté ou déjà fermé
+				handshaking.poll();
+			}
+			else if ((now - oldest.getConnectionTime()) >= handshakeTimeout)
+			{
+				handshaking.poll();
+				logger.warning("Reactor[" + number + "]: client did not send its name within "
+				    + handshakeTimeout + " ms, closing connection");
+				remove(oldest);
+			}
+			else
+			{
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Reprise de la lecture des clients suspendus dont la date de reprise
+	 * est passée : la trame retenue puis les octets reçus à sa suite sont
+	 * traités (ce qui peut suspendre à nouveau le client) avant que le
+	 * sélecteur ne signale de nouvelles données.
+	 */
+	private void resumeSuspendedReads()
+	{
+		long now = System.nanoTime();
+		ChannelClient client;
+		while (((client = suspended.peek()) != null)
+		    && ((client.getResumeTime() - now) <= 0))
+		{
+			suspended.poll();
+			if (!client.getChannel().isOpen())
+			{
+				// client fermé pendant la suspension
+				continue;
+			}
+			Frame clientFrame = client.resumeReads();
+			ByteBuffer input = client.takeHeldInput();
+			try
+			{
+				if (admit(client, clientFrame, input))
+				{
+					handleInput(client, clientFrame);
+				}
+				process(client, input);
+			}
+			catch (IOException e)
+			{
+				logger.warning("Reactor[" + number + "][" + client.getName()
+				    + "]: received failed, Closing client");
+				remove(client);
+			}
+		}
+	}
+
+	/**
+	 * Transmission à tous les clients du reactor des messages diffusés depuis
+	 * le dernier tour de boucle. Tous les messages sont d'abord ajoutés aux
+	 * files de sortie (bornées) des clients avant que celles ci ne soient
+	 * écrites. Les clients dont la file déborde avec la politique
+	 * {@link OverflowPolicy#DISCONNECT} sont fermés.
+	 */
+	private void deliverPendingMessages()
+	{
+		if (pendingMessages.isEmpty())
+		{
+			return;
+		}
+
+		for (ChannelClient c : transferPendingMessages())
+		{
+			remove(c);
+		}
+		writeMembers();
+	}
+
+	/**
+	 * Ajout des messages diffusés depuis le dernier tour de boucle aux files
+	 * de sortie de tous les clients du reactor
+	 * @return les clients dont la file a débordé avec la politique
+	 * {@link OverflowPolicy#DISCONNECT}, à fermer
+	 */
+	private ArrayList<ChannelClient> transferPendingMessages()
+	{
+		ArrayList<ChannelClient> overflowed = new ArrayList<ChannelClient>();
+		MessageFrame frame;
+		while ((frame = pendingMessages.poll()) != null)
+		{
+			for (ChannelClient c : members)
+			{
+				if (!c.send(frame))
+				{
+					logger.warning("Reactor[" + number + "]: " + c.getName()
+					    + " output queue full, disconnecting");
+					overflowed.add(c);
+				}
+			}
+			frame.release();
+		}
+		return overflowed;
+	}
+
+	/**
+	 * Ecriture des files de sortie de tous les clients du reactor. Les
+	 * clients dont l'écriture échoue sont fermés.
+	 */
+	private void writeMembers()
+	{
+		for (ChannelClient c : new ArrayList<ChannelClient>(members))
+		{
+			try
+			{
+				write(c);
+			}
+			catch (IOException e)
+			{
+				logger.warning("Reactor[" + number + "]: write to " + c.getName()
+				    + " failed, Closing client");
+				remove(c);
+			}
+		}
+	}
+
+	/**
+	 * Lecture des données disponibles sur le canal d'un client et traitement
+	 * de la ligne de présentation puis de chacune des trames complètes
+	 * reçues
+	 * @param client le client à lire
+	 * @param readBuffer le tampon de lecture partagé
+	 * @throws IOException si la lecture échoue
+	 */
+	private void read(ChannelClient client, ByteBuffer readBuffer)
+	    throws IOException
+	{
+		readBuffer.clear();
+		int count = client.getChannel().read(readBuffer);
+		if (count < 0)
+		{
+			// fin de flux : le client a fermé sa connection
+			remove(client);
+			return;
+		}
+		readBuffer.flip();
+		process(client, readBuffer);
+	}
+
+	/**
+	 * Traitement de la ligne de présentation puis de chacune des trames
+	 * complètes contenues dans un tampon, jusqu'à ce que le tampon soit
+	 * épuisé ou que le client soit fermé ou suspendu
+	 * @param client le client ayant envoyé les données
+	 * @param buffer le tampon contenant les données reçues (en mode lecture)
+	 * @throws IOException si une trame reçue est invalide ou si le flux
+	 * objet du client ne peut être créé
+	 */
+	private void process(ChannelClient client, ByteBuffer buffer)
+	    throws IOException
+	{
+		while (!client.isClosing() && !client.isSuspended()
+		    && buffer.hasRemaining())
+		{
+			if (client.getName() == null)
+			{
+				String nameLine = client.nextLine(buffer, charset);
+				if (nameLine == null)
+				{
+					break;
+				}
+				login(client, nameLine);
+			}
+			else
+			{
+				Frame clientFrame = client.nextFrame(buffer, charset);
+				if (clientFrame == null)
+				{
+					break;
+				}
+				if (admit(client, clientFrame, buffer))
+				{
+					handleInput(client, clientFrame);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Application de la limitation du débit d'un client à une trame reçue,
+	 * selon la {@link ThrottlePolicy} du serveur. Les messages ordinaires et
+	 * les commandes sont limités, à l'exception des commandes de contrôle de
+	 * flux et de déconnexion (voir {@link RateLimiter#isExempt(Frame)}) :
+	 * <ul>
+	 * <li>{@link ThrottlePolicy#DELAY} : la lecture du client est suspendue
+	 * jusqu'à ce que le message soit autorisé, la trame et les octets qui la
+	 * suivent étant retenus jusqu'à la reprise</li>
+	 * <li>{@link ThrottlePolicy#DROP} : le message est ignoré</li>
+	 * <li>{@link ThrottlePolicy#KICK} : le client est banni et sera donc
+	 * fermé par le traitement de la trame</li>
+	 * </ul>
+	 * @param client le client ayant envoyé la trame
+	 * @param clientFrame la trame reçue
+	 * @param buffer le tampon contenant les octets reçus à la suite de la
+	 * trame (en mode lecture)
+	 * @return true si la trame doit être traitée, false si elle est ignorée
+	 * ou retenue
+	 */
+	private boolean admit(ChannelClient client, Frame clientFrame,
+	                      ByteBuffer buffer)
+	{
+		RateLimiter limiter = client.getRateLimiter();
+		if ((limiter == null) || RateLimiter.isExempt(clientFrame))
+		{
+			return true;
+		}
+		long wait = limiter.acquire(clientFrame.getMessage());
+		if (wait == 0)
+		{
+			return true;
+		}
+		parent.recordThrottled();
+		switch (settings.getThrottlePolicy())
+		{
+			case DROP:
+				return false;
+			case KICK:
+				logger.warning("Reactor[" + number + "][" + client.getName()
+				    + "]: rate limit exceeded, banning client");
+				client.setBanned(true);
+				parent.broadcast(new Message(Vocabulary.kickCmd + " "
+				    + client.getName() + " [rate limit exceeded] by server"));
+				return true;
+			default:
+				client.suspendReads(clientFrame, buffer, System.nanoTime() + wait);
+				suspended.add(client);
+				return false;
+		}
+	}
+
+	/**
+	 * Ecriture des données en attente d'un client et fermeture de celui-ci
+	 * si nécessaire une fois ses données écrites
+	 * @param client le client à écrire
+	 * @throws IOException si l'écriture échoue
+	 */
+	private void write(ChannelClient client) throws IOException
+	{
+		if (client.flush() && client.isClosing())
+		{
+			remove(client);
+		}
+	}
+
+	/**
+	 * Enregistrement d'un client d'après son nom auprès du serveur. Si un
+	 * client portant le même nom existe déjà, le nouveau client est notifié
+	 * de son refus puis fermé.
+	 * @param client le client à enregistrer
+	 * @param nameLine la ligne de présentation reçue du client (son nom
+	 * suivi éventuellement du protocole demandé)
+	 * @throws IOException si le flux objet du client ne peut être créé
+	 */
+	private void login(ChannelClient client, String nameLine)
+	    throws IOException
+	{
+		WireProtocol protocol = WireProtocol.requested(nameLine);
+		String clientName = WireProtocol.userName(nameLine);
+		logger.info("Reactor[" + number + "]: client name " + clientName
+		    + " using " + protocol + " protocol");
+		client.setName(clientName);
+		client.setProtocol(protocol);
+		if (parent.register(client))
+		{
+			client.login();
+			members.add(client);
+			write(client);
+		}
+		else // un client avec ce nom existe déjà
+		{
+			String refusal = "server > Sorry another client already use the name "
+			    + clientName + Vocabulary.newLine
+			    + "Hit ^D to close your client and try another name";
+			if (protocol == WireProtocol.BINARY)
+			{
+				client.reject(ByteBuffer.wrap(MessageCodec.encode(
+				    FrameType.CONTROL, new Message(refusal))));
+			}
+			else
+			{
+				client.reject(charset.encode(refusal + Vocabulary.newLine));
+			}
+			write(client);
+		}
+	}
+
+	/**
+	 * Traitement d'une trame reçue d'un client enregistré : commande
+	 * (exécutée par le {@link CommandRegistry} du serveur dans le contexte
+	 * d'une {@link Session}) ou message ordinaire à diffuser.
+	 * @param client le client ayant envoyé la trame
+	 * @param clientFrame la trame reçue
+	 */
+	private void handleInput(ChannelClient client, Frame clientFrame)
+	{
+		if (logger.isLoggable(Level.FINE))
+		{
+			logger.fine(client.getName() + " > " + clientFrame.getContent());
+		}
+
+		// on vérifie que ce client n'a pas été banni par un super utilisateur
+		if (client.isBanned())
+		{
+			logger.info(client.getName() + " is banned");
+			remove(client);
+			return;
+		}
+
+		if (!clientFrame.isControl())
+		{
+			/*
+			 * Il s'agit d'un message ordinaire : son contenu est relayé tel
+			 * que reçu (sans être décodé), seuls la date et l'auteur sont
+			 * ajoutés par le serveur
+			 */
+			parent.broadcast(clientFrame.getMessage().forward(client.getName()));
+			return;
+		}
+
+		// seules les commandes ont besoin du contenu décodé
+		Session session = new Session(client);
+		try
+		{
+			parent.getCommands().dispatch(session, clientFrame.getContent());
+		}
+		catch (IOException e)
+		{
+			logger.severe("Reactor[" + number + "][" + client.getName()
+			    + "]: unable to serialize command reply: "
+			    + e.getLocalizedMessage());
+		}
+		if (session.loggedOut)
+		{
+			remove(client);
+		}
+	}
+
+	/**
+	 * Envoi de messages à un seul client du reactor (réponse à une
+	 * commande). Sous le verrou de diffusion, les messages déjà diffusés
+	 * sont d'abord ajoutés aux files de sortie des clients du reactor puis
+	 * les messages sérialisés hors du flux partagé (voir
+	 * {@link FrameEncoder#encodePrivate(java.util.List)}) sont ajoutés à la
+	 * file du client : la réponse s'insère ainsi entre deux trames diffusées
+	 * comme avec le {@link ChatServer}.
+	 * @param client le client destinataire
+	 * @param messages les messages à envoyer (au moins un)
+	 * @throws IOException si les messages ne peuvent être sérialisés
+	 */
+	private void reply(ChannelClient client, List<Message> messages)
+	    throws IOException
+	{
+		ArrayList<ChannelClient> overflowed;
+		ReentrantLock broadcastLock = parent.getBroadcastLock();
+		broadcastLock.lock();
+		try
+		{
+			overflowed = transferPendingMessages();
+			MessageFrame frame = parent.getFrameEncoder().encodePrivate(messages);
+			try
+			{
+				if (!client.send(frame))
+				{
+					logger.warning("Reactor[" + number + "]: " + client.getName()
+					    + " output queue full, disconnecting");
+					overflowed.add(client);
+				}
+			}
+			finally
+			{
+				frame.release();
+			}
+		}
+		finally
+		{
+			broadcastLock.unlock();
+		}
+		for (ChannelClient c : overflowed)
+		{
+			remove(c);
+		}
+		writeMembers();
+	}
+
+	/**
+	 * Contexte d'exécution d'une commande envoyée par un client du reactor
+	 * (utilisé par le seul thread du reactor)
+	 */
+	private class Session implements CommandContext
+	{
+		/**
+		 * Le client ayant envoyé la commande
+		 */
+		private final ChannelClient client;
+
+		/**
+		 * Indique que le client doit être retiré une fois la commande
+		 * exécutée
+		 */
+		private boolean loggedOut;
+
+		/**
+		 * Constructeur d'un contexte
+		 * @param client le client ayant envoyé la commande
+		 */
+		Session(ChannelClient client)
+		{
+			this.client = client;
+			loggedOut = false;
+		}
+
+		/**
+		 * Nom du client ayant envoyé la commande
+		 * @see CommandContext#getClientName()
+		 */
+		@Override
+		public String getClientName()
+		{
+			return client.getName();
+		}
+
+		/**
+		 * Indique si le client est le super-utilisateur
+		 * @see CommandContext#isSuperUser()
+		 */
+		@Override
+		public boolean isSuperUser()
+		{
+			return parent.isSuperUser(client);
+		}
+
+		/**
+		 * Diffusion d'un message à tous les clients
+		 * @see CommandContext#broadcast(Message)
+		 */
+		@Override
+		public void broadcast(Message message)
+		{
+			parent.broadcast(message);
+		}
+
+		/**
+		 * Envoi de messages au seul client
+		 * @see CommandContext#reply(List)
+		 */
+		@Override
+		public void reply(List<Message> messages) throws IOException
+		{
+			Reactor.this.reply(client, messages);
+		}
+
+		/**
+		 * Retrait du client une fois la commande exécutée
+		 * @see CommandContext#logout()
+		 */
+		@Override
+		public void logout()
+		{
+			loggedOut = true;
+		}
+
+		/**
+		 * Arrêt du serveur
+		 * @see CommandContext#shutdown()
+		 */
+		@Override
+		public void shutdown()
+		{
+			logger.info("Reactor[" + number + "]: kill requested by "
+			    + client.getName());
+			parent.setListening(false);
+		}
+
+		/**
+		 * Bannissement d'un client
+		 * @see CommandContext#ban(String)
+		 */
+		@Override
+		public boolean ban(String clientName)
+		{
+			ChannelClient kickedClient = parent.searchClientByName(clientName);
+			if (kickedClient == null)
+			{
+				return false;
+			}
+			kickedClient.setBanned(true);
+			logger.info("Reactor[" + client.getName() + "] client "
+			    + clientName + " banned");
+			return true;
+		}
+
+		/**
+		 * Noms des clients du serveur
+		 * @see CommandContext#getClientNames()
+		 */
+		@Override
+		public List<String> getClientNames()
+		{
+			return parent.getClientNames();
+		}
+
+		/**
+		 * Statistiques du serveur
+		 * @see CommandContext#getStatistics()
+		 */
+		@Override
+		public String getStatistics()
+		{
+			return parent.getStatistics();
+		}
+
+		/**
+		 * Derniers messages diffusés par le serveur
+		 * @see CommandContext#getHistory(int)
+		 */
+		@Override
+		public List<Message> getHistory(int count)
+		{
+			return parent.getHistory(count);
+		}
+
+		/**
+		 * Crédit accordé par le client
+		 * @see CommandContext#grantCredit(int)
+		 */
+		@Override
+		public void grantCredit(int messages)
+		{
+			client.grantCredit(messages);
+		}
+	}
+
+	/**
+	 * Retrait et fermeture d'un client du reactor (et du serveur s'il y
+	 * était enregistré)
+	 * @param client le client à retirer
+	 */
+	private void remove(ChannelClient client)
+	{
+		if (client.getChannel().isOpen())
+		{
+			members.remove(client);
+			parent.release(client.getChannel());
+			client.cleanup();
+			load.decrementAndGet();
+			parent.unregister(client);
+		}
+	}
+}
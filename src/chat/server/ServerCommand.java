@@ -0,0 +1,28 @@
+package chat.server;
+
+import java.io.IOException;
+
+/**
+ * Commande du serveur exécutée lorsqu'un client envoie une trame de
+ * contrôle. Les commandes sont enregistrées par leur nom dans un
+ * {@link CommandRegistry} et agissent sur le serveur au travers du
+ * {@link CommandContext} du client qui les a envoyées, ce qui permet
+ * d'utiliser les mêmes commandes avec le {@link ChatServer} et le
+ * {@link NioChatServer}.
+ *
+ * @author davidroussel
+ */
+@FunctionalInterface
+public interface ServerCommand
+{
+	/**
+	 * Exécution de la commande
+	 * @param context le contexte du client ayant envoyé la commande
+	 * @param arguments le texte suivant le nom de la commande (chaîne vide
+	 * si la commande n'a pas d'argument)
+	 * @throws IOException si un message ne peut être diffusé ou envoyé au
+	 * client
+	 */
+	public void execute(CommandContext context, String arguments)
+	    throws IOException;
+}
@@ -0,0 +1,1047 @@
+package chat.server;
+
+import chat.SocketProfile;
+
+/**
+ * Réglages communs aux serveurs de chat ({@link ChatServer} et
+ * {@link NioChatServer}). Chaque réglage possède une valeur par défaut, un
+ * serveur créé avec des réglages par défaut se comporte donc comme un
+ * serveur créé sans réglages.
+ *
+ * @author davidroussel
+ */
+public class ServerSettings
+{
+	/**
+	 * Délai maximum (en ms) par défaut accordé à un client pour envoyer son
+	 * nom après sa connection
+	 */
+	public final static int DEFAULTHANDSHAKETIMEOUT = 10000;
+
+	/**
+	 * Nombre maximum par défaut de messages en attente d'envoi vers un client
+	 */
+	public final static int DEFAULTOUTBOUNDCAPACITY = 1024;
+
+	/**
+	 * Nombre maximum par défaut de messages encodés entre deux remises à zéro
+	 * du flux objet partagé
+	 */
+	public final static int DEFAULTRESETMESSAGES = 1024;
+
+	/**
+	 * Nombre maximum par défaut d'octets encodés entre deux remises à zéro
+	 * du flux objet partagé
+	 */
+	public final static long DEFAULTRESETBYTES = 1024 * 1024;
+
+	/**
+	 * Nombre maximum par défaut de trames écrites vers un client en une
+	 * seule écriture
+	 */
+	public final static int DEFAULTBATCHFRAMES = 64;
+
+	/**
+	 * Délai maximum par défaut (en µs) ajouté à l'envoi d'une trame pour
+	 * attendre les trames suivantes et les écrire ensemble
+	 */
+	public final static int DEFAULTBATCHDELAY = 0;
+
+	/**
+	 * Durée par défaut (en µs) de la fenêtre de regroupement des messages
+	 * diffusés (0 : pas de regroupement)
+	 */
+	public final static int DEFAULTCOALESCEWINDOW = 0;
+
+	/**
+	 * Nombre maximum par défaut de messages regroupés dans une même trame
+	 */
+	public final static int DEFAULTCOALESCEMESSAGES = 256;
+
+	/**
+	 * Taille maximum par défaut (en octets) de la mémoire allouée hors du
+	 * tas par le {@link BufferPool} du serveur
+	 */
+	public final static long DEFAULTBUFFERPOOLSIZE = 64L * 1024 * 1024;
+
+	/**
+	 * Nombre maximum par défaut de messages conservés dans l'historique du
+	 * serveur
+	 */
+	public final static int DEFAULTHISTORYSIZE = 100;
+
+	/**
+	 * Taille totale maximum par défaut (en octets) des messages encodés
+	 * conservés dans l'historique du serveur pour être rejoués aux nouveaux
+	 * clients
+	 */
+	public final static long DEFAULTHISTORYBYTES = 256L * 1024;
+
+	/**
+	 * Taille par défaut (en octets) des segments du journal des messages
+	 * (voir {@link MessageLog})
+	 */
+	public final static int DEFAULTLOGSEGMENTSIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Taille totale maximum par défaut (en octets) des segments conservés
+	 * par le journal des messages
+	 */
+	public final static long DEFAULTLOGRETENTIONBYTES = 1024L * 1024 * 1024;
+
+	/**
+	 * Nombre maximum par défaut de lots de messages en attente d'écriture
+	 * dans le journal des messages
+	 */
+	public final static int DEFAULTLOGCAPACITY = 4096;
+
+	/**
+	 * Nombre de clients par défaut à partir duquel la distribution des
+	 * trames diffusées est répartie (voir {@link ShardedFanOut})
+	 */
+	public final static int DEFAULTFANOUTTHRESHOLD = 256;
+
+	/**
+	 * Nombre maximum par défaut de tâches en attente de chacun des threads
+	 * d'un étage du pipeline du serveur (voir {@link PipelineStage})
+	 */
+	public final static int DEFAULTSTAGECAPACITY = 1024;
+
+	/**
+	 * Délai maximum par défaut (en ms) accordé aux connections en cours pour
+	 * se terminer lors de l'arrêt du serveur
+	 */
+	public final static int DEFAULTSHUTDOWNTIMEOUT = 5000;
+
+	/**
+	 * Traitement de chaque client du {@link ChatServer} dans un thread
+	 * virtuel plutôt que dans un thread classique
+	 */
+	private boolean virtualThreads;
+
+	/**
+	 * Nombre de {@link Reactor} du {@link NioChatServer}
+	 */
+	private int reactors;
+
+	/**
+	 * Délai maximum (en ms) accordé à un client pour envoyer son nom après sa
+	 * connection. Au delà de ce délai la connection est fermée. Une valeur de
+	 * 0 correspond à un délai infini.
+	 */
+	private int handshakeTimeout;
+
+	/**
+	 * Nombre maximum de messages en attente d'envoi vers un client (voir
+	 * {@link OutboundQueue})
+	 */
+	private int outboundCapacity;
+
+	/**
+	 * Politique appliquée lorsqu'un client a trop de messages en attente
+	 */
+	private OverflowPolicy overflowPolicy;
+
+	/**
+	 * Nombre maximum de messages encodés par le {@link FrameEncoder} entre
+	 * deux remises à zéro de son flux objet (0 pour aucune limite)
+	 */
+	private int resetMessages;
+
+	/**
+	 * Nombre maximum d'octets encodés par le {@link FrameEncoder} entre deux
+	 * remises à zéro de son flux objet (0 pour aucune limite)
+	 */
+	private long resetBytes;
+
+	/**
+	 * Nombre maximum de trames en attente écrites vers un client en une
+	 * seule écriture groupée (voir {@link ClientWriter} et
+	 * {@link ChannelClient#flush()})
+	 */
+	private int batchFrames;
+
+	/**
+	 * Délai maximum (en µs) pendant lequel le {@link ClientWriter} d'un
+	 * client attend d'autres trames avant d'écrire un lot incomplet (0 pour
+	 * écrire immédiatement les trames déjà en attente)
+	 */
+	private int batchDelay;
+
+	/**
+	 * Durée (en µs) de la fenêtre pendant laquelle les messages diffusés
+	 * sont regroupés dans une même trame (voir {@link BroadcastCoalescer}),
+	 * 0 pour diffuser chaque message dans sa propre trame
+	 */
+	private int coalesceWindow;
+
+	/**
+	 * Nombre maximum de messages regroupés dans une même trame
+	 */
+	private int coalesceMessages;
+
+	/**
+	 * Profil de réglage des sockets (serveur et clients)
+	 */
+	private SocketProfile socketProfile;
+
+	/**
+	 * Nombre maximum de connections en attente d'acceptation (0 pour celui
+	 * du {@link #socketProfile})
+	 */
+	private int backlog;
+
+	/**
+	 * Ajustement automatique du tampon d'émission de chaque connection
+	 * d'après son débit (voir {@link BufferTuner})
+	 */
+	private boolean autoTune;
+
+	/**
+	 * Taille maximum (en octets) de la mémoire allouée hors du tas par le
+	 * {@link BufferPool} du serveur (0 pour ne pas utiliser de pool)
+	 */
+	private long bufferPoolSize;
+
+	/**
+	 * Nombre maximum de messages conservés dans l'historique du serveur
+	 * (voir {@link MessageHistory}), 0 pour ne conserver aucun message
+	 */
+	private int historySize;
+
+	/**
+	 * Taille totale maximum (en octets) des messages encodés de
+	 * l'historique du {@link ChatServer}, rejoués aux clients qui se
+	 * connectent, 0 pour aucune limite
+	 */
+	private long historyBytes;
+
+	/**
+	 * Répertoire du journal persistant des messages diffusés par le
+	 * {@link ChatServer} (voir {@link MessageLog}), null pour ne pas
+	 * journaliser les messages
+	 */
+	private String logDirectory;
+
+	/**
+	 * Taille (en octets) de chacun des segments du journal
+	 */
+	private int logSegmentSize;
+
+	/**
+	 * Age maximum (en s) des messages conservés par le journal, 0 pour
+	 * aucune limite
+	 */
+	private int logRetention;
+
+	/**
+	 * Taille totale maximum (en octets) des segments conservés par le
+	 * journal, 0 pour aucune limite
+	 */
+	private long logRetentionBytes;
+
+	/**
+	 * Nombre maximum de lots de messages en attente d'écriture dans le
+	 * journal (au delà les messages ne sont pas journalisés)
+	 */
+	private int logCapacity;
+
+	/**
+	 * Délai maximum (en ms) accordé aux connections en cours pour se terminer
+	 * lors de l'arrêt du serveur (voir {@link ConnectionSupervisor})
+	 */
+	private int shutdownTimeout;
+
+	/**
+	 * Nombre de cases de l'anneau du séquenceur des diffusions du
+	 * {@link ChatServer} (voir {@link BroadcastSequencer})
+	 */
+	private int sequencerSize;
+
+	/**
+	 * Nombre de groupes de clients distribuant en parallèle les trames
+	 * diffusées par le {@link ChatServer} (voir {@link ShardedFanOut}), 1
+	 * pour toujours distribuer directement
+	 */
+	private int fanOutShards;
+
+	/**
+	 * Nombre de clients à partir duquel la distribution des trames diffusées
+	 * est répartie entre les groupes
+	 */
+	private int fanOutThreshold;
+
+	/**
+	 * Nombre de threads de l'étage de traitement du {@link ChatServer} (voir
+	 * {@link PipelineStage}), 0 pour traiter les trames dans le thread qui
+	 * les lit
+	 */
+	private int processThreads;
+
+	/**
+	 * Nombre maximum de tâches en attente de chacun des threads des étages
+	 * du pipeline
+	 */
+	private int stageCapacity;
+
+	/**
+	 * Nombre maximum de connections simultanées (voir
+	 * {@link AdmissionControl}), 0 pour aucune limite
+	 */
+	private int maxConnections;
+
+	/**
+	 * Nombre maximum de connections simultanées depuis une même adresse, 0
+	 * pour aucune limite
+	 */
+	private int maxConnectionsPerAddress;
+
+	/**
+	 * Nombre maximum de connections acceptées par seconde, 0 pour aucune
+	 * limite
+	 */
+	private int acceptRate;
+
+	/**
+	 * Nombre maximum de messages par seconde envoyés par chaque client (voir
+	 * {@link RateLimiter}), 0 pour aucune limite
+	 */
+	private int rateMessages;
+
+	/**
+	 * Nombre maximum d'octets par seconde envoyés par chaque client, 0 pour
+	 * aucune limite
+	 */
+	private int rateBytes;
+
+	/**
+	 * Politique appliquée lorsqu'un client dépasse le débit autorisé
+	 */
+	private ThrottlePolicy throttlePolicy;
+
+	/**
+	 * Constructeur de réglages par défaut
+	 */
+	public ServerSettings()
+	{
+		virtualThreads = false;
+		reactors = Runtime.getRuntime().availableProcessors();
+		handshakeTimeout = DEFAULTHANDSHAKETIMEOUT;
+		outboundCapacity = DEFAULTOUTBOUNDCAPACITY;
+		overflowPolicy = OverflowPolicy.DROP_OLDEST;
+		resetMessages = DEFAULTRESETMESSAGES;
+		resetBytes = DEFAULTRESETBYTES;
+		batchFrames = DEFAULTBATCHFRAMES;
+		batchDelay = DEFAULTBATCHDELAY;
+		coalesceWindow = DEFAULTCOALESCEWINDOW;
+		coalesceMessages = DEFAULTCOALESCEMESSAGES;
+		socketProfile = SocketProfile.DEFAULT;
+		backlog = 0;
+		autoTune = false;
+		bufferPoolSize = DEFAULTBUFFERPOOLSIZE;
+		historySize = DEFAULTHISTORYSIZE;
+		historyBytes = DEFAULTHISTORYBYTES;
+		logDirectory = null;
+		logSegmentSize = DEFAULTLOGSEGMENTSIZE;
+		logRetention = 0;
+		logRetentionBytes = DEFAULTLOGRETENTIONBYTES;
+		logCapacity = DEFAULTLOGCAPACITY;
+		shutdownTimeout = DEFAULTSHUTDOWNTIMEOUT;
+		sequencerSize = BroadcastSequencer.DEFAULTCAPACITY;
+		fanOutShards = Runtime.getRuntime().availableProcessors();
+		fanOutThreshold = DEFAULTFANOUTTHRESHOLD;
+		processThreads = Runtime.getRuntime().availableProcessors();
+		stageCapacity = DEFAULTSTAGECAPACITY;
+		maxConnections = 0;
+		maxConnectionsPerAddress = 0;
+		acceptRate = 0;
+		rateMessages = 0;
+		rateBytes = 0;
+		throttlePolicy = ThrottlePolicy.DELAY;
+	}
+
+	/**
+	 * Accesseur en lecture de l'utilisation des threads virtuels
+	 * @return true si les clients doivent être traités dans des threads
+	 * virtuels
+	 */
+	public boolean isVirtualThreads()
+	{
+		return virtualThreads;
+	}
+
+	/**
+	 * Accesseur en écriture de l'utilisation des threads virtuels
+	 * @param virtualThreads true pour traiter les clients dans des threads
+	 * virtuels
+	 */
+	public void setVirtualThreads(boolean virtualThreads)
+	{
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Accesseur en lecture du nombre de reactors
+	 * @return le nombre de reactors du serveur non bloquant
+	 */
+	public int getReactors()
+	{
+		return reactors;
+	}
+
+	/**
+	 * Accesseur en écriture du nombre de reactors
+	 * @param reactors le nombre de reactors du serveur non bloquant (au
+	 * moins 1)
+	 */
+	public void setReactors(int reactors)
+	{
+		this.reactors = Math.max(1, reactors);
+	}
+
+	/**
+	 * Accesseur en lecture du délai de présentation des clients
+	 * @return le délai maximum (en ms) accordé à un client pour envoyer son
+	 * nom, ou 0 si ce délai est infini
+	 */
+	public int getHandshakeTimeout()
+	{
+		return handshakeTimeout;
+	}
+
+	/**
+	 * Accesseur en écriture du délai de présentation des clients
+	 * @param handshakeTimeout le délai maximum (en ms) accordé à un client
+	 * pour envoyer son nom, ou 0 pour un délai infini
+	 */
+	public void setHandshakeTimeout(int handshakeTimeout)
+	{
+		this.handshakeTimeout = Math.max(0, handshakeTimeout);
+	}
+
+	/**
+	 * Accesseur en lecture de la capacité des files de sortie des clients
+	 * @return le nombre maximum de messages en attente d'envoi vers un
+	 * client
+	 */
+	public int getOutboundCapacity()
+	{
+		return outboundCapacity;
+	}
+
+	/**
+	 * Accesseur en écriture de la capacité des files de sortie des clients
+	 * @param outboundCapacity le nombre maximum de messages en attente
+	 * d'envoi vers un client (au moins 1)
+	 */
+	public void setOutboundCapacity(int outboundCapacity)
+	{
+		this.outboundCapacity = Math.max(1, outboundCapacity);
+	}
+
+	/**
+	 * Accesseur en lecture de la politique de débordement des files de
+	 * sortie
+	 * @return la politique appliquée lorsqu'une file de sortie est pleine
+	 */
+	public OverflowPolicy getOverflowPolicy()
+	{
+		return overflowPolicy;
+	}
+
+	/**
+	 * Accesseur en écriture de la politique de débordement des files de
+	 * sortie
+	 * @param overflowPolicy la politique à appliquer lorsqu'une file de
+	 * sortie est pleine
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy)
+	{
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Accesseur en lecture du nombre de messages entre deux remises à zéro
+	 * @return le nombre maximum de messages encodés entre deux remises à
+	 * zéro du flux objet partagé, ou 0 s'il n'y a pas de limite
+	 */
+	public int getResetMessages()
+	{
+		return resetMessages;
+	}
+
+	/**
+	 * Accesseur en écriture du nombre de messages entre deux remises à zéro
+	 * @param resetMessages le nombre maximum de messages encodés entre deux
+	 * remises à zéro du flux objet partagé, ou 0 pour aucune limite
+	 */
+	public void setResetMessages(int resetMessages)
+	{
+		this.resetMessages = Math.max(0, resetMessages);
+	}
+
+	/**
+	 * Accesseur en lecture du nombre d'octets entre deux remises à zéro
+	 * @return le nombre maximum d'octets encodés entre deux remises à zéro
+	 * du flux objet partagé, ou 0 s'il n'y a pas de limite
+	 */
+	public long getResetBytes()
+	{
+		return resetBytes;
+	}
+
+	/**
+	 * Accesseur en écriture du nombre d'octets entre deux remises à zéro
+	 * @param resetBytes le nombre maximum d'octets encodés entre deux remises
+	 * à zéro du flux objet partagé, ou 0 pour aucune limite
+	 */
+	public void setResetBytes(long resetBytes)
+	{
+		this.resetBytes = Math.max(0, resetBytes);
+	}
+
+	/**
+	 * Accesseur en lecture de la taille maximum des écritures groupées
+	 * @return le nombre maximum de trames écrites vers un client en une
+	 * seule écriture
+	 */
+	public int getBatchFrames()
+	{
+		return batchFrames;
+	}
+
+	/**
+	 * Accesseur en écriture de la taille maximum des écritures groupées
+	 * @param batchFrames le nombre maximum de trames écrites vers un client
+	 * en une seule écriture (au moins 1)
+	 */
+	public void setBatchFrames(int batchFrames)
+	{
+		this.batchFrames = Math.max(1, batchFrames);
+	}
+
+	/**
+	 * Accesseur en lecture du délai d'attente des écritures groupées
+	 * @return le délai maximum (en µs) ajouté à l'envoi d'une trame pour
+	 * l'écrire avec les suivantes
+	 */
+	public int getBatchDelay()
+	{
+		return batchDelay;
+	}
+
+	/**
+	 * Accesseur en écriture du délai d'attente des écritures groupées
+	 * @param batchDelay le délai maximum (en µs) ajouté à l'envoi d'une
+	 * trame pour l'écrire avec les suivantes, ou 0 pour n'écrire ensemble
+	 * que les trames déjà en attente
+	 */
+	public void setBatchDelay(int batchDelay)
+	{
+		this.batchDelay = Math.max(0, batchDelay);
+	}
+
+	/**
+	 * Accesseur en lecture de la fenêtre de regroupement des messages
+	 * @return la durée (en µs) de la fenêtre de regroupement des messages
+	 * diffusés, ou 0 s'ils ne sont pas regroupés
+	 */
+	public int getCoalesceWindow()
+	{
+		return coalesceWindow;
+	}
+
+	/**
+	 * Accesseur en écriture de la fenêtre de regroupement des messages
+	 * @param coalesceWindow la durée (en µs) de la fenêtre de regroupement
+	 * des messages diffusés, ou 0 pour ne pas les regrouper
+	 */
+	public void setCoalesceWindow(int coalesceWindow)
+	{
+		this.coalesceWindow = Math.max(0, coalesceWindow);
+	}
+
+	/**
+	 * Accesseur en lecture de la taille maximum des lots de messages
+	 * @return le nombre maximum de messages regroupés dans une même trame
+	 */
+	public int getCoalesceMessages()
+	{
+		return coalesceMessages;
+	}
+
+	/**
+	 * Accesseur en écriture de la taille maximum des lots de messages
+	 * @param coalesceMessages le nombre maximum de messages regroupés dans
+	 * une même trame (au moins 1)
+	 */
+	public void setCoalesceMessages(int coalesceMessages)
+	{
+		this.coalesceMessages = Math.max(1, coalesceMessages);
+	}
+
+	/**
+	 * Accesseur en lecture du profil de réglage des sockets
+	 * @return le profil appliqué à la socket serveur et aux sockets des
+	 * clients
+	 */
+	public SocketProfile getSocketProfile()
+	{
+		return socketProfile;
+	}
+
+	/**
+	 * Accesseur en écriture du profil de réglage des sockets
+	 * @param socketProfile le profil appliqué à la socket serveur et aux
+	 * sockets des clients
+	 */
+	public void setSocketProfile(SocketProfile socketProfile)
+	{
+		if (socketProfile != null)
+		{
+			this.socketProfile = socketProfile;
+		}
+	}
+
+	/**
+	 * Accesseur en lecture du nombre maximum de connections en attente
+	 * @return le nombre maximum de connections en attente d'acceptation :
+	 * celui choisi explicitement ou bien celui du profil des sockets
+	 */
+	public int getBacklog()
+	{
+		return (backlog > 0 ? backlog : socketProfile.getBacklog());
+	}
+
+	/**
+	 * Accesseur en écriture du nombre maximum de connections en attente
+	 * @param backlog le nombre maximum de connections en attente
+	 * d'acceptation, ou 0 pour utiliser celui du profil des sockets
+	 */
+	public void setBacklog(int backlog)
+	{
+		this.backlog = Math.max(0, backlog);
+	}
+
+	/**
+	 * Accesseur en lecture de l'ajustement automatique des tampons
+	 * @return true si le tampon d'émission de chaque connection est ajusté
+	 * d'après son débit
+	 */
+	public boolean isAutoTune()
+	{
+		return autoTune;
+	}
+
+	/**
+	 * Accesseur en écriture de l'ajustement automatique des tampons
+	 * @param autoTune true pour ajuster le tampon d'émission de chaque
+	 * connection d'après son débit
+	 */
+	public void setAutoTune(boolean autoTune)
+	{
+		this.autoTune = autoTune;
+	}
+
+	/**
+	 * Accesseur en lecture de la taille du pool de tampons
+	 * @return la taille maximum (en octets) de la mémoire allouée hors du tas
+	 * par le pool de tampons du serveur ou 0 si le serveur n'utilise pas de
+	 * pool
+	 */
+	public long getBufferPoolSize()
+	{
+		return bufferPoolSize;
+	}
+
+	/**
+	 * Accesseur en écriture de la taille du pool de tampons
+	 * @param bufferPoolSize taille maximum (en octets) de la mémoire allouée
+	 * hors du tas par le pool de tampons (0 pour ne pas utiliser de pool)
+	 */
+	public void setBufferPoolSize(long bufferPoolSize)
+	{
+		this.bufferPoolSize = Math.max(0, bufferPoolSize);
+	}
+
+	/**
+	 * Accesseur en lecture de la taille de l'anneau du séquenceur
+	 * @return le nombre de cases de l'anneau du séquenceur des diffusions
+	 */
+	public int getSequencerSize()
+	{
+		return sequencerSize;
+	}
+
+	/**
+	 * Accesseur en écriture de la taille de l'anneau du séquenceur
+	 * @param sequencerSize nombre de cases de l'anneau du séquenceur des
+	 * diffusions (arrondi à la puissance de 2 supérieure)
+	 */
+	public void setSequencerSize(int sequencerSize)
+	{
+		this.sequencerSize = Math.max(2, sequencerSize);
+	}
+
+	/**
+	 * Accesseur en lecture du nombre de groupes de distribution
+	 * @return le nombre de groupes de clients distribuant en parallèle les
+	 * trames diffusées (1 si la distribution n'est jamais répartie)
+	 */
+	public int getFanOutShards()
+	{
+		return fanOutShards;
+	}
+
+	/**
+	 * Accesseur en écriture du nombre de groupes de distribution
+	 * @param fanOutShards nombre de groupes de clients distribuant en
+	 * parallèle les trames diffusées (1 pour toujours distribuer
+	 * directement)
+	 */
+	public void setFanOutShards(int fanOutShards)
+	{
+		this.fanOutShards = Math.max(1, fanOutShards);
+	}
+
+	/**
+	 * Accesseur en lecture du seuil de répartition
+	 * @return le nombre de clients à partir duquel la distribution des
+	 * trames diffusées est répartie
+	 */
+	public int getFanOutThreshold()
+	{
+		return fanOutThreshold;
+	}
+
+	/**
+	 * Accesseur en écriture du seuil de répartition
+	 * @param fanOutThreshold nombre de clients à partir duquel la
+	 * distribution des trames diffusées est répartie (0 pour toujours la
+	 * répartir)
+	 */
+	public void setFanOutThreshold(int fanOutThreshold)
+	{
+		this.fanOutThreshold = Math.max(0, fanOutThreshold);
+	}
+
+	/**
+	 * Accesseur en lecture du nombre de threads de l'étage de traitement
+	 * @return le nombre de threads traitant les trames lues (0 si elles
+	 * sont traitées par les threads qui les lisent)
+	 */
+	public int getProcessThreads()
+	{
+		return processThreads;
+	}
+
+	/**
+	 * Accesseur en écriture du nombre de threads de l'étage de traitement
+	 * @param processThreads nombre de threads traitant les trames lues (0
+	 * pour les traiter dans les threads qui les lisent)
+	 */
+	public void setProcessThreads(int processThreads)
+	{
+		this.processThreads = Math.max(0, processThreads);
+	}
+
+	/**
+	 * Accesseur en lecture de la capacité des files des étages
+	 * @return le nombre maximum de tâches en attente de chacun des threads
+	 * d'un étage
+	 */
+	public int getStageCapacity()
+	{
+		return stageCapacity;
+	}
+
+	/**
+	 * Accesseur en écriture de la capacité des files des étages
+	 * @param stageCapacity nombre maximum de tâches en attente de chacun des
+	 * threads d'un étage (au moins 1)
+	 */
+	public void setStageCapacity(int stageCapacity)
+	{
+		this.stageCapacity = Math.max(1, stageCapacity);
+	}
+
+	/**
+	 * Accesseur en lecture de la taille de l'historique
+	 * @return le nombre maximum de messages conservés dans l'historique du
+	 * serveur
+	 */
+	public int getHistorySize()
+	{
+		return historySize;
+	}
+
+	/**
+	 * Accesseur en écriture de la taille de l'historique
+	 * @param historySize nombre maximum de messages conservés dans
+	 * l'historique du serveur (0 pour ne conserver aucun message)
+	 */
+	public void setHistorySize(int historySize)
+	{
+		this.historySize = Math.max(0, historySize);
+	}
+
+	/**
+	 * Accesseur en lecture de la taille maximum de l'historique
+	 * @return la taille totale maximum (en octets) des messages encodés
+	 * conservés dans l'historique (0 pour aucune limite)
+	 */
+	public long getHistoryBytes()
+	{
+		return historyBytes;
+	}
+
+	/**
+	 * Accesseur en écriture de la taille maximum de l'historique
+	 * @param historyBytes taille totale maximum (en octets) des messages
+	 * encodés conservés dans l'historique (0 pour aucune limite)
+	 */
+	public void setHistoryBytes(long historyBytes)
+	{
+		this.historyBytes = Math.max(0, historyBytes);
+	}
+
+	/**
+	 * Accesseur en lecture du répertoire du journal des messages
+	 * @return le répertoire du journal persistant des messages diffusés ou
+	 * bien null si les messages ne sont pas journalisés
+	 */
+	public String getLogDirectory()
+	{
+		return logDirectory;
+	}
+
+	/**
+	 * Accesseur en écriture du répertoire du journal des messages
+	 * @param logDirectory répertoire du journal persistant des messages
+	 * diffusés (null pour ne pas journaliser les messages)
+	 */
+	public void setLogDirectory(String logDirectory)
+	{
+		this.logDirectory = logDirectory;
+	}
+
+	/**
+	 * Accesseur en lecture de la taille des segments du journal
+	 * @return la taille (en octets) de chacun des segments du journal
+	 */
+	public int getLogSegmentSize()
+	{
+		return logSegmentSize;
+	}
+
+	/**
+	 * Accesseur en écriture de la taille des segments du journal
+	 * @param logSegmentSize taille (en octets) de chacun des segments du
+	 * journal (au moins {@link MessageLog#MINSEGMENTSIZE})
+	 */
+	public void setLogSegmentSize(int logSegmentSize)
+	{
+		this.logSegmentSize = Math.max(MessageLog.MINSEGMENTSIZE,
+		                               logSegmentSize);
+	}
+
+	/**
+	 * Accesseur en lecture de l'age maximum des messages du journal
+	 * @return l'age maximum (en s) des messages conservés par le journal (0
+	 * pour aucune limite)
+	 */
+	public int getLogRetention()
+	{
+		return logRetention;
+	}
+
+	/**
+	 * Accesseur en écriture de l'age maximum des messages du journal
+	 * @param logRetention age maximum (en s) des messages conservés par le
+	 * journal (0 pour aucune limite)
+	 */
+	public void setLogRetention(int logRetention)
+	{
+		this.logRetention = Math.max(0, logRetention);
+	}
+
+	/**
+	 * Accesseur en lecture de la taille maximum du journal
+	 * @return la taille totale maximum (en octets) des segments conservés
+	 * par le journal (0 pour aucune limite)
+	 */
+	public long getLogRetentionBytes()
+	{
+		return logRetentionBytes;
+	}
+
+	/**
+	 * Accesseur en écriture de la taille maximum du journal
+	 * @param logRetentionBytes taille totale maximum (en octets) des
+	 * segments conservés par le journal (0 pour aucune limite)
+	 */
+	public void setLogRetentionBytes(long logRetentionBytes)
+	{
+		this.logRetentionBytes = Math.max(0, logRetentionBytes);
+	}
+
+	/**
+	 * Accesseur en lecture de la capacité de la file d'écriture du journal
+	 * @return le nombre maximum de lots de messages en attente d'écriture
+	 * dans le journal
+	 */
+	public int getLogCapacity()
+	{
+		return logCapacity;
+	}
+
+	/**
+	 * Accesseur en écriture de la capacité de la file d'écriture du journal
+	 * @param logCapacity nombre maximum de lots de messages en attente
+	 * d'écriture dans le journal (au moins 1)
+	 */
+	public void setLogCapacity(int logCapacity)
+	{
+		this.logCapacity = Math.max(1, logCapacity);
+	}
+
+	/**
+	 * Accesseur en lecture du délai d'arrêt
+	 * @return le délai maximum (en ms) accordé aux connections en cours pour
+	 * se terminer lors de l'arrêt du serveur
+	 */
+	public int getShutdownTimeout()
+	{
+		return shutdownTimeout;
+	}
+
+	/**
+	 * Accesseur en écriture du délai d'arrêt
+	 * @param shutdownTimeout délai maximum (en ms) accordé aux connections
+	 * en cours pour se terminer lors de l'arrêt du serveur
+	 */
+	public void setShutdownTimeout(int shutdownTimeout)
+	{
+		this.shutdownTimeout = Math.max(0, shutdownTimeout);
+	}
+
+	/**
+	 * Accesseur en lecture du nombre maximum de connections
+	 * @return le nombre maximum de connections simultanées (0 pour aucune
+	 * limite)
+	 */
+	public int getMaxConnections()
+	{
+		return maxConnections;
+	}
+
+	/**
+	 * Accesseur en écriture du nombre maximum de connections
+	 * @param maxConnections nombre maximum de connections simultanées (0
+	 * pour aucune limite)
+	 */
+	public void setMaxConnections(int maxConnections)
+	{
+		this.maxConnections = Math.max(0, maxConnections);
+	}
+
+	/**
+	 * Accesseur en lecture du nombre maximum de connections par adresse
+	 * @return le nombre maximum de connections simultanées depuis une même
+	 * adresse (0 pour aucune limite)
+	 */
+	public int getMaxConnectionsPerAddress()
+	{
+		return maxConnectionsPerAddress;
+	}
+
+	/**
+	 * Accesseur en écriture du nombre maximum de connections par adresse
+	 * @param maxConnectionsPerAddress nombre maximum de connections
+	 * simultanées depuis une même adresse (0 pour aucune limite)
+	 */
+	public void setMaxConnectionsPerAddress(int maxConnectionsPerAddress)
+	{
+		this.maxConnectionsPerAddress = Math.max(0, maxConnectionsPerAddress);
+	}
+
+	/**
+	 * Accesseur en lecture du débit d'acceptation
+	 * @return le nombre maximum de connections acceptées par seconde (0 pour
+	 * aucune limite)
+	 */
+	public int getAcceptRate()
+	{
+		return acceptRate;
+	}
+
+	/**
+	 * Accesseur en écriture du débit d'acceptation
+	 * @param acceptRate nombre maximum de connections acceptées par seconde
+	 * (0 pour aucune limite)
+	 */
+	public void setAcceptRate(int acceptRate)
+	{
+		this.acceptRate = Math.max(0, acceptRate);
+	}
+
+	/**
+	 * Accesseur en lecture du débit de messages des clients
+	 * @return le nombre maximum de messages par seconde envoyés par chaque
+	 * client (0 pour aucune limite)
+	 */
+	public int getRateMessages()
+	{
+		return rateMessages;
+	}
+
+	/**
+	 * Accesseur en écriture du débit de messages des clients
+	 * @param rateMessages nombre maximum de messages par seconde envoyés par
+	 * chaque client (0 pour aucune limite)
+	 */
+	public void setRateMessages(int rateMessages)
+	{
+		this.rateMessages = Math.max(0, rateMessages);
+	}
+
+	/**
+	 * Accesseur en lecture du débit d'octets des clients
+	 * @return le nombre maximum d'octets par seconde envoyés par chaque
+	 * client (0 pour aucune limite)
+	 */
+	public int getRateBytes()
+	{
+		return rateBytes;
+	}
+
+	/**
+	 * Accesseur en écriture du débit d'octets des clients
+	 * @param rateBytes nombre maximum d'octets par seconde envoyés par
+	 * chaque client (0 pour aucune limite)
+	 */
+	public void setRateBytes(int rateBytes)
+	{
+		this.rateBytes = Math.max(0, rateBytes);
+	}
+
+	/**
+	 * Accesseur en lecture de la politique de limitation du débit
+	 * @return la politique appliquée lorsqu'un client dépasse le débit
+	 * autorisé
+	 */
+	public ThrottlePolicy getThrottlePolicy()
+	{
+		return throttlePolicy;
+	}
+
+	/**
+	 * Accesseur en écriture de la politique de limitation du débit
+	 * @param throttlePolicy la politique à appliquer lorsqu'un client
+	 * dépasse le débit autorisé
+	 */
+	public void setThrottlePolicy(ThrottlePolicy throttlePolicy)
+	{
+		this.throttlePolicy = throttlePolicy;
+	}
+}
@@ -0,0 +1,428 @@
+package chat.server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Distribution en parallèle des trames diffusées par le {@link ChatServer}
+ * dans une grande salle. Les clients sont répartis, lors de leur
+ * enregistrement, entre plusieurs groupes (shards) possédant chacun leurs
+ * membres et un thread de distribution : une trame diffusée est confiée à
+ * chacun des groupes, qui l'ajoute aux files de sortie de ses seuls membres.
+ * Le coût d'une diffusion (proportionnel au nombre de clients) est ainsi
+ * partagé entre les processeurs au lieu d'être supporté par le seul
+ * distributeur du {@link BroadcastSequencer}.
+ * Un client restant dans le même groupe et chaque groupe traitant ses
+ * trames dans l'ordre, chaque client reçoit toujours les trames dans l'ordre
+ * de leur diffusion. Les réponses destinées à un seul client passent donc
+ * elles aussi par son groupe lorsque la distribution est répartie.
+ * La répartition n'est utilisée qu'à partir d'un nombre de clients donné
+ * ({@link #getThreshold()}) : une petite salle conserve la distribution
+ * directe, moins coûteuse que le passage d'un thread à l'autre. Pour ne pas
+ * désordonner les trames, le retour à la distribution directe attend que
+ * les groupes aient distribué leurs trames en attente.
+ * Les méthodes {@link #deliver(MessageFrame, int)} et
+ * {@link #send(InputOutputClient, MessageFrame)} doivent être invoquées
+ * sous le verrou de diffusion du serveur.
+ *
+ * @author davidroussel
+ */
+public class ShardedFanOut
+{
+	/**
+	 * Délai (en ns) entre deux vérifications lors de l'attente de la fin des
+	 * distributions en cours
+	 */
+	private final static long IDLEWAIT = TimeUnit.MICROSECONDS.toNanos(50);
+
+	/**
+	 * Une trame à distribuer par un groupe, ou bien l'arrivée ou le départ
+	 * d'un membre du groupe
+	 */
+	private static final class Task
+	{
+		/**
+		 * La trame (dont la tâche détient une référence), null pour un
+		 * changement de membre ou pour arrêter le groupe
+		 */
+		final MessageFrame frame;
+
+		/**
+		 * Le client destinataire (ou le membre qui arrive ou qui part) ou
+		 * bien null pour tous les membres du groupe
+		 */
+		final InputOutputClient recipient;
+
+		/**
+		 * Indique que le membre arrive dans le groupe (plutôt qu'il ne le
+		 * quitte)
+		 */
+		final boolean joining;
+
+		/**
+		 * Constructeur d'une tâche de distribution
+		 * @param frame la trame à distribuer
+		 * @param recipient le client destinataire (ou null)
+		 */
+		Task(MessageFrame frame, InputOutputClient recipient)
+		{
+			this.frame = frame;
+			this.recipient = recipient;
+			joining = false;
+		}
+
+		/**
+		 * Constructeur d'une tâche de changement de membre
+		 * @param member le membre qui arrive ou qui part
+		 * @param joining true si le membre arrive dans le groupe
+		 */
+		Task(InputOutputClient member, boolean joining)
+		{
+			frame = null;
+			recipient = member;
+			this.joining = joining;
+		}
+	}
+
+	/**
+	 * Tâche d'arrêt d'un groupe
+	 */
+	private final static Task STOP = new Task(null, null);
+
+	/**
+	 * Un groupe de clients et son thread de distribution
+	 */
+	private final class Shard implements Runnable
+	{
+		/**
+		 * Les membres du groupe
+		 */
+		final ClientRegistry<InputOutputClient> members;
+
+		/**
+		 * Les trames à distribuer, dans l'ordre de leur diffusion
+		 */
+		final LinkedBlockingQueue<Task> tasks;
+
+		/**
+		 * Le thread de distribution du groupe
+		 */
+		final Thread thread;
+
+		/**
+		 * Constructeur d'un groupe : le thread de distribution est démarré
+		 * immédiatement
+		 * @param index le numéro du groupe
+		 */
+		Shard(int index)
+		{
+			members = new ClientRegistry<InputOutputClient>();
+			tasks = new LinkedBlockingQueue<Task>();
+			thread = new Thread(this, "ChatServer-shard-" + index);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * Distribution des trames jusqu'à l'arrêt du groupe
+		 */
+		@Override
+		public void run()
+		{
+			try
+			{
+				Task task;
+				while ((task = tasks.take()) != STOP)
+				{
+					if (task.frame == null)
+					{
+						// changement de membre, après les trames déjà confiées
+						if (task.joining)
+						{
+							members.register(task.recipient.getName(), task.recipient);
+						}
+						else
+						{
+							members.unregister(task.recipient.getName(), task.recipient);
+						}
+						continue;
+					}
+					long start = System.nanoTime();
+					try
+					{
+						if (task.recipient != null)
+						{
+							offer.accept(task.recipient, task.frame);
+						}
+						else
+						{
+							for (InputOutputClient c : members.snapshot())
+							{
+								offer.accept(c, task.frame);
+							}
+						}
+					}
+					catch (RuntimeException e)
+					{
+						logger.severe("ShardedFanOut: delivery failed: " + e);
+					}
+					finally
+					{
+						task.frame.release();
+						pending.decrementAndGet();
+						metrics.record(start);
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				logger.warning("ShardedFanOut: " + thread.getName()
+				    + " interrupted");
+			}
+		}
+	}
+
+	/**
+	 * Les groupes de clients
+	 */
+	private final Shard[] shards;
+
+	/**
+	 * Nombre de clients à partir duquel la distribution est répartie
+	 */
+	private final int threshold;
+
+	/**
+	 * Ajout d'une trame à la file de sortie d'un client (ou déconnexion du
+	 * client si sa file est pleine)
+	 */
+	private final BiConsumer<InputOutputClient, MessageFrame> offer;
+
+	/**
+	 * Prochain groupe auquel un client sera affecté
+	 */
+	private final AtomicInteger next;
+
+	/**
+	 * Nombre de tâches confiées aux groupes et pas encore terminées
+	 */
+	private final AtomicInteger pending;
+
+	/**
+	 * Nombre de trames diffusées par les groupes
+	 */
+	private final AtomicLong shardedFrames;
+
+	/**
+	 * Indique que des trames ont été confiées aux groupes depuis le dernier
+	 * retour à la distribution directe (sous le verrou de diffusion)
+	 */
+	private boolean active;
+
+	/**
+	 * Indique que les groupes sont arrêtés : les trames sont alors
+	 * distribuées directement
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Mesures de l'étage de distribution, dont les groupes enregistrent
+	 * chacune de leurs tâches
+	 */
+	private final StageMetrics metrics;
+
+	/**
+	 * Logger pour l'affichage des messages de debug
+	 */
+	private final Logger logger;
+
+	/**
+	 * Constructeur d'une distribution répartie
+	 * @param count le nombre de groupes (au moins 2)
+	 * @param threshold nombre de clients à partir duquel la distribution est
+	 * répartie
+	 * @param offer ajout d'une trame à la file de sortie d'un client
+	 * @param metrics mesures de l'étage de distribution du serveur
+	 * @param logger logger pour l'affichage des erreurs de distribution
+	 */
+	public ShardedFanOut(int count,
+	                     int threshold,
+	                     BiConsumer<InputOutputClient, MessageFrame> offer,
+	                     StageMetrics metrics,
+	                     Logger logger)
+	{
+		this.threshold = Math.max(0, threshold);
+		this.offer = offer;
+		this.metrics = metrics;
+		this.logger = logger;
+		next = new AtomicInteger(0);
+		pending = new AtomicInteger(0);
+		shardedFrames = new AtomicLong(0);
+		active = false;
+		closed = false;
+		shards = new Shard[Math.max(2, count)];
+		for (int i = 0; i < shards.length; i++)
+		{
+			shards[i] = new Shard(i);
+		}
+	}
+
+	/**
+	 * Affectation d'un client (enregistré auprès du serveur) à un groupe.
+	 * Le client ne devient membre du groupe qu'une fois distribuées les
+	 * trames déjà confiées au groupe : il ne reçoit donc pas par son groupe
+	 * les trames diffusées avant son enregistrement (qui peuvent lui avoir été
+	 * envoyées par l'historique du serveur, voir {@link MessageHistory}).
+	 * @param client le client
+	 */
+	public void add(InputOutputClient client)
+	{
+		int index = Math.floorMod(next.getAndIncrement(), shards.length);
+		client.setShard(index);
+		shards[index].tasks.add(new Task(client, true));
+	}
+
+	/**
+	 * Retrait d'un client de son groupe (après les trames déjà confiées au
+	 * groupe)
+	 * @param client le client
+	 */
+	public void remove(InputOutputClient client)
+	{
+		int index = client.getShard();
+		if ((index >= 0) && (index < shards.length))
+		{
+			shards[index].tasks.add(new Task(client, false));
+		}
+	}
+
+	/**
+	 * Diffusion d'une trame par les groupes si la salle est assez grande
+	 * (sous le verrou de diffusion). Chaque groupe prend sa propre référence
+	 * sur la trame.
+	 * @param frame la trame à diffuser
+	 * @param roomSize le nombre de clients enregistrés
+	 * @return true si la trame a été confiée aux groupes, false si elle doit
+	 * être distribuée directement (les groupes ont alors terminé leurs
+	 * distributions en cours)
+	 */
+	boolean deliver(MessageFrame frame, int roomSize)
+	{
+		if (closed || (roomSize < threshold))
+		{
+			if (active)
+			{
+				awaitIdle();
+				active = false;
+			}
+			return false;
+		}
+		active = true;
+		for (Shard shard : shards)
+		{
+			pending.incrementAndGet();
+			shard.tasks.add(new Task(frame.retain(), null));
+		}
+		shardedFrames.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Envoi d'une trame à un seul client par son groupe si la distribution
+	 * est répartie (sous le verrou de diffusion), afin qu'elle suive les
+	 * trames diffusées avant elle
+	 * @param recipient le client destinataire
+	 * @param frame la trame à envoyer
+	 * @return true si la trame a été confiée au groupe du client, false si
+	 * elle doit être distribuée directement
+	 */
+	boolean send(InputOutputClient recipient, MessageFrame frame)
+	{
+		int index = recipient.getShard();
+		if (closed || !active || (index < 0) || (index >= shards.length))
+		{
+			return false;
+		}
+		pending.incrementAndGet();
+		shards[index].tasks.add(new Task(frame.retain(), recipient));
+		return true;
+	}
+
+	/**
+	 * Arrêt des groupes une fois leurs trames en attente distribuées
+	 * @param timeout délai maximum (en ms) d'attente de chacun des groupes
+	 */
+	public void close(long timeout)
+	{
+		closed = true;
+		for (Shard shard : shards)
+		{
+			shard.tasks.add(STOP);
+		}
+		for (Shard shard : shards)
+		{
+			try
+			{
+				shard.thread.join(timeout);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Nombre de groupes
+	 * @return le nombre de groupes de clients
+	 */
+	public int getShards()
+	{
+		return shards.length;
+	}
+
+	/**
+	 * Nombre de clients à partir duquel la distribution est répartie
+	 * @return le seuil de répartition
+	 */
+	public int getThreshold()
+	{
+		return threshold;
+	}
+
+	/**
+	 * Nombre de tâches de distribution en attente
+	 * @return le nombre de trames (ou de réponses) confiées aux groupes et
+	 * pas encore distribuées
+	 */
+	public int getPending()
+	{
+		return pending.get();
+	}
+
+	/**
+	 * Nombre de trames diffusées par les groupes
+	 * @return le nombre de diffusions réparties
+	 */
+	public long getShardedFrames()
+	{
+		return shardedFrames.get();
+	}
+
+	/**
+	 * Attente de la fin des distributions confiées aux groupes
+	 */
+	private void awaitIdle()
+	{
+		while ((pending.get() > 0) && !closed)
+		{
+			LockSupport.parkNanos(this, IDLEWAIT);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package chat.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Mesures d'un étage du pipeline du {@link ChatServer} (lecture, traitement,
+ * encodage, distribution, écriture) : le nombre d'éléments en attente de
+ * l'étage (la profondeur de sa file), le nombre d'éléments traités ainsi que
+ * le temps de service moyen et maximum d'un élément. Le temps de service ne
+ * comprend que le traitement de l'élément et pas son attente dans la file :
+ * un étage dont la file s'allonge alors que son temps de service reste
+ * stable manque de threads, un étage dont le temps de service augmente est
+ * ralenti par son propre travail ou par l'étage suivant.
+ * Les mesures peuvent être enregistrées par plusieurs threads à la fois
+ * (par exemple par tous les {@link ClientWriter}).
+ *
+ * @author davidroussel
+ */
+public class StageMetrics
+{
+	/**
+	 * Nom de l'étage
+	 */
+	private final String name;
+
+	/**
+	 * Nombre d'éléments en attente de l'étage (null si l'étage n'a pas de
+	 * file)
+	 */
+	private final LongSupplier depth;
+
+	/**
+	 * Nombre d'éléments traités
+	 */
+	private final AtomicLong events;
+
+	/**
+	 * Temps total (en ns) passé à traiter les éléments
+	 */
+	private final AtomicLong busy;
+
+	/**
+	 * Temps (en ns) du traitement le plus long
+	 */
+	private final AtomicLong max;
+
+	/**
+	 * Constructeur des mesures d'un étage
+	 * @param name le nom de l'étage
+	 * @param depth nombre d'éléments en attente de l'étage, ou bien null si
+	 * l'étage n'a pas de file
+	 */
+	public StageMetrics(String name, LongSupplier depth)
+	{
+		this.name = name;
+		this.depth = depth;
+		events = new AtomicLong(0);
+		busy = new AtomicLong(0);
+		max = new AtomicLong(0);
+	}
+
+	/**
+	 * Enregistrement du traitement d'un élément
+	 * @param start la date (voir {@link System#nanoTime()}) du début du
+	 * traitement, qui se termine maintenant
+	 */
+	public void record(long start)
+	{
+		long elapsed = System.nanoTime() - start;
+		events.incrementAndGet();
+		busy.addAndGet(elapsed);
+		max.accumulateAndGet(elapsed, Math::max);
+	}
+
+	/**
+	 * Accesseur en lecture du nom de l'étage
+	 * @return le nom de l'étage
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Nombre d'éléments en attente de l'étage
+	 * @return la profondeur de la file de l'étage (0 si l'étage n'a pas de
+	 * file)
+	 */
+	public long getDepth()
+	{
+		return (depth != null ? depth.getAsLong() : 0);
+	}
+
+	/**
+	 * Nombre d'éléments traités par l'étage
+	 * @return le nombre d'éléments traités
+	 */
+	public long getEvents()
+	{
+		return events.get();
+	}
+
+	/**
+	 * Temps de service moyen d'un élément
+	 * @return le temps moyen (en ns) de traitement d'un élément
+	 */
+	public long getMeanServiceTime()
+	{
+		long count = events.get();
+		return (count > 0 ? busy.get() / count : 0);
+	}
+
+	/**
+	 * Temps de service maximum d'un élément
+	 * @return le temps (en ns) du traitement le plus long
+	 */
+	public long getMaxServiceTime()
+	{
+		return max.get();
+	}
+
+	/**
+	 * Description des mesures de l'étage
+	 * @return le nom de l'étage suivi de la profondeur de sa file (s'il en
+	 * a une), du nombre d'éléments traités et des temps de service moyen et
+	 * maximum (en µs)
+	 */
+	@Override
+	public String toString()
+	{
+		return name + " ("
+		    + (depth != null ? "depth " + getDepth() + ", " : "")
+		    + getEvents() + " events, mean "
+		    + TimeUnit.NANOSECONDS.toMicros(getMeanServiceTime()) + " µs, max "
+		    + TimeUnit.NANOSECONDS.toMicros(getMaxServiceTime()) + " µs)";
+	}
+}
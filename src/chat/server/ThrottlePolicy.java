@@ -0,0 +1,54 @@
+package chat.server;
+
+/**
+ * Politique appliquée lorsqu'un client envoie des messages plus vite que
+ * ne le permet son {@link RateLimiter}, c'est à dire lorsqu'il risque de
+ * multiplier la charge d'écriture du serveur par le nombre de clients.
+ *
+ * @author davidroussel
+ */
+public enum ThrottlePolicy
+{
+	/**
+	 * La lecture du client est suspendue jusqu'à ce que son message puisse
+	 * être diffusé : le client est ralenti par le contrôle de flux de TCP
+	 */
+	DELAY,
+	/**
+	 * Le message est ignoré
+	 */
+	DROP,
+	/**
+	 * Le client est banni (comme par la commande kick)
+	 */
+	KICK;
+
+	/**
+	 * Politique correspondant à un nom de la forme "delay", "drop" ou
+	 * "kick" (tel qu'utilisé sur la ligne de commande)
+	 * @param name le nom de la politique
+	 * @return la politique correspondante ou bien null si ce nom ne
+	 * correspond à aucune politique
+	 */
+	public static ThrottlePolicy fromString(String name)
+	{
+		for (ThrottlePolicy policy : values())
+		{
+			if (policy.toString().equals(name))
+			{
+				return policy;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Nom de la politique tel qu'utilisé sur la ligne de commande
+	 * @return le nom de la politique en minuscules
+	 */
+	@Override
+	public String toString()
+	{
+		return name().toLowerCase();
+	}
+}
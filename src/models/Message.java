@@ -1,6 +1,9 @@
 package models;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
@@ -18,6 +21,12 @@ import java.util.Vector;
  * Les message peuvent être comparés entre eux pour obtenir l'ordre des messages
  * avec la méthode compareTo(Message m). Les critère d'ordre des messages
  * peuvent être customizés.
+ * Un message peut aussi être construit à partir de son contenu encodé en
+ * UTF-8 ({@link #fromUtf8(Date, byte[], String)}), tel que reçu d'un client :
+ * la chaîne du contenu n'est alors décodée que si elle est demandée
+ * ({@link #getContent()}) ou lors de la sérialisation du message, et le
+ * contenu encodé peut être recopié tel quel dans une trame binaire (voir
+ * {@link #getEncodedContent()}).
  * @author davidroussel
  */
 public class Message implements Serializable, Comparable<Message>
@@ -74,10 +83,23 @@ public class Message implements Serializable, Comparable<Message>
 	private Date date;
 
 	/**
-	 * Le contenu du message
+	 * Identifiant de sérialisation, celui calculé pour la première version
+	 * de la classe (le contenu encodé n'est pas sérialisé)
+	 */
+	private static final long serialVersionUID = 7454580897122671278L;
+
+	/**
+	 * Le contenu du message (null tant que le contenu encodé n'a pas été
+	 * décodé)
 	 */
 	private String content;
 
+	/**
+	 * Le contenu du message encodé en UTF-8 lorsque le message a été
+	 * construit à partir de celui-ci (null sinon)
+	 */
+	private transient byte[] encodedContent;
+
 	/**
 	 * L'auteur du message (optionnel).
 	 * Un message du serveur peut éventuellement ne pas avoir d'auteur
@@ -142,6 +164,38 @@ public class Message implements Serializable, Comparable<Message>
 		this(content, null);
 	}
 
+	/**
+	 * Message dont le contenu est encodé en UTF-8 (tel que reçu d'un
+	 * client) : le contenu ne sera décodé que s'il est demandé
+	 * @param date la date d'arrivée du message (ou null pour "maintenant")
+	 * @param content le contenu encodé du message, qui ne doit plus être
+	 * modifié
+	 * @param author l'auteur du message
+	 * @return un nouveau message
+	 */
+	public static Message fromUtf8(Date date, byte[] content, String author)
+	{
+		Message message = new Message(date, null, author);
+		message.content = null;
+		message.encodedContent = content;
+		return message;
+	}
+
+	/**
+	 * Message daté de "maintenant" reprenant le contenu de ce message avec
+	 * un autre auteur, sans décoder le contenu s'il ne l'a pas encore été
+	 * (utilisé par le serveur pour relayer un message reçu)
+	 * @param newAuthor l'auteur du nouveau message
+	 * @return un nouveau message
+	 */
+	public Message forward(String newAuthor)
+	{
+		Message message = new Message(null, content, newAuthor);
+		message.content = content;
+		message.encodedContent = encodedContent;
+		return message;
+	}
+
 	/**
 	 * Accesseur en lecture de la date du message
 	 * @return la date du message
@@ -166,9 +220,24 @@ public class Message implements Serializable, Comparable<Message>
 	 */
 	public String getContent()
 	{
+		if (content == null)
+		{
+			// concurrence sans conséquence : le décodage donne la même chaîne
+			content = new String(encodedContent, StandardCharsets.UTF_8);
+		}
 		return content;
 	}
 
+	/**
+	 * Accesseur en lecture du contenu encodé en UTF-8
+	 * @return le contenu encodé du message (à ne pas modifier) ou bien null
+	 * si le message a été construit à partir d'une chaîne
+	 */
+	public byte[] getEncodedContent()
+	{
+		return encodedContent;
+	}
+
 	/**
 	 * Accesseur en lecture de l'auteur du message
 	 * @return l'auteur du message ou bien null s'il s'agit d'un
@@ -208,7 +277,7 @@ public class Message implements Serializable, Comparable<Message>
 	{
 		final int prime = 31;
 		int hash = date.hashCode();
-		hash = (prime * hash) + content.hashCode();
+		hash = (prime * hash) + getContent().hashCode();
 		if (author != null)
 		{
 			hash = (prime * hash) + author.hashCode();
@@ -242,7 +311,7 @@ public class Message implements Serializable, Comparable<Message>
 
 			if (date.equals(m.date))
 			{
-				if (content.equals(m.content))
+				if (getContent().equals(m.getContent()))
 				{
 					if (author != null)
 					{
@@ -276,7 +345,7 @@ public class Message implements Serializable, Comparable<Message>
 			sb.append(author);
 			sb.append(" > ");
 		}
-		sb.append(content);
+		sb.append(getContent());
 
 		return sb.toString();
 	}
@@ -366,7 +435,7 @@ public class Message implements Serializable, Comparable<Message>
 						compare = date.compareTo(m.date);
 						break;
 					case CONTENT:
-						compare = content.compareTo(m.content);
+						compare = getContent().compareTo(m.getContent());
 					default:
 						break;
 				}
@@ -423,4 +492,17 @@ public class Message implements Serializable, Comparable<Message>
 	{
 		orders.clear();
 	}
+
+	/**
+	 * Sérialisation du message : le contenu est décodé (s'il ne l'a pas
+	 * encore été) afin que la forme sérialisée reste celle d'un message
+	 * construit à partir d'une chaîne
+	 * @param out le flux objet sur lequel écrire le message
+	 * @throws IOException si l'écriture échoue
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		getContent();
+		out.defaultWriteObject();
+	}
 }